@@ -0,0 +1,941 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import org.apache.felix.cm.PersistenceManager;
+
+
+/**
+ * The <code>JournalPersistenceManager</code> class stores configuration data
+ * in a single append-only journal file. Each {@link #store(String, Dictionary)}
+ * and {@link #delete(String)} call appends a record to the journal, which is
+ * read back in a single sequential pass when the persistence manager is
+ * created. All configurations are kept in memory in their serialized form.
+ * <p>
+ * <b>Write-behind and Group Commit</b>
+ * <p>
+ * Records are not written by the calling thread but by a background writer
+ * thread, which writes all records collected since its last write in one go
+ * and then forces them to disk once according to the fsync policy:
+ * <ul>
+ * <li>{@link #FSYNC_ALWAYS} -- The store and delete methods only return
+ * after the record has been forced to disk. Concurrent callers share a single
+ * disk force (group commit). This is the default.</li>
+ * <li>{@link #FSYNC_INTERVAL} -- The store and delete methods return
+ * immediately. Records are collected for up to the configured interval and
+ * then written and forced to disk.</li>
+ * <li>{@link #FSYNC_NEVER} -- The store and delete methods return
+ * immediately. Records are written as soon as possible but never explicitly
+ * forced to disk.</li>
+ * </ul>
+ * <p>
+ * <b>Crash Safety</b>
+ * <p>
+ * Each record carries a CRC32 checksum. When reading the journal, a torn or
+ * corrupt record at the end of the journal, as left by a crash while
+ * writing, ends the journal and is cut off. Any records written after it
+ * are lost.
+ * <p>
+ * If writing records fails, their changes to the configurations are rolled
+ * back and the failure is reported to the caller waiting for the records
+ * or, with the other policies, to the next caller. The journal is then
+ * reopened, cutting off whatever part of the records may have been
+ * written, before the next records are written.
+ * <p>
+ * <b>Compaction</b>
+ * <p>
+ * Since records for the same PID replace each other, the journal is
+ * compacted by writing a new journal containing only the current
+ * configurations once it has grown to more than twice the size of the
+ * current configurations. The new journal is written from a snapshot of the
+ * configurations to a temporary file without blocking concurrent calls. It
+ * replaces the journal only after it has been forced to disk.
+ * <p>
+ * When this persistence manager is used by the Configuration Admin Service
+ * it is registered with a service ranking higher than the ranking of the
+ * {@link FilePersistenceManager}. Thus new configurations are stored in the
+ * journal while configurations stored in files can still be loaded.
+ */
+public class JournalPersistenceManager implements PersistenceManager
+{
+
+    /**
+     * The fsync policy to force each record to disk before returning from
+     * the store or delete method (value is "always").
+     */
+    public static final String FSYNC_ALWAYS = "always";
+
+    /**
+     * The fsync policy to periodically write and force records to disk
+     * (value is "interval").
+     */
+    public static final String FSYNC_INTERVAL = "interval";
+
+    /**
+     * The fsync policy to never explicitly force records to disk (value is
+     * "never").
+     */
+    public static final String FSYNC_NEVER = "never";
+
+    /**
+     * The name of the journal file (value is "configurations.journal").
+     */
+    public static final String JOURNAL_FILE = "configurations.journal";
+
+    /**
+     * The extension of the new journal file while it is being written during
+     * compaction (value is ".tmp").
+     */
+    private static final String TMP_EXT = ".tmp";
+
+    // the journal file header: "FCMJ" and format version 1
+    private static final int MAGIC = 0x46434d4a;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    // the record types
+    private static final byte RECORD_STORE = 1;
+
+    private static final byte RECORD_DELETE = 2;
+
+    // the per-record overhead: length and checksum
+    private static final int RECORD_OVERHEAD = 4 + 8;
+
+    // the minimum journal size to consider compaction
+    private static final long COMPACT_MIN_SIZE = 1024 * 1024;
+
+    /**
+     * The journal file.
+     */
+    private final File journal;
+
+    /**
+     * The fsync policy, one of {@link #FSYNC_ALWAYS},
+     * {@link #FSYNC_INTERVAL} or {@link #FSYNC_NEVER}.
+     */
+    private final String fsyncPolicy;
+
+    /**
+     * The interval in milliseconds to collect records for when the fsync
+     * policy is {@link #FSYNC_INTERVAL}.
+     */
+    private final long fsyncInterval;
+
+    /**
+     * The serialized configurations indexed by PID. Access to this map and
+     * the following fields is guarded by this instance.
+     */
+    private final Map configurations;
+
+    // the records waiting to be written by the writer thread
+    private List pending;
+
+    // the size of the records of the current configurations
+    private long liveSize;
+
+    // the size of the journal file
+    private long journalSize;
+
+    // the failure to write records not waited for by their callers,
+    // rethrown to the next caller
+    private IOException failure;
+
+    // the output to the journal file, only used by the writer thread
+    private FileOutputStream out;
+
+    // whether the journal must be reopened before writing, only used by
+    // the writer thread
+    private boolean reopen;
+
+    // the background writer thread, null once closed
+    private Thread writer;
+
+
+    /**
+     * Creates an instance of this persistence manager keeping the journal in
+     * the given directory with the {@link #FSYNC_ALWAYS} policy.
+     *
+     * @param location The directory containing the journal file. The
+     *      directory is created if it does not exist yet.
+     *
+     * @throws IOException If the journal cannot be read or opened for writing
+     */
+    public JournalPersistenceManager( File location ) throws IOException
+    {
+        this( location, FSYNC_ALWAYS, 0 );
+    }
+
+
+    /**
+     * Creates an instance of this persistence manager keeping the journal in
+     * the given directory. The existing journal is read and any torn record
+     * at its end is cut off.
+     *
+     * @param location The directory containing the journal file. The
+     *      directory is created if it does not exist yet.
+     * @param fsyncPolicy The fsync policy, one of {@link #FSYNC_ALWAYS},
+     *      {@link #FSYNC_INTERVAL} or {@link #FSYNC_NEVER}.
+     * @param fsyncInterval The interval in milliseconds to collect records
+     *      for with the {@link #FSYNC_INTERVAL} policy. This is ignored for
+     *      the other policies.
+     *
+     * @throws IllegalArgumentException If the location exists but is not a
+     *      directory or does not exist and cannot be created or if the fsync
+     *      policy is not known.
+     * @throws IOException If the journal cannot be read or opened for writing
+     */
+    public JournalPersistenceManager( File location, String fsyncPolicy, long fsyncInterval ) throws IOException
+    {
+        if ( !FSYNC_ALWAYS.equals( fsyncPolicy ) && !FSYNC_INTERVAL.equals( fsyncPolicy )
+            && !FSYNC_NEVER.equals( fsyncPolicy ) )
+        {
+            throw new IllegalArgumentException( "Unknown fsync policy " + fsyncPolicy );
+        }
+
+        if ( !location.isDirectory() && !location.mkdirs() )
+        {
+            throw new IllegalArgumentException( "Cannot create directory " + location );
+        }
+
+        this.journal = new File( location, JOURNAL_FILE );
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncInterval = Math.max( 0, fsyncInterval );
+        this.configurations = new HashMap();
+        this.pending = new ArrayList();
+
+        // a complete new journal replaces the old one if we crashed during
+        // compaction after removing the old journal
+        final File tmpJournal = new File( location, JOURNAL_FILE + TMP_EXT );
+        if ( journal.exists() )
+        {
+            tmpJournal.delete();
+        }
+        else if ( tmpJournal.exists() && !tmpJournal.renameTo( journal ) )
+        {
+            throw new IOException( "Failed to rename journal file from '" + tmpJournal + "' to '" + journal + "'" );
+        }
+
+        readJournal();
+        this.out = new FileOutputStream( journal, true );
+        if ( journalSize == 0 )
+        {
+            out.write( header() );
+            out.getFD().sync();
+            journalSize = HEADER_SIZE;
+        }
+
+        this.writer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                writeRecords();
+            }
+        }, "CM Journal Writer" );
+        this.writer.setDaemon( true );
+        this.writer.start();
+    }
+
+
+    /**
+     * Returns the journal file.
+     */
+    public File getJournal()
+    {
+        return journal;
+    }
+
+
+    /**
+     * Stops the writer thread after writing all pending records and closes
+     * the journal. Any subsequent store or delete call fails.
+     */
+    public void close()
+    {
+        final Thread writerThread;
+        synchronized ( this )
+        {
+            writerThread = writer;
+            writer = null;
+            notifyAll();
+        }
+
+        if ( writerThread != null )
+        {
+            try
+            {
+                writerThread.join();
+            }
+            catch ( InterruptedException ie )
+            {
+                // don't care
+            }
+        }
+    }
+
+
+    public synchronized boolean exists( String pid )
+    {
+        return configurations.containsKey( pid );
+    }
+
+
+    public Dictionary load( String pid ) throws IOException
+    {
+        final byte[] data;
+        synchronized ( this )
+        {
+            data = ( byte[] ) configurations.get( pid );
+        }
+
+        if ( data == null )
+        {
+            throw new IOException( "No such configuration: " + pid );
+        }
+        return ConfigurationHandler.read( new ByteArrayInputStream( data ) );
+    }
+
+
+    public Enumeration getDictionaries()
+    {
+        final Iterator data;
+        synchronized ( this )
+        {
+            data = new ArrayList( configurations.values() ).iterator();
+        }
+
+        return new Enumeration()
+        {
+            public boolean hasMoreElements()
+            {
+                return data.hasNext();
+            }
+
+
+            public Object nextElement()
+            {
+                try
+                {
+                    return ConfigurationHandler.read( new ByteArrayInputStream( ( byte[] ) data.next() ) );
+                }
+                catch ( IOException ioe )
+                {
+                    // cannot happen, the data has been read before
+                    throw new NoSuchElementException( ioe.toString() );
+                }
+            }
+        };
+    }
+
+
+    public void store( String pid, Dictionary properties ) throws IOException
+    {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ConfigurationHandler.write( data, properties );
+        append( RECORD_STORE, pid, data.toByteArray() );
+    }
+
+
+    public void delete( String pid ) throws IOException
+    {
+        synchronized ( this )
+        {
+            if ( !configurations.containsKey( pid ) )
+            {
+                return;
+            }
+        }
+        append( RECORD_DELETE, pid, null );
+    }
+
+
+    // updates the configurations and queues the record for the writer,
+    // waiting for it to be committed with the FSYNC_ALWAYS policy
+    private void append( final byte type, final String pid, final byte[] data ) throws IOException
+    {
+        final byte[] bytes = encode( type, pid, data );
+        synchronized ( this )
+        {
+            checkOpen();
+
+            final byte[] old = ( byte[] ) ( ( type == RECORD_STORE ) ? configurations.put( pid, data )
+                : configurations.remove( pid ) );
+            if ( old != null )
+            {
+                liveSize -= recordSize( pid, old );
+            }
+            if ( data != null )
+            {
+                liveSize += recordSize( pid, data );
+            }
+
+            final Record record = new Record( pid, data, old, bytes );
+            pending.add( record );
+            notifyAll();
+
+            if ( FSYNC_ALWAYS.equals( fsyncPolicy ) )
+            {
+                while ( !record.done )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        throw new IOException( "Interrupted waiting for " + pid + " to be written" );
+                    }
+                }
+                if ( record.failure != null )
+                {
+                    throw record.failure;
+                }
+            }
+        }
+    }
+
+
+    private void checkOpen() throws IOException
+    {
+        if ( failure != null )
+        {
+            final IOException ioe = failure;
+            failure = null;
+            throw ioe;
+        }
+        if ( writer == null )
+        {
+            throw new IOException( "Journal " + journal + " is closed" );
+        }
+    }
+
+
+    // the writer thread: writes pending records in batches until closed
+    void writeRecords()
+    {
+        // this method is not part of the API of this class but is made
+        // package private to prevent the creation of a synthetic method
+        // for use by the writer thread
+
+        for ( ;; )
+        {
+            final List batch;
+            final boolean closing;
+            synchronized ( this )
+            {
+                while ( pending.isEmpty() && writer != null )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        // don't care
+                    }
+                }
+
+                // collect records for the interval
+                if ( FSYNC_INTERVAL.equals( fsyncPolicy ) && writer != null )
+                {
+                    final long end = System.currentTimeMillis() + fsyncInterval;
+                    for ( long now = System.currentTimeMillis(); now < end && writer != null; now = System
+                        .currentTimeMillis() )
+                    {
+                        try
+                        {
+                            wait( end - now );
+                        }
+                        catch ( InterruptedException ie )
+                        {
+                            // don't care
+                        }
+                    }
+                }
+
+                batch = pending;
+                closing = writer == null;
+                pending = new ArrayList();
+            }
+
+            IOException batchFailure = null;
+            try
+            {
+                if ( reopen )
+                {
+                    reopen();
+                    reopen = false;
+                }
+                write( batch );
+            }
+            catch ( IOException ioe )
+            {
+                batchFailure = ioe;
+                reopen = true;
+            }
+
+            synchronized ( this )
+            {
+                if ( batchFailure != null )
+                {
+                    rollback( batch, batchFailure );
+                }
+                else
+                {
+                    for ( Iterator ri = batch.iterator(); ri.hasNext(); )
+                    {
+                        ( ( Record ) ri.next() ).done = true;
+                    }
+                }
+                notifyAll();
+            }
+
+            if ( batchFailure == null && !closing )
+            {
+                compact();
+            }
+
+            if ( closing )
+            {
+                try
+                {
+                    out.close();
+                }
+                catch ( IOException ioe )
+                {
+                    // ignore
+                }
+                return;
+            }
+        }
+    }
+
+
+    // writes the records to the journal, forcing them to disk as per policy
+    private void write( final List records ) throws IOException
+    {
+        if ( records.isEmpty() )
+        {
+            return;
+        }
+
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for ( Iterator ri = records.iterator(); ri.hasNext(); )
+        {
+            buf.write( ( ( Record ) ri.next() ).bytes );
+        }
+        writeJournal( buf.toByteArray() );
+
+        synchronized ( this )
+        {
+            journalSize += buf.size();
+        }
+    }
+
+
+    // appends the data to the journal, forcing it to disk as per policy
+    void writeJournal( final byte[] data ) throws IOException
+    {
+        // this method is not part of the API of this class but is made
+        // package private to allow tests to simulate write failures
+
+        out.write( data );
+        if ( !FSYNC_NEVER.equals( fsyncPolicy ) )
+        {
+            out.getFD().sync();
+        }
+    }
+
+
+    // reverts the changes of the records which failed to be written; the
+    // record replaced by a pending record for the same PID takes over
+    // its replaced data instead
+    private void rollback( final List records, final IOException ioe )
+    {
+        for ( int i = records.size() - 1; i >= 0; i-- )
+        {
+            final Record record = ( Record ) records.get( i );
+            final Record next = getPending( record.pid );
+            if ( next != null )
+            {
+                next.old = record.old;
+            }
+            else
+            {
+                if ( record.data != null )
+                {
+                    configurations.remove( record.pid );
+                    liveSize -= recordSize( record.pid, record.data );
+                }
+                if ( record.old != null )
+                {
+                    configurations.put( record.pid, record.old );
+                    liveSize += recordSize( record.pid, record.old );
+                }
+            }
+
+            record.failure = ioe;
+            record.done = true;
+        }
+
+        // nobody waits for the records with the other policies
+        if ( !FSYNC_ALWAYS.equals( fsyncPolicy ) )
+        {
+            failure = ioe;
+        }
+    }
+
+
+    // returns the first pending record for the PID or null if none
+    private Record getPending( final String pid )
+    {
+        for ( Iterator ri = pending.iterator(); ri.hasNext(); )
+        {
+            final Record record = ( Record ) ri.next();
+            if ( record.pid.equals( pid ) )
+            {
+                return record;
+            }
+        }
+        return null;
+    }
+
+
+    // reopens the journal after a failure, cutting off anything after the
+    // last records known to be written or recovering the new journal if
+    // the failure happened while replacing the journal during compaction
+    private void reopen() throws IOException
+    {
+        try
+        {
+            out.close();
+        }
+        catch ( IOException ioe )
+        {
+            // ignore
+        }
+
+        long size;
+        synchronized ( this )
+        {
+            size = journalSize;
+        }
+
+        final File tmpJournal = new File( journal.getParentFile(), JOURNAL_FILE + TMP_EXT );
+        if ( journal.exists() )
+        {
+            tmpJournal.delete();
+        }
+        else if ( tmpJournal.renameTo( journal ) )
+        {
+            size = journal.length();
+        }
+        else
+        {
+            throw new IOException( "Failed to rename journal file from '" + tmpJournal + "' to '" + journal + "'" );
+        }
+
+        if ( size < journal.length() )
+        {
+            truncate( size );
+        }
+        out = new FileOutputStream( journal, true );
+
+        synchronized ( this )
+        {
+            journalSize = size;
+        }
+    }
+
+
+    // writes a new journal with a snapshot of the current configurations
+    // and replaces the current journal with it once the journal has grown
+    // too large; called by the writer thread, which only holds the lock to
+    // take the snapshot and to complete the records contained in it
+    private void compact()
+    {
+        final Map snapshot;
+        final int contained;
+        synchronized ( this )
+        {
+            if ( journalSize <= COMPACT_MIN_SIZE || journalSize <= 2 * liveSize )
+            {
+                return;
+            }
+
+            // the snapshot contains the records pending so far
+            snapshot = new HashMap( configurations );
+            contained = pending.size();
+        }
+
+        final File tmpJournal = new File( journal.getParentFile(), JOURNAL_FILE + TMP_EXT );
+        long size = HEADER_SIZE;
+        try
+        {
+            final FileOutputStream tmpOut = new FileOutputStream( tmpJournal );
+            try
+            {
+                final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                buf.write( header() );
+                for ( Iterator ei = snapshot.entrySet().iterator(); ei.hasNext(); )
+                {
+                    final Map.Entry entry = ( Map.Entry ) ei.next();
+                    final byte[] record = encode( RECORD_STORE, ( String ) entry.getKey(), ( byte[] ) entry
+                        .getValue() );
+                    buf.write( record );
+                    size += record.length;
+                }
+                tmpOut.write( buf.toByteArray() );
+                tmpOut.getFD().sync();
+            }
+            finally
+            {
+                tmpOut.close();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            // keep the current journal and try again after the next write
+            tmpJournal.delete();
+            return;
+        }
+
+        try
+        {
+            out.close();
+            if ( journal.exists() && !journal.delete() )
+            {
+                throw new IOException( "Cannot remove old journal '" + journal + "'" );
+            }
+            if ( !tmpJournal.renameTo( journal ) )
+            {
+                throw new IOException( "Failed to rename journal file from '" + tmpJournal + "' to '" + journal
+                    + "'" );
+            }
+            out = new FileOutputStream( journal, true );
+        }
+        catch ( IOException ioe )
+        {
+            // the journal is recovered before the next write, which also
+            // writes the records contained in the snapshot again
+            reopen = true;
+            return;
+        }
+
+        synchronized ( this )
+        {
+            final List done = pending.subList( 0, contained );
+            for ( Iterator ri = done.iterator(); ri.hasNext(); )
+            {
+                ( ( Record ) ri.next() ).done = true;
+            }
+            done.clear();
+            journalSize = size;
+            notifyAll();
+        }
+    }
+
+
+    // reads the journal in one pass and cuts off a torn record at the end
+    private void readJournal() throws IOException
+    {
+        if ( !journal.exists() )
+        {
+            return;
+        }
+
+        long valid = 0;
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( journal ),
+            64 * 1024 ) );
+        try
+        {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+            {
+                throw new IOException( "Not a configuration journal: " + journal );
+            }
+            valid = HEADER_SIZE;
+
+            final CRC32 crc = new CRC32();
+            for ( ;; )
+            {
+                final int length = in.readInt();
+                if ( length <= 0 || length > journal.length() - valid )
+                {
+                    break;
+                }
+                final byte[] payload = new byte[length];
+                in.readFully( payload );
+                crc.reset();
+                crc.update( payload );
+                if ( in.readLong() != crc.getValue() )
+                {
+                    break;
+                }
+
+                final DataInputStream rec = new DataInputStream( new ByteArrayInputStream( payload ) );
+                final byte type = rec.readByte();
+                final String pid = rec.readUTF();
+                final byte[] old;
+                if ( type == RECORD_STORE )
+                {
+                    final byte[] data = new byte[rec.available()];
+                    rec.readFully( data );
+                    old = ( byte[] ) configurations.put( pid, data );
+                    liveSize += recordSize( pid, data );
+                }
+                else
+                {
+                    old = ( byte[] ) configurations.remove( pid );
+                }
+                if ( old != null )
+                {
+                    liveSize -= recordSize( pid, old );
+                }
+                valid += length + RECORD_OVERHEAD;
+            }
+        }
+        catch ( EOFException eofe )
+        {
+            // end of journal, possibly a torn record
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // cut off anything after the last complete record
+        if ( valid < journal.length() )
+        {
+            truncate( valid );
+        }
+        journalSize = valid;
+    }
+
+
+    private void truncate( final long length ) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( journal, "rw" );
+        try
+        {
+            raf.setLength( length );
+            raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+
+    private static byte[] header() throws IOException
+    {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream( HEADER_SIZE );
+        final DataOutputStream dos = new DataOutputStream( buf );
+        dos.writeInt( MAGIC );
+        dos.writeInt( VERSION );
+        return buf.toByteArray();
+    }
+
+
+    // encodes a record: payload length, payload (type, pid, data), checksum
+    private static byte[] encode( final byte type, final String pid, final byte[] data ) throws IOException
+    {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream( payload );
+        dos.writeByte( type );
+        dos.writeUTF( pid );
+        if ( data != null )
+        {
+            dos.write( data );
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update( payload.toByteArray() );
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream( payload.size() + RECORD_OVERHEAD );
+        final DataOutputStream rdos = new DataOutputStream( record );
+        rdos.writeInt( payload.size() );
+        payload.writeTo( rdos );
+        rdos.writeLong( crc.getValue() );
+        return record.toByteArray();
+    }
+
+
+    // the approximate size of the store record for the given configuration
+    private static long recordSize( final String pid, final byte[] data )
+    {
+        return 1 + 2 + pid.length() + data.length + RECORD_OVERHEAD;
+    }
+
+
+    // a record appended to the journal; the fields other than the encoded
+    // record are guarded by the persistence manager
+    private static class Record
+    {
+        // the PID of the configuration
+        final String pid;
+
+        // the stored configuration or null if deleted
+        final byte[] data;
+
+        // the configuration replaced or null if none, restored on failure
+        byte[] old;
+
+        // the encoded record
+        final byte[] bytes;
+
+        // whether the record has been written or has failed
+        boolean done;
+
+        // the failure writing the record
+        IOException failure;
+
+
+        Record( final String pid, final byte[] data, final byte[] old, final byte[] bytes )
+        {
+            this.pid = pid;
+            this.data = data;
+            this.old = old;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -20,13 +20,22 @@ package org.apache.felix.cm.impl;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
 
 
 /**
@@ -34,6 +43,12 @@ import org.osgi.framework.Constants;
  * underlying actual {@link PersistenceManager} implementation. All API calls
  * are also (or primarily) routed through a local cache of dictionaries indexed
  * by the <code>service.pid</code>.
+ * <p>
+ * In addition the cache maintains secondary indexes on the string values of
+ * a set of properties, by default <code>service.pid</code>,
+ * <code>service.factoryPid</code> and <code>service.bundleLocation</code>.
+ * These are used by the {@link #getDictionaries(SimpleFilter)} method to
+ * only return the dictionaries which can possibly match a filter.
  */
 class CachingPersistenceManagerProxy implements PersistenceManager
 {
@@ -51,15 +66,53 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     private boolean fullyLoaded;
 
+    /**
+     * The secondary indexes: maps lower case property names to maps of
+     * property values to the sets of PIDs of the dictionaries having that
+     * value. Access is guarded by synchronizing on this map.
+     */
+    private final Map<String, Map<String, Set<String>>> indexes;
 
     /**
-     * Creates a new caching layer for the given actual {@link PersistenceManager}.
+     * The lower case names of indexed properties for which dictionaries
+     * have been seen with values other than strings or collections and
+     * arrays of strings. Such values may match a filter after type coercion
+     * and thus cannot be looked up in the index.
+     */
+    private final Set<String> unindexable;
+
+    /** The properties indexed by default */
+    static final String[] DEFAULT_INDEXED_PROPERTIES =
+        { Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID, ConfigurationAdmin.SERVICE_BUNDLELOCATION };
+
+
+    /**
+     * Creates a new caching layer for the given actual {@link PersistenceManager}
+     * indexing the {@link #DEFAULT_INDEXED_PROPERTIES default properties}.
      * @param pm The actual {@link PersistenceManager}
      */
     public CachingPersistenceManagerProxy( final PersistenceManager pm )
+    {
+        this( pm, DEFAULT_INDEXED_PROPERTIES );
+    }
+
+
+    /**
+     * Creates a new caching layer for the given actual {@link PersistenceManager}.
+     * @param pm The actual {@link PersistenceManager}
+     * @param indexedProperties The names of the properties whose values are
+     *      indexed
+     */
+    public CachingPersistenceManagerProxy( final PersistenceManager pm, final String[] indexedProperties )
     {
         this.pm = pm;
         this.cache = new Hashtable();
+        this.indexes = new HashMap<String, Map<String, Set<String>>>();
+        this.unindexable = new HashSet<String>();
+        for ( int i = 0; i < indexedProperties.length; i++ )
+        {
+            this.indexes.put( indexedProperties[i].toLowerCase(), new HashMap<String, Set<String>>() );
+        }
     }
 
 
@@ -70,7 +123,10 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public void delete( String pid ) throws IOException
     {
-        cache.remove( pid );
+        synchronized ( indexes )
+        {
+            unindex( pid, ( Dictionary ) cache.remove( pid ) );
+        }
         pm.delete( pid );
     }
 
@@ -98,8 +154,57 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public Enumeration getDictionaries() throws IOException
     {
-        // if not fully loaded, call back to the underlying persistence
-        // manager and cach all dictionaries whose service.pid is set
+        loadAll();
+        return copies( cache.elements() );
+    }
+
+
+    /**
+     * Returns an <code>Enumeration</code> of <code>Dictionary</code> objects
+     * like {@link #getDictionaries()} but leaving out dictionaries which
+     * according to the indexes cannot match the given filter. The caller
+     * still has to match the returned dictionaries against the actual filter.
+     * <p>
+     * If the filter is <code>null</code> or cannot be answered from the
+     * indexes all dictionaries are returned.
+     */
+    public Enumeration getDictionaries( final SimpleFilter filter ) throws IOException
+    {
+        loadAll();
+
+        final Enumeration dictionaries;
+        synchronized ( indexes )
+        {
+            final Set<String> pids = ( filter == null ) ? null : lookup( filter );
+            if ( pids == null )
+            {
+                dictionaries = cache.elements();
+            }
+            else
+            {
+                final Collection<Object> matches = new ArrayList<Object>( pids.size() );
+                for ( Iterator<String> pi = pids.iterator(); pi.hasNext(); )
+                {
+                    final Object dict = cache.get( pi.next() );
+                    if ( dict != null )
+                    {
+                        matches.add( dict );
+                    }
+                }
+                dictionaries = Collections.enumeration( matches );
+            }
+        }
+
+        return copies( dictionaries );
+    }
+
+
+    /**
+     * If not fully loaded, calls back to the underlying persistence
+     * manager and caches all dictionaries whose service.pid is set
+     */
+    private void loadAll() throws IOException
+    {
         if ( !fullyLoaded )
         {
             Enumeration fromPm = pm.getDictionaries();
@@ -109,17 +214,18 @@ class CachingPersistenceManagerProxy implements PersistenceManager
                 String pid = ( String ) next.get( Constants.SERVICE_PID );
                 if ( pid != null )
                 {
-                    cache.put( pid, next );
+                    cachePut( pid, next );
                 }
             }
             fullyLoaded = true;
         }
+    }
+
 
+    private Enumeration copies( final Enumeration base )
+    {
         return new Enumeration()
         {
-            final Enumeration base = cache.elements();
-
-
             public boolean hasMoreElements()
             {
                 return base.hasMoreElements();
@@ -152,7 +258,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
             loaded = pm.load( pid );
             if ( loaded != null )
             {
-                cache.put( pid, loaded );
+                cachePut( pid, loaded );
             }
         }
         return copy( loaded );
@@ -171,7 +277,184 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     public void store( String pid, Dictionary properties ) throws IOException
     {
         pm.store( pid, properties );
-        cache.put( pid, copy( properties ) );
+        cachePut( pid, copy( properties ) );
+    }
+
+
+    /**
+     * Puts the dictionary into the cache replacing the index entries of the
+     * dictionary previously cached for the PID.
+     */
+    private void cachePut( final String pid, final Dictionary dict )
+    {
+        synchronized ( indexes )
+        {
+            unindex( pid, ( Dictionary ) cache.put( pid, dict ) );
+            index( pid, dict );
+        }
+    }
+
+
+    private void index( final String pid, final Dictionary dict )
+    {
+        for ( Enumeration keys = dict.keys(); keys.hasMoreElements(); )
+        {
+            final Object key = keys.nextElement();
+            final String name = String.valueOf( key ).toLowerCase();
+            final Map<String, Set<String>> index = indexes.get( name );
+            if ( index == null || unindexable.contains( name ) )
+            {
+                continue;
+            }
+
+            final Collection values = getStringValues( dict.get( key ) );
+            if ( values == null )
+            {
+                // the filter might coerce the value, give up on this index
+                unindexable.add( name );
+                index.clear();
+                continue;
+            }
+
+            for ( Iterator vi = values.iterator(); vi.hasNext(); )
+            {
+                final String value = ( String ) vi.next();
+                Set<String> pids = index.get( value );
+                if ( pids == null )
+                {
+                    pids = new HashSet<String>();
+                    index.put( value, pids );
+                }
+                pids.add( pid );
+            }
+        }
+    }
+
+
+    private void unindex( final String pid, final Dictionary dict )
+    {
+        if ( dict == null )
+        {
+            return;
+        }
+
+        for ( Enumeration keys = dict.keys(); keys.hasMoreElements(); )
+        {
+            final Object key = keys.nextElement();
+            final String name = String.valueOf( key ).toLowerCase();
+            final Map<String, Set<String>> index = indexes.get( name );
+            if ( index == null || unindexable.contains( name ) )
+            {
+                continue;
+            }
+
+            final Collection values = getStringValues( dict.get( key ) );
+            if ( values == null )
+            {
+                // the cached value has been changed behind our back, we
+                // cannot tell which entries to remove, give up on this index
+                unindexable.add( name );
+                index.clear();
+                continue;
+            }
+
+            for ( Iterator vi = values.iterator(); vi.hasNext(); )
+            {
+                final Object value = vi.next();
+                final Set<String> pids = index.get( value );
+                if ( pids != null && pids.remove( pid ) && pids.isEmpty() )
+                {
+                    index.remove( value );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the PIDs of the dictionaries which may match the filter or
+     * <code>null</code> if the filter cannot be answered from the indexes.
+     */
+    private Set<String> lookup( final SimpleFilter filter )
+    {
+        switch ( filter.op )
+        {
+            case SimpleFilter.EQUAL:
+                final String name = filter.attr.toLowerCase();
+                final Map<String, Set<String>> index = indexes.get( name );
+                if ( index == null || unindexable.contains( name ) )
+                {
+                    return null;
+                }
+                final Set<String> pids = index.get( filter.value );
+                return ( pids == null ) ? Collections.<String> emptySet() : pids;
+
+            case SimpleFilter.AND:
+                Set<String> intersection = null;
+                for ( int i = 0; i < filter.operands.length; i++ )
+                {
+                    final Set<String> operand = lookup( filter.operands[i] );
+                    if ( operand == null )
+                    {
+                        continue;
+                    }
+                    else if ( intersection == null )
+                    {
+                        intersection = new HashSet<String>( operand );
+                    }
+                    else
+                    {
+                        intersection.retainAll( operand );
+                    }
+                }
+                return intersection;
+
+            case SimpleFilter.OR:
+                final Set<String> union = new HashSet<String>();
+                for ( int i = 0; i < filter.operands.length; i++ )
+                {
+                    final Set<String> operand = lookup( filter.operands[i] );
+                    if ( operand == null )
+                    {
+                        return null;
+                    }
+                    union.addAll( operand );
+                }
+                return union;
+
+            default:
+                return null;
+        }
+    }
+
+
+    /**
+     * Returns the values of a property as a collection of strings or
+     * <code>null</code> if the property value is not a string, nor an array
+     * or collection of strings.
+     */
+    private static Collection getStringValues( final Object value )
+    {
+        if ( value instanceof String )
+        {
+            return Collections.singleton( value );
+        }
+        else if ( value instanceof String[] )
+        {
+            return Arrays.asList( ( String[] ) value );
+        }
+        else if ( value instanceof Collection )
+        {
+            for ( Iterator vi = ( ( Collection ) value ).iterator(); vi.hasNext(); )
+            {
+                if ( !( vi.next() instanceof String ) )
+                {
+                    return null;
+                }
+            }
+            return ( Collection ) value;
+        }
+        return null;
     }
 
 
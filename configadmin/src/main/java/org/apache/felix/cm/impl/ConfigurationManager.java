@@ -19,6 +19,7 @@
 package org.apache.felix.cm.impl;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.text.MessageFormat;
@@ -29,12 +30,16 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.StringTokenizer;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.apache.felix.cm.file.FilePersistenceManager;
+import org.apache.felix.cm.file.JournalPersistenceManager;
 import org.apache.felix.cm.impl.helper.BaseTracker;
 import org.apache.felix.cm.impl.helper.ConfigurationMap;
 import org.apache.felix.cm.impl.helper.ManagedServiceFactoryTracker;
@@ -115,6 +120,59 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_LOG_LEVEL = "felix.cm.loglevel";
 
+    /**
+     * The name of the bundle context property listing additional property
+     * names whose values are indexed to speed up listing configurations
+     * (value is "felix.cm.index"). The value is a comma separated list of
+     * property names. The <code>service.pid</code>,
+     * <code>service.factoryPid</code> and <code>service.bundleLocation</code>
+     * properties are always indexed.
+     */
+    public static final String CM_INDEX = "felix.cm.index";
+
+    /**
+     * The name of the bundle context property defining the number of threads
+     * used to update <code>ManagedService</code> and
+     * <code>ManagedServiceFactory</code> services (value is
+     * "felix.cm.update.threads"). Updates are assigned to the threads by the
+     * PID of the service to update, such that updates for the same PID are
+     * still delivered in order. Each service is called by one thread only,
+     * so a service registered with more than one PID is not updated for its
+     * PIDs concurrently. The default value is 1, which delivers all updates
+     * one after the other.
+     */
+    public static final String CM_UPDATE_THREADS = "felix.cm.update.threads";
+
+    /**
+     * The name of the bundle context property enabling the
+     * {@link JournalPersistenceManager} (value is "felix.cm.journal"). If
+     * this property is set to <code>true</code> the journal is kept in the
+     * configuration directory and registered with a service ranking above
+     * the one of the {@link FilePersistenceManager}. New configurations are
+     * then stored in the journal.
+     */
+    public static final String CM_JOURNAL = "felix.cm.journal";
+
+    /**
+     * The name of the bundle context property defining the fsync policy of
+     * the journal (value is "felix.cm.journal.fsync"). The value is one of
+     * <code>always</code> (the default), <code>interval</code> or
+     * <code>never</code>.
+     *
+     * @see JournalPersistenceManager
+     */
+    public static final String CM_JOURNAL_FSYNC = "felix.cm.journal.fsync";
+
+    /**
+     * The name of the bundle context property defining the interval in
+     * milliseconds to collect journal records for before writing them with
+     * the <code>interval</code> fsync policy (value is
+     * "felix.cm.journal.fsync.interval"). The default value is 1000.
+     */
+    public static final String CM_JOURNAL_FSYNC_INTERVAL = "felix.cm.journal.fsync.interval";
+
+    private static final long CM_JOURNAL_FSYNC_INTERVAL_DEFAULT = 1000;
+
     // The name of the LogService (not using the class, which might be missing)
     private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
 
@@ -130,6 +188,12 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // the service registration of the default file persistence manager
     private volatile ServiceRegistration filepmRegistration;
 
+    // the journal persistence manager if enabled
+    private JournalPersistenceManager journalpm;
+
+    // the service registration of the journal persistence manager
+    private volatile ServiceRegistration journalpmRegistration;
+
     // the service registration of the configuration admin
     private volatile ServiceRegistration configurationAdminRegistration;
 
@@ -189,6 +253,10 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     private DynamicBindings dynamicBindings;
 
+    // the names of the configuration properties indexed by the persistence
+    // manager caches
+    private String[] indexedProperties = CachingPersistenceManagerProxy.DEFAULT_INDEXED_PROPERTIES;
+
     // the maximum log level when no LogService is available
     private int logLevel = CM_LOG_LEVEL_DEFAULT;
 
@@ -222,6 +290,24 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             }
         }
 
+        // set up the indexed configuration properties
+        String indexProp = bundleContext.getProperty( CM_INDEX );
+        if ( indexProp != null )
+        {
+            Set<String> indexed = new LinkedHashSet<String>( Arrays
+                .asList( CachingPersistenceManagerProxy.DEFAULT_INDEXED_PROPERTIES ) );
+            StringTokenizer tokener = new StringTokenizer( indexProp, "," );
+            while ( tokener.hasMoreTokens() )
+            {
+                String name = tokener.nextToken().trim();
+                if ( name.length() > 0 )
+                {
+                    indexed.add( name );
+                }
+            }
+            indexedProperties = indexed.toArray( new String[indexed.size()] );
+        }
+
         // set up some fields
         this.bundleContext = bundleContext;
 
@@ -235,7 +321,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         // initialize the asynchonous updater thread
         ThreadGroup tg = new ThreadGroup( "Configuration Admin Service" );
         tg.setDaemon( true );
-        this.updateThread = new UpdateThread( this, tg, "CM Configuration Updater" );
+        this.updateThread = new UpdateThread( this, tg, "CM Configuration Updater", getUpdateThreads( bundleContext ) );
         this.eventThread = new UpdateThread( this, tg, "CM Event Dispatcher" );
 
         // set up the location (might throw IllegalArgumentException)
@@ -252,6 +338,23 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
             // setup dynamic configuration bindings
             dynamicBindings = new DynamicBindings( bundleContext, fpm );
+
+            // register the journal in front of the files if enabled
+            if ( Boolean.valueOf( bundleContext.getProperty( CM_JOURNAL ) ).booleanValue() )
+            {
+                try
+                {
+                    startJournal( bundleContext, fpm.getLocation() );
+                }
+                catch ( IOException ioe )
+                {
+                    log( LogService.LOG_ERROR, "Cannot create the JournalPersistenceManager", ioe );
+                }
+                catch ( IllegalArgumentException iae )
+                {
+                    log( LogService.LOG_ERROR, "Cannot create the JournalPersistenceManager", iae );
+                }
+            }
         }
         catch ( IOException ioe )
         {
@@ -294,6 +397,60 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     }
 
 
+    private void startJournal( final BundleContext bundleContext, final File location ) throws IOException
+    {
+        String fsyncPolicy = bundleContext.getProperty( CM_JOURNAL_FSYNC );
+        if ( fsyncPolicy == null )
+        {
+            fsyncPolicy = JournalPersistenceManager.FSYNC_ALWAYS;
+        }
+
+        long fsyncInterval = CM_JOURNAL_FSYNC_INTERVAL_DEFAULT;
+        final String intervalProp = bundleContext.getProperty( CM_JOURNAL_FSYNC_INTERVAL );
+        if ( intervalProp != null )
+        {
+            try
+            {
+                fsyncInterval = Long.parseLong( intervalProp );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                log( LogService.LOG_WARNING, "Ignoring invalid journal fsync interval {0}", new Object[]
+                    { intervalProp } );
+            }
+        }
+
+        journalpm = new JournalPersistenceManager( location, fsyncPolicy, fsyncInterval );
+        Hashtable props = new Hashtable();
+        props.put( Constants.SERVICE_PID, journalpm.getClass().getName() );
+        props.put( Constants.SERVICE_DESCRIPTION, "Platform Journal Persistence Manager" );
+        props.put( Constants.SERVICE_VENDOR, "Apache Software Foundation" );
+        props.put( Constants.SERVICE_RANKING, new Integer( Integer.MIN_VALUE + 1 ) );
+        journalpmRegistration = bundleContext.registerService( PersistenceManager.class.getName(), journalpm, props );
+    }
+
+
+    // returns the number of update threads configured by the
+    // felix.cm.update.threads property
+    private int getUpdateThreads( final BundleContext bundleContext )
+    {
+        final String threadsProp = bundleContext.getProperty( CM_UPDATE_THREADS );
+        if ( threadsProp != null )
+        {
+            try
+            {
+                return Math.max( 1, Integer.parseInt( threadsProp ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                log( LogService.LOG_WARNING, "Ignoring invalid number of update threads {0}", new Object[]
+                    { threadsProp } );
+            }
+        }
+        return 1;
+    }
+
+
     public void stop( BundleContext bundleContext )
     {
 
@@ -333,6 +490,19 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         // don't care for PersistenceManagers any more
         persistenceManagerTracker.close();
 
+        // shutdown the journal persistence manager
+        final ServiceRegistration journalPmReg = journalpmRegistration;
+        journalpmRegistration = null;
+        if ( journalPmReg != null )
+        {
+            journalPmReg.unregister();
+        }
+        if ( journalpm != null )
+        {
+            journalpm.close();
+            journalpm = null;
+        }
+
         // shutdown the file persistence manager
         final ServiceRegistration filePmReg = filepmRegistration;
         filepmRegistration = null;
@@ -648,6 +818,10 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             filter = bundleContext.createFilter( filterString );
         }
 
+        // the equality parts of the filter narrow down the dictionaries
+        // to check by looking them up in the property indexes
+        final SimpleFilter indexFilter = SimpleFilter.parse( filterString );
+
         log( LogService.LOG_DEBUG, "Listing configurations matching {0}", new Object[]
             { filterString } );
 
@@ -656,7 +830,15 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         PersistenceManager[] pmList = getPersistenceManagers();
         for ( int i = 0; i < pmList.length; i++ )
         {
-            Enumeration configs = pmList[i].getDictionaries();
+            Enumeration configs;
+            if ( pmList[i] instanceof CachingPersistenceManagerProxy )
+            {
+                configs = ( ( CachingPersistenceManagerProxy ) pmList[i] ).getDictionaries( indexFilter );
+            }
+            else
+            {
+                configs = pmList[i].getDictionaries();
+            }
             while ( configs.hasMoreElements() )
             {
                 final Dictionary config = ( Dictionary ) configs.nextElement();
@@ -720,7 +902,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         // remove the configuration from the cache
         removeConfiguration( config );
         fireConfigurationEvent( ConfigurationEvent.CM_DELETED, config.getPidString(), config.getFactoryPidString() );
-        updateThread.schedule( new DeleteConfiguration( config ) );
+        schedule( new DeleteConfiguration( config ) );
         log( LogService.LOG_DEBUG, "DeleteConfiguration({0}) scheduled", new Object[]
             { config.getPid() } );
     }
@@ -732,18 +914,26 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         {
             fireConfigurationEvent( ConfigurationEvent.CM_UPDATED, config.getPidString(), config.getFactoryPidString() );
         }
-        updateThread.schedule( new UpdateConfiguration( config ) );
+        schedule( new UpdateConfiguration( config ) );
         log( LogService.LOG_DEBUG, "UpdateConfiguration({0}) scheduled", new Object[]
             { config.getPid() } );
     }
 
 
+    // schedules the provider to be run after all tasks scheduled before
+    // for the PID of the services to be updated
+    private void schedule( final ConfigurationProvider<?> provider )
+    {
+        updateThread.schedule( provider.getTargetedServicePid().getServicePid(), provider );
+    }
+
+
     void locationChanged( ConfigurationImpl config, String oldLocation )
     {
         fireConfigurationEvent( ConfigurationEvent.CM_LOCATION_CHANGED, config.getPidString(), config.getFactoryPidString() );
         if ( oldLocation != null && !config.isNew() )
         {
-            updateThread.schedule( new LocationChanged( config, oldLocation ) );
+            schedule( new LocationChanged( config, oldLocation ) );
             log( LogService.LOG_DEBUG, "LocationChanged({0}, {1}=>{2}) scheduled", new Object[]
                 { config.getPid(), oldLocation, config.getBundleLocation() } );
         }
@@ -841,7 +1031,8 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     Object service = persistenceManagerTracker.getService( refs[i] );
                     if ( service != null )
                     {
-                        pmList.add( new CachingPersistenceManagerProxy( ( PersistenceManager ) service ) );
+                        pmList.add( new CachingPersistenceManagerProxy( ( PersistenceManager ) service,
+                            indexedProperties ) );
                     }
                 }
 
@@ -933,7 +1124,9 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         {
             r = new ManagedServiceUpdate( pid, sr, configs );
         }
-        updateThread.schedule( r );
+
+        // run by the worker calling the service for updates of its PIDs
+        updateThread.schedule( sr, r );
         log( LogService.LOG_DEBUG, "[{0}] scheduled", new Object[]
             { r } );
     }
@@ -1697,6 +1890,38 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             // factory or no replacement available
             return false;
         }
+
+
+        /**
+         * Runs the call into the service. With several update threads the
+         * call is scheduled with the worker assigned to the service, which
+         * runs all calls into the service, such that a service registered
+         * with more than one PID is not called concurrently. Calls for the
+         * PID of this task are still run in the order of the tasks.
+         */
+        protected void callService( final ServiceReference<T> sr, final Runnable call )
+        {
+            if ( updateThread.getWorkerCount() > 1 )
+            {
+                updateThread.schedule( sr, new Runnable()
+                {
+                    public void run()
+                    {
+                        call.run();
+                    }
+
+
+                    public String toString()
+                    {
+                        return ConfigurationProvider.this + " for " + ConfigurationManager.toString( sr );
+                    }
+                } );
+            }
+            else
+            {
+                call.run();
+            }
+        }
     }
 
     /**
@@ -1729,7 +1954,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
                 // provide configuration to all services from the
                 // correct bundle
-                for (ServiceReference<?> ref : srList)
+                for (final ServiceReference<?> ref : srList)
                 {
                     final Bundle refBundle = ref.getBundle();
                     if ( refBundle == null )
@@ -1741,8 +1966,14 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     }
                     else if ( canReceive( refBundle, configBundleLocation ) )
                     {
-                        this.getHelper().provideConfiguration( ref, this.config.getPid(), this.config.getFactoryPid(),
-                            this.properties, this.revision, null );
+                        this.callService( ref, new Runnable()
+                        {
+                            public void run()
+                            {
+                                getHelper().provideConfiguration( ref, config.getPid(), config.getFactoryPid(),
+                                    properties, revision, null );
+                            }
+                        } );
                     }
                     else
                     {
@@ -1799,7 +2030,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             List<ServiceReference<?>> srList = this.getHelper().getServices( getTargetedServicePid() );
             if ( !srList.isEmpty() )
             {
-                for (ServiceReference<?> sr : srList)
+                for (final ServiceReference<?> sr : srList)
                 {
                     final Bundle srBundle = sr.getBundle();
                     if ( srBundle == null )
@@ -1811,12 +2042,18 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     }
                     else if ( canReceive( srBundle, configLocation ) )
                     {
-                        // revoke configuration unless a replacement
-                        // configuration can be provided
-                        if ( !this.provideReplacement( sr ) )
+                        this.callService( sr, new Runnable()
                         {
-                            this.getHelper().removeConfiguration( sr, this.config.getPid(), this.config.getFactoryPid() );
-                        }
+                            public void run()
+                            {
+                                // revoke configuration unless a replacement
+                                // configuration can be provided
+                                if ( !provideReplacement( sr ) )
+                                {
+                                    getHelper().removeConfiguration( sr, config.getPid(), config.getFactoryPid() );
+                                }
+                            }
+                        } );
                     }
                     else
                     {
@@ -1894,23 +2131,36 @@ public class ConfigurationManager implements BundleActivator, BundleListener
 
                     if ( wasVisible && !isVisible )
                     {
-                        // revoke configuration unless a replacement
-                        // configuration can be provided
-                        if ( !this.provideReplacement( sr ) )
+                        this.callService( sr, new Runnable()
                         {
-                            this.getHelper().removeConfiguration( sr, this.config.getPid(), this.config.getFactoryPid() );
-                            log( LogService.LOG_DEBUG, "Configuration {0} revoked from {1} (no more visibility)",
-                                new Object[]
-                                    { config.getPid(), ConfigurationManager.toString( sr ) } );
-                        }
+                            public void run()
+                            {
+                                // revoke configuration unless a replacement
+                                // configuration can be provided
+                                if ( !provideReplacement( sr ) )
+                                {
+                                    getHelper().removeConfiguration( sr, config.getPid(), config.getFactoryPid() );
+                                    log( LogService.LOG_DEBUG, "Configuration {0} revoked from {1} (no more visibility)",
+                                        new Object[]
+                                            { config.getPid(), ConfigurationManager.toString( sr ) } );
+                                }
+                            }
+                        } );
                     }
                     else if ( !wasVisible && isVisible )
                     {
-                        // call updated method
-                        this.getHelper().provideConfiguration( sr, this.config.getPid(), this.config.getFactoryPid(),
-                            this.properties, this.revision, null );
-                        log( LogService.LOG_DEBUG, "Configuration {0} provided to {1} (new visibility)", new Object[]
-                            { config.getPid(), ConfigurationManager.toString( sr ) } );
+                        this.callService( sr, new Runnable()
+                        {
+                            public void run()
+                            {
+                                // call updated method
+                                getHelper().provideConfiguration( sr, config.getPid(), config.getFactoryPid(),
+                                    properties, revision, null );
+                                log( LogService.LOG_DEBUG, "Configuration {0} provided to {1} (new visibility)",
+                                    new Object[]
+                                        { config.getPid(), ConfigurationManager.toString( sr ) } );
+                            }
+                        } );
                     }
                     else
                     {
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The <code>SimpleFilter</code> is the part of an LDAP filter string which can
+ * be answered from the property indexes of the
+ * {@link CachingPersistenceManagerProxy}: equality comparisons combined with
+ * <code>&amp;</code> and <code>|</code>.
+ * <p>
+ * Parsing is lenient: any other part of a filter (substrings, presence,
+ * ordering, approximate and negated comparisons) is simply not represented.
+ * A <code>SimpleFilter</code> is therefore only useful to narrow down the
+ * candidates the actual <code>Filter</code> is to be matched against.
+ */
+class SimpleFilter
+{
+
+    static final int EQUAL = 0;
+
+    static final int AND = 1;
+
+    static final int OR = 2;
+
+    /** the operation of this filter */
+    final int op;
+
+    /** the attribute name for {@link #EQUAL}, <code>null</code> otherwise */
+    final String attr;
+
+    /** the value for {@link #EQUAL}, <code>null</code> otherwise */
+    final String value;
+
+    /**
+     * the operands for {@link #AND} and {@link #OR}, <code>null</code>
+     * otherwise. The operands of {@link #AND} contain only the parts which
+     * could be parsed, all operands of {@link #OR} are present.
+     */
+    final SimpleFilter[] operands;
+
+
+    private SimpleFilter( final int op, final String attr, final String value, final SimpleFilter[] operands )
+    {
+        this.op = op;
+        this.attr = attr;
+        this.value = value;
+        this.operands = operands;
+    }
+
+
+    /**
+     * Parses the given LDAP filter string into a <code>SimpleFilter</code>.
+     * The filter string is expected to be syntactically valid.
+     *
+     * @param filter The LDAP filter string
+     * @return The equality parts of the filter or <code>null</code> if the
+     *      filter cannot be narrowed down by equality comparisons.
+     */
+    static SimpleFilter parse( final String filter )
+    {
+        if ( filter == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            final int[] pos = new int[]
+                { 0 };
+            final SimpleFilter result = parse( filter.trim(), pos );
+            return ( pos[0] == filter.trim().length() ) ? result : null;
+        }
+        catch ( IndexOutOfBoundsException ioobe )
+        {
+            // malformed filter, cannot be narrowed down
+            return null;
+        }
+    }
+
+
+    private static SimpleFilter parse( final String filter, final int[] pos )
+    {
+        skipWhitespace( filter, pos );
+        expect( filter, pos, '(' );
+        skipWhitespace( filter, pos );
+
+        final SimpleFilter result;
+        final char c = filter.charAt( pos[0] );
+        if ( c == '&' || c == '|' )
+        {
+            pos[0]++;
+            final List operands = new ArrayList();
+            boolean complete = true;
+            skipWhitespace( filter, pos );
+            while ( filter.charAt( pos[0] ) == '(' )
+            {
+                final SimpleFilter operand = parse( filter, pos );
+                if ( operand != null )
+                {
+                    operands.add( operand );
+                }
+                else
+                {
+                    complete = false;
+                }
+                skipWhitespace( filter, pos );
+            }
+
+            if ( c == '|' && !complete )
+            {
+                // a single unknown alternative may match anything
+                result = null;
+            }
+            else if ( operands.isEmpty() )
+            {
+                result = null;
+            }
+            else
+            {
+                result = new SimpleFilter( ( c == '&' ) ? AND : OR, null, null, ( SimpleFilter[] ) operands
+                    .toArray( new SimpleFilter[operands.size()] ) );
+            }
+        }
+        else if ( c == '!' )
+        {
+            pos[0]++;
+            parse( filter, pos );
+            skipWhitespace( filter, pos );
+            result = null;
+        }
+        else
+        {
+            result = parseItem( filter, pos );
+        }
+
+        expect( filter, pos, ')' );
+        return result;
+    }
+
+
+    private static SimpleFilter parseItem( final String filter, final int[] pos )
+    {
+        final int attrStart = pos[0];
+        while ( "=<>~()".indexOf( filter.charAt( pos[0] ) ) < 0 )
+        {
+            pos[0]++;
+        }
+        final String attr = filter.substring( attrStart, pos[0] ).trim();
+
+        final boolean equal = filter.charAt( pos[0] ) == '=';
+        while ( filter.charAt( pos[0] ) != '=' )
+        {
+            pos[0]++;
+        }
+        pos[0]++;
+
+        final StringBuffer value = new StringBuffer();
+        boolean wildcard = false;
+        for ( char c = filter.charAt( pos[0] ); c != ')'; c = filter.charAt( pos[0] ) )
+        {
+            if ( c == '\\' )
+            {
+                pos[0]++;
+                c = filter.charAt( pos[0] );
+            }
+            else if ( c == '*' )
+            {
+                wildcard = true;
+            }
+            value.append( c );
+            pos[0]++;
+        }
+
+        if ( !equal || wildcard || attr.length() == 0 )
+        {
+            return null;
+        }
+        return new SimpleFilter( EQUAL, attr, value.toString(), null );
+    }
+
+
+    private static void skipWhitespace( final String filter, final int[] pos )
+    {
+        while ( pos[0] < filter.length() && Character.isWhitespace( filter.charAt( pos[0] ) ) )
+        {
+            pos[0]++;
+        }
+    }
+
+
+    private static void expect( final String filter, final int[] pos, final char c )
+    {
+        if ( filter.charAt( pos[0] ) != c )
+        {
+            throw new IndexOutOfBoundsException( "Expected " + c + " at " + pos[0] );
+        }
+        pos[0]++;
+    }
+}
@@ -21,14 +21,25 @@ package org.apache.felix.cm.impl;
 
 import java.util.LinkedList;
 
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.log.LogService;
 
 
 /**
  * The <code>UpdateThread</code> is the thread used to update managed services
  * and managed service factories as well as to send configuration events.
+ * <p>
+ * The <code>UpdateThread</code> may be set up with more than one worker
+ * thread. In this case each worker has its own queue of tasks and tasks
+ * {@link #schedule(String, Runnable) scheduled for a PID} are always run
+ * by the same worker. Thus tasks for the same PID are run in the order they
+ * are scheduled while tasks for unrelated PIDs are run concurrently.
+ * Likewise tasks {@link #schedule(ServiceReference, Runnable) scheduled for
+ * a service} are always run by the same worker, which is used to call a
+ * service registered with more than one PID from one thread only.
  */
-public class UpdateThread implements Runnable
+public class UpdateThread
 {
 
     // the configuration manager on whose behalf this thread is started
@@ -41,91 +52,54 @@ public class UpdateThread implements Runnable
     // the thread's base name
     private final String workerBaseName;
 
-    // the queue of Runnable instances  to be run
-    private final LinkedList updateTasks;
+    // the workers each running the tasks of its own queue
+    private final Worker[] workers;
 
-    // the actual thread
-    private Thread worker;
+    // the lock guarding the task statistics; not this instance because
+    // terminate() keeps holding it while waiting for the workers
+    private final Object statsLock = new Object();
 
+    // the number of tasks run so far
+    private long taskCount;
 
-    public UpdateThread( final ConfigurationManager configurationManager, final ThreadGroup tg, final String name )
-    {
-        this.configurationManager = configurationManager;
-        this.workerThreadGroup = tg;
-        this.workerBaseName = name;
+    // the time in nanoseconds spent running tasks so far
+    private long taskTime;
 
-        this.updateTasks = new LinkedList();
-    }
+    // the longest time in nanoseconds spent running a task
+    private long maxTaskTime;
 
 
-    // waits on Runnable instances coming into the queue. As instances come
-    // in, this method calls the Runnable.run method, logs any exception
-    // happening and keeps on waiting for the next Runnable. If the Runnable
-    // taken from the queue is this thread instance itself, the thread
-    // terminates.
-    public void run()
+    public UpdateThread( final ConfigurationManager configurationManager, final ThreadGroup tg, final String name )
     {
-        for ( ;; )
-        {
-            Runnable task;
-            synchronized ( updateTasks )
-            {
-                while ( updateTasks.isEmpty() )
-                {
-                    try
-                    {
-                        updateTasks.wait();
-                    }
-                    catch ( InterruptedException ie )
-                    {
-                        // don't care
-                    }
-                }
-
-                task = ( Runnable ) updateTasks.removeFirst();
-            }
+        this( configurationManager, tg, name, 1 );
+    }
 
-            // return if the task is this thread itself
-            if ( task == this )
-            {
-                return;
-            }
 
-            // otherwise execute the task, log any issues
-            try
-            {
-                // set the thread name indicating the current task
-                Thread.currentThread().setName( workerBaseName + " (" + task + ")" );
-
-                configurationManager.log( LogService.LOG_DEBUG, "Running task {0}", new Object[]
-                    { task } );
+    public UpdateThread( final ConfigurationManager configurationManager, final ThreadGroup tg, final String name,
+        final int numWorkers )
+    {
+        this.configurationManager = configurationManager;
+        this.workerThreadGroup = tg;
+        this.workerBaseName = name;
 
-                task.run();
-            }
-            catch ( Throwable t )
-            {
-                configurationManager.log( LogService.LOG_ERROR, "Unexpected problem executing task", t );
-            }
-            finally
-            {
-                // reset the thread name to "idle"
-                Thread.currentThread().setName( workerBaseName );
-            }
+        this.workers = new Worker[Math.max( 1, numWorkers )];
+        for ( int i = 0; i < this.workers.length; i++ )
+        {
+            final String workerName = ( this.workers.length == 1 ) ? name : name + " #" + i;
+            this.workers[i] = new Worker( workerName );
         }
     }
 
+
     /**
      * Starts processing the queued tasks. This method does nothing if the
      * worker has already been started.
      */
     synchronized void start()
     {
-        if ( this.worker == null )
+        for ( int i = 0; i < this.workers.length; i++ )
         {
-            Thread workerThread = new Thread( workerThreadGroup, this, workerBaseName );
-            workerThread.setDaemon( true );
-            workerThread.start();
-            this.worker = workerThread;
+            this.workers[i].start();
         }
     }
 
@@ -144,16 +118,253 @@ public class UpdateThread implements Runnable
      * able to released that deadlock at the expense of one or more tasks to
      * not be executed any longer.... In any case an ERROR message is logged
      * with the LogService in this situation.
+     * <p>
+     * With more than one worker all workers are asked to terminate before
+     * waiting for each of them in turn. Finally the number of tasks run and
+     * the time spent running them is logged at INFO level.
      */
     synchronized void terminate()
     {
-        if ( this.worker != null )
+        final Thread[] threads = new Thread[this.workers.length];
+        for ( int i = 0; i < this.workers.length; i++ )
+        {
+            threads[i] = this.workers[i].terminate();
+        }
+
+        boolean active = false;
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            if ( threads[i] != null )
+            {
+                this.workers[i].join( threads[i] );
+                active = true;
+            }
+        }
+
+        if ( active )
+        {
+            configurationManager.log( LogService.LOG_INFO, "{0} ran {1} tasks in {2}ms (longest {3}ms)", new Object[]
+                { workerBaseName, new Long( getTaskCount() ), new Long( getTaskTime() ),
+                    new Long( getMaxTaskTime() ) } );
+        }
+    }
+
+
+    // queue the given runnable to be run as soon as possible
+    void schedule( Runnable update )
+    {
+        this.workers[0].schedule( update );
+    }
+
+
+    // queue the given runnable to be run as soon as possible after all
+    // runnables previously scheduled for the same PID
+    void schedule( String pid, Runnable update )
+    {
+        final int hash = ( pid == null ) ? 0 : pid.hashCode();
+        this.workers[( hash & 0x7fffffff ) % this.workers.length].schedule( update );
+    }
+
+
+    // queue the given runnable to be run as soon as possible after all
+    // runnables previously scheduled for the same service
+    void schedule( ServiceReference<?> service, Runnable update )
+    {
+        final Object id = service.getProperty( Constants.SERVICE_ID );
+        final int hash = ( id == null ) ? 0 : id.hashCode();
+        this.workers[( hash & 0x7fffffff ) % this.workers.length].schedule( update );
+    }
+
+
+    /**
+     * Returns the number of worker threads running the tasks.
+     */
+    int getWorkerCount()
+    {
+        return this.workers.length;
+    }
+
+
+    /**
+     * Returns the number of tasks currently waiting to be run.
+     */
+    int getQueueLength()
+    {
+        int length = 0;
+        for ( int i = 0; i < this.workers.length; i++ )
+        {
+            length += this.workers[i].getQueueLength();
+        }
+        return length;
+    }
+
+
+    /**
+     * Returns the number of tasks run so far.
+     */
+    long getTaskCount()
+    {
+        synchronized ( statsLock )
+        {
+            return this.taskCount;
+        }
+    }
+
+
+    /**
+     * Returns the total time in milliseconds spent running tasks so far.
+     */
+    long getTaskTime()
+    {
+        synchronized ( statsLock )
+        {
+            return this.taskTime / 1000000L;
+        }
+    }
+
+
+    /**
+     * Returns the longest time in milliseconds spent running a single task.
+     */
+    long getMaxTaskTime()
+    {
+        synchronized ( statsLock )
         {
-            Thread workerThread = this.worker;
-            this.worker = null;
+            return this.maxTaskTime / 1000000L;
+        }
+    }
 
-            schedule( this );
 
+    private void recordTask( final long time )
+    {
+        synchronized ( statsLock )
+        {
+            this.taskCount++;
+            this.taskTime += time;
+            if ( time > this.maxTaskTime )
+            {
+                this.maxTaskTime = time;
+            }
+        }
+    }
+
+
+    private class Worker implements Runnable
+    {
+
+        // the worker's name
+        private final String name;
+
+        // the queue of Runnable instances  to be run
+        private final LinkedList updateTasks;
+
+        // the actual thread
+        private Thread worker;
+
+
+        Worker( final String name )
+        {
+            this.name = name;
+            this.updateTasks = new LinkedList();
+        }
+
+
+        // waits on Runnable instances coming into the queue. As instances come
+        // in, this method calls the Runnable.run method, logs any exception
+        // happening and keeps on waiting for the next Runnable. If the Runnable
+        // taken from the queue is this worker instance itself, the thread
+        // terminates.
+        public void run()
+        {
+            for ( ;; )
+            {
+                Runnable task;
+                synchronized ( updateTasks )
+                {
+                    while ( updateTasks.isEmpty() )
+                    {
+                        try
+                        {
+                            updateTasks.wait();
+                        }
+                        catch ( InterruptedException ie )
+                        {
+                            // don't care
+                        }
+                    }
+
+                    task = ( Runnable ) updateTasks.removeFirst();
+                }
+
+                // return if the task is this worker itself
+                if ( task == this )
+                {
+                    return;
+                }
+
+                // otherwise execute the task, log any issues
+                final long start = System.nanoTime();
+                try
+                {
+                    // set the thread name indicating the current task
+                    Thread.currentThread().setName( name + " (" + task + ")" );
+
+                    configurationManager.log( LogService.LOG_DEBUG, "Running task {0}", new Object[]
+                        { task } );
+
+                    task.run();
+                }
+                catch ( Throwable t )
+                {
+                    configurationManager.log( LogService.LOG_ERROR, "Unexpected problem executing task", t );
+                }
+                finally
+                {
+                    final long time = System.nanoTime() - start;
+                    recordTask( time );
+
+                    if ( configurationManager.isLogEnabled( LogService.LOG_DEBUG ) )
+                    {
+                        configurationManager.log( LogService.LOG_DEBUG, "Ran task {0} in {1}ms, {2} tasks waiting",
+                            new Object[]
+                                { task, new Long( time / 1000000L ), new Integer( getQueueLength() ) } );
+                    }
+
+                    // reset the thread name to "idle"
+                    Thread.currentThread().setName( name );
+                }
+            }
+        }
+
+
+        void start()
+        {
+            if ( this.worker == null )
+            {
+                Thread workerThread = new Thread( workerThreadGroup, this, name );
+                workerThread.setDaemon( true );
+                workerThread.start();
+                this.worker = workerThread;
+            }
+        }
+
+
+        // schedules termination and returns the thread to wait for or
+        // null if the worker is not active
+        Thread terminate()
+        {
+            final Thread workerThread = this.worker;
+            if ( workerThread != null )
+            {
+                this.worker = null;
+                schedule( this );
+            }
+            return workerThread;
+        }
+
+
+        void join( final Thread workerThread )
+        {
             // wait for all updates to terminate (<= 10 seconds !)
             try
             {
@@ -166,28 +377,36 @@ public class UpdateThread implements Runnable
 
             if ( workerThread.isAlive() )
             {
-                this.configurationManager.log( LogService.LOG_ERROR,
+                configurationManager.log( LogService.LOG_ERROR,
                     "Worker thread {0} did not terminate within 5 seconds; trying to kill", new Object[]
-                        { workerBaseName } );
+                        { name } );
                 workerThread.stop();
             }
         }
-    }
 
 
-    // queue the given runnable to be run as soon as possible
-    void schedule( Runnable update )
-    {
-        synchronized ( updateTasks )
+        void schedule( Runnable update )
         {
-            configurationManager.log( LogService.LOG_DEBUG, "Scheduling task {0}", new Object[]
-                { update } );
+            synchronized ( updateTasks )
+            {
+                configurationManager.log( LogService.LOG_DEBUG, "Scheduling task {0}", new Object[]
+                    { update } );
+
+                // append to the task queue
+                updateTasks.add( update );
+
+                // notify the waiting thread
+                updateTasks.notifyAll();
+            }
+        }
 
-            // append to the task queue
-            updateTasks.add( update );
 
-            // notify the waiting thread
-            updateTasks.notifyAll();
+        int getQueueLength()
+        {
+            synchronized ( updateTasks )
+            {
+                return updateTasks.size();
+            }
         }
     }
 }
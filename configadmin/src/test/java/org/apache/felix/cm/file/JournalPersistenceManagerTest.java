@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.file;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import junit.framework.TestCase;
+
+
+public class JournalPersistenceManagerTest extends TestCase
+{
+    private File dir = new File( System.getProperty( "java.io.tmpdir" ), "config.journal" );
+
+    private JournalPersistenceManager jpm;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        tearDown();
+        jpm = new JournalPersistenceManager( dir );
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        if ( jpm != null )
+        {
+            jpm.close();
+            jpm = null;
+        }
+
+        File[] children = dir.listFiles();
+        for ( int i = 0; children != null && i < children.length; i++ )
+        {
+            children[i].delete();
+        }
+        dir.delete();
+
+        super.tearDown();
+    }
+
+
+    public void testStoreLoadDelete() throws IOException
+    {
+        assertFalse( jpm.exists( "a" ) );
+
+        jpm.store( "a", props( "a", "value" ) );
+        assertTrue( jpm.exists( "a" ) );
+        assertEquals( "value", jpm.load( "a" ).get( "prop" ) );
+
+        jpm.store( "a", props( "a", "other" ) );
+        assertEquals( "other", jpm.load( "a" ).get( "prop" ) );
+
+        jpm.delete( "a" );
+        assertFalse( jpm.exists( "a" ) );
+        try
+        {
+            jpm.load( "a" );
+            fail( "Expected IOException loading deleted configuration" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+    }
+
+
+    public void testReopen() throws IOException
+    {
+        for ( int i = 0; i < 100; i++ )
+        {
+            jpm.store( "pid." + i, props( "pid." + i, new Integer( i ) ) );
+        }
+        jpm.delete( "pid.5" );
+        jpm.close();
+
+        jpm = new JournalPersistenceManager( dir );
+        assertFalse( jpm.exists( "pid.5" ) );
+        assertEquals( new Integer( 7 ), jpm.load( "pid.7" ).get( "prop" ) );
+        assertEquals( 99, count( jpm.getDictionaries() ) );
+    }
+
+
+    public void testTornRecordIsCutOff() throws IOException
+    {
+        jpm.store( "a", props( "a", "value" ) );
+        jpm.close();
+
+        // simulate a crash while writing the next record
+        final File journal = new File( dir, JournalPersistenceManager.JOURNAL_FILE );
+        final long length = journal.length();
+        final FileOutputStream out = new FileOutputStream( journal, true );
+        out.write( new byte[]
+            { 0, 0, 0, 100, 1, 2, 3 } );
+        out.close();
+
+        jpm = new JournalPersistenceManager( dir );
+        assertEquals( length, journal.length() );
+        assertEquals( "value", jpm.load( "a" ).get( "prop" ) );
+
+        // the journal can be appended to again
+        jpm.store( "b", props( "b", "value" ) );
+        jpm.close();
+        jpm = new JournalPersistenceManager( dir );
+        assertEquals( 2, count( jpm.getDictionaries() ) );
+    }
+
+
+    public void testCompaction() throws IOException
+    {
+        final StringBuffer value = new StringBuffer();
+        for ( int i = 0; i < 1024; i++ )
+        {
+            value.append( 'x' );
+        }
+
+        // overwrite the same few configurations until compacted
+        for ( int i = 0; i < 4000; i++ )
+        {
+            jpm.store( "pid." + ( i % 10 ), props( "pid." + ( i % 10 ), value + String.valueOf( i ) ) );
+        }
+
+        final File journal = new File( dir, JournalPersistenceManager.JOURNAL_FILE );
+        assertTrue( journal.length() < 2 * 1024 * 1024 );
+        assertEquals( 10, count( jpm.getDictionaries() ) );
+        assertEquals( value + "3999", jpm.load( "pid.9" ).get( "prop" ) );
+
+        jpm.close();
+        jpm = new JournalPersistenceManager( dir );
+        assertEquals( 10, count( jpm.getDictionaries() ) );
+        assertEquals( value + "3999", jpm.load( "pid.9" ).get( "prop" ) );
+    }
+
+
+    public void testWriteFailureIsRolledBack() throws IOException
+    {
+        jpm.store( "a", props( "a", "value" ) );
+        jpm.close();
+
+        final boolean[] fail = new boolean[]
+            { true };
+        jpm = new JournalPersistenceManager( dir )
+        {
+            void writeJournal( byte[] data ) throws IOException
+            {
+                if ( fail[0] )
+                {
+                    // write part of the record before failing
+                    fail[0] = false;
+                    final byte[] torn = new byte[data.length / 2];
+                    System.arraycopy( data, 0, torn, 0, torn.length );
+                    super.writeJournal( torn );
+                    throw new IOException( "Simulated write failure" );
+                }
+                super.writeJournal( data );
+            }
+        };
+
+        try
+        {
+            jpm.store( "a", props( "a", "other" ) );
+            fail( "Expected IOException from failed write" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+        assertEquals( "value", jpm.load( "a" ).get( "prop" ) );
+
+        // the journal is reopened for the next write
+        jpm.store( "b", props( "b", "value" ) );
+        jpm.close();
+
+        jpm = new JournalPersistenceManager( dir );
+        assertEquals( "value", jpm.load( "a" ).get( "prop" ) );
+        assertEquals( "value", jpm.load( "b" ).get( "prop" ) );
+    }
+
+
+    public void testWriteBehind() throws IOException
+    {
+        jpm.close();
+        jpm = new JournalPersistenceManager( dir, JournalPersistenceManager.FSYNC_INTERVAL, 60000 );
+        jpm.store( "a", props( "a", "value" ) );
+        assertEquals( "value", jpm.load( "a" ).get( "prop" ) );
+
+        // closing writes pending records without waiting for the interval
+        jpm.close();
+        jpm = new JournalPersistenceManager( dir, JournalPersistenceManager.FSYNC_NEVER, 0 );
+        assertEquals( "value", jpm.load( "a" ).get( "prop" ) );
+    }
+
+
+    public void testClosed() throws IOException
+    {
+        jpm.close();
+        try
+        {
+            jpm.store( "a", props( "a", "value" ) );
+            fail( "Expected IOException storing to closed journal" );
+        }
+        catch ( IOException ioe )
+        {
+            // expected
+        }
+    }
+
+
+    private static Dictionary props( final String pid, final Object value )
+    {
+        final Dictionary props = new Hashtable();
+        props.put( "service.pid", pid );
+        props.put( "prop", value );
+        return props;
+    }
+
+
+    private static int count( final Enumeration e )
+    {
+        int count = 0;
+        for ( ; e.hasMoreElements(); e.nextElement() )
+        {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.MockPersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+public class CachingPersistenceManagerProxyTest extends TestCase
+{
+
+    private MockPersistenceManager pm;
+
+    private CachingPersistenceManagerProxy proxy;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        pm = new MockPersistenceManager();
+        for ( int i = 0; i < 10; i++ )
+        {
+            store( pm, "factory.pid." + i, "factory.pid", "location." + ( i % 2 ) );
+        }
+        store( pm, "single.pid", null, null );
+
+        proxy = new CachingPersistenceManagerProxy( pm, new String[]
+            { Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID,
+                ConfigurationAdmin.SERVICE_BUNDLELOCATION, "prop" } );
+    }
+
+
+    public void test_parse()
+    {
+        assertNull( SimpleFilter.parse( null ) );
+        assertNull( SimpleFilter.parse( "(a=*)" ) );
+        assertNull( SimpleFilter.parse( "(a=b*)" ) );
+        assertNull( SimpleFilter.parse( "(a>=1)" ) );
+        assertNull( SimpleFilter.parse( "(!(a=b))" ) );
+        assertNull( SimpleFilter.parse( "(|(a=b)(c=d*))" ) );
+
+        SimpleFilter filter = SimpleFilter.parse( " ( a =b\\*) " );
+        assertEquals( SimpleFilter.EQUAL, filter.op );
+        assertEquals( "a", filter.attr );
+        assertEquals( "b*", filter.value );
+
+        filter = SimpleFilter.parse( "(&(a=b)(c=d*)(!(e=f)))" );
+        assertEquals( SimpleFilter.AND, filter.op );
+        assertEquals( 1, filter.operands.length );
+        assertEquals( "a", filter.operands[0].attr );
+
+        filter = SimpleFilter.parse( "(|(a=b)(c=d))" );
+        assertEquals( SimpleFilter.OR, filter.op );
+        assertEquals( 2, filter.operands.length );
+    }
+
+
+    public void test_lookup() throws IOException
+    {
+        assertEquals( 11, getPids( null ).size() );
+        assertEquals( 10, getPids( "(service.factoryPid=factory.pid)" ).size() );
+        assertEquals( 5, getPids( "(&(service.factoryPid=factory.pid)(service.bundleLocation=location.1))" ).size() );
+        assertEquals( 2, getPids( "(|(service.pid=single.pid)(SERVICE.PID=factory.pid.3))" ).size() );
+        assertEquals( 0, getPids( "(service.factoryPid=other)" ).size() );
+
+        // not indexed, thus all dictionaries are candidates
+        assertEquals( 11, getPids( "(other=x)" ).size() );
+        assertEquals( 11, getPids( "(service.factoryPid=factory*)" ).size() );
+    }
+
+
+    public void test_update_index() throws IOException
+    {
+        Dictionary props = proxy.load( "factory.pid.0" );
+        props.put( ConfigurationAdmin.SERVICE_BUNDLELOCATION, "location.1" );
+        proxy.store( "factory.pid.0", props );
+        assertEquals( 4, getPids( "(service.bundleLocation=location.0)" ).size() );
+        assertEquals( 6, getPids( "(service.bundleLocation=location.1)" ).size() );
+
+        proxy.delete( "factory.pid.1" );
+        assertEquals( 5, getPids( "(service.bundleLocation=location.1)" ).size() );
+        assertFalse( getPids( "(service.factoryPid=factory.pid)" ).contains( "factory.pid.1" ) );
+    }
+
+
+    public void test_multi_value_and_coercion() throws IOException
+    {
+        Dictionary props = proxy.load( "single.pid" );
+        props.put( "prop", new String[]
+            { "a", "b" } );
+        proxy.store( "single.pid", props );
+        assertEquals( 1, getPids( "(prop=b)" ).size() );
+        assertEquals( 0, getPids( "(prop=c)" ).size() );
+
+        // non-string values may be coerced by the filter, so the index
+        // must not be used for this property anymore
+        props = proxy.load( "factory.pid.0" );
+        props.put( "prop", new Integer( 5 ) );
+        proxy.store( "factory.pid.0", props );
+        assertEquals( 11, getPids( "(prop=5)" ).size() );
+    }
+
+
+    public void test_unindex_non_string_values() throws IOException
+    {
+        final Vector values = new Vector();
+        values.add( "a" );
+        Dictionary props = proxy.load( "single.pid" );
+        props.put( "prop", values );
+        proxy.store( "single.pid", props );
+        assertEquals( 1, getPids( "(prop=a)" ).size() );
+
+        // the collection is shared with the cached dictionary
+        values.add( new Integer( 5 ) );
+        proxy.delete( "single.pid" );
+        assertEquals( 10, getPids( "(prop=a)" ).size() );
+    }
+
+
+    private Set getPids( final String filter ) throws IOException
+    {
+        final Set pids = new HashSet();
+        final Enumeration dicts = proxy.getDictionaries( SimpleFilter.parse( filter ) );
+        while ( dicts.hasMoreElements() )
+        {
+            pids.add( ( ( Dictionary ) dicts.nextElement() ).get( Constants.SERVICE_PID ) );
+        }
+        return pids;
+    }
+
+
+    private static void store( final MockPersistenceManager pm, final String pid, final String factoryPid,
+        final String location )
+    {
+        final Dictionary props = new Hashtable();
+        props.put( Constants.SERVICE_PID, pid );
+        if ( factoryPid != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid );
+        }
+        if ( location != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_BUNDLELOCATION, location );
+        }
+        pm.store( pid, props );
+    }
+}
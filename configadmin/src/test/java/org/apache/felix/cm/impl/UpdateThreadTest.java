@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.MockServiceReference;
+import org.osgi.framework.Constants;
+
+
+public class UpdateThreadTest extends TestCase
+{
+
+    private UpdateThread updateThread;
+
+
+    protected void tearDown() throws Exception
+    {
+        if ( updateThread != null )
+        {
+            updateThread.terminate();
+        }
+
+        super.tearDown();
+    }
+
+
+    public void test_per_pid_order() throws InterruptedException
+    {
+        updateThread = new UpdateThread( new MockConfigurationManager(), Thread.currentThread().getThreadGroup(),
+            "test", 4 );
+        updateThread.start();
+
+        final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        for ( int p = 0; p < 8; p++ )
+        {
+            final List<Integer> run = Collections.synchronizedList( new ArrayList<Integer>() );
+            runs.add( run );
+            for ( int i = 0; i < 100; i++ )
+            {
+                final Integer value = new Integer( i );
+                updateThread.schedule( "pid." + p, new Runnable()
+                {
+                    public void run()
+                    {
+                        run.add( value );
+                    }
+                } );
+            }
+        }
+
+        updateThread.terminate();
+        updateThread = null;
+
+        for ( List<Integer> run : runs )
+        {
+            assertEquals( 100, run.size() );
+            for ( int i = 0; i < run.size(); i++ )
+            {
+                assertEquals( i, run.get( i ).intValue() );
+            }
+        }
+    }
+
+
+    public void test_per_service_worker() throws InterruptedException
+    {
+        updateThread = new UpdateThread( new MockConfigurationManager(), Thread.currentThread().getThreadGroup(),
+            "test", 4 );
+        updateThread.start();
+
+        final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        final List<List<Thread>> threads = new ArrayList<List<Thread>>();
+        for ( int s = 0; s < 8; s++ )
+        {
+            final Long serviceId = new Long( s );
+            final MockServiceReference service = new MockServiceReference()
+            {
+                public Object getProperty( String key )
+                {
+                    return Constants.SERVICE_ID.equals( key ) ? serviceId : null;
+                }
+            };
+            final List<Integer> run = Collections.synchronizedList( new ArrayList<Integer>() );
+            final List<Thread> thread = Collections.synchronizedList( new ArrayList<Thread>() );
+            runs.add( run );
+            threads.add( thread );
+            for ( int i = 0; i < 100; i++ )
+            {
+                final Integer value = new Integer( i );
+                // alternate between tasks scheduled for two PIDs of the
+                // service, which forward their calls to the service worker
+                updateThread.schedule( "pid." + s + "." + ( i % 2 ), new Runnable()
+                {
+                    public void run()
+                    {
+                        updateThread.schedule( service, new Runnable()
+                        {
+                            public void run()
+                            {
+                                run.add( value );
+                                thread.add( Thread.currentThread() );
+                            }
+                        } );
+                    }
+                } );
+            }
+        }
+
+        // wait for the forwarded tasks before terminating
+        for ( int i = 0; i < 100 && updateThread.getTaskCount() < 1600; i++ )
+        {
+            Thread.sleep( 50 );
+        }
+        updateThread.terminate();
+        updateThread = null;
+
+        for ( int s = 0; s < runs.size(); s++ )
+        {
+            final List<Integer> run = runs.get( s );
+            assertEquals( 100, run.size() );
+            for ( Thread thread : threads.get( s ) )
+            {
+                assertSame( threads.get( s ).get( 0 ), thread );
+            }
+        }
+    }
+
+
+    public void test_slow_pid_does_not_block_others() throws InterruptedException
+    {
+        updateThread = new UpdateThread( new MockConfigurationManager(), Thread.currentThread().getThreadGroup(),
+            "test", 2 );
+        updateThread.start();
+
+        // find two PIDs assigned to different workers
+        final String slowPid = "a";
+        String fastPid = null;
+        for ( int i = 0; fastPid == null; i++ )
+        {
+            if ( ( ( "p" + i ).hashCode() & 0x7fffffff ) % 2 != ( slowPid.hashCode() & 0x7fffffff ) % 2 )
+            {
+                fastPid = "p" + i;
+            }
+        }
+
+        final Object lock = new Object();
+        final boolean[] done = new boolean[2];
+        updateThread.schedule( slowPid, new Runnable()
+        {
+            public void run()
+            {
+                synchronized ( lock )
+                {
+                    while ( !done[1] )
+                    {
+                        try
+                        {
+                            lock.wait( 5000 );
+                        }
+                        catch ( InterruptedException ie )
+                        {
+                            return;
+                        }
+                    }
+                    done[0] = true;
+                }
+            }
+        } );
+        updateThread.schedule( fastPid, new Runnable()
+        {
+            public void run()
+            {
+                synchronized ( lock )
+                {
+                    done[1] = true;
+                    lock.notifyAll();
+                }
+            }
+        } );
+
+        updateThread.terminate();
+        updateThread = null;
+        assertTrue( done[0] );
+        assertTrue( done[1] );
+    }
+
+
+    public void test_metrics() throws InterruptedException
+    {
+        final List<String> messages = Collections.synchronizedList( new ArrayList<String>() );
+        updateThread = new UpdateThread( new MockConfigurationManager()
+        {
+            public boolean isLogEnabled( int level )
+            {
+                return true;
+            }
+
+
+            public void log( int level, String message, Throwable t )
+            {
+                messages.add( message );
+            }
+        }, Thread.currentThread().getThreadGroup(), "test" );
+        assertEquals( 1, updateThread.getWorkerCount() );
+
+        final Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 20 );
+                }
+                catch ( InterruptedException ie )
+                {
+                    // don't care
+                }
+            }
+
+
+            public String toString()
+            {
+                return "sleep";
+            }
+        };
+        updateThread.schedule( task );
+        updateThread.schedule( "pid", task );
+        assertEquals( 2, updateThread.getQueueLength() );
+
+        updateThread.start();
+        updateThread.terminate();
+
+        assertEquals( 0, updateThread.getQueueLength() );
+        assertEquals( 2, updateThread.getTaskCount() );
+        assertTrue( updateThread.getTaskTime() >= 40 );
+        assertTrue( updateThread.getMaxTaskTime() >= 20 );
+        assertTrue( updateThread.getMaxTaskTime() <= updateThread.getTaskTime() );
+
+        int ran = 0;
+        for ( String message : messages )
+        {
+            if ( message.startsWith( "Ran task sleep in " ) )
+            {
+                ran++;
+            }
+        }
+        assertEquals( 2, ran );
+        assertEquals( "test ran 2 tasks in " + updateThread.getTaskTime() + "ms (longest "
+            + updateThread.getMaxTaskTime() + "ms)", messages.get( messages.size() - 1 ) );
+        updateThread = null;
+    }
+}
@@ -24,6 +24,7 @@ import java.util.*;
 import org.apache.felix.eventadmin.impl.adapter.*;
 import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
 import org.apache.felix.eventadmin.impl.security.SecureEventAdminFactory;
+import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.*;
@@ -83,6 +84,26 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * all handlers in exactly this package are ignored. If the string ends with a star,
  * all handlers in this package and all subpackages are ignored. If the string neither
  * ends with a dot nor with a start, this is assumed to define an exact class name.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueueSize</tt> - The capacity of each
+ *          queue for asynchronous event delivery.
+ * </p>
+ * The default value is 1024 and is rounded up to the next power of two. Posted
+ * events are queued by posting thread into a number of queues depending on the
+ * thread pool size.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueuePolicy</tt> - What to do if an
+ *          asynchronous delivery queue is full.
+ * </p>
+ * The value <tt>block</tt> (the default) makes the posting thread wait until
+ * there is space in the queue, <tt>drop-oldest</tt> drops the oldest queued
+ * event and <tt>caller-runs</tt> makes the posting thread deliver the queued
+ * events itself if no other thread is doing this already.
+ * </p>
  *
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
@@ -100,6 +121,8 @@ public class Configuration
     static final String PROP_REQUIRE_TOPIC = "org.apache.felix.eventadmin.RequireTopic";
     static final String PROP_IGNORE_TIMEOUT = "org.apache.felix.eventadmin.IgnoreTimeout";
     static final String PROP_LOG_LEVEL = "org.apache.felix.eventadmin.LogLevel";
+    static final String PROP_ASYNC_QUEUE_SIZE = "org.apache.felix.eventadmin.AsyncQueueSize";
+    static final String PROP_ASYNC_QUEUE_POLICY = "org.apache.felix.eventadmin.AsyncQueuePolicy";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -114,11 +137,13 @@ public class Configuration
 
     private int m_logLevel;
 
+    private int m_asyncQueueSize;
+
+    private String m_asyncQueuePolicy;
+
     // The thread pool used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_sync_pool;
 
-    private volatile DefaultThreadPool m_async_pool;
-
     // The actual implementation of the service - this is a member because we need to
     // close it on stop. Note, security is not part of this implementation but is
     // added via a decorator in the start method (this is the wrapped object without
@@ -239,6 +264,10 @@ public class Configuration
                     m_bundleContext.getProperty(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                    m_bundleContext.getProperty(PROP_ASYNC_QUEUE_SIZE), 1024, 1);
+            m_asyncQueuePolicy = getPolicyProperty(
+                    m_bundleContext.getProperty(PROP_ASYNC_QUEUE_POLICY));
         }
         else
         {
@@ -264,6 +293,9 @@ public class Configuration
                     config.get(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                    config.get(PROP_ASYNC_QUEUE_SIZE), 1024, 1);
+            m_asyncQueuePolicy = getPolicyProperty(config.get(PROP_ASYNC_QUEUE_POLICY));
         }
         // a timeout less or equals to 100 means : disable timeout
         if ( m_timeout <= 100 )
@@ -283,6 +315,10 @@ public class Configuration
             PROP_TIMEOUT + "=" + m_timeout);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_REQUIRE_TOPIC + "=" + m_requireTopic);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_QUEUE_SIZE + "=" + m_asyncQueueSize);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_QUEUE_POLICY + "=" + m_asyncQueuePolicy);
 
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
@@ -297,20 +333,14 @@ public class Configuration
             m_sync_pool.configure(m_threadPoolSize);
         }
         final int asyncThreadPoolSize = m_threadPoolSize > 5 ? m_threadPoolSize / 2 : 2;
-        if ( m_async_pool == null )
-        {
-            m_async_pool = new DefaultThreadPool(asyncThreadPoolSize, false);
-        }
-        else
-        {
-            m_async_pool.configure(asyncThreadPoolSize);
-        }
 
         if ( m_admin == null )
         {
             m_admin = new EventAdminImpl(m_bundleContext,
                     m_sync_pool,
-                    m_async_pool,
+                    asyncThreadPoolSize,
+                    m_asyncQueueSize,
+                    m_asyncQueuePolicy,
                     m_timeout,
                     m_ignoreTimeout,
                     m_requireTopic);
@@ -326,7 +356,8 @@ public class Configuration
         }
         else
         {
-            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic);
+            m_admin.update(asyncThreadPoolSize, m_asyncQueueSize, m_asyncQueuePolicy,
+                    m_timeout, m_ignoreTimeout, m_requireTopic);
         }
 
     }
@@ -366,11 +397,6 @@ public class Configuration
                 m_admin.stop();
                 m_admin = null;
             }
-            if (m_async_pool != null )
-            {
-                m_async_pool.close();
-                m_async_pool = null;
-            }
             if ( m_sync_pool != null )
             {
                 m_sync_pool.close();
@@ -397,7 +423,7 @@ public class Configuration
         {
             return new MetaTypeProviderImpl((ManagedService)managedService,
                     m_threadPoolSize, m_timeout, m_requireTopic,
-                    m_ignoreTimeout);
+                    m_ignoreTimeout, m_asyncQueueSize, m_asyncQueuePolicy);
         }
         catch (final Throwable t)
         {
@@ -466,6 +492,28 @@ public class Configuration
         return defaultValue;
     }
 
+    /**
+     * Returns the queue policy from the value of the property if it is set to
+     * one of the known policies or the default. Additionally, a warning is
+     * generated in case the value is erroneous.
+     */
+    private String getPolicyProperty(final Object value)
+    {
+        if ( null != value )
+        {
+            final String policy = value.toString().trim().toLowerCase();
+            if ( AsyncDeliverTasks.POLICY_BLOCK.equals(policy)
+                    || AsyncDeliverTasks.POLICY_DROP_OLDEST.equals(policy)
+                    || AsyncDeliverTasks.POLICY_CALLER_RUNS.equals(policy) )
+            {
+                return policy;
+            }
+            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                    "Unknown value for property: " + PROP_ASYNC_QUEUE_POLICY + " - Using default");
+        }
+        return AsyncDeliverTasks.POLICY_BLOCK;
+    }
+
     /**
      * Returns true if the value of the property is set and is either 1, true, or yes
      * Returns false if the value of the property is set and is either 0, false, or no
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Dictionary;
 
+import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 import org.osgi.service.metatype.*;
@@ -38,19 +39,24 @@ public class MetaTypeProviderImpl
     private final int m_timeout;
     private final boolean m_requireTopic;
     private final String[] m_ignoreTimeout;
+    private final int m_asyncQueueSize;
+    private final String m_asyncQueuePolicy;
 
     private final ManagedService m_delegatee;
 
     public MetaTypeProviderImpl(final ManagedService delegatee,
             final int threadPoolSize,
             final int timeout, final boolean requireTopic,
-            final String[] ignoreTimeout)
+            final String[] ignoreTimeout,
+            final int asyncQueueSize, final String asyncQueuePolicy)
     {
         m_threadPoolSize = threadPoolSize;
         m_timeout = timeout;
         m_requireTopic = requireTopic;
         m_delegatee = delegatee;
         m_ignoreTimeout = ignoreTimeout;
+        m_asyncQueueSize = asyncQueueSize;
+        m_asyncQueuePolicy = asyncQueuePolicy;
     }
 
     private ObjectClassDefinition ocd;
@@ -116,6 +122,18 @@ public class MetaTypeProviderImpl
                     "all handlers in this package and all subpackages are ignored. If the string neither " +
                     "ends with a dot nor with a star, this is assumed to define an exact class name.",
                     AttributeDefinition.STRING, m_ignoreTimeout, Integer.MAX_VALUE, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_ASYNC_QUEUE_SIZE, "Async Queue Size",
+                    "The capacity of each queue for asynchronous event delivery. The default value is 1024 " +
+                    "and is rounded up to the next power of two. Posted events are queued by posting thread " +
+                    "into a number of queues depending on the thread pool size.",
+                    m_asyncQueueSize ) );
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_ASYNC_QUEUE_POLICY, "Async Queue Policy",
+                    "What to do if an asynchronous delivery queue is full: wait for space in the queue, drop " +
+                    "the oldest queued event or deliver the queued events in the posting thread.",
+                    AttributeDefinition.STRING, new String[] { m_asyncQueuePolicy }, 0,
+                    new String[] { "Block", "Drop Oldest", "Caller Runs" },
+                    new String[] { AsyncDeliverTasks.POLICY_BLOCK, AsyncDeliverTasks.POLICY_DROP_OLDEST,
+                        AsyncDeliverTasks.POLICY_CALLER_RUNS } ) );
             ocd = new ObjectClassDefinition()
             {
 
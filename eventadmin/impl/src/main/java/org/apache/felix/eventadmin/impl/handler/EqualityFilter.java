@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An event filter which is a conjunction of equality tests, like
+ * <code>(key=value)</code> or <code>(&amp;(key1=value1)(key2=value2))</code>.
+ * This is the most common form of handler filters and it can be evaluated
+ * by comparing the string values of the event properties, which allows
+ * to share the tests between handlers, see {@link FilterIndex}.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class EqualityFilter
+{
+    /** The property names of the tests. */
+    public final String[] keys;
+
+    /** The values of the tests. */
+    public final String[] values;
+
+    private EqualityFilter(final String[] keys, final String[] values)
+    {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Parse a filter. Filters which are not a conjunction of equality tests
+     * or have any peculiarities, like whitespace around values, are not
+     * supported; they have to be evaluated as an OSGi filter.
+     * @param filter The filter, which must be syntactically valid
+     * @return The equality filter or <code>null</code> if not supported
+     */
+    public static EqualityFilter parse(final String filter)
+    {
+        final List keys = new ArrayList();
+        final List values = new ArrayList();
+        final String f = filter.trim();
+        if ( f.startsWith("(&") )
+        {
+            int pos = 2;
+            while ( pos < f.length() && f.charAt(pos) == '(' )
+            {
+                pos = parseTest(f, pos, keys, values);
+                if ( pos == -1 )
+                {
+                    return null;
+                }
+            }
+            if ( keys.isEmpty() || pos != f.length() - 1 || f.charAt(pos) != ')' )
+            {
+                return null;
+            }
+        }
+        else if ( parseTest(f, 0, keys, values) != f.length() )
+        {
+            return null;
+        }
+        return new EqualityFilter((String[]) keys.toArray(new String[keys.size()]),
+                (String[]) values.toArray(new String[values.size()]));
+    }
+
+    /**
+     * Parse an equality test starting at the given position.
+     * @return The position after the test or -1 if it is not supported
+     */
+    private static int parseTest(final String f, final int start, final List keys, final List values)
+    {
+        if ( start >= f.length() || f.charAt(start) != '(' )
+        {
+            return -1;
+        }
+        final int eq = f.indexOf('=', start);
+        if ( eq <= start + 1 )
+        {
+            return -1;
+        }
+        final String key = f.substring(start + 1, eq);
+        for(int i=0; i<key.length(); i++)
+        {
+            final char c = key.charAt(i);
+            // operators, nested filters and whitespace
+            if ( "()&|!<>~*\\".indexOf(c) != -1 || Character.isWhitespace(c) )
+            {
+                return -1;
+            }
+        }
+        final StringBuffer value = new StringBuffer();
+        int pos = eq + 1;
+        while ( pos < f.length() && f.charAt(pos) != ')' )
+        {
+            char c = f.charAt(pos);
+            if ( c == '(' || c == '*' )
+            {
+                // substring or presence test
+                return -1;
+            }
+            if ( c == '\\' )
+            {
+                pos++;
+                if ( pos == f.length() )
+                {
+                    return -1;
+                }
+                c = f.charAt(pos);
+            }
+            value.append(c);
+            pos++;
+        }
+        if ( pos == f.length() || value.length() == 0
+                || Character.isWhitespace(value.charAt(0))
+                || Character.isWhitespace(value.charAt(value.length() - 1)) )
+        {
+            return -1;
+        }
+        keys.add(key);
+        values.add(value.toString());
+        return pos + 1;
+    }
+}
@@ -53,24 +53,28 @@ public class EventAdminImpl implements EventAdmin
      * The constructor of the <tt>EventAdmin</tt> implementation.
      *
      * @param syncPool The synchronous thread pool
-     * @param asyncPool The asynchronous thread pool
+     * @param asyncPoolSize The number of threads for asynchronous delivery
+     * @param asyncQueueSize The capacity of each asynchronous delivery queue
+     * @param asyncQueuePolicy The policy used if an asynchronous delivery queue is full
      */
     public EventAdminImpl(
                     final BundleContext bundleContext,
                     final DefaultThreadPool syncPool,
-                    final DefaultThreadPool asyncPool,
+                    final int asyncPoolSize,
+                    final int asyncQueueSize,
+                    final String asyncQueuePolicy,
                     final int timeout,
                     final String[] ignoreTimeout,
                     final boolean requireTopic)
     {
         checkNull(syncPool, "syncPool");
-        checkNull(asyncPool, "asyncPool");
 
         this.tracker = new EventHandlerTracker(bundleContext);
         this.tracker.update(ignoreTimeout, requireTopic);
         this.tracker.open();
         m_sendManager = new SyncDeliverTasks(syncPool, timeout);
-        m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
+        m_postManager = new AsyncDeliverTasks(m_sendManager, asyncPoolSize,
+                asyncQueueSize, asyncQueuePolicy);
     }
 
     /**
@@ -121,21 +125,61 @@ public class EventAdminImpl implements EventAdmin
     {
         this.tracker.close();
         this.tracker = null;
+        this.m_postManager.close();
     }
 
     /**
      * Update the event admin with new configuration.
      */
-    public void update(final int timeout,
+    public void update(final int asyncPoolSize,
+                    final int asyncQueueSize,
+                    final String asyncQueuePolicy,
+                    final int timeout,
                     final String[] ignoreTimeout,
                     final boolean requireTopic)
     {
         this.tracker.close();
         this.tracker.update(ignoreTimeout, requireTopic);
         this.m_sendManager.update(timeout);
+        this.m_postManager.update(asyncPoolSize, asyncQueueSize, asyncQueuePolicy);
         this.tracker.open();
     }
 
+    /**
+     * Return the number of events waiting for asynchronous delivery.
+     */
+    public int getAsyncQueueDepth()
+    {
+        return m_postManager.getQueueDepth();
+    }
+
+    /**
+     * Return the number of posted events dropped because the
+     * asynchronous delivery queue was full.
+     */
+    public long getAsyncDroppedEvents()
+    {
+        return m_postManager.getDroppedEvents();
+    }
+
+    /**
+     * Return the number of posts that waited for space in the
+     * asynchronous delivery queue.
+     */
+    public long getAsyncBlockedPosts()
+    {
+        return m_postManager.getBlockedPosts();
+    }
+
+    /**
+     * Return the number of queued events delivered by the posting
+     * thread because the asynchronous delivery queue was full.
+     */
+    public long getAsyncCallerRunsEvents()
+    {
+        return m_postManager.getCallerRunsEvents();
+    }
+
     /**
      * This is a utility method that will throw a <tt>NullPointerException</tt>
      * in case that the given object is null. The message will be of the form
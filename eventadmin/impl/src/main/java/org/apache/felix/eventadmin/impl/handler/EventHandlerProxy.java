@@ -54,6 +54,9 @@ public class EventHandlerProxy {
     /** Optional filter. */
     private volatile Filter filter;
 
+    /** The filter as equality filter, if it is one. */
+    private volatile EqualityFilter equalityFilter;
+
     /** Lazy fetched event handler. */
     private volatile EventHandler handler;
 
@@ -174,6 +177,7 @@ public class EventHandlerProxy {
         }
         // Second check filter (but only if topics is valid)
         Filter handlerFilter = null;
+        EqualityFilter handlerEqualityFilter = null;
         if ( valid )
         {
             final Object filterObj = reference.getProperty(EventConstants.EVENT_FILTER);
@@ -182,6 +186,7 @@ public class EventHandlerProxy {
                 try
                 {
                     handlerFilter = this.handlerContext.bundleContext.createFilter(filterObj.toString());
+                    handlerEqualityFilter = EqualityFilter.parse(filterObj.toString());
                 }
                 catch (final InvalidSyntaxException e)
                 {
@@ -206,6 +211,7 @@ public class EventHandlerProxy {
             }
         }
         this.filter = handlerFilter;
+        this.equalityFilter = handlerEqualityFilter;
 
         // new in 1.3 - deliver
         this.asyncOrderedDelivery = true;
@@ -322,6 +328,23 @@ public class EventHandlerProxy {
         return this.topics;
     }
 
+    /**
+     * Does this handler have a filter?
+     */
+    public boolean hasFilter()
+    {
+        return this.filter != null;
+    }
+
+    /**
+     * Get the filter of this handler if it is an equality filter.
+     * @return The filter or <code>null</code>
+     */
+    public EqualityFilter getEqualityFilter()
+    {
+        return this.equalityFilter;
+    }
+
     /**
      * Check if this handler is allowed to receive the event
      * - blacklisted
@@ -329,6 +352,19 @@ public class EventHandlerProxy {
      * - check permission
      */
     public boolean canDeliver(final Event event)
+    {
+        return this.canDeliver(event, true);
+    }
+
+    /**
+     * Check if this handler is allowed to receive the event
+     * - blacklisted
+     * - check filter, if requested
+     * - check permission
+     * @param checkFilter Whether to match the filter; this is not required
+     *        if the filter has been evaluated by a {@link FilterIndex}
+     */
+    public boolean canDeliver(final Event event, final boolean checkFilter)
     {
         if ( this.blacklisted )
         {
@@ -343,7 +379,7 @@ public class EventHandlerProxy {
 
         // filter match
         final Filter eventFilter = this.filter;
-        if ( eventFilter != null && !event.matches(eventFilter) )
+        if ( checkFilter && eventFilter != null && !event.matches(eventFilter) )
         {
             return false;
         }
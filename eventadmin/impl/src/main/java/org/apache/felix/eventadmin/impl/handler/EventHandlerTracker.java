@@ -19,6 +19,7 @@
 package org.apache.felix.eventadmin.impl.handler;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -46,6 +47,9 @@ public class EventHandlerTracker extends ServiceTracker {
 	 */
 	private volatile Map matchingPrefixTopic;
 
+    /** The topic trie built from the collections above, used to look up handlers. */
+    private volatile TopicTrie trie;
+
 
 	/** The context for the proxies. */
 	private HandlerContext handlerContext;
@@ -57,6 +61,7 @@ public class EventHandlerTracker extends ServiceTracker {
 		this.matchingAllEvents = new ArrayList();
 		this.matchingTopic = new HashMap();
 		this.matchingPrefixTopic = new HashMap();
+		this.trie = new TopicTrie(this.matchingAllEvents, this.matchingTopic, this.matchingPrefixTopic);
 	}
 
     /**
@@ -211,6 +216,7 @@ public class EventHandlerTracker extends ServiceTracker {
     		    this.matchingPrefixTopic = newMatchingPrefixTopic;
     		}
 		}
+		this.trie = new TopicTrie(this.matchingAllEvents, this.matchingTopic, this.matchingPrefixTopic);
 	}
 
     /**
@@ -263,6 +269,7 @@ public class EventHandlerTracker extends ServiceTracker {
                 this.matchingPrefixTopic = newMatchingPrefixTopic;
             }
         }
+        this.trie = new TopicTrie(this.matchingAllEvents, this.matchingTopic, this.matchingPrefixTopic);
 	}
 
 	/**
@@ -272,46 +279,130 @@ public class EventHandlerTracker extends ServiceTracker {
 	 * @return All handlers for the event
 	 */
 	public Collection getHandlers(final Event event) {
-	    final String topic = event.getTopic();
+	    // check permission and filters
+	    return this.trie.getHandlers(event.getTopic()).getHandlers(event);
+	}
 
-		final Set handlers = new HashSet();
+    /**
+     * An immutable trie of the topic segments with the handlers registered
+     * for them. The de-duplicated handlers resolved for a topic are cached
+     * together with the decision structure for their filters, so events
+     * for a known topic can be dispatched without walking the trie. A new trie is built whenever a handler is added, modified or
+     * removed which also discards the cache.
+     */
+    private static final class TopicTrie
+    {
+        /** The maximum number of cached topics. */
+        private static final int MAX_CACHED_TOPICS = 1024;
 
-		// Add all handlers matching everything
-		handlers.addAll(this.matchingAllEvents);
+        private static final EventHandlerProxy[] EMPTY = new EventHandlerProxy[0];
 
-		// Now check for prefix matches
-		if ( !this.matchingPrefixTopic.isEmpty() )
-		{
-		    int pos = topic.lastIndexOf('/');
-			while (pos != -1)
-			{
-			    final String prefix = topic.substring(0, pos);
-				List proxies = (List)this.matchingPrefixTopic.get(prefix);
-				if (proxies != null)
-				{
-					handlers.addAll(proxies);
-				}
-
-				pos = prefix.lastIndexOf('/');
-			}
-		}
+        private final EventHandlerProxy[] matchingAllEvents;
 
-		// Add the handlers for matching topic names
-		List proxies = (List)this.matchingTopic.get(topic);
-		if (proxies != null) {
-			handlers.addAll(proxies);
-		}
+        private final TopicNode root = new TopicNode();
 
-		// now check permission and filters
-		final Iterator i = handlers.iterator();
-		while ( i.hasNext() ) {
-		    final EventHandlerProxy proxy = (EventHandlerProxy) i.next();
-		    if ( !proxy.canDeliver(event) ) {
-		        i.remove();
-		    }
-		}
-		return handlers;
-	}
+        private final Map cache = new ConcurrentHashMap();
+
+        public TopicTrie(final List matchingAllEvents, final Map matchingTopic, final Map matchingPrefixTopic)
+        {
+            this.matchingAllEvents = (EventHandlerProxy[]) matchingAllEvents.toArray(EMPTY);
+            Iterator i = matchingTopic.entrySet().iterator();
+            while ( i.hasNext() )
+            {
+                final Map.Entry entry = (Map.Entry) i.next();
+                this.getNode((String) entry.getKey()).exact = (List) entry.getValue();
+            }
+            i = matchingPrefixTopic.entrySet().iterator();
+            while ( i.hasNext() )
+            {
+                final Map.Entry entry = (Map.Entry) i.next();
+                this.getNode((String) entry.getKey()).prefix = (List) entry.getValue();
+            }
+        }
+
+        public FilterIndex getHandlers(final String topic)
+        {
+            FilterIndex handlers = (FilterIndex) this.cache.get(topic);
+            if ( handlers == null )
+            {
+                handlers = new FilterIndex(this.resolve(topic));
+                if ( this.cache.size() >= MAX_CACHED_TOPICS )
+                {
+                    this.cache.clear();
+                }
+                this.cache.put(topic, handlers);
+            }
+            return handlers;
+        }
+
+        /**
+         * Collect the handlers for all topics matching the given one: the
+         * handlers for all events, the handlers for each proper prefix
+         * registered with a wildcard and the handlers for the exact topic.
+         */
+        private EventHandlerProxy[] resolve(final String topic)
+        {
+            final Set handlers = new LinkedHashSet();
+            handlers.addAll(Arrays.asList(this.matchingAllEvents));
+
+            TopicNode node = this.root;
+            int start = 0;
+            int pos;
+            while ( node != null && (pos = topic.indexOf('/', start)) != -1 )
+            {
+                node = (TopicNode) node.children.get(topic.substring(start, pos));
+                if ( node != null && node.prefix != null )
+                {
+                    handlers.addAll(node.prefix);
+                }
+                start = pos + 1;
+            }
+            if ( node != null )
+            {
+                node = (TopicNode) node.children.get(topic.substring(start));
+                if ( node != null && node.exact != null )
+                {
+                    handlers.addAll(node.exact);
+                }
+            }
+            return handlers.isEmpty() ? EMPTY : (EventHandlerProxy[]) handlers.toArray(EMPTY);
+        }
+
+        private TopicNode getNode(final String topic)
+        {
+            TopicNode node = this.root;
+            int start = 0;
+            int pos;
+            do
+            {
+                pos = topic.indexOf('/', start);
+                final String segment = (pos == -1 ? topic.substring(start) : topic.substring(start, pos));
+                TopicNode child = (TopicNode) node.children.get(segment);
+                if ( child == null )
+                {
+                    child = new TopicNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+                start = pos + 1;
+            }
+            while ( pos != -1 );
+            return node;
+        }
+    }
+
+    /** A node of the topic trie for one topic segment. */
+    private static final class TopicNode
+    {
+        /** The child nodes keyed by the next topic segment. */
+        public final Map children = new HashMap();
+
+        /** The handlers registered for exactly this topic. */
+        public List exact;
+
+        /** The handlers registered for all topics below this one. */
+        public List prefix;
+    }
 
     /**
      * The matcher interface for checking if timeout handling
@@ -0,0 +1,325 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.service.event.Event;
+
+/**
+ * A decision structure for the filters of a set of event handlers.
+ *
+ * Handlers with an {@link EqualityFilter} are put into a dispatch table,
+ * keyed by the property name used by most of the handlers and the value
+ * they expect for it. For an event, each of these properties is looked
+ * up once and only the handlers expecting its value are considered. Their
+ * remaining tests are shared, too, and evaluated at most once per event.
+ * Handlers with other filters are matched against their OSGi filter.
+ *
+ * Equality tests are evaluated by comparing strings, so if an event
+ * property is not a string the OSGi filter of the affected handlers
+ * is used instead.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class FilterIndex
+{
+    /** Test states used per event. */
+    private static final byte UNKNOWN = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte NOT_A_STRING = 3;
+
+    /** Handlers without filter. */
+    private final EventHandlerProxy[] m_unfiltered;
+
+    /** Handlers with a filter which is not an equality filter. */
+    private final EventHandlerProxy[] m_unindexed;
+
+    /** The property names of the dispatch table. */
+    private final String[] m_keys;
+
+    /** For each property name, a map from the value to the entries. */
+    private final Map[] m_tables;
+
+    /** For each property name, all entries. */
+    private final Entry[][] m_entries;
+
+    /** The property names of the remaining tests. */
+    private final String[] m_testKeys;
+
+    /** The values of the remaining tests. */
+    private final String[] m_testValues;
+
+    /**
+     * Create the decision structure for the given handlers.
+     */
+    public FilterIndex(final EventHandlerProxy[] handlers)
+    {
+        final List unfiltered = new ArrayList();
+        final List unindexed = new ArrayList();
+        final List indexed = new ArrayList();
+
+        // count how many handlers test each property
+        final Map keyCounts = new HashMap();
+        for(int i=0; i<handlers.length; i++)
+        {
+            final EqualityFilter filter = handlers[i].getEqualityFilter();
+            if ( filter != null )
+            {
+                indexed.add(handlers[i]);
+                for(int k=0; k<filter.keys.length; k++)
+                {
+                    final Integer count = (Integer) keyCounts.get(filter.keys[k]);
+                    keyCounts.put(filter.keys[k], new Integer(count == null ? 1 : count.intValue() + 1));
+                }
+            }
+            else if ( handlers[i].hasFilter() )
+            {
+                unindexed.add(handlers[i]);
+            }
+            else
+            {
+                unfiltered.add(handlers[i]);
+            }
+        }
+
+        // put each handler into the table under its most common property,
+        // the other tests are numbered to share them
+        final Map keyEntries = new HashMap();
+        final Map testIds = new HashMap();
+        final List testKeys = new ArrayList();
+        final List testValues = new ArrayList();
+        final Iterator i = indexed.iterator();
+        while ( i.hasNext() )
+        {
+            final EventHandlerProxy proxy = (EventHandlerProxy) i.next();
+            final EqualityFilter filter = proxy.getEqualityFilter();
+            int best = 0;
+            for(int k=1; k<filter.keys.length; k++)
+            {
+                if ( ((Integer) keyCounts.get(filter.keys[k])).intValue()
+                        > ((Integer) keyCounts.get(filter.keys[best])).intValue() )
+                {
+                    best = k;
+                }
+            }
+            final int[] tests = new int[filter.keys.length - 1];
+            int index = 0;
+            for(int k=0; k<filter.keys.length; k++)
+            {
+                if ( k != best )
+                {
+                    final String test = filter.keys[k] + '=' + filter.values[k];
+                    Integer id = (Integer) testIds.get(test);
+                    if ( id == null )
+                    {
+                        id = new Integer(testKeys.size());
+                        testIds.put(test, id);
+                        testKeys.add(filter.keys[k]);
+                        testValues.add(filter.values[k]);
+                    }
+                    tests[index++] = id.intValue();
+                }
+            }
+            List entries = (List) keyEntries.get(filter.keys[best]);
+            if ( entries == null )
+            {
+                entries = new ArrayList();
+                keyEntries.put(filter.keys[best], entries);
+            }
+            entries.add(new Entry(proxy, filter.values[best], tests));
+        }
+
+        m_unfiltered = (EventHandlerProxy[]) unfiltered.toArray(new EventHandlerProxy[unfiltered.size()]);
+        m_unindexed = (EventHandlerProxy[]) unindexed.toArray(new EventHandlerProxy[unindexed.size()]);
+        m_keys = (String[]) keyEntries.keySet().toArray(new String[keyEntries.size()]);
+        m_tables = new Map[m_keys.length];
+        m_entries = new Entry[m_keys.length][];
+        for(int k=0; k<m_keys.length; k++)
+        {
+            final List entries = (List) keyEntries.get(m_keys[k]);
+            m_entries[k] = (Entry[]) entries.toArray(new Entry[entries.size()]);
+            final Map table = new HashMap();
+            for(int e=0; e<m_entries[k].length; e++)
+            {
+                final String value = m_entries[k][e].value;
+                final List list = (List) table.get(value);
+                if ( list == null )
+                {
+                    table.put(value, Collections.singletonList(m_entries[k][e]));
+                }
+                else
+                {
+                    final List newList = new ArrayList(list);
+                    newList.add(m_entries[k][e]);
+                    table.put(value, newList);
+                }
+            }
+            final Iterator t = table.entrySet().iterator();
+            while ( t.hasNext() )
+            {
+                final Map.Entry entry = (Map.Entry) t.next();
+                final List list = (List) entry.getValue();
+                entry.setValue(list.toArray(new Entry[list.size()]));
+            }
+            m_tables[k] = table;
+        }
+        m_testKeys = (String[]) testKeys.toArray(new String[testKeys.size()]);
+        m_testValues = (String[]) testValues.toArray(new String[testValues.size()]);
+    }
+
+    /**
+     * Get all handlers which can receive the event.
+     *
+     * @param event The event
+     * @return The handlers
+     */
+    public Collection getHandlers(final Event event)
+    {
+        List handlers = null;
+        for(int i=0; i<m_unfiltered.length; i++)
+        {
+            if ( m_unfiltered[i].canDeliver(event, false) )
+            {
+                handlers = add(handlers, m_unfiltered[i]);
+            }
+        }
+        for(int i=0; i<m_unindexed.length; i++)
+        {
+            if ( m_unindexed[i].canDeliver(event, true) )
+            {
+                handlers = add(handlers, m_unindexed[i]);
+            }
+        }
+
+        byte[] states = null;
+        for(int k=0; k<m_keys.length; k++)
+        {
+            final Object value = event.getProperty(m_keys[k]);
+            if ( value instanceof String )
+            {
+                final Entry[] entries = (Entry[]) m_tables[k].get(value);
+                if ( entries == null )
+                {
+                    continue;
+                }
+                for(int e=0; e<entries.length; e++)
+                {
+                    final Entry entry = entries[e];
+                    if ( states == null && entry.tests.length > 0 )
+                    {
+                        states = new byte[m_testKeys.length];
+                    }
+                    final boolean deliver;
+                    switch ( this.evaluate(entry, event, states) )
+                    {
+                        case TRUE:
+                            deliver = entry.proxy.canDeliver(event, false);
+                            break;
+                        case NOT_A_STRING:
+                            deliver = entry.proxy.canDeliver(event, true);
+                            break;
+                        default:
+                            deliver = false;
+                    }
+                    if ( deliver )
+                    {
+                        handlers = add(handlers, entry.proxy);
+                    }
+                }
+            }
+            else if ( value != null )
+            {
+                // not a string, so use the filters of all handlers
+                for(int e=0; e<m_entries[k].length; e++)
+                {
+                    if ( m_entries[k][e].proxy.canDeliver(event, true) )
+                    {
+                        handlers = add(handlers, m_entries[k][e].proxy);
+                    }
+                }
+            }
+        }
+        return handlers == null ? Collections.EMPTY_LIST : handlers;
+    }
+
+    /**
+     * Evaluate the remaining tests of an entry.
+     */
+    private byte evaluate(final Entry entry, final Event event, final byte[] states)
+    {
+        for(int t=0; t<entry.tests.length; t++)
+        {
+            final int id = entry.tests[t];
+            if ( states[id] == UNKNOWN )
+            {
+                final Object value = event.getProperty(m_testKeys[id]);
+                if ( value instanceof String )
+                {
+                    states[id] = m_testValues[id].equals(value) ? TRUE : FALSE;
+                }
+                else
+                {
+                    states[id] = value == null ? FALSE : NOT_A_STRING;
+                }
+            }
+            if ( states[id] != TRUE )
+            {
+                return states[id];
+            }
+        }
+        return TRUE;
+    }
+
+    private static List add(List handlers, final EventHandlerProxy proxy)
+    {
+        if ( handlers == null )
+        {
+            handlers = new ArrayList();
+        }
+        handlers.add(proxy);
+        return handlers;
+    }
+
+    /** A handler in the dispatch table. */
+    private static final class Entry
+    {
+        public final EventHandlerProxy proxy;
+
+        /** The value expected for the property of the table. */
+        public final String value;
+
+        /** The ids of the remaining tests. */
+        public final int[] tests;
+
+        public Entry(final EventHandlerProxy proxy, final String value, final int[] tests)
+        {
+            this.proxy = proxy;
+            this.value = value;
+            this.tests = tests;
+        }
+    }
+}
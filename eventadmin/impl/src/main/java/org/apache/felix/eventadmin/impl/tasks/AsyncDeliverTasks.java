@@ -19,22 +19,65 @@
 package org.apache.felix.eventadmin.impl.tasks;
 
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.service.event.Event;
 
 /**
  * This class does the actual work of the asynchronous event dispatch.
  *
+ * Posted events are queued into one of a fixed number of lanes, selected
+ * by the posting thread. Each lane is a bounded {@link RingBuffer} that is
+ * drained in batches by at most one thread at a time, which keeps the
+ * events posted by a thread in order without any global lock. Events
+ * posted by an event handler during asynchronous delivery are queued
+ * into the lane of the event being delivered.
+ *
+ * If a lane is full, the configured policy decides what happens:
+ * <ul>
+ * <li>{@link #POLICY_BLOCK} - the posting thread waits for free space.</li>
+ * <li>{@link #POLICY_DROP_OLDEST} - the oldest queued event of the lane
+ * is dropped.</li>
+ * <li>{@link #POLICY_CALLER_RUNS} - the posting thread delivers the queued
+ * events of the lane itself if no other thread is doing so; otherwise
+ * it waits.</li>
+ * </ul>
+ * A thread that is draining a full lane, or delivering an event of the
+ * lane on behalf of the draining thread because of the timeout handling,
+ * never waits for it but delivers the queued events itself, as nobody
+ * else could.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class AsyncDeliverTasks
 {
-    /** The thread pool to use to spin-off new threads. */
-    private final DefaultThreadPool m_pool;
+    /** Wait for free space if the queue is full. */
+    public static final String POLICY_BLOCK = "block";
+
+    /** Drop the oldest queued event if the queue is full. */
+    public static final String POLICY_DROP_OLDEST = "drop-oldest";
+
+    /** Deliver the queued events in the posting thread if the queue is full. */
+    public static final String POLICY_CALLER_RUNS = "caller-runs";
+
+    /** The maximum number of events delivered before a lane yields its thread. */
+    private static final int BATCH_SIZE = 64;
+
+    /** The time to wait before trying to queue into a full lane again. */
+    private static final long PARK_NANOS = 100000L;
+
+    /** The thread pool used to drain the lanes. */
+    private final ThreadPoolExecutor m_pool;
 
     /** The deliver task for actually delivering the events. This
      * is the sync deliver tasks as this has all the code for timeout
@@ -42,21 +85,107 @@ public class AsyncDeliverTasks
      */
     private final SyncDeliverTasks m_deliver_task;
 
-    /** A map of running threads currently delivering async events. */
-    private final Map m_running_threads = new HashMap();
+    /** The lanes, created on first use. */
+    private volatile AtomicReferenceArray m_lanes;
+
+    /** The capacity of each lane. */
+    private volatile int m_queueSize;
+
+    private volatile String m_policy;
+
+    /** The lane drained by the current thread, or on whose behalf the
+     * current thread delivers an event, if any.
+     */
+    private final ThreadLocal m_drainedLane = new ThreadLocal();
+
+    private volatile boolean m_closed = false;
+
+    private final AtomicLong m_droppedEvents = new AtomicLong();
+
+    private final AtomicLong m_blockedPosts = new AtomicLong();
+
+    private final AtomicLong m_callerRunsEvents = new AtomicLong();
+
+    private final AtomicBoolean m_dropLogged = new AtomicBoolean();
 
     /**
      * The constructor of the class that will use the asynchronous.
      *
-     * @param pool The thread pool used to spin-off new asynchronous event
-     *      dispatching threads in case of timeout or that the asynchronous event
-     *      dispatching thread is used to send a synchronous event
      * @param deliverTask The deliver tasks for dispatching the event.
+     * @param poolSize The number of threads delivering events
+     * @param queueSize The capacity of each lane
+     * @param policy The policy used if a lane is full
      */
-    public AsyncDeliverTasks(final DefaultThreadPool pool, final SyncDeliverTasks deliverTask)
+    public AsyncDeliverTasks(final SyncDeliverTasks deliverTask,
+            final int poolSize,
+            final int queueSize,
+            final String policy)
     {
-        m_pool = pool;
         m_deliver_task = deliverTask;
+        // a handler called by a thread of the timeout handling posts
+        // into the lane of the event it handles, like one called directly
+        m_deliver_task.setInheritedContext(m_drainedLane);
+        m_pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue(), new ThreadFactory()
+                {
+                    public Thread newThread( final Runnable command )
+                    {
+                        final Thread thread = new Thread( command );
+                        thread.setPriority( Thread.NORM_PRIORITY );
+                        thread.setDaemon( true );
+
+                        return thread;
+                    }
+                });
+        // a few lanes per thread reduce collisions of unrelated posting threads
+        int lanes = 1;
+        while ( lanes < poolSize * 4 )
+        {
+            lanes <<= 1;
+        }
+        m_lanes = new AtomicReferenceArray(lanes);
+        m_queueSize = queueSize;
+        m_policy = policy;
+    }
+
+    /**
+     * Update the configuration. If the queue size changes, new lanes are
+     * used for subsequent events while the events already queued are still
+     * delivered; events posted by one thread during such a change might
+     * not be delivered in order.
+     */
+    public void update(final int poolSize, final int queueSize, final String policy)
+    {
+        if ( poolSize > m_pool.getMaximumPoolSize() )
+        {
+            m_pool.setMaximumPoolSize(poolSize);
+            m_pool.setCorePoolSize(poolSize);
+        }
+        else
+        {
+            m_pool.setCorePoolSize(poolSize);
+            m_pool.setMaximumPoolSize(poolSize);
+        }
+        if ( queueSize != m_queueSize )
+        {
+            m_queueSize = queueSize;
+            m_lanes = new AtomicReferenceArray(m_lanes.length());
+        }
+        m_policy = policy;
+    }
+
+    /**
+     * Stop delivering events. Queued events are discarded.
+     */
+    public void close()
+    {
+        m_closed = true;
+        m_pool.shutdownNow();
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+                "Asynchronous delivery stopped: queued=" + getQueueDepth()
+                + ", dropped=" + getDroppedEvents()
+                + ", blocked=" + getBlockedPosts()
+                + ", caller-runs=" + getCallerRunsEvents());
     }
 
     /**
@@ -67,86 +196,222 @@ public class AsyncDeliverTasks
      */
     public void execute(final Collection tasks, final Event event)
     {
-        /*
-        final Iterator i = tasks.iterator();
-        boolean hasOrdered = false;
-        while ( i.hasNext() )
+        if ( m_closed )
+        {
+            return;
+        }
+        Lane lane = (Lane) m_drainedLane.get();
+        if ( lane == null )
+        {
+            lane = getLane(Thread.currentThread());
+        }
+        final Object[] element = new Object[] {tasks, event};
+        if ( !lane.m_queue.offer(element) )
+        {
+            queueIntoFullLane(lane, element);
+        }
+        lane.schedule();
+    }
+
+    /**
+     * Return the number of events currently queued.
+     */
+    public int getQueueDepth()
+    {
+        final AtomicReferenceArray lanes = m_lanes;
+        int depth = 0;
+        for ( int i = 0; i < lanes.length(); i++ )
         {
-            final EventHandlerProxy task = (EventHandlerProxy)i.next();
-            if ( !task.isAsyncOrderedDelivery() )
+            final Lane lane = (Lane) lanes.get(i);
+            if ( lane != null )
             {
-                // do somethimg
+                depth += lane.m_queue.size();
             }
-            else
+        }
+        return depth;
+    }
+
+    /**
+     * Return the number of events dropped because the queue was full.
+     */
+    public long getDroppedEvents()
+    {
+        return m_droppedEvents.get();
+    }
+
+    /**
+     * Return the number of posts that had to wait for space in the queue.
+     */
+    public long getBlockedPosts()
+    {
+        return m_blockedPosts.get();
+    }
+
+    /**
+     * Return the number of events delivered by a posting thread because
+     * the queue was full.
+     */
+    public long getCallerRunsEvents()
+    {
+        return m_callerRunsEvents.get();
+    }
+
+    private Lane getLane(final Thread thread)
+    {
+        final AtomicReferenceArray lanes = m_lanes;
+        int hash = System.identityHashCode(thread);
+        hash ^= (hash >>> 16);
+        final int index = hash & (lanes.length() - 1);
+        Lane lane = (Lane) lanes.get(index);
+        if ( lane == null )
+        {
+            lanes.compareAndSet(index, null, new Lane(m_queueSize));
+            lane = (Lane) lanes.get(index);
+        }
+        return lane;
+    }
+
+    private void queueIntoFullLane(final Lane lane, final Object[] element)
+    {
+        final String policy = m_policy;
+        if ( POLICY_DROP_OLDEST.equals(policy) )
+        {
+            do
+            {
+                if ( lane.m_queue.poll() != null )
+                {
+                    m_droppedEvents.incrementAndGet();
+                }
+            }
+            while ( !lane.m_queue.offer(element) );
+            if ( m_dropLogged.compareAndSet(false, true) )
             {
-                hasOrdered = true;
+                LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                        "Asynchronous event queue is full - dropping oldest events");
             }
+            return;
+        }
 
+        final boolean callerRuns = POLICY_CALLER_RUNS.equals(policy);
+        // the current thread must not wait for the lane it is draining, nor
+        // for a lane whose draining thread waits for the current thread
+        final boolean draining = ( m_drainedLane.get() == lane );
+        if ( !callerRuns && !draining )
+        {
+            m_blockedPosts.incrementAndGet();
         }
-        if ( hasOrdered )
-        {*/
-            final Thread currentThread = Thread.currentThread();
-            TaskExecuter executer = null;
-            synchronized (m_running_threads )
+        do
+        {
+            if ( draining || ( callerRuns && lane.m_lock.tryLock() ) )
             {
-                final TaskExecuter runningExecutor = (TaskExecuter)m_running_threads.get(currentThread);
-                if ( runningExecutor != null )
+                try
                 {
-                    runningExecutor.add(tasks, event);
+                    m_callerRunsEvents.addAndGet(lane.drain(lane.m_queue.capacity()));
                 }
-                else
+                finally
                 {
-                    executer = new TaskExecuter( tasks, event, currentThread );
-                    m_running_threads.put(currentThread, executer);
+                    if ( !draining )
+                    {
+                        lane.m_lock.unlock();
+                    }
                 }
             }
-            if ( executer != null )
+            else
             {
-                m_pool.executeTask(executer);
+                LockSupport.parkNanos(PARK_NANOS);
             }
-        //}
+        }
+        while ( !lane.m_queue.offer(element) && !m_closed );
     }
 
-    private final class TaskExecuter implements Runnable
+    /**
+     * A lane queues the events of the posting threads mapped to it and is
+     * drained by one thread at a time.
+     */
+    private final class Lane implements Runnable
     {
-        private final List m_tasks = new LinkedList();
+        private final RingBuffer m_queue;
 
-        private final Object m_key;
+        /** Held while draining, either by a pool thread or a posting thread. */
+        private final ReentrantLock m_lock = new ReentrantLock();
 
-        public TaskExecuter(final Collection tasks, final Event event, final Object key)
+        /** Whether a drain is pending in the thread pool. */
+        private final AtomicBoolean m_scheduled = new AtomicBoolean();
+
+        public Lane(final int capacity)
         {
-            m_key = key;
-            m_tasks.add(new Object[] {tasks, event});
+            m_queue = new RingBuffer(capacity);
         }
 
-        public void run()
+        public void schedule()
         {
-            boolean running;
-            do
+            if ( !m_closed && m_scheduled.compareAndSet(false, true) )
             {
-                Object[] tasks = null;
-                synchronized ( m_tasks )
+                try
                 {
-                    tasks = (Object[]) m_tasks.remove(0);
+                    m_pool.execute(this);
                 }
-                m_deliver_task.execute((Collection)tasks[0], (Event)tasks[1], true);
-                synchronized ( m_running_threads )
+                catch (final RejectedExecutionException ree)
                 {
-                    running = m_tasks.size() > 0;
-                    if ( !running )
-                    {
-                        m_running_threads.remove(m_key);
-                    }
+                    // the pool is shut down
+                    m_scheduled.set(false);
                 }
-            } while ( running );
+            }
+        }
+
+        public void run()
+        {
+            m_lock.lock();
+            try
+            {
+                drain(BATCH_SIZE);
+            }
+            finally
+            {
+                m_lock.unlock();
+            }
+            // let other lanes run before continuing with this one
+            m_scheduled.set(false);
+            if ( !m_queue.isEmpty() )
+            {
+                this.schedule();
+            }
         }
 
-        public void add(final Collection tasks, final Event event)
+        /**
+         * Deliver queued events. Must be called holding the lock, or on
+         * behalf of the thread holding it while that thread waits.
+         * @return The number of delivered events
+         */
+        public int drain(final int max)
         {
-            synchronized ( m_tasks )
+            final Object previous = m_drainedLane.get();
+            m_drainedLane.set(this);
+            int count = 0;
+            try
+            {
+                Object[] element;
+                while ( count < max && !m_closed
+                        && (element = (Object[]) m_queue.poll()) != null )
+                {
+                    count++;
+                    try
+                    {
+                        m_deliver_task.execute((Collection)element[0], (Event)element[1], true);
+                    }
+                    catch (final Throwable t)
+                    {
+                        LogWrapper.getLogger().log(
+                                LogWrapper.LOG_WARNING,
+                                "Exception: " + t, t);
+                    }
+                }
+            }
+            finally
             {
-                m_tasks.add(new Object[] {tasks, event});
+                m_drainedLane.set(previous);
             }
+            return count;
         }
     }
 }
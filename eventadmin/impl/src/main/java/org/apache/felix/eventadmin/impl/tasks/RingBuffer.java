@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue backed by an array. Each slot carries a
+ * sequence number telling producers and consumers whether it is free
+ * for the next write or holds the next element to read, so neither
+ * side needs a lock. Several threads may offer and poll at the same
+ * time; polling from producers is used to drop the oldest element.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class RingBuffer
+{
+    private final AtomicReferenceArray m_elements;
+
+    private final AtomicLongArray m_sequences;
+
+    private final int m_mask;
+
+    /** The position of the next element to read. */
+    private final AtomicLong m_head = new AtomicLong();
+
+    /** The position of the next element to write. */
+    private final AtomicLong m_tail = new AtomicLong();
+
+    /**
+     * Create a new ring buffer.
+     * @param capacity The capacity which is rounded up to the next power of
+     *        two, and to at least two as a single slot could not tell a
+     *        written element from a free slot.
+     */
+    public RingBuffer(final int capacity)
+    {
+        int size = 2;
+        while ( size < capacity )
+        {
+            size <<= 1;
+        }
+        m_elements = new AtomicReferenceArray(size);
+        m_sequences = new AtomicLongArray(size);
+        for ( int i = 0; i < size; i++ )
+        {
+            m_sequences.set(i, i);
+        }
+        m_mask = size - 1;
+    }
+
+    /**
+     * Append an element if the buffer is not full.
+     * @param element The element to append
+     * @return <code>true</code> if the element has been appended
+     */
+    public boolean offer(final Object element)
+    {
+        long pos = m_tail.get();
+        int index;
+        for(;;)
+        {
+            index = (int) pos & m_mask;
+            final long diff = m_sequences.get(index) - pos;
+            if ( diff == 0 )
+            {
+                if ( m_tail.compareAndSet(pos, pos + 1) )
+                {
+                    break;
+                }
+                pos = m_tail.get();
+            }
+            else if ( diff < 0 )
+            {
+                // the slot still holds an element from the previous round
+                return false;
+            }
+            else
+            {
+                pos = m_tail.get();
+            }
+        }
+        m_elements.set(index, element);
+        m_sequences.set(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest element.
+     * @return The element or <code>null</code> if the buffer is empty
+     */
+    public Object poll()
+    {
+        long pos = m_head.get();
+        int index;
+        for(;;)
+        {
+            index = (int) pos & m_mask;
+            final long diff = m_sequences.get(index) - (pos + 1);
+            if ( diff == 0 )
+            {
+                if ( m_head.compareAndSet(pos, pos + 1) )
+                {
+                    break;
+                }
+                pos = m_head.get();
+            }
+            else if ( diff < 0 )
+            {
+                // the slot has not been written yet
+                return null;
+            }
+            else
+            {
+                pos = m_head.get();
+            }
+        }
+        final Object element = m_elements.get(index);
+        m_elements.set(index, null);
+        m_sequences.set(index, pos + m_mask + 1);
+        return element;
+    }
+
+    /**
+     * Return the number of elements. This is only an estimate if the
+     * buffer is modified concurrently.
+     */
+    public int size()
+    {
+        final long size = m_tail.get() - m_head.get();
+        if ( size < 0 )
+        {
+            return 0;
+        }
+        return (int) Math.min(size, m_mask + 1);
+    }
+
+    /**
+     * Return whether the buffer is empty.
+     */
+    public boolean isEmpty()
+    {
+        return this.size() == 0;
+    }
+
+    /**
+     * Return the capacity.
+     */
+    public int capacity()
+    {
+        return m_mask + 1;
+    }
+}
@@ -61,6 +61,9 @@ public class SyncDeliverTasks
 
     private long timeout;
 
+    /** A thread local whose value is also set in the thread delivering the event. */
+    private volatile ThreadLocal inheritedContext;
+
     /**
      * Construct a new sync deliver tasks.
      * @param pool The thread pool used to spin-off new threads.
@@ -79,6 +82,17 @@ public class SyncDeliverTasks
         this.timeout = timeout;
     }
 
+    /**
+     * Set a thread local whose value in the calling thread is also set in
+     * the thread taken from the pool while it delivers an event, so the
+     * handler sees the same value as if it was called directly.
+     * @param context The thread local or <code>null</code>
+     */
+    public void setInheritedContext(final ThreadLocal context)
+    {
+        this.inheritedContext = context;
+    }
+
     /**
      * This method defines if a timeout handling should be used for the
      * task.
@@ -132,10 +146,17 @@ public class SyncDeliverTasks
                 {
                     final Rendezvous startBarrier = new Rendezvous();
                     final Rendezvous timerBarrier = new Rendezvous();
+                    final ThreadLocal context = this.inheritedContext;
+                    final Object value = (context != null ? context.get() : null);
                     this.pool.executeTask(new Runnable()
                     {
                         public void run()
                         {
+                            final Object previous = (context != null ? context.get() : null);
+                            if ( context != null )
+                            {
+                                context.set(value);
+                            }
                             try
                             {
                                 // notify the outer thread to start the timer
@@ -149,6 +170,13 @@ public class SyncDeliverTasks
                             {
                                 // this can happen on shutdown, so we ignore it
                             }
+                            finally
+                            {
+                                if ( context != null )
+                                {
+                                    context.set(previous);
+                                }
+                            }
                         }
                     });
                     // we wait for the inner thread to start
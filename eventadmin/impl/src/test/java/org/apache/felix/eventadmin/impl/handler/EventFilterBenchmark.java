@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+
+/**
+ * Measures the cost of selecting the handlers for an event against the
+ * number of handlers for its topic, comparing the {@link FilterIndex} used
+ * by the tracker with matching the filter of each handler. Most handlers
+ * filter on the same few properties. This is not run as part of the build;
+ * run it with the test class path using
+ * <tt>java org.apache.felix.eventadmin.impl.handler.EventFilterBenchmark [iterations]</tt>.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class EventFilterBenchmark
+{
+    private static final int[] HANDLER_COUNTS = { 10, 100, 500, 1000, 5000 };
+
+    private static final String TOPIC = "org/apache/felix/benchmark";
+
+    public static void main(String[] args) throws Exception
+    {
+        final int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+        final File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        final Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put("felix.service.urlhandlers", "false");
+        final Felix felix = new Felix(params);
+        felix.start();
+        try
+        {
+            final BundleContext context = felix.getBundleContext();
+            final EventHandlerTracker tracker = new EventHandlerTracker(context);
+            tracker.update(null, true);
+            tracker.open();
+
+            final Dictionary props = new Hashtable();
+            props.put("type", "type3");
+            props.put("region", "region1");
+            props.put("priority", new Integer(5));
+            final Event event = new Event(TOPIC, props);
+
+            System.out.println("handlers\tns/filter.match\tns/index\tmatching");
+            for (int c = 0; c < HANDLER_COUNTS.length; c++)
+            {
+                final int count = HANDLER_COUNTS[c];
+                final List registrations = register(context, count);
+                final Object[] proxies = tracker.getServices();
+
+                final int expected = tracker.getHandlers(event).size();
+                int matched = 0;
+                for (int i = 0; i < proxies.length; i++)
+                {
+                    if (((EventHandlerProxy) proxies[i]).canDeliver(event))
+                    {
+                        matched++;
+                    }
+                }
+                if (matched != expected)
+                {
+                    throw new IllegalStateException(
+                        "Index selected " + expected + " handlers instead of " + matched);
+                }
+
+                long start = 0;
+                long filterTime = 0;
+                long indexTime = 0;
+                // the first round is a warm up
+                for (int round = 0; round < 2; round++)
+                {
+                    start = System.nanoTime();
+                    for (int n = 0; n < iterations; n++)
+                    {
+                        for (int i = 0; i < proxies.length; i++)
+                        {
+                            ((EventHandlerProxy) proxies[i]).canDeliver(event);
+                        }
+                    }
+                    filterTime = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for (int n = 0; n < iterations; n++)
+                    {
+                        tracker.getHandlers(event);
+                    }
+                    indexTime = System.nanoTime() - start;
+                }
+                System.out.println(count + "\t\t" + (filterTime / iterations)
+                    + "\t\t" + (indexTime / iterations) + "\t\t" + expected);
+
+                for (int i = 0; i < registrations.size(); i++)
+                {
+                    ((ServiceRegistration) registrations.get(i)).unregister();
+                }
+            }
+            tracker.close();
+        }
+        finally
+        {
+            felix.stop();
+            felix.waitForStop(5000);
+        }
+    }
+
+    /**
+     * Register handlers using a mix of filters: most test the type and the
+     * region, some only the type and a few need the OSGi filter.
+     */
+    private static List register(final BundleContext context, final int count)
+    {
+        final EventHandler handler = new EventHandler()
+        {
+            public void handleEvent(final Event event)
+            {
+                // nothing to do
+            }
+        };
+        final List registrations = new ArrayList();
+        for (int i = 0; i < count; i++)
+        {
+            final String filter;
+            switch (i % 10)
+            {
+                case 0:
+                    filter = "(type=type" + (i % 20) + ")";
+                    break;
+                case 1:
+                    filter = "(&(type=type" + (i % 20) + ")(priority>=" + (i % 10) + "))";
+                    break;
+                default:
+                    filter = "(&(type=type" + (i % 20) + ")(region=region" + (i % 7) + "))";
+            }
+            final Dictionary props = new Hashtable();
+            props.put(EventConstants.EVENT_TOPIC, TOPIC);
+            props.put(EventConstants.EVENT_FILTER, filter);
+            registrations.add(context.registerService(EventHandler.class.getName(), handler, props));
+        }
+        return registrations;
+    }
+}
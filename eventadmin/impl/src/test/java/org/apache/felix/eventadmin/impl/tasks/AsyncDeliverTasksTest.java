@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.osgi.service.event.Event;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class AsyncDeliverTasksTest extends TestCase
+{
+    private static final long TIMEOUT = 5000;
+
+    private DefaultThreadPool syncPool;
+
+    private AsyncDeliverTasks asyncDeliverTasks;
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        syncPool = new DefaultThreadPool(2, true);
+        asyncDeliverTasks = new AsyncDeliverTasks(new SyncDeliverTasks(syncPool, TIMEOUT),
+                1, 1, AsyncDeliverTasks.POLICY_BLOCK);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        asyncDeliverTasks.close();
+        syncPool.close();
+        super.tearDown();
+    }
+
+    public void testPostFromHandlerCalledForTimeout() throws Exception
+    {
+        final int count = 5;
+        final List received = Collections.synchronizedList(new ArrayList());
+        final CountDownLatch done = new CountDownLatch(count);
+        final boolean[] blacklisted = new boolean[1];
+
+        final Collection inner = Collections.singletonList(new TestHandler(false)
+        {
+            public void sendEvent(final Event event)
+            {
+                received.add(event.getTopic());
+                done.countDown();
+            }
+        });
+        final Collection outer = Collections.singletonList(new TestHandler(true)
+        {
+            public void sendEvent(final Event event)
+            {
+                // runs in a thread of the timeout handling while the lane
+                // of this event is held by the thread waiting for it
+                for ( int i = 0; i < count; i++ )
+                {
+                    asyncDeliverTasks.execute(inner, createEvent("test/inner/" + i));
+                }
+            }
+
+            public void blackListHandler()
+            {
+                blacklisted[0] = true;
+            }
+        });
+
+        final long start = System.currentTimeMillis();
+        asyncDeliverTasks.execute(outer, createEvent("test/outer"));
+
+        assertTrue(done.await(TIMEOUT * 2, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+        assertFalse(blacklisted[0]);
+        for ( int i = 0; i < count; i++ )
+        {
+            assertEquals("test/inner/" + i, received.get(i));
+        }
+        assertEquals(0, asyncDeliverTasks.getBlockedPosts());
+    }
+
+    private static Event createEvent(final String topic)
+    {
+        return new Event(topic, (Dictionary) null);
+    }
+
+    private static class TestHandler extends EventHandlerProxy
+    {
+        private final boolean useTimeout;
+
+        public TestHandler(final boolean useTimeout)
+        {
+            super(null, null);
+            this.useTimeout = useTimeout;
+        }
+
+        public boolean useTimeout()
+        {
+            return useTimeout;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class RingBufferTest extends TestCase
+{
+    public void testCapacity()
+    {
+        assertEquals(2, new RingBuffer(1).capacity());
+        assertEquals(2, new RingBuffer(2).capacity());
+        assertEquals(4, new RingBuffer(3).capacity());
+        assertEquals(64, new RingBuffer(64).capacity());
+
+        final RingBuffer buffer = new RingBuffer(3);
+        for ( int i = 0; i < 4; i++ )
+        {
+            assertTrue(buffer.offer(new Integer(i)));
+        }
+        assertFalse(buffer.offer(new Integer(4)));
+        assertEquals(4, buffer.size());
+
+        assertEquals(new Integer(0), buffer.poll());
+        assertTrue(buffer.offer(new Integer(4)));
+        assertFalse(buffer.offer(new Integer(5)));
+
+        final RingBuffer smallest = new RingBuffer(1);
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertTrue(smallest.offer(new Integer(i)));
+            assertTrue(smallest.offer(new Integer(-i)));
+            assertFalse(smallest.offer(new Integer(i)));
+            assertEquals(new Integer(i), smallest.poll());
+            assertEquals(new Integer(-i), smallest.poll());
+            assertNull(smallest.poll());
+        }
+    }
+
+    public void testWraparound()
+    {
+        final RingBuffer buffer = new RingBuffer(4);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+
+        // go around the buffer many times with a varying fill level
+        int next = 0;
+        int expected = 0;
+        for ( int round = 0; round < 1000; round++ )
+        {
+            final int count = 1 + round % 4;
+            for ( int i = 0; i < count; i++ )
+            {
+                assertTrue(buffer.offer(new Integer(next++)));
+            }
+            assertEquals(count, buffer.size());
+            for ( int i = 0; i < count; i++ )
+            {
+                assertEquals(new Integer(expected++), buffer.poll());
+            }
+            assertTrue(buffer.isEmpty());
+            assertNull(buffer.poll());
+        }
+    }
+
+    public void testMultipleProducers() throws Exception
+    {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final RingBuffer buffer = new RingBuffer(16);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[producers];
+        for ( int p = 0; p < producers; p++ )
+        {
+            final int producer = p;
+            threads[p] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        return;
+                    }
+                    for ( int i = 0; i < perProducer; i++ )
+                    {
+                        final long element = ((long) producer << 32) | i;
+                        while ( !buffer.offer(new Long(element)) )
+                        {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+
+        // every element arrives exactly once and in order per producer
+        final int[] next = new int[producers];
+        for ( int received = 0; received < producers * perProducer; )
+        {
+            final Long element = (Long) buffer.poll();
+            if ( element == null )
+            {
+                Thread.yield();
+                continue;
+            }
+            final int producer = (int) (element.longValue() >>> 32);
+            assertEquals(next[producer]++, (int) element.longValue());
+            received++;
+        }
+        for ( int p = 0; p < producers; p++ )
+        {
+            threads[p].join();
+            assertEquals(perProducer, next[p]);
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -26,6 +26,7 @@ import java.security.ProtectionDomain;
 import java.util.*;
 
 import org.apache.felix.framework.cache.BundleArchive;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
 import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.util.SecurityManagerEx;
 import org.apache.felix.framework.util.StringMap;
@@ -60,6 +61,8 @@ class BundleImpl implements Bundle, BundleRevisions
     private final Map m_cachedHeaders = new HashMap();
     private Map m_uninstalledHeaders = null;
     private long m_cachedHeadersTimestamp;
+    // The revision created, but not yet installed, when loading the bundle.
+    private BundleRevisionImpl m_loadedRevision = null;
 
     // Indicates whether the bundle is stale, meaning that it has
     // been refreshed and completely removed from the framework.
@@ -84,6 +87,18 @@ class BundleImpl implements Bundle, BundleRevisions
     }
 
     BundleImpl(Felix felix, BundleArchive archive) throws Exception
+    {
+        this(felix, archive, true);
+    }
+
+    /**
+     * Creates a bundle for the given archive. If <tt>install</tt> is
+     * <tt>false</tt>, the revision is only created from the manifest of the
+     * archive without touching any global framework state, and it must be
+     * added later by calling <tt>installLoadedRevision()</tt>; this allows
+     * cached bundles to be loaded concurrently and installed one at a time.
+    **/
+    BundleImpl(Felix felix, BundleArchive archive, boolean install) throws Exception
     {
         __m_felix = felix;
         m_archive = archive;
@@ -93,7 +108,27 @@ class BundleImpl implements Bundle, BundleRevisions
         m_activator = null;
         m_context = null;
 
-        BundleRevision revision = createRevision();
+        if (install)
+        {
+            BundleRevision revision = createRevision();
+            addRevision(revision);
+        }
+        else
+        {
+            m_loadedRevision = parseRevision();
+        }
+    }
+
+    /**
+     * Adds the revision created by the constructor to the bundle and the
+     * global framework state; this must be called while holding the global
+     * lock.
+    **/
+    void installLoadedRevision() throws Exception
+    {
+        BundleRevisionImpl revision = m_loadedRevision;
+        m_loadedRevision = null;
+        checkSymbolicNameUnique(revision);
         addRevision(revision);
     }
 
@@ -1190,19 +1225,31 @@ class BundleImpl implements Bundle, BundleRevisions
     }
 
     private BundleRevision createRevision() throws Exception
+    {
+        BundleRevisionImpl revision = parseRevision();
+        checkSymbolicNameUnique(revision);
+        return revision;
+    }
+
+    private BundleRevisionImpl parseRevision() throws Exception
     {
         // Get and parse the manifest from the most recent revision and
         // create an associated revision object for it.
-        Map headerMap = m_archive.getCurrentRevision().getManifestHeader();
+        BundleArchiveRevision archiveRevision = m_archive.getCurrentRevision();
+        Map headerMap = archiveRevision.getManifestHeader();
 
         // Create the bundle revision instance.
-        BundleRevisionImpl revision = new BundleRevisionImpl(
+        return new BundleRevisionImpl(
             this,
             Long.toString(getBundleId())
                 + "." + m_archive.getCurrentRevisionNumber().toString(),
             headerMap,
-            m_archive.getCurrentRevision().getContent());
+            archiveRevision.getContent(),
+            archiveRevision);
+    }
 
+    private void checkSymbolicNameUnique(BundleRevisionImpl revision) throws Exception
+    {
         // For R4 bundles, verify that the bundle symbolic name + version
         // is unique unless this check has been disabled.
         String allowMultiple =
@@ -1237,8 +1284,6 @@ class BundleImpl implements Bundle, BundleRevisions
                 }
             }
         }
-
-        return revision;
     }
 
     synchronized ProtectionDomain getProtectionDomain()
@@ -28,10 +28,13 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
+import org.apache.felix.framework.cache.BytecodeCache;
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.manifestparser.ManifestCache;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.apache.felix.framework.util.manifestparser.R4Library;
 import org.osgi.framework.Bundle;
@@ -68,6 +71,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     private final List<String> m_activationExcludes;
 
     private final Bundle m_bundle;
+    private final BundleArchiveRevision m_archiveRevision;
 
     private Content m_content;
     private List<Content> m_contentPath;
@@ -90,6 +94,7 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     public BundleRevisionImpl(Bundle bundle, String id)
     {
         m_bundle = bundle;
+        m_archiveRevision = null;
         m_id = id;
         m_headerMap = null;
         m_content = null;
@@ -109,17 +114,29 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     BundleRevisionImpl(
         Bundle bundle, String id, Map headerMap, Content content)
         throws BundleException
+    {
+        this(bundle, id, headerMap, content, null);
+    }
+
+    BundleRevisionImpl(
+        Bundle bundle, String id, Map headerMap, Content content,
+        BundleArchiveRevision archiveRevision)
+        throws BundleException
     {
         m_bundle = bundle;
+        m_archiveRevision = archiveRevision;
         m_id = id;
         m_headerMap = headerMap;
         m_content = content;
 
-        ManifestParser mp = new ManifestParser(
+        // Reuse the parsed manifest stored in the bundle cache if the
+        // manifest is unchanged.
+        ManifestParser mp = ManifestCache.getManifestParser(
             ((BundleImpl) bundle).getFramework().getLogger(),
             ((BundleImpl) bundle).getFramework().getConfig(),
             this,
-            m_headerMap);
+            m_headerMap,
+            archiveRevision);
 
         // Record some of the parsed metadata. Note, if this is an extension
         // bundle it's exports are removed, since they will be added to the
@@ -340,6 +357,12 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         return m_content;
     }
 
+    BytecodeCache getBytecodeCache()
+    {
+        return (m_archiveRevision != null)
+            ? m_archiveRevision.getBytecodeCache() : null;
+    }
+
     synchronized void resetContent(Content content)
     {
         m_content = content;
@@ -24,6 +24,7 @@ import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.AccessController;
+import java.security.MessageDigest;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.SecureClassLoader;
@@ -40,6 +41,10 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.felix.framework.cache.BytecodeCache;
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -141,6 +146,23 @@ public class BundleWiringImpl implements BundleWiring
     // Thread local to detect class loading cycles.
     private final ThreadLocal m_cycleCheck = new ThreadLocal();
 
+    // Bounded caches of the outcome of class and resource lookups by name;
+    // null if disabled or if this wiring was disposed.
+    private volatile LookupCache m_classLookups;
+    private volatile LookupCache m_resourceLookups;
+    // Whether the host or any fragment declares dynamic imports; dynamic
+    // imports added by weaving hooks are in m_wovenReqs.
+    private final boolean m_hasDynamicImports;
+    // The weaving hook digest last passed to getBytecodeKey() and the key.
+    private volatile Object[] m_bytecodeKey;
+    // Marks a cached lookup that did not find anything.
+    private static final Object NOT_FOUND = new Object();
+    // Counts per thread the lookups whose outcome does not only depend on
+    // the wirings involved, because they ran into a class loading cycle,
+    // reached the dynamic imports or were answered by implicit boot
+    // delegation; such outcomes must not be cached.
+    private static final ThreadLocal<int[]> m_volatileLookups = new ThreadLocal<int[]>();
+
     // Thread local to keep track of deferred activation.
     private static final ThreadLocal m_deferredActivation = new ThreadLocal();
 
@@ -250,6 +272,13 @@ public class BundleWiringImpl implements BundleWiring
             }
         }
         m_resolvedReqs = ImmutableList.newInstance(reqList);
+        boolean hasDynamicImports = false;
+        for (BundleRequirement req : reqList)
+        {
+            hasDynamicImports = hasDynamicImports
+                || "dynamic".equals(req.getDirectives().get(Constants.RESOLUTION_DIRECTIVE));
+        }
+        m_hasDynamicImports = hasDynamicImports;
 
         // Calculate resolved list of capabilities, which includes:
         // 1. All capabilities from host and any fragments except for exported
@@ -429,6 +458,25 @@ public class BundleWiringImpl implements BundleWiring
         m_useLocalURLs =
             (m_configMap.get(FelixConstants.USE_LOCALURLS_PROP) == null)
                 ? false : true;
+
+        int lookupCacheSize = FelixConstants.LOOKUP_CACHE_SIZE_DEFAULT;
+        try
+        {
+            Object size = m_configMap.get(FelixConstants.LOOKUP_CACHE_SIZE_PROP);
+            if (size != null)
+            {
+                lookupCacheSize = Integer.parseInt(size.toString().trim());
+            }
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and use the default size.
+        }
+        if (lookupCacheSize > 0)
+        {
+            m_classLookups = new LookupCache(lookupCacheSize);
+            m_resourceLookups = new LookupCache(lookupCacheSize);
+        }
     }
 
     private static List<List<String>> parsePkgFilters(BundleCapability cap, String filtername)
@@ -466,6 +514,8 @@ public class BundleWiringImpl implements BundleWiring
             }
         }
         m_classLoader = null;
+        m_classLookups = null;
+        m_resourceLookups = null;
         m_isDisposed = true;
     }
 
@@ -488,6 +538,49 @@ public class BundleWiringImpl implements BundleWiring
         return m_fragmentContents;
     }
 
+    /**
+     * Returns the key of classes of this wiring in the byte code cache of the
+     * revision, which identifies the given weaving hooks and the attached
+     * fragments.
+     * @param hookDigest the digest of the weaving hooks.
+     * @return the key or <tt>null</tt> if it cannot be calculated.
+    **/
+    private byte[] getBytecodeKey(byte[] hookDigest)
+    {
+        if (hookDigest == null)
+        {
+            return null;
+        }
+        Object[] cached = m_bytecodeKey;
+        if ((cached != null) && (cached[0] == hookDigest))
+        {
+            return (byte[]) cached[1];
+        }
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(hookDigest);
+            for (int i = 0; (m_fragments != null) && (i < m_fragments.size()); i++)
+            {
+                BundleRevision fragment = m_fragments.get(i);
+                digest.update(String.valueOf(fragment.getSymbolicName()
+                    + ' ' + fragment.getVersion()
+                    + ' ' + fragment.getBundle().getLastModified())
+                    .getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            byte[] key = digest.digest();
+            m_bytecodeKey = new Object[] { hookDigest, key };
+            return key;
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_DEBUG, "Unable to identify fragments.", ex);
+            return null;
+        }
+    }
+
     public boolean isCurrent()
     {
         BundleRevision current = getBundle().adapt(BundleRevision.class);
@@ -629,6 +722,44 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+
+        // The new import may change the outcome of cached lookups.
+        clearLookupCache(m_classLookups);
+        clearLookupCache(m_resourceLookups);
+    }
+
+    private static void clearLookupCache(LookupCache cache)
+    {
+        if (cache != null)
+        {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns how many class and resource lookups of this wiring were
+     * answered from its lookup caches.
+     * @return The number of lookup cache hits.
+    **/
+    long getLookupCacheHits()
+    {
+        LookupCache classLookups = m_classLookups;
+        LookupCache resourceLookups = m_resourceLookups;
+        return ((classLookups == null) ? 0 : classLookups.getHits())
+            + ((resourceLookups == null) ? 0 : resourceLookups.getHits());
+    }
+
+    /**
+     * Returns how many class and resource lookups of this wiring had to be
+     * searched, because their outcome was not cached.
+     * @return The number of lookup cache misses.
+    **/
+    long getLookupCacheMisses()
+    {
+        LookupCache classLookups = m_classLookups;
+        LookupCache resourceLookups = m_resourceLookups;
+        return ((classLookups == null) ? 0 : classLookups.getMisses())
+            + ((resourceLookups == null) ? 0 : resourceLookups.getMisses());
     }
 
     public BundleRevision getResource()
@@ -1431,6 +1562,63 @@ public class BundleWiringImpl implements BundleWiring
 
     private Object findClassOrResourceByDelegation(String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
+    {
+        LookupCache cache = (isClass) ? m_classLookups : m_resourceLookups;
+        if (cache == null)
+        {
+            return searchClassOrResourceByDelegation(name, isClass);
+        }
+
+        Object result = cache.get(name);
+        if (result != null)
+        {
+            if (result != NOT_FOUND)
+            {
+                return result;
+            }
+            if (isClass)
+            {
+                throw new ClassNotFoundException(
+                    name + " not found by " + this.getBundle());
+            }
+            throw new ResourceNotFoundException(
+                name + " not found by " + this.getBundle());
+        }
+
+        int[] volatileLookups = m_volatileLookups.get();
+        if (volatileLookups == null)
+        {
+            volatileLookups = new int[1];
+            m_volatileLookups.set(volatileLookups);
+        }
+        int count = volatileLookups[0];
+        int generation = cache.getGeneration();
+        try
+        {
+            result = searchClassOrResourceByDelegation(name, isClass);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            result = NOT_FOUND;
+            throw ex;
+        }
+        catch (ResourceNotFoundException ex)
+        {
+            result = NOT_FOUND;
+            throw ex;
+        }
+        finally
+        {
+            if ((result != null) && (volatileLookups[0] == count))
+            {
+                cache.put(name, result, generation);
+            }
+        }
+        return result;
+    }
+
+    private Object searchClassOrResourceByDelegation(String name, boolean isClass)
+        throws ClassNotFoundException, ResourceNotFoundException
     {
         Object result = null;
 
@@ -1522,6 +1710,7 @@ public class BundleWiringImpl implements BundleWiring
             // If a cycle is detected, we should return null to break the
             // cycle. This should only ever be return to internal class
             // loading code and not to the actual instigator of the class load.
+            markVolatileLookup();
             return null;
         }
 
@@ -1542,6 +1731,15 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
+    private static void markVolatileLookup()
+    {
+        int[] volatileLookups = m_volatileLookups.get();
+        if (volatileLookups != null)
+        {
+            volatileLookups[0]++;
+        }
+    }
+
     private Object searchImports(String pkgName, String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
@@ -1604,7 +1802,13 @@ public class BundleWiringImpl implements BundleWiring
     {
         // At this point, the module's imports were searched and so was the
         // the module's content. Now we make an attempt to load the
-        // class/resource via a dynamic import, if possible.
+        // class/resource via a dynamic import, if possible. The outcome
+        // of dynamic imports depends on the other bundles, so don't cache it.
+        // Weaving hooks may add dynamic imports after the wiring was created.
+        if (m_hasDynamicImports || (m_wovenReqs != null))
+        {
+            markVolatileLookup();
+        }
         BundleRevision provider = null;
         try
         {
@@ -1658,9 +1862,10 @@ public class BundleWiringImpl implements BundleWiring
             final Class[] classes = m_sm.getClassContext();
             try
             {
+                Object result;
                 if (System.getSecurityManager() != null)
                 {
-                    return AccessController
+                    result = AccessController
                         .doPrivileged(new PrivilegedExceptionAction()
                         {
                             public Object run() throws Exception
@@ -1672,8 +1877,19 @@ public class BundleWiringImpl implements BundleWiring
                 }
                 else
                 {
-                    return doImplicitBootDelegation(classes, name, isClass);
+                    result = doImplicitBootDelegation(classes, name, isClass);
+                }
+
+                // The outcome depends on the caller if the parent class
+                // loader can see the class or resource, in which case it
+                // must not be cached; if the parent cannot see it, this
+                // lookup fails for every caller.
+                if ((result != null)
+                    || ((m_classLookups != null) && isVisibleToParent(name, isClass)))
+                {
+                    markVolatileLookup();
                 }
+                return result;
             }
             catch (PrivilegedActionException ex)
             {
@@ -1691,6 +1907,51 @@ public class BundleWiringImpl implements BundleWiring
         return null;
     }
 
+    private boolean isVisibleToParent(final String name, final boolean isClass)
+    {
+        try
+        {
+            if (System.getSecurityManager() != null)
+            {
+                return ((Boolean) AccessController.doPrivileged(
+                    new PrivilegedExceptionAction()
+                    {
+                        public Object run() throws Exception
+                        {
+                            return Boolean.valueOf(
+                                isVisibleToParentInternal(name, isClass));
+                        }
+                    })).booleanValue();
+            }
+            return isVisibleToParentInternal(name, isClass);
+        }
+        catch (Throwable th)
+        {
+            // Assume the worst, so the outcome is not cached.
+            return true;
+        }
+    }
+
+    private boolean isVisibleToParentInternal(String name, boolean isClass)
+        throws ClassNotFoundException
+    {
+        ClassLoader parent =
+            BundleRevisionImpl.getSecureAction().getClassLoader(this.getClass());
+        if (isClass)
+        {
+            try
+            {
+                parent.loadClass(name);
+                return true;
+            }
+            catch (ClassNotFoundException ex)
+            {
+                return false;
+            }
+        }
+        return (parent.getResource(name) != null);
+    }
+
     private Object doImplicitBootDelegation(Class[] classes, String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
@@ -2008,6 +2269,33 @@ public class BundleWiringImpl implements BundleWiring
 
                 byte[] bytes = null;
 
+                Felix felix = ((BundleImpl) m_wiring.m_revision.getBundle()).getFramework();
+                Set<ServiceReference<WeavingHook>> hooks = null;
+
+                // Use the byte code stored in the cache for the current
+                // weaving hooks, if any, instead of reading and weaving
+                // the class again. On Android classes are loaded from the
+                // dex file of the content they are found in instead, so
+                // the cache is not used there.
+                BytecodeCache bytecodeCache = (m_jarContentToDexFile == null)
+                    ? m_wiring.m_revision.getBytecodeCache() : null;
+                byte[] bytecodeKey = null;
+                BytecodeCache.Entry cached = null;
+                if (bytecodeCache != null)
+                {
+                    hooks = felix.getHooks(WeavingHook.class);
+                    bytecodeKey = m_wiring.getBytecodeKey(
+                        felix.getWeavingHookDigest(hooks));
+                    if (bytecodeKey != null)
+                    {
+                        cached = bytecodeCache.get(name, bytecodeKey);
+                        if (cached != null)
+                        {
+                            bytes = cached.getBytes();
+                        }
+                    }
+                }
+
                 // Check the bundle class path.
                 List<Content> contentPath = m_wiring.m_revision.getContentPath();
                 Content content = null;
@@ -2026,16 +2314,18 @@ public class BundleWiringImpl implements BundleWiring
 
                     // Get weaving hooks and invoke them to give them a
                     // chance to weave the class' byte code before we
-                    // define it.
+                    // define it, unless the woven class was found in the
+                    // cache.
                     // NOTE: We don't try to dynamically track hook addition
                     // or removal, we just get a snapshot and leave any changes
                     // as a race condition, doing any necessary clean up in
                     // the error handling.
-                    Felix felix = ((BundleImpl) m_wiring.m_revision.getBundle()).getFramework();
-                    Set<ServiceReference<WeavingHook>> hooks =
-                        felix.getHooks(WeavingHook.class);
+                    if ((hooks == null) && (cached == null))
+                    {
+                        hooks = felix.getHooks(WeavingHook.class);
+                    }
                     WovenClassImpl wci = null;
-                    if (!hooks.isEmpty())
+                    if ((cached == null) && !hooks.isEmpty())
                     {
                         // Create woven class to be used for hooks.
                         wci = new WovenClassImpl(name, m_wiring, bytes);
@@ -2132,7 +2422,13 @@ public class BundleWiringImpl implements BundleWiring
                             {
                                 bytes = wovenBytes = wci._getBytes();
                                 wovenImports = wci.getDynamicImportsInternal();
-
+                            }
+                            else if (cached != null)
+                            {
+                                wovenImports = cached.getDynamicImports();
+                            }
+                            if (wovenImports != null)
+                            {
                                 // Try to add any woven dynamic imports, since they
                                 // could potentially be needed when defining the class.
                                 List<BundleRequirement> allWovenReqs =
@@ -2194,6 +2490,10 @@ public class BundleWiringImpl implements BundleWiring
                                             allWovenReqs.addAll(0, m_wiring.m_wovenReqs);
                                         }
                                         m_wiring.m_wovenReqs = allWovenReqs;
+                                        // Lookups that failed before may now
+                                        // succeed via the woven imports.
+                                        clearLookupCache(m_wiring.m_classLookups);
+                                        clearLookupCache(m_wiring.m_resourceLookups);
                                     }
                                 }
                             }
@@ -2285,6 +2585,11 @@ public class BundleWiringImpl implements BundleWiring
                                 }
 
                                 wovenClass = clazz;
+
+                                if ((bytecodeKey != null) && (cached == null))
+                                {
+                                    bytecodeCache.put(name, bytecodeKey, bytes, wovenImports);
+                                }
                             }
 
                             // At this point if we have a trigger class, then the deferred
@@ -2532,6 +2837,79 @@ public class BundleWiringImpl implements BundleWiring
         return url;
     }
 
+    // Bounded map of lookup outcomes, which is safe to use without locking.
+    // When it is full, an arbitrary entry is evicted, which avoids the
+    // shared bookkeeping a least recently used order would need on every hit.
+    // Clearing the map starts a new generation, so the outcome of a lookup
+    // that started before is not cached.
+    private static class LookupCache
+    {
+        private final Map<String, Object> m_map =
+            new ConcurrentHashMap<String, Object>();
+        private final AtomicInteger m_generation = new AtomicInteger();
+        private final int m_maxSize;
+        private final AtomicLong m_hits = new AtomicLong();
+        private final AtomicLong m_misses = new AtomicLong();
+
+        LookupCache(int maxSize)
+        {
+            m_maxSize = maxSize;
+        }
+
+        Object get(String name)
+        {
+            Object result = m_map.get(name);
+            if (result != null)
+            {
+                m_hits.incrementAndGet();
+            }
+            else
+            {
+                m_misses.incrementAndGet();
+            }
+            return result;
+        }
+
+        int getGeneration()
+        {
+            return m_generation.get();
+        }
+
+        void put(String name, Object result, int generation)
+        {
+            if (m_map.size() >= m_maxSize)
+            {
+                Iterator<String> it = m_map.keySet().iterator();
+                if (it.hasNext())
+                {
+                    it.next();
+                    it.remove();
+                }
+            }
+            m_map.put(name, result);
+            if (m_generation.get() != generation)
+            {
+                m_map.remove(name);
+            }
+        }
+
+        void clear()
+        {
+            m_generation.incrementAndGet();
+            m_map.clear();
+        }
+
+        long getHits()
+        {
+            return m_hits.get();
+        }
+
+        long getMisses()
+        {
+            return m_misses.get();
+        }
+    }
+
     private static class ResourceSource implements Comparable<ResourceSource>
     {
         public final String m_resource;
@@ -23,6 +23,12 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
 import org.apache.felix.framework.cache.BundleArchive;
@@ -31,7 +37,9 @@ import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.resolver.ResolveException;
+import org.apache.felix.framework.util.DaemonThreadFactory;
 import org.apache.felix.framework.util.EventDispatcher;
+import org.apache.felix.framework.util.EventQueueStatistics;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ListenerInfo;
 import org.apache.felix.framework.util.MapToDictionary;
@@ -67,6 +75,7 @@ import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleRevisions;
+import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.framework.wiring.FrameworkWiring;
 import org.osgi.service.packageadmin.ExportedPackage;
@@ -82,6 +91,8 @@ public class Felix extends BundleImpl implements Framework
     // Framework wiring object.
     private final FrameworkWiringImpl m_fwkWiring;
     private final FrameworkStartLevelImpl m_fwkStartLevel;
+    // Framework metrics object.
+    private final FrameworkMetrics m_fwkMetrics;
 
     // Logging related member variables.
     private final Logger m_logger;
@@ -224,6 +235,16 @@ public class Felix extends BundleImpl implements Framework
      *       sets an upper limit on how many files the cache will open. The default
      *       value is zero, which means there is no limit.
      *   </li>
+     *   <li><tt>felix.cache.mmap</tt> - If set to <tt>true</tt>, bundle JAR
+     *       files are memory mapped and their entries are looked up using an
+     *       in-memory index of the central directory, instead of being opened
+     *       as zip files. Mapped files do not count against the file limit.
+     *       JAR files that cannot be mapped are opened as zip files. This
+     *       property is ignored on Windows, where a mapped file cannot be
+     *       deleted until the mapping is garbage collected, which would
+     *       prevent updated and uninstalled bundles from being removed from
+     *       the cache. The default value is <tt>false</tt>.
+     *   </li>
      *   <li><tt>felix.cache.locking</tt> - Enables or disables bundle cache locking,
      *       which is used to prevent concurrent access to the bundle cache. This is
      *       enabled by default, but on older/smaller JVMs file channel locking is
@@ -234,6 +255,29 @@ public class Felix extends BundleImpl implements Framework
      *       string provides control over the size of the internal buffer of the
      *       disk cache for performance reasons.
      *   </li>
+     *   <li><tt>felix.cache.manifest</tt> - Enables or disables storing the
+     *       parsed capabilities and requirements of each bundle revision in
+     *       the cache, so they are not parsed from an unchanged manifest
+     *       again when the framework restarts. The default value is
+     *       <tt>true</tt>.
+     *   </li>
+     *   <li><tt>felix.cache.bytecode</tt> - Enables or disables storing the
+     *       byte code of the classes defined from bundle JAR files, after
+     *       weaving, in the cache, so they are not read and woven again when
+     *       the framework restarts with unchanged bundles, weaving hooks and
+     *       fragments. Weaving hooks and woven class listeners are not called
+     *       for classes defined from the cache. The default value is
+     *       <tt>false</tt>.
+     *   </li>
+     *   <li><tt>felix.cache.journal</tt> - Enables or disables keeping the
+     *       state of all cached bundles in a single journal file in the cache
+     *       directory instead of in each bundle archive directory. The default
+     *       value is <tt>false</tt>.
+     *   </li>
+     *   <li><tt>felix.cache.journal.flushdelay</tt> - Sets the time in
+     *       milliseconds for which bundle state changes are collected before
+     *       they are written to the journal; the default value is 100.
+     *   </li>
      *   <li><tt>org.osgi.framework.system.packages</tt> - Specifies a
      *       comma-delimited list of packages that should be exported via the
      *       System Bundle from the parent class loader. The framework will set
@@ -276,6 +320,38 @@ public class Felix extends BundleImpl implements Framework
      *   <li><tt>felix.startlevel.bundle</tt> - The default start level for
      *       newly installed bundles; the default value is 1.
      *   </li>
+     *   <li><tt>felix.startlevel.threads</tt> - The number of threads used
+     *       to start the bundles of a start level when the active start level
+     *       is raised. Bundles of the same start level are then started
+     *       concurrently, while start levels are still processed in order. The
+     *       default value is 1, which starts bundles one at a time.
+     *   </li>
+     *   <li><tt>felix.events.threads</tt> - The number of threads used to
+     *       deliver asynchronous framework and bundle events. If set, every
+     *       bundle context gets its own ordered event queue and the queues are
+     *       drained by a pool of this size owned by the framework instance,
+     *       so a slow listener only delays its own bundle's events. The default
+     *       is to use a single dispatch thread shared by all framework instances.
+     *   </li>
+     *   <li><tt>felix.resolver.threads</tt> - The number of threads used by
+     *       the resolver to look up candidate providers and to check package
+     *       space consistency. The resulting wiring does not depend on this
+     *       value. It is ignored while resolver hooks are registered. The
+     *       default value is 1, which resolves on the calling thread only.
+     *   </li>
+     *   <li><tt>felix.cache.load.threads</tt> - The number of threads used
+     *       to load the cached bundles and parse their manifests when the
+     *       framework is initialized. The bundles are still installed one at
+     *       a time in bundle identifier order. The default value is 1, which
+     *       loads the bundles on the initializing thread.
+     *   </li>
+     *   <li><tt>felix.wiring.lookupcache.size</tt> - The maximum number of
+     *       class and of resource lookups whose outcome every bundle wiring
+     *       caches, so repeated loads of the same name skip the delegation
+     *       search. Lookups that reach dynamic imports or are answered by
+     *       implicit boot delegation are not cached. The default value is
+     *       zero, which disables the cache.
+     *   </li>
      *   <li><tt>felix.service.urlhandlers</tt> - Flag to indicate whether
      *       to activate the URL Handlers service for the framework instance;
      *       the default value is "<tt>true</tt>". Activating the URL Handlers
@@ -403,12 +479,24 @@ public class Felix extends BundleImpl implements Framework
         });
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        int eventThreads = 0;
+        try
+        {
+            s = getProperty(FelixConstants.EVENT_DISPATCH_THREADS_PROP);
+            eventThreads = (s == null) ? 0 : Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just use the shared dispatch thread.
+        }
+        m_dispatcher = new EventDispatcher(m_logger, m_registry, eventThreads);
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
         // Create framework start level object.
         m_fwkStartLevel = new FrameworkStartLevelImpl(this, m_registry);
+        // Create framework metrics object.
+        m_fwkMetrics = new FrameworkMetrics(this);
     }
 
     Logger getLogger()
@@ -494,6 +582,10 @@ public class Felix extends BundleImpl implements Framework
         {
             return (A) m_fwkStartLevel;
         }
+        else if (type == FrameworkMetrics.class)
+        {
+            return (A) m_fwkMetrics;
+        }
         return super.adapt(type);
     }
 
@@ -698,66 +790,90 @@ public class Felix extends BundleImpl implements Framework
                 // when we activate the system bundle and any subsequent system
                 // bundle activators passed into the framework constructor.
                 BundleArchive[] archives = null;
+                List<Future<BundleImpl>> loaded = null;
 
-                // First get cached bundle identifiers.
-                try
-                {
-                    archives = m_cache.getArchives();
-                }
-                catch (Exception ex)
-                {
-                    m_logger.log(Logger.LOG_ERROR, "Unable to list saved bundles.", ex);
-                    archives = null;
-                }
-
-                // Create system bundle activator and bundle context so we can activate it.
-                setActivator(new SystemBundleActivator());
-                setBundleContext(new BundleContextImpl(m_logger, this, this));
+                // If configured, load the archives and parse their manifests
+                // concurrently; the bundles are still installed one at a time
+                // in bundle identifier order below.
+                int loadThreads = getCacheLoadThreads();
+                ExecutorService loadExecutor = (loadThreads > 1)
+                    ? Executors.newFixedThreadPool(loadThreads, new DaemonThreadFactory("FelixCacheLoader"))
+                    : null;
 
-                // Now load all cached bundles.
-                for (int i = 0; (archives != null) && (i < archives.length); i++)
+                try
                 {
+                    // First get cached bundle identifiers.
                     try
                     {
-                        // Keep track of the max bundle ID currently in use since we
-                        // will need to use this as our next bundle ID value if the
-                        // persisted value cannot be read.
-                        m_nextId = Math.max(m_nextId, archives[i].getId() + 1);
-
-                        // It is possible that a bundle in the cache was previously
-                        // uninstalled, but not completely deleted (perhaps because
-                        // of a crash or a locked file), so if we see an archive
-                        // with an UNINSTALLED persistent state, then try to remove
-                        // it now.
-                        if (archives[i].getPersistentState() == Bundle.UNINSTALLED)
-                        {
-                            archives[i].closeAndDelete();
-                        }
-                        // Otherwise re-install the cached bundle.
-                        else
-                        {
-                            // Install the cached bundle.
-                            reloadBundle(archives[i]);
-                        }
+                        archives = m_cache.getArchives(loadExecutor);
                     }
                     catch (Exception ex)
                     {
-                        fireFrameworkEvent(FrameworkEvent.ERROR, this, ex);
+                        m_logger.log(Logger.LOG_ERROR, "Unable to list saved bundles.", ex);
+                        archives = null;
+                    }
+                    if ((loadExecutor != null) && (archives != null))
+                    {
+                        loaded = loadBundles(archives, loadExecutor);
+                    }
+
+                    // Create system bundle activator and bundle context so we can activate it.
+                    setActivator(new SystemBundleActivator());
+                    setBundleContext(new BundleContextImpl(m_logger, this, this));
+
+                    // Now load all cached bundles.
+                    for (int i = 0; (archives != null) && (i < archives.length); i++)
+                    {
                         try
                         {
-                            m_logger.log(
-                                Logger.LOG_ERROR,
-                                "Unable to re-install " + archives[i].getLocation(),
-                                ex);
+                            // Keep track of the max bundle ID currently in use since we
+                            // will need to use this as our next bundle ID value if the
+                            // persisted value cannot be read.
+                            m_nextId = Math.max(m_nextId, archives[i].getId() + 1);
+
+                            // It is possible that a bundle in the cache was previously
+                            // uninstalled, but not completely deleted (perhaps because
+                            // of a crash or a locked file), so if we see an archive
+                            // with an UNINSTALLED persistent state, then try to remove
+                            // it now.
+                            if (archives[i].getPersistentState() == Bundle.UNINSTALLED)
+                            {
+                                archives[i].closeAndDelete();
+                            }
+                            // Otherwise re-install the cached bundle.
+                            else
+                            {
+                                // Install the cached bundle.
+                                reloadBundle(archives[i],
+                                    (loaded != null) ? loaded.get(i) : null);
+                            }
                         }
-                        catch (Exception ex2)
+                        catch (Exception ex)
                         {
-                            m_logger.log(
-                                Logger.LOG_ERROR,
-                                "Unable to re-install cached bundle.",
-                                ex);
+                            fireFrameworkEvent(FrameworkEvent.ERROR, this, ex);
+                            try
+                            {
+                                m_logger.log(
+                                    Logger.LOG_ERROR,
+                                    "Unable to re-install " + archives[i].getLocation(),
+                                    ex);
+                            }
+                            catch (Exception ex2)
+                            {
+                                m_logger.log(
+                                    Logger.LOG_ERROR,
+                                    "Unable to re-install cached bundle.",
+                                    ex);
+                            }
+                            // TODO: FRAMEWORK - Perhaps we should remove the cached bundle?
                         }
-                        // TODO: FRAMEWORK - Perhaps we should remove the cached bundle?
+                    }
+                }
+                finally
+                {
+                    if (loadExecutor != null)
+                    {
+                        loadExecutor.shutdown();
                     }
                 }
 
@@ -767,6 +883,10 @@ public class Felix extends BundleImpl implements Framework
                 // keep the max value.
                 m_nextId = Math.max(m_nextId, loadNextId());
 
+                // Now that all cached bundles are installed, we can check if
+                // the wiring of the previous run can be reused.
+                m_resolver.loadResultCache(m_cache);
+
                 // The framework is now in its startup sequence.
                 setBundleStateAndNotify(this, Bundle.STARTING);
 
@@ -1208,6 +1328,16 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
+            // If we are raising the start level and more than one start
+            // level thread is configured, then start the bundles of each
+            // start level concurrently; otherwise process them one by one.
+            int threads = getStartLevelThreads();
+            if (!isLowering && (threads > 1))
+            {
+                startBundlesConcurrently(low, high, threads);
+                bundlesRemaining = false;
+            }
+
             // Process bundles and stop or start them accordingly.
             while (bundlesRemaining)
             {
@@ -1238,90 +1368,10 @@ public class Felix extends BundleImpl implements Framework
                 // Ignore the system bundle, since its start() and
                 // stop() methods get called explicitly in Felix.start()
                 // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
+                if ((tuple.m_bundle.getBundleId() != 0)
+                    && !processStartLevelTuple(tuple, isLowering))
                 {
-                    // Lock the current bundle.
-                    try
-                    {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
-                    }
-                    catch (IllegalStateException ex)
-                    {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
-                        {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
-                        }
-                        else
-                        {
-                            synchronized (m_startLevelBundles)
-                            {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
-                            }
-                        }
-                        continue;
-                    }
-
-                    try
-                    {
-                        // Start the bundle if necessary.
-                        // Note that we only attempt to start the bundle if
-                        // its start level is equal to the active start level,
-                        // which means we assume lower bundles are in the state
-                        // they should be in (i.e., we won't attempt to restart
-                        // them if they previously failed to start).
-                        if (!isLowering
-                            && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
-                        {
-                            try
-                            {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
-                            }
-                        }
-                        // Stop the bundle if necessary.
-                        else if (isLowering
-                            && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
-                        {
-                            try
-                            {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
-                            }
-                        }
-                    }
-                    finally
-                    {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
-                    }
+                    continue;
                 }
 
                 synchronized (m_startLevelBundles)
@@ -1358,6 +1408,338 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts or stops the bundle of the specified start level tuple as
+     * needed for the active start level. This method is only called by
+     * the start level thread or one of its worker threads, which means
+     * the caller does not hold any bundle locks.
+     * @param tuple The start level tuple to process.
+     * @param isLowering Whether the start level is being lowered.
+     * @return <tt>true</tt> if the tuple was processed and can be removed
+     *         from the start level bundle queue, <tt>false</tt> if the bundle
+     *         could not be locked and must be retried.
+    **/
+    private boolean processStartLevelTuple(StartLevelTuple tuple, boolean isLowering)
+    {
+        // Lock the current bundle.
+        try
+        {
+            acquireBundleLock(tuple.m_bundle,
+                Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                | Bundle.STARTING | Bundle.STOPPING);
+        }
+        catch (IllegalStateException ex)
+        {
+            // Ignore if the bundle has been uninstalled.
+            if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+            {
+                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                m_logger.log(tuple.m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error locking " + tuple.m_bundle._getLocation(), ex);
+                return false;
+            }
+            return true;
+        }
+
+        try
+        {
+            // Start the bundle if necessary.
+            // Note that we only attempt to start the bundle if
+            // its start level is equal to the active start level,
+            // which means we assume lower bundles are in the state
+            // they should be in (i.e., we won't attempt to restart
+            // them if they previously failed to start).
+            if (!isLowering
+                && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+// TODO: LAZY - Not sure if this is the best way...
+                    int options = Bundle.START_TRANSIENT;
+                    options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                        ? options | Bundle.START_ACTIVATION_POLICY
+                        : options;
+                    startBundle(tuple.m_bundle, options);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error starting " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+            // Stop the bundle if necessary.
+            else if (isLowering
+                && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+                    stopBundle(tuple.m_bundle, false);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error stopping " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+        }
+        finally
+        {
+            // Always release bundle lock.
+            releaseBundleLock(tuple.m_bundle);
+        }
+
+        return true;
+    }
+
+    /**
+     * Raises the active start level by starting the bundles of each start
+     * level concurrently on a bounded pool of worker threads. Start levels
+     * are still processed in ascending order; a start level is only
+     * considered done when all of its bundles have been processed. Within
+     * a start level, the bundles are first resolved together and a bundle
+     * is not started before any bundle of the same start level it is wired
+     * to that the sequential algorithm would have started before it.
+     * @param low The lowest start level to process.
+     * @param high The highest start level to process.
+     * @param threads The number of worker threads to use.
+    **/
+    private void startBundlesConcurrently(int low, int high, int threads)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(
+            threads, new DaemonThreadFactory(FrameworkStartLevelImpl.THREAD_NAME));
+        try
+        {
+            boolean bundlesRemaining = true;
+            while (bundlesRemaining)
+            {
+                // Take all tuples of the lowest remaining start level as
+                // the current batch and update the active start level.
+                List<StartLevelTuple> batch = new ArrayList<StartLevelTuple>();
+                synchronized (m_startLevelBundles)
+                {
+                    int level = m_startLevelBundles.first().m_level;
+                    if ((level >= low) && (level <= high))
+                    {
+                        m_activeStartLevel = level;
+                    }
+                    for (StartLevelTuple tuple : m_startLevelBundles)
+                    {
+                        if (tuple.m_level != level)
+                        {
+                            break;
+                        }
+                        batch.add(tuple);
+                    }
+                }
+
+                // Tuples whose bundle could not be locked stay queued, so
+                // they are retried with the next batch just like the start
+                // level thread retries them when starting sequentially.
+                batch.removeAll(startStartLevelBatch(batch, executor));
+
+                synchronized (m_startLevelBundles)
+                {
+                    m_startLevelBundles.removeAll(batch);
+                    bundlesRemaining = !m_startLevelBundles.isEmpty();
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Starts the bundles of a single start level batch on the specified
+     * executor and waits until all of them have been processed.
+     * @param batch The tuples of the start level to process.
+     * @param executor The executor to start the bundles on.
+     * @return The tuples whose bundle could not be locked and which must
+     *         be retried.
+    **/
+    private List<StartLevelTuple> startStartLevelBatch(
+        List<StartLevelTuple> batch, ExecutorService executor)
+    {
+        // Determine the tuples that actually need to be started; we
+        // ignore the system bundle for the same reason as the start
+        // level thread does.
+        List<StartLevelTuple> starts = new ArrayList<StartLevelTuple>();
+        List<Bundle> unresolved = new ArrayList<Bundle>();
+        for (StartLevelTuple tuple : batch)
+        {
+            if ((tuple.m_bundle.getBundleId() != 0)
+                && (tuple.m_level == m_activeStartLevel)
+                && ((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING)))
+            {
+                starts.add(tuple);
+                if (tuple.m_bundle.getState() == Bundle.INSTALLED)
+                {
+                    unresolved.add(tuple.m_bundle);
+                }
+            }
+        }
+
+        if (starts.isEmpty())
+        {
+            return Collections.<StartLevelTuple>emptyList();
+        }
+
+        // Resolve the whole batch up front on this thread, so the worker
+        // threads do not compete for the global lock while holding their
+        // bundle locks. Failures are ignored here, since they will be
+        // reported when the bundle is started.
+        if (!unresolved.isEmpty())
+        {
+            resolveBundles(unresolved);
+        }
+
+        // Create a completion latch for every bundle to be started, so
+        // bundles can wait for the providers they are wired to.
+        Map<Bundle, CountDownLatch> latches = new HashMap<Bundle, CountDownLatch>();
+        for (StartLevelTuple tuple : starts)
+        {
+            latches.put(tuple.m_bundle, new CountDownLatch(1));
+        }
+
+        final List<StartLevelTuple> retries =
+            Collections.synchronizedList(new ArrayList<StartLevelTuple>());
+
+        // Submit the tuples in start level order. A bundle only waits for
+        // providers that were submitted before it, which the pool will
+        // already have picked up, so waiting can never deadlock the pool.
+        Set<Bundle> submitted = new HashSet<Bundle>();
+        for (final StartLevelTuple tuple : starts)
+        {
+            final List<CountDownLatch> providers = new ArrayList<CountDownLatch>();
+            BundleWiring wiring = tuple.m_bundle.adapt(BundleWiring.class);
+            if (wiring != null)
+            {
+                for (BundleWire wire : wiring.getRequiredWires(null))
+                {
+                    Bundle provider = wire.getProviderWiring().getBundle();
+                    if (submitted.contains(provider))
+                    {
+                        providers.add(latches.get(provider));
+                    }
+                }
+            }
+            submitted.add(tuple.m_bundle);
+
+            final CountDownLatch latch = latches.get(tuple.m_bundle);
+            executor.execute(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        for (CountDownLatch provider : providers)
+                        {
+                            provider.await();
+                        }
+                        if (!processStartLevelTuple(tuple, false))
+                        {
+                            retries.add(tuple);
+                        }
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        m_logger.log(tuple.m_bundle,
+                            Logger.LOG_ERROR,
+                            "Interrupted while starting " + tuple.m_bundle._getLocation(), ex);
+                    }
+                    finally
+                    {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        // Wait until every bundle of the batch has been processed.
+        for (CountDownLatch latch : latches.values())
+        {
+            boolean interrupted = false;
+            while (true)
+            {
+                try
+                {
+                    latch.await();
+                    break;
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return retries;
+    }
+
+    /**
+     * Returns the number of threads used to start the bundles of a start
+     * level when raising the active start level.
+     * @return The number of start level threads; one means bundles are
+     *         started sequentially by the start level thread.
+    **/
+    private int getStartLevelThreads()
+    {
+        String s = (String) m_configMap.get(FelixConstants.STARTLEVEL_THREADS_PROP);
+
+        if (s != null)
+        {
+            try
+            {
+                int i = Integer.parseInt(s.trim());
+                return (i > 0) ? i : 1;
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and return the default value.
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the number of threads used to load the cached bundles when
+     * the framework is initialized.
+     * @return The number of cache load threads; one means cached bundles
+     *         are loaded sequentially by the initializing thread.
+    **/
+    private int getCacheLoadThreads()
+    {
+        String s = (String) m_configMap.get(FelixConstants.CACHE_LOAD_THREADS_PROP);
+
+        if (s != null)
+        {
+            try
+            {
+                int i = Integer.parseInt(s.trim());
+                return (i > 0) ? i : 1;
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and return the default value.
+            }
+        }
+        return 1;
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -1946,7 +2328,8 @@ public class Felix extends BundleImpl implements Framework
             // queued but processed synchronously.
             // Note: Don't queue starts from the start level thread, otherwise
             // we'd never get anything started.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            // Worker threads of the start level thread share its name prefix.
+            if (!Thread.currentThread().getName().startsWith(FrameworkStartLevelImpl.THREAD_NAME))
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -2749,11 +3132,38 @@ public class Felix extends BundleImpl implements Framework
         return (val == null) ? System.getProperty(key) : val;
     }
 
-    private Bundle reloadBundle(BundleArchive ba)
-        throws BundleException
+    /**
+     * Purges the given archives if necessary and creates their bundles
+     * concurrently, without installing them yet.
+     * @param archives The archives of the cached bundles.
+     * @param executor The executor to create the bundles with.
+     * @return The bundles being created, in the order of the archives; the
+     *         bundle of an uninstalled archive is <tt>null</tt>.
+    **/
+    private List<Future<BundleImpl>> loadBundles(
+        BundleArchive[] archives, ExecutorService executor)
     {
-        BundleImpl bundle = null;
+        List<Future<BundleImpl>> futures =
+            new ArrayList<Future<BundleImpl>>(archives.length);
+        for (final BundleArchive ba : archives)
+        {
+            futures.add(executor.submit(new Callable<BundleImpl>() {
+                public BundleImpl call() throws Exception
+                {
+                    if (ba.getPersistentState() == Bundle.UNINSTALLED)
+                    {
+                        return null;
+                    }
+                    purgeIfRemovalPending(ba);
+                    return new BundleImpl(Felix.this, ba, false);
+                }
+            }));
+        }
+        return futures;
+    }
 
+    private void purgeIfRemovalPending(BundleArchive ba)
+    {
         // Try to purge old revisions before installing;
         // this is done just in case a "refresh" didn't
         // occur last session...this would only be due to
@@ -2771,9 +3181,35 @@ public class Felix extends BundleImpl implements Framework
                 Logger.LOG_ERROR,
                 "Could not purge bundle.", ex);
         }
+    }
+
+    private Bundle reloadBundle(BundleArchive ba, Future<BundleImpl> loaded)
+        throws BundleException
+    {
+        BundleImpl bundle = null;
+
+        if (loaded == null)
+        {
+            purgeIfRemovalPending(ba);
+        }
 
         try
         {
+            // Wait for the concurrently created bundle before
+            // acquiring the global lock.
+            BundleImpl loadedBundle = null;
+            if (loaded != null)
+            {
+                try
+                {
+                    loadedBundle = loaded.get();
+                }
+                catch (ExecutionException ex)
+                {
+                    throw ex.getCause();
+                }
+            }
+
             // Acquire the global lock to create the bundle,
             // since this impacts the global state.
             boolean locked = acquireGlobalLock();
@@ -2784,7 +3220,15 @@ public class Felix extends BundleImpl implements Framework
             }
             try
             {
-                bundle = new BundleImpl(this, ba);
+                if (loadedBundle != null)
+                {
+                    bundle = loadedBundle;
+                    bundle.installLoadedRevision();
+                }
+                else
+                {
+                    bundle = new BundleImpl(this, ba);
+                }
 
                 // Extensions are handled as a special case.
                 if (bundle.isExtension())
@@ -3625,6 +4069,61 @@ public class Felix extends BundleImpl implements Framework
         return m_registry.getHooks(hookClass);
     }
 
+    // The weaving hooks last passed to getWeavingHookDigest() and their digest.
+    private volatile Object[] m_weavingHookDigest;
+
+    /**
+     * Returns a digest identifying the given weaving hooks across framework
+     * restarts by the symbolic name, version and last modification time of
+     * their bundles and their ranking, ignoring black listed hooks. It is
+     * part of the key of classes in the byte code cache.
+     * @param hooks the weaving hooks in ranking order.
+     * @return the digest or <tt>null</tt> if it cannot be calculated.
+    **/
+    byte[] getWeavingHookDigest(
+        Set<ServiceReference<org.osgi.framework.hooks.weaving.WeavingHook>> hooks)
+    {
+        List<ServiceReference> active = new ArrayList<ServiceReference>(hooks.size());
+        for (ServiceReference sr : hooks)
+        {
+            if (!isHookBlackListed(sr))
+            {
+                active.add(sr);
+            }
+        }
+        Object[] cached = m_weavingHookDigest;
+        if ((cached != null) && cached[0].equals(active))
+        {
+            return (byte[]) cached[1];
+        }
+
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (ServiceReference sr : active)
+            {
+                Bundle bundle = sr.getBundle();
+                if (bundle != null)
+                {
+                    digest.update(String.valueOf(bundle.getSymbolicName()
+                        + ' ' + bundle.getVersion()
+                        + ' ' + bundle.getLastModified()
+                        + ' ' + sr.getProperty(Constants.SERVICE_RANKING))
+                        .getBytes("UTF-8"));
+                }
+                digest.update((byte) 0);
+            }
+            byte[] result = digest.digest();
+            m_weavingHookDigest = new Object[] { active, result };
+            return result;
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_DEBUG, "Unable to identify weaving hooks.", ex);
+            return null;
+        }
+    }
+
     //
     // PackageAdmin related methods.
     //
@@ -4383,6 +4882,52 @@ public class Felix extends BundleImpl implements Framework
     // Event-related methods.
     //
 
+    List<EventQueueStatistics> getEventQueueStatistics()
+    {
+        return m_dispatcher.getQueueStatistics();
+    }
+
+    //
+    // Class loading statistics.
+    //
+
+    long getLookupCacheHits()
+    {
+        long hits = 0;
+        for (BundleWiringImpl wiring : getCurrentWirings())
+        {
+            hits += wiring.getLookupCacheHits();
+        }
+        return hits;
+    }
+
+    long getLookupCacheMisses()
+    {
+        long misses = 0;
+        for (BundleWiringImpl wiring : getCurrentWirings())
+        {
+            misses += wiring.getLookupCacheMisses();
+        }
+        return misses;
+    }
+
+    private List<BundleWiringImpl> getCurrentWirings()
+    {
+        List<BundleWiringImpl> wirings = new ArrayList<BundleWiringImpl>();
+        Bundle[] bundles = getBundles();
+        for (int i = 0; i < bundles.length; i++)
+        {
+            for (BundleRevision br : ((BundleImpl) bundles[i]).getRevisions())
+            {
+                if (br.getWiring() instanceof BundleWiringImpl)
+                {
+                    wirings.add((BundleWiringImpl) br.getWiring());
+                }
+            }
+        }
+        return wirings;
+    }
+
     /**
      * Fires bundle events.
     **/
@@ -4700,6 +5245,13 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
+            // Save the wiring of the remaining bundles, so it can be reused
+            // if they have not changed when the framework starts again.
+            m_resolver.saveResultCache(m_cache);
+
+            // Stop the resolver threads.
+            m_resolver.stop();
+
             // Dispose of the bundles to close their associated contents.
             bundles = getBundles();
             for (int i = 0; i < bundles.length; i++)
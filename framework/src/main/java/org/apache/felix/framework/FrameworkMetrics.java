@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.List;
+import org.apache.felix.framework.util.EventQueueStatistics;
+
+/**
+ * Gives access to runtime statistics of a framework instance. An instance
+ * is obtained by adapting the framework, i.e.
+ * <tt>framework.adapt(FrameworkMetrics.class)</tt>. The returned values are
+ * snapshots, which are not updated afterwards.
+**/
+public class FrameworkMetrics
+{
+    private final Felix m_felix;
+
+    FrameworkMetrics(Felix felix)
+    {
+        m_felix = felix;
+    }
+
+    /**
+     * Returns the state of the asynchronous event queues, which only exist
+     * if events are delivered by a pool of threads (see the
+     * <tt>felix.events.threads</tt> configuration property).
+     * @return The statistics of every bundle context's event queue.
+    **/
+    public List<EventQueueStatistics> getEventQueueStatistics()
+    {
+        return m_felix.getEventQueueStatistics();
+    }
+
+    /**
+     * Returns how many class and resource lookups of the current bundle
+     * wirings were answered from their lookup caches (see the
+     * <tt>felix.wiring.lookupcache.size</tt> configuration property).
+     * @return The number of lookup cache hits of the current wirings.
+    **/
+    public long getLookupCacheHits()
+    {
+        return m_felix.getLookupCacheHits();
+    }
+
+    /**
+     * Returns how many class and resource lookups of the current bundle
+     * wirings had to search the wiring, because their outcome was not cached.
+     * @return The number of lookup cache misses of the current wirings.
+    **/
+    public long getLookupCacheMisses()
+    {
+        return m_felix.getLookupCacheMisses();
+    }
+}
@@ -81,6 +81,17 @@ public class ResolveContextImpl extends ResolveContext
         return m_state.findProvidersInternal(m_resolverHookrecord, br, obeyMandatory);
     }
 
+    /**
+     * Returns whether findProviders() may be called from several threads at
+     * once. This is not the case if resolver hooks are involved, since they
+     * are not required to be thread safe.
+     * @return <tt>true</tt> if providers may be looked up concurrently.
+    **/
+    public boolean isThreadSafe()
+    {
+        return m_resolverHookrecord.m_resolverHooks.isEmpty();
+    }
+
     public int insertHostedCapability(List<BundleCapability> caps, HostedCapability hc)
     {
         int idx = Collections.binarySearch(caps, hc, new CandidateComparator());
@@ -0,0 +1,512 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.felix.framework.cache.BundleCache;
+import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.resolver.ResolverWireImpl;
+import org.apache.felix.framework.util.Util;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Caches the wires of the resolved bundle revisions across framework
+ * restarts. The wires are saved when the framework stops together with a
+ * fingerprint of everything the resolver depends on, which are the
+ * manifests of the installed bundles, the capabilities of the system bundle
+ * and the execution environment. If the fingerprint is unchanged when the
+ * framework restarts, revisions can be wired from the cache instead of
+ * being resolved again. Revisions which cannot be wired from the cache are
+ * left to the resolver.
+**/
+class ResolverResultCache
+{
+    private static final String CACHE_FILE = "resolver.cache";
+
+    private static final int CACHE_VERSION = 1;
+
+    private static final String[] FINGERPRINT_PROPS = new String[] {
+        Constants.FRAMEWORK_EXECUTIONENVIRONMENT,
+        Constants.FRAMEWORK_OS_NAME,
+        Constants.FRAMEWORK_OS_VERSION,
+        Constants.FRAMEWORK_PROCESSOR,
+        Constants.FRAMEWORK_LANGUAGE
+    };
+
+    // Maps the bundle identifier to the cached wires of its revision.
+    private final Map<Long, List<CachedWire>> m_wires;
+
+    private ResolverResultCache(Map<Long, List<CachedWire>> wires)
+    {
+        m_wires = wires;
+    }
+
+    /**
+     * Loads the result cache from the bundle cache.
+     * @param felix The framework instance.
+     * @param cache The bundle cache holding the result cache.
+     * @return The result cache or <tt>null</tt> if there is no cache or it was
+     *         saved for a different set of bundles or framework configuration.
+    **/
+    static ResolverResultCache load(Felix felix, BundleCache cache)
+    {
+        InputStream is = null;
+        try
+        {
+            File file = cache.getSystemBundleDataFile(CACHE_FILE);
+            is = Felix.m_secureAction.getFileInputStream(file);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            if ((in.readInt() != CACHE_VERSION)
+                || !in.readUTF().equals(getFingerprint(felix)))
+            {
+                felix.getLogger().log(
+                    Logger.LOG_DEBUG,
+                    "Resolver result cache is out of date.");
+                return null;
+            }
+
+            Map<Long, List<CachedWire>> wires = new HashMap<Long, List<CachedWire>>();
+            for (int revCount = in.readInt(); revCount > 0; revCount--)
+            {
+                long bundleId = in.readLong();
+                int wireCount = in.readInt();
+                List<CachedWire> list = new ArrayList<CachedWire>(wireCount);
+                for (int i = 0; i < wireCount; i++)
+                {
+                    list.add(new CachedWire(
+                        in.readLong(), in.readInt(), in.readLong(),
+                        in.readLong(), in.readInt()));
+                }
+                wires.put(new Long(bundleId), list);
+            }
+            return new ResolverResultCache(wires);
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Ignore this case because we assume that the framework was
+            // not stopped properly before or never started.
+        }
+        catch (Exception ex)
+        {
+            felix.getLogger().log(
+                Logger.LOG_WARNING,
+                "Unable to load resolver result cache.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (is != null) is.close();
+            }
+            catch (Exception ex)
+            {
+                felix.getLogger().log(
+                    Logger.LOG_WARNING,
+                    "Unable to close resolver result cache file.",
+                    ex);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Saves the wires of the current revisions of all installed bundles to
+     * the bundle cache.
+     * @param felix The framework instance.
+     * @param cache The bundle cache to hold the result cache.
+    **/
+    static void save(Felix felix, BundleCache cache)
+    {
+        OutputStream os = null;
+        try
+        {
+            Map<Long, List<CachedWire>> wires = new TreeMap<Long, List<CachedWire>>();
+            Bundle[] bundles = felix.getBundles();
+            for (int i = 0; i < bundles.length; i++)
+            {
+                if ((bundles[i].getBundleId() != 0)
+                    && !((BundleImpl) bundles[i]).isExtension())
+                {
+                    List<CachedWire> list = getCachedWires(
+                        bundles[i].adapt(BundleRevision.class));
+                    if (list != null)
+                    {
+                        wires.put(new Long(bundles[i].getBundleId()), list);
+                    }
+                }
+            }
+
+            File file = cache.getSystemBundleDataFile(CACHE_FILE);
+            os = Felix.m_secureAction.getFileOutputStream(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(getFingerprint(felix));
+            out.writeInt(wires.size());
+            for (Entry<Long, List<CachedWire>> entry : wires.entrySet())
+            {
+                out.writeLong(entry.getKey().longValue());
+                out.writeInt(entry.getValue().size());
+                for (CachedWire wire : entry.getValue())
+                {
+                    out.writeLong(wire.m_requirementBundleId);
+                    out.writeInt(wire.m_requirementIndex);
+                    out.writeLong(wire.m_providerBundleId);
+                    out.writeLong(wire.m_capabilityBundleId);
+                    out.writeInt(wire.m_capabilityIndex);
+                }
+            }
+            out.flush();
+        }
+        catch (Exception ex)
+        {
+            felix.getLogger().log(
+                Logger.LOG_WARNING,
+                "Unable to save resolver result cache.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (os != null) os.close();
+            }
+            catch (Exception ex)
+            {
+                felix.getLogger().log(
+                    Logger.LOG_WARNING,
+                    "Unable to close resolver result cache file.",
+                    ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the wires of the specified resolved revision in terms of bundle
+     * identifiers and indices into the declared requirements and capabilities.
+     * @param revision The revision whose wires should be returned.
+     * @return The wires or <tt>null</tt> if the revision is not resolved or
+     *         wired to revisions other than the current ones of their bundles.
+    **/
+    private static List<CachedWire> getCachedWires(BundleRevision revision)
+    {
+        BundleWiring wiring = revision.getWiring();
+        List<BundleWire> wires = (wiring != null) ? wiring.getRequiredWires(null) : null;
+        if (wires == null)
+        {
+            return null;
+        }
+
+        List<CachedWire> list = new ArrayList<CachedWire>(wires.size());
+        for (BundleWire wire : wires)
+        {
+            // Dynamic wires are created on demand, so they are not cached.
+            if ("dynamic".equals(wire.getRequirement().getDirectives()
+                .get(Constants.RESOLUTION_DIRECTIVE)))
+            {
+                continue;
+            }
+
+            BundleRevision reqRevision = wire.getRequirement().getRevision();
+            BundleRevision capRevision = wire.getCapability().getRevision();
+            int reqIdx = reqRevision.getDeclaredRequirements(null)
+                .indexOf(wire.getRequirement());
+            int capIdx = capRevision.getDeclaredCapabilities(null)
+                .indexOf(wire.getCapability());
+            if ((reqIdx < 0) || (capIdx < 0)
+                || !isCurrentRevision(reqRevision)
+                || !isCurrentRevision(capRevision)
+                || !isCurrentRevision(wire.getProvider()))
+            {
+                return null;
+            }
+            list.add(new CachedWire(
+                reqRevision.getBundle().getBundleId(), reqIdx,
+                wire.getProvider().getBundle().getBundleId(),
+                capRevision.getBundle().getBundleId(), capIdx));
+        }
+        return list;
+    }
+
+    /**
+     * Creates the wires of the specified revisions from the cache and removes
+     * them from the specified sets. The wires of unresolved revisions they
+     * are wired to and of fragments attached to them are created as well.
+     * Revisions which are not in the cache or are wired to a revision which
+     * is not in the cache remain in the sets.
+     * @param felix The framework instance.
+     * @param mandatory The mandatory revisions to resolve.
+     * @param optional The optional revisions to resolve.
+     * @return The map of revisions to their wires.
+    **/
+    Map<BundleRevision, List<ResolverWire>> getWireMap(
+        Felix felix, Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        Map<BundleRevision, List<ResolverWire>> wireMap =
+            new HashMap<BundleRevision, List<ResolverWire>>();
+        addWires(felix, mandatory, wireMap);
+        addWires(felix, optional, wireMap);
+
+        // Attach cached fragments to the hosts being resolved, which may
+        // in turn pull in more hosts of the fragments.
+        boolean repeat = !wireMap.isEmpty();
+        while (repeat)
+        {
+            repeat = false;
+            for (Long bundleId : m_wires.keySet())
+            {
+                BundleRevision fragment = getRevision(felix, bundleId.longValue());
+                if ((fragment != null) && Util.isFragment(fragment)
+                    && (fragment.getWiring() == null)
+                    && !wireMap.containsKey(fragment)
+                    && isAttachedToAny(felix, bundleId, wireMap)
+                    && addWires(felix, fragment, wireMap))
+                {
+                    repeat = true;
+                }
+            }
+        }
+        return wireMap;
+    }
+
+    private void addWires(
+        Felix felix, Set<BundleRevision> revisions,
+        Map<BundleRevision, List<ResolverWire>> wireMap)
+    {
+        for (Iterator<BundleRevision> it = revisions.iterator(); it.hasNext(); )
+        {
+            if (addWires(felix, it.next(), wireMap))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean addWires(
+        Felix felix, BundleRevision revision,
+        Map<BundleRevision, List<ResolverWire>> wireMap)
+    {
+        Map<BundleRevision, List<ResolverWire>> added =
+            new HashMap<BundleRevision, List<ResolverWire>>();
+        if (addWires(felix, revision, wireMap, added))
+        {
+            wireMap.putAll(added);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean addWires(
+        Felix felix, BundleRevision revision,
+        Map<BundleRevision, List<ResolverWire>> wireMap,
+        Map<BundleRevision, List<ResolverWire>> added)
+    {
+        if ((revision.getWiring() != null)
+            || wireMap.containsKey(revision) || added.containsKey(revision))
+        {
+            return true;
+        }
+
+        List<CachedWire> cachedWires =
+            m_wires.get(new Long(revision.getBundle().getBundleId()));
+        if ((cachedWires == null) || !isCurrentRevision(revision))
+        {
+            return false;
+        }
+
+        List<ResolverWire> wires = new ArrayList<ResolverWire>(cachedWires.size());
+        added.put(revision, wires);
+        for (CachedWire cachedWire : cachedWires)
+        {
+            BundleRevision reqRevision =
+                getRevision(felix, cachedWire.m_requirementBundleId);
+            BundleRevision provider =
+                getRevision(felix, cachedWire.m_providerBundleId);
+            BundleRevision capRevision =
+                getRevision(felix, cachedWire.m_capabilityBundleId);
+            if ((reqRevision == null) || (provider == null) || (capRevision == null))
+            {
+                return false;
+            }
+            List<BundleRequirement> reqs = reqRevision.getDeclaredRequirements(null);
+            List<BundleCapability> caps = capRevision.getDeclaredCapabilities(null);
+            if ((cachedWire.m_requirementIndex >= reqs.size())
+                || (cachedWire.m_capabilityIndex >= caps.size()))
+            {
+                return false;
+            }
+            BundleRequirement req = reqs.get(cachedWire.m_requirementIndex);
+
+            // Fragments are only attached to hosts resolved along with them.
+            if (req.getNamespace().equals(BundleRevision.HOST_NAMESPACE)
+                && (provider.getWiring() != null))
+            {
+                return false;
+            }
+            if (!addWires(felix, provider, wireMap, added))
+            {
+                return false;
+            }
+
+            wires.add(new ResolverWireImpl(
+                revision, req, provider, caps.get(cachedWire.m_capabilityIndex)));
+        }
+        return true;
+    }
+
+    private boolean isAttachedToAny(
+        Felix felix, Long fragmentId, Map<BundleRevision, List<ResolverWire>> wireMap)
+    {
+        for (CachedWire cachedWire : m_wires.get(fragmentId))
+        {
+            BundleRevision host = getRevision(felix, cachedWire.m_providerBundleId);
+            if ((host != null) && wireMap.containsKey(host))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BundleRevision getRevision(Felix felix, long bundleId)
+    {
+        Bundle bundle = felix.getBundle(bundleId);
+        return ((bundle != null) && (bundle.getState() != Bundle.UNINSTALLED))
+            ? bundle.adapt(BundleRevision.class) : null;
+    }
+
+    private static boolean isCurrentRevision(BundleRevision revision)
+    {
+        Bundle bundle = revision.getBundle();
+        return (bundle.getState() != Bundle.UNINSTALLED)
+            && (bundle.adapt(BundleRevision.class) == revision);
+    }
+
+    /**
+     * Calculates a digest of the manifests of the installed bundles, the
+     * capabilities of the system bundle and the framework properties which
+     * influence the resolver.
+     * @param felix The framework instance.
+     * @return The digest as hexadecimal string.
+    **/
+    private static String getFingerprint(Felix felix) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (int i = 0; i < FINGERPRINT_PROPS.length; i++)
+        {
+            update(digest, FINGERPRINT_PROPS[i]);
+            update(digest, felix.getConfig().get(FINGERPRINT_PROPS[i]));
+        }
+
+        Bundle[] bundles = felix.getBundles();
+        for (int i = 0; i < bundles.length; i++)
+        {
+            update(digest, new Long(bundles[i].getBundleId()));
+            BundleRevision revision = bundles[i].adapt(BundleRevision.class);
+            if (bundles[i].getBundleId() == 0)
+            {
+                for (BundleCapability cap : revision.getDeclaredCapabilities(null))
+                {
+                    update(digest, cap.getNamespace());
+                    update(digest, cap.getAttributes());
+                    update(digest, cap.getDirectives());
+                }
+            }
+            else
+            {
+                update(digest, ((BundleRevisionImpl) revision).getHeaders());
+            }
+        }
+
+        byte[] bytes = digest.digest();
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static void update(MessageDigest digest, Object value) throws Exception
+    {
+        // Maps are sorted and arrays converted, so the digest only
+        // depends on their contents.
+        if (value instanceof Map)
+        {
+            Map<Object, Object> map = new TreeMap<Object, Object>((Map) value);
+            for (Entry<Object, Object> entry : map.entrySet())
+            {
+                update(digest, entry.getKey());
+                update(digest, entry.getValue());
+            }
+        }
+        else if (value instanceof Object[])
+        {
+            update(digest, Arrays.asList((Object[]) value));
+        }
+        else
+        {
+            digest.update(String.valueOf(value).getBytes("UTF-8"));
+        }
+        digest.update((byte) 0);
+    }
+
+    private static class CachedWire
+    {
+        final long m_requirementBundleId;
+        final int m_requirementIndex;
+        final long m_providerBundleId;
+        final long m_capabilityBundleId;
+        final int m_capabilityIndex;
+
+        CachedWire(long requirementBundleId, int requirementIndex,
+            long providerBundleId, long capabilityBundleId, int capabilityIndex)
+        {
+            m_requirementBundleId = requirementBundleId;
+            m_requirementIndex = requirementIndex;
+            m_providerBundleId = providerBundleId;
+            m_capabilityBundleId = capabilityBundleId;
+            m_capabilityIndex = capabilityIndex;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.apache.felix.framework;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
@@ -34,19 +35,25 @@ import org.osgi.framework.wiring.BundleCapability;
 
 public class ServiceRegistry
 {
+    // CONCURRENCY: The lookup methods (getRegisteredServices(),
+    // getServiceReferences(), getServicesInUse(), getUsingBundles(), and
+    // getHooks()) do not lock the registry. All changes are made while
+    // holding the registry lock and only publish immutable arrays or sets
+    // through concurrent maps, so lookups see either the old or the new
+    // state of each change.
+
     private final Logger m_logger;
     private long m_currentServiceId = 1L;
     // Maps bundle to an array of service registrations.
-    private final Map m_regsMap = Collections.synchronizedMap(new HashMap());
+    private final Map m_regsMap = new ConcurrentHashMap();
     // Capability set for all service registrations.
     private final CapabilitySet m_regCapSet;
 
-    // Maps registration to thread to keep track when a
-    // registration is in use, which will cause other
-    // threads to wait.
-    private final Map m_lockedRegsMap = new HashMap();
-    // Maps bundle to an array of usage counts.
-    private final Map m_inUseMap = new HashMap();
+    // Maps bundle to an array of usage counts. The arrays are only replaced
+    // while holding the registry lock, which is needed when a bundle starts
+    // or stops using a service. Getting and ungetting a service the bundle
+    // already uses only locks its usage count.
+    private final Map m_inUseMap = new ConcurrentHashMap();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -65,8 +72,11 @@ public class ServiceRegistry
         org.osgi.service.url.URLStreamHandlerService.class,
         java.net.ContentHandler.class
     };
-    private final Map<Class<?>, Set<ServiceReference<?>>> m_allHooks =
-        new HashMap<Class<?>, Set<ServiceReference<?>>>();
+    // Maps hook class to a sorted set of hook references; both the map
+    // and the sets are copy on write, changes are guarded by m_hooksLock.
+    private volatile Map<Class<?>, SortedSet<ServiceReference<?>>> m_allHooks =
+        Collections.EMPTY_MAP;
+    private final Object m_hooksLock = new Object();
 
     public ServiceRegistry(Logger logger, ServiceRegistryCallbacks callbacks)
     {
@@ -133,15 +143,18 @@ public class ServiceRegistry
 
         synchronized (this)
         {
-            // Note that we don't lock the service registration here using
-            // the m_lockedRegsMap because we want to allow bundles to get
+            // Note that we don't lock the usage counts of the service
+            // registration here because we want to allow bundles to get
             // the service during the unregistration process. However, since
             // we do remove the registration from the service registry, no
             // new bundles will be able to look up the service.
 
             // Now remove the registered service.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
-            m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
+            if (regs != null)
+            {
+                m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
+            }
             m_regCapSet.removeCapability((BundleCapabilityImpl) reg.getReference());
         }
 
@@ -206,7 +219,7 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized List getServiceReferences(String className, SimpleFilter filter)
+    public List getServiceReferences(String className, SimpleFilter filter)
     {
         if ((className == null) && (filter == null))
         {
@@ -233,7 +246,7 @@ public class ServiceRegistry
         return new ArrayList(matches);
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
         UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
         if (usages != null)
@@ -250,94 +263,112 @@ public class ServiceRegistry
 
     public <S> S getService(Bundle bundle, ServiceReference<S> ref)
     {
-        UsageCount usage = null;
-        Object svcObj = null;
-
         // Get the service registration.
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-        synchronized (this)
+        UsageCount usage;
+        while (true)
         {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
+            // Get the usage count, if any; if we don't have a usage count,
+            // then create one as long as the registration is valid.
+            usage = getUsageCount(bundle, ref);
+            if (usage == null)
             {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
+                if (!reg.isValid())
                 {
-                    throw new ServiceException(
-                        "ServiceFactory.getService() resulted in a cycle.",
-                        ServiceException.FACTORY_ERROR,
-                        null);
+                    return null;
                 }
+                usage = addUsageCount(bundle, ref);
+            }
 
-                // Otherwise, wait for it to be freed.
-                try
+            synchronized (usage)
+            {
+                // First make sure that no existing operation is currently
+                // being performed by another thread on the usage count.
+                while (usage.m_thread != null)
                 {
-                    wait();
+                    // We don't allow cycles when we call out to the service factory.
+                    if (usage.m_thread == Thread.currentThread())
+                    {
+                        throw new ServiceException(
+                            "ServiceFactory.getService() resulted in a cycle.",
+                            ServiceException.FACTORY_ERROR,
+                            null);
+                    }
+
+                    // Otherwise, wait for it to be freed.
+                    try
+                    {
+                        usage.wait();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                    }
                 }
-                catch (InterruptedException ex)
+
+                // If the usage count was flushed in the meantime, then
+                // start over with a new one.
+                if (usage.m_flushed)
                 {
+                    continue;
                 }
-            }
-
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
-
-            // Make sure the service registration is still valid.
-            if (reg.isValid())
-            {
-                // Get the usage count, if any.
-                usage = getUsageCount(bundle, ref);
 
-                // If we don't have a usage count, then create one and
-                // since the spec says we increment usage count before
-                // actually getting the service object.
-                if (usage == null)
+                // Make sure the service registration is still valid.
+                if (!reg.isValid())
                 {
-                    usage = addUsageCount(bundle, ref);
+                    if (usage.m_count == 0)
+                    {
+                        flushUsageCount(bundle, usage);
+                    }
+                    return null;
                 }
 
-                // Increment the usage count and grab the already retrieved
-                // service object, if one exists.
+                // Increment the usage count, since the spec says we increment
+                // usage count before actually getting the service object,
+                // and return the already retrieved service object, if one
+                // exists.
                 usage.m_count++;
-                svcObj = usage.m_svcObj;
+                if (usage.m_svcObj != null)
+                {
+                    return (S) usage.m_svcObj;
+                }
+
+                // Lock the usage count.
+                usage.m_thread = Thread.currentThread();
+                break;
             }
         }
 
-        // If we have a usage count, but no service object, then we haven't
-        // cached the service object yet, so we need to create one now without
-        // holding the lock, since we will potentially call out to a service
-        // factory.
+        // We haven't cached the service object yet, so we need to create
+        // one now without holding the lock, since we will potentially call
+        // out to a service factory.
+        Object svcObj = null;
         try
         {
-            if ((usage != null) && (svcObj == null))
-            {
-                svcObj = reg.getService(bundle);
-            }
+            svcObj = reg.getService(bundle);
         }
         finally
         {
             // If we successfully retrieved a service object, then we should
             // cache it in the usage count. If not, we should flush the usage
-            // count. Either way, we need to unlock the service registration
-            // so that any threads waiting for it can continue.
-            synchronized (this)
+            // count. Either way, we need to unlock the usage count so that
+            // any threads waiting for it can continue.
+            synchronized (usage)
             {
                 // Before caching the service object, double check to see if
                 // the registration is still valid, since it may have been
                 // unregistered while we didn't hold the lock.
                 if (!reg.isValid() || (svcObj == null))
                 {
-                    flushUsageCount(bundle, ref);
+                    flushUsageCount(bundle, usage);
                 }
                 else
                 {
                     usage.m_svcObj = svcObj;
                 }
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                usage.m_thread = null;
+                usage.notifyAll();
             }
         }
 
@@ -346,18 +377,25 @@ public class ServiceRegistry
 
     public boolean ungetService(Bundle bundle, ServiceReference ref)
     {
-        UsageCount usage = null;
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-        synchronized (this)
+        // Get the usage count.
+        UsageCount usage = getUsageCount(bundle, ref);
+        // If there is no cached services, then just return immediately.
+        if (usage == null)
+        {
+            return false;
+        }
+
+        synchronized (usage)
         {
             // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
+            // being performed by another thread on the usage count.
+            while (usage.m_thread != null)
             {
                 // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
+                if (usage.m_thread == Thread.currentThread())
                 {
                     throw new IllegalStateException(
                         "ServiceFactory.ungetService() resulted in a cycle.");
@@ -366,61 +404,63 @@ public class ServiceRegistry
                 // Otherwise, wait for it to be freed.
                 try
                 {
-                    wait();
+                    usage.wait();
                 }
                 catch (InterruptedException ex)
                 {
                 }
             }
 
-            // Get the usage count.
-            usage = getUsageCount(bundle, ref);
-            // If there is no cached services, then just return immediately.
-            if (usage == null)
+            // If the usage count was flushed in the meantime or was only
+            // just created by a concurrent getService(), then the bundle
+            // does not use the service.
+            if (usage.m_flushed || (usage.m_count == 0))
             {
                 return false;
             }
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
+            // If the usage count will not go to zero, then simply
+            // decrement it, which is all there is to do.
+            if (usage.m_count > 1)
+            {
+                usage.m_count--;
+                if (!reg.isValid())
+                {
+                    usage.m_svcObj = null;
+                    flushUsageCount(bundle, usage);
+                }
+                return true;
+            }
+
+            // Lock the usage count.
+            usage.m_thread = Thread.currentThread();
         }
 
-        // If usage count will go to zero, then unget the service
+        // The usage count will go to zero, so unget the service
         // from the registration; we do this outside the lock
         // since this might call out to the service factory.
         try
         {
-            if (usage.m_count == 1)
-            {
-                // Remove reference from usages array.
-                ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
-                    .getRegistration().ungetService(bundle, usage.m_svcObj);
-            }
+            reg.ungetService(bundle, usage.m_svcObj);
         }
         finally
         {
-            // Finally, decrement usage count and flush if it goes to zero or
-            // the registration became invalid while we were not holding the
-            // lock. Either way, unlock the service registration so that any
-            // threads waiting for it can continue.
-            synchronized (this)
+            // Finally, decrement usage count and flush it, since it either
+            // went to zero or the registration became invalid while we were
+            // not holding the lock. Either way, unlock the usage count so
+            // that any threads waiting for it can continue.
+            synchronized (usage)
             {
                 // Decrement usage count, which spec says should happen after
                 // ungetting the service object.
                 usage.m_count--;
+                usage.m_svcObj = null;
+                flushUsageCount(bundle, usage);
 
-                // If the registration is invalid or the usage count has reached
-                // zero, then flush it.
-                if (!reg.isValid() || (usage.m_count <= 0))
-                {
-                    usage.m_svcObj = null;
-                    flushUsageCount(bundle, ref);
-                }
-
-                // Release the registration lock so any waiting threads can
+                // Release the usage count lock so any waiting threads can
                 // continue.
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                usage.m_thread = null;
+                usage.notifyAll();
             }
         }
 
@@ -463,7 +503,7 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
+    public Bundle[] getUsingBundles(ServiceReference ref)
     {
         Bundle[] bundles = null;
         for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
@@ -556,7 +596,7 @@ public class ServiceRegistry
 
     /**
      * Utility method to retrieve the specified bundle's usage count for the
-     * specified service reference.
+     * specified service reference. This does not lock the registry.
      * @param bundle The bundle whose usage counts are being searched.
      * @param ref The service reference to find in the bundle's usage counts.
      * @return The associated usage count or null if not found.
@@ -576,19 +616,24 @@ public class ServiceRegistry
 
     /**
      * Utility method to update the specified bundle's usage count array to
-     * include the specified service. This method should only be called
-     * to add a usage count for a previously unreferenced service. If the
-     * service already has a usage count, then the existing usage count
-     * counter simply needs to be incremented.
+     * include the specified service. If another thread added a usage count
+     * for the service in the meantime, then that usage count is returned.
+     * The counter of the returned usage count is not incremented.
      * @param bundle The bundle acquiring the service.
      * @param ref The service reference of the acquired service.
-     * @param svcObj The service object of the acquired service.
+     * @return The usage count of the bundle for the service.
     **/
-    private UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
+    private synchronized UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
     {
+        UsageCount usage = getUsageCount(bundle, ref);
+        if (usage != null)
+        {
+            return usage;
+        }
+
         UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
 
-        UsageCount usage = new UsageCount();
+        usage = new UsageCount();
         usage.m_ref = ref;
 
         if (usages == null)
@@ -609,23 +654,24 @@ public class ServiceRegistry
     }
 
     /**
-     * Utility method to flush the specified bundle's usage count for the
-     * specified service reference. This should be called to completely
-     * remove the associated usage count object for the specified service
-     * reference. If the goal is to simply decrement the usage, then get
-     * the usage count and decrement its counter. This method will also
-     * remove the specified bundle from the "in use" map if it has no more
-     * usage counts after removing the usage count for the specified service
-     * reference.
+     * Utility method to flush the specified bundle's usage count. This
+     * should be called to completely remove the usage count object; if the
+     * goal is to simply decrement the usage, then decrement its counter.
+     * This method will also remove the specified bundle from the "in use"
+     * map if it has no more usage counts. The caller must hold the lock of
+     * the usage count, which is marked as flushed so threads waiting for it
+     * know to start over.
      * @param bundle The bundle whose usage count should be removed.
-     * @param ref The service reference whose usage count should be removed.
+     * @param usage The usage count to remove.
     **/
-    private void flushUsageCount(Bundle bundle, ServiceReference ref)
+    private synchronized void flushUsageCount(Bundle bundle, UsageCount usage)
     {
+        usage.m_flushed = true;
+
         UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
         for (int i = 0; (usages != null) && (i < usages.length); i++)
         {
-            if (usages[i].m_ref.equals(ref))
+            if (usages[i] == usage)
             {
                 // If this is the only usage, then point to empty list.
                 if ((usages.length - 1) == 0)
@@ -644,6 +690,7 @@ public class ServiceRegistry
                     }
                     usages = newUsages;
                 }
+                break;
             }
         }
 
@@ -707,15 +754,16 @@ public class ServiceRegistry
         {
             if (isHook(classNames, hookClass, svcObj))
             {
-                synchronized (m_allHooks)
+                synchronized (m_hooksLock)
                 {
-                    Set<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
-                    if (hooks == null)
+                    SortedSet<ServiceReference<?>> hooks =
+                        new TreeSet<ServiceReference<?>>(Collections.reverseOrder());
+                    if (m_allHooks.get(hookClass) != null)
                     {
-                        hooks = new TreeSet<ServiceReference<?>>(Collections.reverseOrder());
-                        m_allHooks.put(hookClass, hooks);
+                        hooks.addAll(m_allHooks.get(hookClass));
                     }
                     hooks.add(ref);
+                    setHooks(hookClass, hooks);
                 }
             }
         }
@@ -733,14 +781,15 @@ public class ServiceRegistry
         {
             if (isHook(classNames, hookClass, svcObj))
             {
-                synchronized (m_allHooks)
+                synchronized (m_hooksLock)
                 {
-                    Set<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
+                    SortedSet<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
                     if (hooks != null)
                     {
-                        List<ServiceReference<?>> refs = new ArrayList<ServiceReference<?>>(hooks);
-                        hooks.clear();
-                        hooks.addAll(refs);
+                        SortedSet<ServiceReference<?>> sorted =
+                            new TreeSet<ServiceReference<?>>(Collections.reverseOrder());
+                        sorted.addAll(new ArrayList<ServiceReference<?>>(hooks));
+                        setHooks(hookClass, sorted);
                     }
                 }
             }
@@ -757,35 +806,55 @@ public class ServiceRegistry
         {
             if (isHook(classNames, hookClass, svcObj))
             {
-                synchronized (m_allHooks)
+                synchronized (m_hooksLock)
                 {
-                    Set<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
+                    SortedSet<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
                     if (hooks != null)
                     {
-                        hooks.remove(ref);
-                        if (hooks.isEmpty())
-                        {
-                            m_allHooks.remove(hookClass);
-                        }
+                        // Copy the hooks without relying on their ordering,
+                        // which may be stale if the ranking has changed.
+                        List<ServiceReference<?>> refs =
+                            new ArrayList<ServiceReference<?>>(hooks);
+                        refs.remove(ref);
+                        SortedSet<ServiceReference<?>> sorted =
+                            new TreeSet<ServiceReference<?>>(Collections.reverseOrder());
+                        sorted.addAll(refs);
+                        setHooks(hookClass, sorted.isEmpty() ? null : sorted);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Publishes a new copy of the hook map with the specified hooks for the
+     * hook class. Must be called while holding the hooks lock.
+     * @param hookClass The hook class.
+     * @param hooks The new hooks or <tt>null</tt> if there are none.
+    **/
+    private void setHooks(Class<?> hookClass, SortedSet<ServiceReference<?>> hooks)
+    {
+        Map<Class<?>, SortedSet<ServiceReference<?>>> copy =
+            new HashMap<Class<?>, SortedSet<ServiceReference<?>>>(m_allHooks);
+        if (hooks == null)
+        {
+            copy.remove(hookClass);
+        }
+        else
+        {
+            copy.put(hookClass, Collections.unmodifiableSortedSet(hooks));
+        }
+        m_allHooks = copy;
+    }
+
     public <S> Set<ServiceReference<S>> getHooks(Class<S> hookClass)
     {
-        synchronized (m_allHooks)
+        SortedSet<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
+        if (hooks != null)
         {
-            Set<ServiceReference<?>> hooks = m_allHooks.get(hookClass);
-            if (hooks != null)
-            {
-                SortedSet sorted = new TreeSet<ServiceReference<?>>(Collections.reverseOrder());
-                sorted.addAll(hooks);
-                return asTypedSortedSet(sorted);
-            }
-            return Collections.EMPTY_SET;
+            return asTypedSortedSet(hooks);
         }
+        return Collections.EMPTY_SET;
     }
 
     private static <S> SortedSet<ServiceReference<S>> asTypedSortedSet(
@@ -794,11 +863,18 @@ public class ServiceRegistry
         return (SortedSet<ServiceReference<S>>) (SortedSet) ss;
     }
 
+    // CONCURRENCY: The fields other than m_ref are guarded by
+    // the usage count itself.
     private static class UsageCount
     {
         public int m_count = 0;
         public ServiceReference m_ref = null;
         public Object m_svcObj = null;
+        // The thread currently getting or ungetting the service object,
+        // which will cause other threads to wait.
+        public Thread m_thread = null;
+        // Whether the usage count was removed from the "in use" map.
+        public boolean m_flushed = false;
     }
 
     public interface ServiceRegistryCallbacks
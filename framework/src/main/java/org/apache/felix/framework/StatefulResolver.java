@@ -29,13 +29,15 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.felix.framework.cache.BundleCache;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
-import org.apache.felix.framework.resolver.Resolver;
 import org.apache.felix.framework.resolver.ResolverImpl;
 import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.R4Library;
@@ -62,14 +64,15 @@ class StatefulResolver
 {
     private final Logger m_logger;
     private final Felix m_felix;
-    private final Resolver m_resolver;
+    private final ResolverImpl m_resolver;
     private boolean m_isResolving = false;
 
     // Set of all revisions.
     private final Set<BundleRevision> m_revisions;
     // Set of all fragments.
     private final Set<BundleRevision> m_fragments;
-    // Capability sets.
+    // Capability sets; concurrent since the resolver may look up
+    // providers from several threads while revisions are added.
     private final Map<String, CapabilitySet> m_capSets;
     // Maps singleton symbolic names to list of bundle revisions sorted by version.
     private final Map<String, List<BundleRevision>> m_singletons;
@@ -79,16 +82,19 @@ class StatefulResolver
     private final String m_fwkExecEnvStr;
     // Parsed framework environments
     private final Set<String> m_fwkExecEnvSet;
+    // Resolver result of the previous framework run, which is
+    // discarded as soon as the set of revisions changes.
+    private volatile ResolverResultCache m_resultCache;
 
     StatefulResolver(Felix felix)
     {
         m_felix = felix;
         m_logger = m_felix.getLogger();
-        m_resolver = new ResolverImpl(m_logger);
+        m_resolver = new ResolverImpl(m_logger, getResolverThreads());
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
-        m_capSets = new HashMap<String, CapabilitySet>();
+        m_capSets = new ConcurrentHashMap<String, CapabilitySet>();
         m_singletons = new HashMap<String, List<BundleRevision>>();
         m_selectedSingletons = new HashSet<BundleRevision>();
 
@@ -97,25 +103,35 @@ class StatefulResolver
         m_fwkExecEnvStr = (fwkExecEnvStr != null) ? fwkExecEnvStr.trim() : null;
         m_fwkExecEnvSet = parseExecutionEnvironments(fwkExecEnvStr);
 
+        // Also index the versions, so version ranges of requirements
+        // can be matched without comparing each capability.
         List<String> indices = new ArrayList<String>();
         indices.add(BundleRevision.BUNDLE_NAMESPACE);
+        indices.add(Constants.BUNDLE_VERSION_ATTRIBUTE);
         m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.PACKAGE_NAMESPACE);
+        indices.add(Constants.VERSION_ATTRIBUTE);
         m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.HOST_NAMESPACE);
+        indices.add(Constants.BUNDLE_VERSION_ATTRIBUTE);
         m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true));
     }
 
     synchronized void addRevision(BundleRevision br)
     {
+        if (!m_revisions.contains(br))
+        {
+            m_resultCache = null;
+        }
+
         // Always attempt to remove the revision, since
         // this method can be used for re-indexing a revision
         // after it has been resolved.
-        removeRevision(br);
+        deindexRevision(br);
 
         m_revisions.add(br);
 
@@ -142,6 +158,14 @@ class StatefulResolver
     }
 
     synchronized void removeRevision(BundleRevision br)
+    {
+        if (deindexRevision(br))
+        {
+            m_resultCache = null;
+        }
+    }
+
+    private synchronized boolean deindexRevision(BundleRevision br)
     {
         if (m_revisions.remove(br))
         {
@@ -159,7 +183,67 @@ class StatefulResolver
                     m_singletons.remove(br.getSymbolicName());
                 }
             }
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Loads the resolver result cache saved when the framework was stopped
+     * the last time. This must be called after all cached bundles have been
+     * reloaded and before any of them is resolved.
+     * @param cache The bundle cache holding the result cache.
+    **/
+    void loadResultCache(BundleCache cache)
+    {
+        // Permissions may have changed, so don't trust the cache.
+        m_resultCache = (System.getSecurityManager() == null)
+            ? ResolverResultCache.load(m_felix, cache) : null;
+    }
+
+    /**
+     * Stops the resolver threads, if any. They are created again if the
+     * framework is restarted and needs them.
+    **/
+    void stop()
+    {
+        m_resolver.shutdown();
+    }
+
+    /**
+     * Saves the wires of the current revisions of all installed bundles,
+     * so they can be reused when the framework is started the next time.
+     * @param cache The bundle cache to hold the result cache.
+    **/
+    void saveResultCache(BundleCache cache)
+    {
+        m_resultCache = null;
+        ResolverResultCache.save(m_felix, cache);
+    }
+
+    /**
+     * Returns the number of threads the resolver uses to look up providers
+     * and to check package space consistency.
+     * @return The number of resolver threads; one means the resolver only
+     *         uses the resolving thread.
+    **/
+    private int getResolverThreads()
+    {
+        String s = (String) m_felix.getConfig().get(FelixConstants.RESOLVER_THREADS_PROP);
+
+        if (s != null)
+        {
+            try
+            {
+                int i = Integer.parseInt(s.trim());
+                return (i > 0) ? i : 1;
+            }
+            catch (NumberFormatException ex)
+            {
+                // Ignore and return the default value.
+            }
+        }
+        return 1;
     }
 
     boolean isEffective(BundleRequirement req)
@@ -176,7 +260,9 @@ class StatefulResolver
         return findProvidersInternal(record, req, obeyMandatory);
     }
 
-    synchronized List<BundleCapability> findProvidersInternal(
+    // Not synchronized, since the resolver may call this from several
+    // worker threads at once; the capability sets allow concurrent reads.
+    List<BundleCapability> findProvidersInternal(
         ResolverHookRecord record, BundleRequirement req, boolean obeyMandatory)
     {
         List<BundleCapability> result = new ArrayList<BundleCapability>();
@@ -351,6 +437,7 @@ class StatefulResolver
         }
         m_isResolving = true;
 
+        Map<BundleRevision, List<ResolverWire>> cachedWireMap = null;
         Map<BundleRevision, List<ResolverWire>> wireMap = null;
         try
         {
@@ -399,15 +486,30 @@ class StatefulResolver
             ResolveException rethrow = null;
             try
             {
-                // Resolve the revision.
-                wireMap = m_resolver.resolve(
-                    new ResolveContextImpl(
-                        this,
-                        getWirings(),
-                        record,
-                        mandatory,
-                        optional,
-                        getFragments()));
+                // If nothing changed since the framework was last stopped,
+                // then wire the revisions like they were wired back then;
+                // resolver hooks may decide differently though.
+                ResolverResultCache resultCache = m_resultCache;
+                if ((resultCache != null) && record.m_resolverHooks.isEmpty())
+                {
+                    Map<BundleRevision, List<ResolverWire>> cached =
+                        resultCache.getWireMap(m_felix, mandatory, optional);
+                    markResolvedRevisions(cached);
+                    cachedWireMap = cached;
+                }
+
+                // Resolve the remaining revisions.
+                if (!mandatory.isEmpty() || !optional.isEmpty())
+                {
+                    wireMap = m_resolver.resolve(
+                        new ResolveContextImpl(
+                            this,
+                            getWirings(),
+                            record,
+                            mandatory,
+                            optional,
+                            getFragments()));
+                }
             }
             catch (ResolveException ex)
             {
@@ -432,6 +534,9 @@ class StatefulResolver
             m_isResolving = false;
             // Always release the global lock.
             m_felix.releaseGlobalLock();
+            // Revisions wired from the result cache remain resolved
+            // even if resolving the remaining revisions failed.
+            fireResolvedEvents(cachedWireMap);
         }
 
         fireResolvedEvents(wireMap);
@@ -81,6 +81,7 @@ public class BundleArchive
     private final WeakZipFileFactory m_zipFactory;
     private final File m_archiveRootDir;
     private final boolean m_isSingleBundleFile;
+    private BundleInfoJournal m_journal;
 
     private long m_id = -1;
     private String m_originalLocation = null;
@@ -126,8 +127,27 @@ public class BundleArchive
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         File archiveRootDir, long id, int startLevel, String location, InputStream is)
         throws Exception
+    {
+        this(logger, configMap, zipFactory, null, archiveRootDir, id, startLevel,
+            location, is);
+    }
+
+    /**
+     * <p>
+     * Creates a new archive like the constructor above, but records the
+     * state of the archive in the given bundle cache journal if it is not
+     * <tt>null</tt>.
+     * </p>
+     * @param journal the journal to record the archive state in or <tt>null</tt>.
+     * @throws Exception if any error occurs.
+    **/
+    BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        BundleInfoJournal journal, File archiveRootDir, long id, int startLevel,
+        String location, InputStream is)
+        throws Exception
     {
         m_logger = logger;
+        m_journal = journal;
         m_configMap = configMap;
         m_zipFactory = zipFactory;
         m_archiveRootDir = archiveRootDir;
@@ -168,8 +188,26 @@ public class BundleArchive
     public BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         File archiveRootDir)
         throws Exception
+    {
+        this(logger, configMap, zipFactory, null, archiveRootDir);
+    }
+
+    /**
+     * <p>
+     * Reconstructs an archive like the constructor above, but takes the
+     * state of the archive from the given bundle cache journal if it is not
+     * <tt>null</tt>. If the journal has no record for the archive, the state
+     * is read from the archive directory and added to the journal.
+     * </p>
+     * @param journal the journal to read the archive state from or <tt>null</tt>.
+     * @throws Exception if any error occurs.
+    **/
+    BundleArchive(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        BundleInfoJournal journal, File archiveRootDir)
+        throws Exception
     {
         m_logger = logger;
+        m_journal = journal;
         m_configMap = configMap;
         m_zipFactory = zipFactory;
         m_archiveRootDir = archiveRootDir;
@@ -177,7 +215,24 @@ public class BundleArchive
         String s = (String) m_configMap.get(BundleCache.CACHE_SINGLEBUNDLEFILE_PROP);
         m_isSingleBundleFile = ((s == null) || s.equalsIgnoreCase("true")) ? true : false;
 
-        if (m_isSingleBundleFile)
+        BundleInfoJournal.Info info = (m_journal != null)
+            ? m_journal.get(BundleCache.getArchiveId(m_archiveRootDir)) : null;
+        if (info != null)
+        {
+            m_id = info.m_id;
+            m_originalLocation = info.m_location;
+            m_persistentState = info.m_persistentState;
+            m_startLevel = info.m_startLevel;
+            m_lastModified = info.m_lastModified;
+            m_refreshCount = info.m_refreshCount;
+        }
+        else if (m_journal != null)
+        {
+            // Migrate the state stored in the archive directory.
+            readBundleInfo();
+            writeJournal(true);
+        }
+        else if (m_isSingleBundleFile)
         {
             readBundleInfo();
         }
@@ -290,7 +345,11 @@ public class BundleArchive
         if (m_persistentState != state)
         {
             m_persistentState = state;
-            if (m_isSingleBundleFile)
+            if (m_journal != null)
+            {
+                writeJournal(false);
+            }
+            else if (m_isSingleBundleFile)
             {
                 writeBundleInfo();
             }
@@ -329,7 +388,11 @@ public class BundleArchive
         if (m_startLevel != level)
         {
             m_startLevel = level;
-            if (m_isSingleBundleFile)
+            if (m_journal != null)
+            {
+                writeJournal(false);
+            }
+            else if (m_isSingleBundleFile)
             {
                 writeBundleInfo();
             }
@@ -371,7 +434,11 @@ public class BundleArchive
         if (m_lastModified != lastModified)
         {
             m_lastModified = lastModified;
-            if (m_isSingleBundleFile)
+            if (m_journal != null)
+            {
+                writeJournal(false);
+            }
+            else if (m_isSingleBundleFile)
             {
                 writeBundleInfo();
             }
@@ -427,7 +494,14 @@ public class BundleArchive
         if (m_refreshCount != count)
         {
             m_refreshCount = count;
-            if (m_isSingleBundleFile)
+            if (m_journal != null)
+            {
+                // The revision directory names depend on the refresh count,
+                // so keep the info file current as well.
+                writeJournal(true);
+                writeBundleInfo();
+            }
+            else if (m_isSingleBundleFile)
             {
                 writeBundleInfo();
             }
@@ -684,6 +758,19 @@ public class BundleArchive
     {
         // Close the revisions and delete the archive directory.
         close();
+        if (m_journal != null)
+        {
+            try
+            {
+                m_journal.remove(m_id);
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(
+                    Logger.LOG_ERROR,
+                    "Unable to remove archive from journal - " + m_archiveRootDir, ex);
+            }
+        }
         if (!BundleCache.deleteDirectoryTree(m_archiveRootDir))
         {
             m_logger.log(
@@ -786,7 +873,9 @@ public class BundleArchive
                 throw new IOException("Unable to create archive directory.");
             }
 
-            if (m_isSingleBundleFile)
+            // The info file is written even if a journal is used, so that
+            // the archive can still be identified if the journal is lost.
+            if (m_isSingleBundleFile || (m_journal != null))
             {
                 writeBundleInfo();
             }
@@ -798,6 +887,10 @@ public class BundleArchive
                 writeStartLevel();
                 writeLastModified();
             }
+            if (m_journal != null)
+            {
+                writeJournal(true);
+            }
         }
         finally
         {
@@ -938,6 +1031,52 @@ public class BundleArchive
         return result.toString();
     }
 
+    /**
+     * <p>
+     * Stores the state of this archive in the archive directory and stops
+     * recording it in the bundle cache journal; this is used to migrate the
+     * state back when the journal is disabled.
+     * </p>
+     * @throws Exception if any error occurs.
+    **/
+    synchronized void detachJournal() throws Exception
+    {
+        if (m_journal != null)
+        {
+            m_journal = null;
+            if (m_isSingleBundleFile)
+            {
+                writeBundleInfo();
+            }
+            else
+            {
+                writeId();
+                writeLocation();
+                writePersistentState();
+                writeStartLevel();
+                writeLastModified();
+                writeRefreshCount();
+            }
+        }
+    }
+
+    private void writeJournal(boolean immediate) throws Exception
+    {
+        try
+        {
+            m_journal.put(new BundleInfoJournal.Info(m_id, m_originalLocation,
+                m_persistentState, m_startLevel, m_lastModified, m_refreshCount),
+                immediate);
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                getClass().getName() + ": Unable to journal bundle info - " + ex);
+            throw ex;
+        }
+    }
+
     private void readBundleInfo() throws Exception
     {
         File infoFile = new File(m_archiveRootDir, BUNDLE_INFO_FILE);
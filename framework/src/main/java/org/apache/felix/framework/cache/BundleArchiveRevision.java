@@ -18,7 +18,12 @@
  */
 package org.apache.felix.framework.cache;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
 
 import org.apache.felix.framework.Logger;
@@ -41,6 +46,8 @@ import org.apache.felix.framework.Logger;
 **/
 public abstract class BundleArchiveRevision
 {
+    private static final String MANIFEST_CACHE_FILE = "manifest.cache";
+
     private final Logger m_logger;
     private final Map m_configMap;
     private final File m_revisionRootDir;
@@ -129,6 +136,79 @@ public abstract class BundleArchiveRevision
 
     public abstract Content getContent() throws Exception;
 
+    /**
+     * <p>
+     * Returns the data last stored with <tt>writeManifestCache()</tt> in the
+     * root directory of this revision.
+     * </p>
+     * @return the stored data or <tt>null</tt> if there is none.
+     * @throws IOException if the data cannot be read.
+    **/
+    public byte[] readManifestCache() throws IOException
+    {
+        File file = new File(m_revisionRootDir, MANIFEST_CACHE_FILE);
+        InputStream is = null;
+        try
+        {
+            is = BundleCache.getSecureAction().getFileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            new DataInputStream(is).readFully(data);
+            return data;
+        }
+        catch (FileNotFoundException ex)
+        {
+            return null;
+        }
+        finally
+        {
+            if (is != null) is.close();
+        }
+    }
+
+    /**
+     * <p>
+     * Stores the parsed form of the manifest of this revision in the root
+     * directory of this revision, so it does not have to be parsed again
+     * when the framework is restarted.
+     * </p>
+     * @param data the data to store.
+     * @throws IOException if the data cannot be written.
+    **/
+    public void writeManifestCache(byte[] data) throws IOException
+    {
+        File file = new File(m_revisionRootDir, MANIFEST_CACHE_FILE);
+        File tmp = new File(m_revisionRootDir, MANIFEST_CACHE_FILE + ".tmp");
+        OutputStream os = BundleCache.getSecureAction().getFileOutputStream(tmp);
+        try
+        {
+            os.write(data);
+        }
+        finally
+        {
+            os.close();
+        }
+        BundleCache.getSecureAction().deleteFile(file);
+        if (!BundleCache.getSecureAction().renameFile(tmp, file))
+        {
+            BundleCache.getSecureAction().deleteFile(tmp);
+            throw new IOException("Unable to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the cache of the byte code of the classes defined from this
+     * revision, if the <tt>felix.cache.bytecode</tt> property is enabled and
+     * the revision supports it. Revisions whose content may change without
+     * notice, such as exploded bundle directories, do not.
+     * </p>
+     * @return the byte code cache or <tt>null</tt> if there is none.
+    **/
+    public BytecodeCache getBytecodeCache()
+    {
+        return null;
+    }
+
     /**
      * <p>
      * This method is called when the revision is no longer needed. The directory
@@ -22,6 +22,9 @@ import java.io.*;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.util.SecureAction;
@@ -68,6 +71,31 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.manifest</tt> - Enables or disables storing the
+ *       parsed capabilities and requirements of each bundle revision next
+ *       to it in the cache, so they do not need to be parsed from the
+ *       manifest again on restart as long as the manifest is unchanged.
+ *       The default value is <tt>true</tt>.
+ *   </li>
+ *   <li><tt>felix.cache.bytecode</tt> - Enables or disables storing the
+ *       byte code of the classes defined from each bundle JAR file, after
+ *       weaving, next to it in the cache, so the classes do not need to be
+ *       read from the JAR file and woven again on restart as long as the
+ *       JAR file, weaving hooks and attached fragments are unchanged.
+ *       Weaving hooks and woven class listeners are not called for classes
+ *       defined from the cache. The default value is <tt>false</tt>.
+ *   </li>
+ *   <li><tt>felix.cache.journal</tt> - Enables or disables keeping the
+ *       state of all bundle archives in a single journal file in the cache
+ *       directory, which is read in one pass on startup instead of reading
+ *       a file in each archive directory. The default value is <tt>false</tt>.
+ *   </li>
+ *   <li><tt>felix.cache.journal.flushdelay</tt> - Sets the time in
+ *       milliseconds for which changes of the persistent state, start level
+ *       and last modification time of bundle archives are collected before
+ *       they are written to the journal together; the default value is 100.
+ *       A value of zero writes each change immediately.
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -80,6 +108,11 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_MMAP_PROP = "felix.cache.mmap";
+    public static final String CACHE_JOURNAL_PROP = "felix.cache.journal";
+    public static final String CACHE_MANIFEST_PROP = "felix.cache.manifest";
+    public static final String CACHE_BYTECODE_PROP = "felix.cache.bytecode";
+    public static final String CACHE_JOURNAL_FLUSHDELAY_PROP = "felix.cache.journal.flushdelay";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
@@ -89,6 +122,7 @@ public class BundleCache
     private static transient final String CACHE_DIR_NAME = "felix-cache";
     private static transient final String CACHE_ROOTDIR_DEFAULT = ".";
     private static transient final String CACHE_LOCK_NAME = "cache.lock";
+    private static transient final long CACHE_JOURNAL_FLUSHDELAY_DEFAULT = 100;
     static transient final String BUNDLE_DIR_PREFIX = "bundle";
 
     private static final SecureAction m_secureAction = new SecureAction();
@@ -97,6 +131,7 @@ public class BundleCache
     private final Map m_configMap;
     private final WeakZipFileFactory m_zipFactory;
     private final Object m_lock;
+    private BundleInfoJournal m_journal;
 
     public BundleCache(Logger logger, Map configMap)
         throws Exception
@@ -184,6 +219,7 @@ public class BundleCache
 
     public synchronized void release()
     {
+        closeJournal();
         if (m_lock != null)
         {
             try
@@ -206,15 +242,44 @@ public class BundleCache
         return m_secureAction;
     }
 
+    /**
+     * Returns whether files in the cache may be memory mapped. This is not
+     * the case on Windows, where a mapped file cannot be deleted, renamed or
+     * truncated until the mapping is garbage collected, and there is no API
+     * to release a mapping explicitly. Mapping there would make updating and
+     * uninstalling bundles fail to delete their revision directories.
+     * @return <tt>true</tt> if cache files may be memory mapped.
+    **/
+    /* package */ static boolean isMappingSupported()
+    {
+        return !m_secureAction.getSystemProperty("os.name", "")
+            .toLowerCase().startsWith("win");
+    }
+
     public synchronized void delete() throws Exception
     {
         // Delete the cache directory.
+        closeJournal();
         File cacheDir = determineCacheDir(m_configMap);
         deleteDirectoryTree(cacheDir);
     }
 
     public BundleArchive[] getArchives()
         throws Exception
+    {
+        return getArchives(null);
+    }
+
+    /**
+     * Returns the archives of all cached bundles ordered by bundle
+     * identifier.
+     * @param executor the executor used to load the archives concurrently
+     *        or <tt>null</tt> to load them on the calling thread.
+     * @return the archives of all cached bundles.
+     * @throws Exception if any error occurs.
+    **/
+    public BundleArchive[] getArchives(ExecutorService executor)
+        throws Exception
     {
         // Get buffer size value.
         try
@@ -232,7 +297,20 @@ public class BundleCache
 
         // Create the existing bundle archives in the directory, if any exist.
         File cacheDir = determineCacheDir(m_configMap);
-        List archiveList = new ArrayList();
+        BundleInfoJournal journal = getJournal();
+        // If the journal was disabled since the last run, read the archive
+        // state from the existing journal once to move it back into the
+        // archive directories.
+        boolean detachJournal = (journal == null)
+            && getSecureAction().fileExists(
+                new File(cacheDir, BundleInfoJournal.JOURNAL_FILE));
+        if (detachJournal)
+        {
+            journal = new BundleInfoJournal(m_logger, cacheDir, 0);
+        }
+        Set<Long> journaledIds = (journal != null)
+            ? new HashSet<Long>(journal.getIds()) : null;
+        List<File> archiveDirs = new ArrayList<File>();
         File[] children = getSecureAction().listDirectory(cacheDir);
         for (int i = 0; (children != null) && (i < children.length); i++)
         {
@@ -241,23 +319,72 @@ public class BundleCache
             if (children[i].getName().startsWith(BUNDLE_DIR_PREFIX) &&
                 !children[i].getName().equals(BUNDLE_DIR_PREFIX + Long.toString(0)))
             {
-                // Recreate the bundle archive.
-                try
-                {
-                    archiveList.add(
-                        new BundleArchive(
-                            m_logger, m_configMap, m_zipFactory, children[i]));
-                }
-                catch (Exception ex)
+                archiveDirs.add(children[i]);
+            }
+        }
+        // Return the archives in bundle identifier order, independent of
+        // the order of the directory listing and of the loading threads.
+        Collections.sort(archiveDirs, new Comparator<File>() {
+            public int compare(File f1, File f2)
+            {
+                long id1 = getArchiveId(f1);
+                long id2 = getArchiveId(f2);
+                return (id1 < id2) ? -1 : ((id1 == id2) ? f1.compareTo(f2) : 1);
+            }
+        });
+
+        // Recreate the bundle archives, concurrently if an executor is given.
+        List<Future<BundleArchive>> futures = null;
+        if ((executor != null) && (archiveDirs.size() > 1))
+        {
+            futures = new ArrayList<Future<BundleArchive>>(archiveDirs.size());
+            for (final File archiveDir : archiveDirs)
+            {
+                final BundleInfoJournal archiveJournal = journal;
+                final boolean detach = detachJournal;
+                futures.add(executor.submit(new Callable<BundleArchive>() {
+                    public BundleArchive call()
+                    {
+                        return loadArchive(archiveDir, archiveJournal, detach);
+                    }
+                }));
+            }
+        }
+        List archiveList = new ArrayList();
+        for (int i = 0; i < archiveDirs.size(); i++)
+        {
+            BundleArchive archive = (futures == null)
+                ? loadArchive(archiveDirs.get(i), journal, detachJournal)
+                : futures.get(i).get();
+            if (archive != null)
+            {
+                archiveList.add(archive);
+                if (journaledIds != null)
                 {
-                    // Log exception and remove bundle archive directory.
-                    m_logger.log(Logger.LOG_ERROR,
-                        "Error reloading cached bundle, removing it: " + children[i], ex);
-                    deleteDirectoryTree(children[i]);
+                    journaledIds.remove(archive.getId());
                 }
             }
         }
 
+        if (detachJournal)
+        {
+            journal.close();
+            if (!getSecureAction().deleteFile(
+                new File(cacheDir, BundleInfoJournal.JOURNAL_FILE)))
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Unable to delete bundle cache journal in " + cacheDir);
+            }
+        }
+        else if (journal != null)
+        {
+            // Drop the records of archives whose directory no longer exists.
+            for (Long id : journaledIds)
+            {
+                journal.remove(id);
+            }
+        }
+
         return (BundleArchive[])
             archiveList.toArray(new BundleArchive[archiveList.size()]);
     }
@@ -276,8 +403,8 @@ public class BundleCache
             // Create the archive and add it to the list of archives.
             BundleArchive ba =
                 new BundleArchive(
-                    m_logger, m_configMap, m_zipFactory, archiveRootDir,
-                    id, startLevel, location, is);
+                    m_logger, m_configMap, m_zipFactory, getJournal(),
+                    archiveRootDir, id, startLevel, location, is);
             return ba;
         }
         catch (Exception ex)
@@ -334,6 +461,87 @@ public class BundleCache
         return new File(sbDir, fileName);
     }
 
+    /**
+     * Recreates the archive in the given directory; if this fails, the
+     * directory is removed and <tt>null</tt> is returned.
+    **/
+    private BundleArchive loadArchive(
+        File archiveDir, BundleInfoJournal journal, boolean detachJournal)
+    {
+        try
+        {
+            BundleArchive archive = new BundleArchive(
+                m_logger, m_configMap, m_zipFactory, journal, archiveDir);
+            if (detachJournal)
+            {
+                archive.detachJournal();
+            }
+            return archive;
+        }
+        catch (Exception ex)
+        {
+            // Log exception and remove bundle archive directory.
+            m_logger.log(Logger.LOG_ERROR,
+                "Error reloading cached bundle, removing it: " + archiveDir, ex);
+            deleteDirectoryTree(archiveDir);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the bundle cache journal, opening it on first use, or
+     * <tt>null</tt> if the journal is not enabled.
+    **/
+    private synchronized BundleInfoJournal getJournal() throws IOException
+    {
+        if ((m_journal == null)
+            && Boolean.valueOf((String) m_configMap.get(CACHE_JOURNAL_PROP)).booleanValue())
+        {
+            long flushDelay = CACHE_JOURNAL_FLUSHDELAY_DEFAULT;
+            String s = (String) m_configMap.get(CACHE_JOURNAL_FLUSHDELAY_PROP);
+            if (s != null)
+            {
+                try
+                {
+                    flushDelay = Long.parseLong(s);
+                }
+                catch (NumberFormatException ex)
+                {
+                    // Use the default value.
+                }
+            }
+            m_journal = new BundleInfoJournal(
+                m_logger, determineCacheDir(m_configMap), flushDelay);
+        }
+        return m_journal;
+    }
+
+    private void closeJournal()
+    {
+        if (m_journal != null)
+        {
+            m_journal.close();
+            m_journal = null;
+        }
+    }
+
+    /**
+     * Returns the bundle identifier encoded in the name of the given
+     * archive directory or -1 if the name does not contain one.
+    **/
+    static long getArchiveId(File archiveRootDir)
+    {
+        try
+        {
+            return Long.parseLong(
+                archiveRootDir.getName().substring(BUNDLE_DIR_PREFIX.length()));
+        }
+        catch (NumberFormatException ex)
+        {
+            return -1;
+        }
+    }
+
     //
     // Static file-related utility methods.
     //
@@ -0,0 +1,585 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * <p>
+ * This class keeps the metadata of all bundle archives, that is their id,
+ * location, persistent state, start level, last modification time and
+ * refresh count, in a single append-only journal file in the bundle cache
+ * directory instead of in files in each archive directory. It is used by
+ * the bundle cache if the <tt>felix.cache.journal</tt> property is set to
+ * <tt>true</tt>.
+ * </p>
+ * <p>
+ * Each change of the metadata of an archive appends a record holding all
+ * metadata of the archive to the journal. Every record is protected by a
+ * checksum and each write is forced to disk; a partially written or
+ * otherwise unreadable record ends the journal when it is read and is
+ * discarded together with anything after it. Changes of the persistent state, start
+ * level and last modification time are collected for a short delay and
+ * written together; adding or removing an archive and changing its refresh
+ * count is written immediately. Once the journal has grown to more than
+ * twice the size of its live records it is compacted by writing the live
+ * records to a new file which replaces the journal.
+ * </p>
+**/
+class BundleInfoJournal
+{
+    static final String JOURNAL_FILE = "cache.journal";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // "FBIJ"
+    private static final int MAGIC = 0x4642494a;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    // record length, type, id and checksum
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 8;
+
+    // don't compact journals smaller than this
+    private static final long COMPACT_MIN_SIZE = 64 * 1024;
+
+    private final Logger m_logger;
+    private final File m_file;
+    private final long m_flushDelay;
+
+    // current metadata of each archive, including pending changes
+    private final Map<Long, Info> m_infos = new HashMap<Long, Info>();
+    // changes not written yet
+    private final Map<Long, Info> m_pending = new LinkedHashMap<Long, Info>();
+    // size of the current record of each archive in the journal
+    private final Map<Long, Integer> m_recordSizes = new HashMap<Long, Integer>();
+
+    private long m_liveSize;
+    private long m_fileSize;
+    private FileOutputStream m_out;
+    private Thread m_flusher;
+    private boolean m_closed;
+
+    /**
+     * The metadata of a bundle archive as recorded in the journal.
+    **/
+    static final class Info
+    {
+        final long m_id;
+        final String m_location;
+        final int m_persistentState;
+        final int m_startLevel;
+        final long m_lastModified;
+        final long m_refreshCount;
+
+        Info(long id, String location, int persistentState, int startLevel,
+            long lastModified, long refreshCount)
+        {
+            m_id = id;
+            m_location = location;
+            m_persistentState = persistentState;
+            m_startLevel = startLevel;
+            m_lastModified = lastModified;
+            m_refreshCount = refreshCount;
+        }
+    }
+
+    /**
+     * Opens the journal in the given cache directory reading all records
+     * in one pass. The journal is created if it does not exist yet.
+     * @param logger the logger to log problems to.
+     * @param cacheDir the bundle cache directory.
+     * @param flushDelay the time in milliseconds to collect state changes
+     *        before writing them; if zero, all changes are written immediately.
+     * @throws IOException if the journal cannot be opened.
+    **/
+    BundleInfoJournal(Logger logger, File cacheDir, long flushDelay) throws IOException
+    {
+        m_logger = logger;
+        m_file = new File(cacheDir, JOURNAL_FILE);
+        m_flushDelay = flushDelay;
+
+        // A compaction might have been interrupted after deleting the
+        // journal but before renaming the new one.
+        File tmp = new File(cacheDir, JOURNAL_FILE + TMP_SUFFIX);
+        if (BundleCache.getSecureAction().fileExists(tmp))
+        {
+            if (!BundleCache.getSecureAction().fileExists(m_file))
+            {
+                BundleCache.getSecureAction().renameFile(tmp, m_file);
+            }
+            else
+            {
+                BundleCache.getSecureAction().deleteFile(tmp);
+            }
+        }
+
+        if (!read() || needsCompaction())
+        {
+            compact();
+        }
+        else
+        {
+            m_out = BundleCache.getSecureAction().getFileOutputStream(m_file, true);
+        }
+    }
+
+    /**
+     * Returns the recorded metadata of the archive with the given id or
+     * <tt>null</tt> if the journal has no record for the archive.
+    **/
+    synchronized Info get(long id)
+    {
+        return m_infos.get(id);
+    }
+
+    /**
+     * Returns the ids of all archives recorded in the journal.
+    **/
+    synchronized Collection<Long> getIds()
+    {
+        return new ArrayList<Long>(m_infos.keySet());
+    }
+
+    /**
+     * Records the metadata of an archive.
+     * @param info the metadata of the archive.
+     * @param immediate whether the record must be written before returning
+     *        instead of after the flush delay.
+     * @throws IOException if writing the journal fails.
+    **/
+    synchronized void put(Info info, boolean immediate) throws IOException
+    {
+        if (m_closed)
+        {
+            throw new IOException("Bundle cache journal is closed.");
+        }
+
+        m_infos.put(info.m_id, info);
+        m_pending.put(info.m_id, info);
+        if (immediate || (m_flushDelay <= 0))
+        {
+            flush(null);
+        }
+        else if (m_flusher == null)
+        {
+            m_flusher = new Thread(new Runnable() {
+                public void run()
+                {
+                    flushPeriodically();
+                }
+            }, "FelixCacheJournal");
+            m_flusher.setDaemon(true);
+            m_flusher.start();
+        }
+        else
+        {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Removes the metadata of an archive from the journal.
+     * @param id the id of the archive.
+     * @throws IOException if writing the journal fails.
+    **/
+    synchronized void remove(long id) throws IOException
+    {
+        m_pending.remove(id);
+        if ((m_infos.remove(id) != null) && !m_closed)
+        {
+            flush(id);
+        }
+    }
+
+    /**
+     * Writes any pending changes and closes the journal.
+    **/
+    synchronized void close()
+    {
+        if (m_closed)
+        {
+            return;
+        }
+
+        try
+        {
+            flush(null);
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_ERROR,
+                "Unable to write bundle cache journal - " + m_file, ex);
+        }
+        m_closed = true;
+        notifyAll();
+
+        try
+        {
+            if (m_out != null)
+            {
+                m_out.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            // Not much we can do here.
+        }
+        m_out = null;
+    }
+
+    private void flushPeriodically()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                while (!m_closed && m_pending.isEmpty())
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        // Ignore and check again.
+                    }
+                }
+                if (m_closed)
+                {
+                    m_flusher = null;
+                    return;
+                }
+            }
+
+            // Collect further changes for a while.
+            try
+            {
+                Thread.sleep(m_flushDelay);
+            }
+            catch (InterruptedException ex)
+            {
+                // Flush now.
+            }
+
+            synchronized (this)
+            {
+                try
+                {
+                    if (!m_closed)
+                    {
+                        flush(null);
+                    }
+                }
+                catch (IOException ex)
+                {
+                    m_logger.log(Logger.LOG_ERROR,
+                        "Unable to write bundle cache journal - " + m_file, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records and optionally a remove record in a single
+     * write and compacts the journal if it has grown too large. Must be
+     * called while holding the lock of this journal.
+    **/
+    private void flush(Long removedId) throws IOException
+    {
+        if (m_pending.isEmpty() && (removedId == null))
+        {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Map<Long, Integer> sizes = new HashMap<Long, Integer>();
+        for (Info info : m_pending.values())
+        {
+            sizes.put(info.m_id, writeRecord(bytes, RECORD_PUT, info.m_id, info));
+        }
+        if (removedId != null)
+        {
+            writeRecord(bytes, RECORD_REMOVE, removedId.longValue(), null);
+        }
+
+        m_out.write(bytes.toByteArray());
+        m_out.getFD().sync();
+        m_fileSize += bytes.size();
+        m_pending.clear();
+
+        for (Map.Entry<Long, Integer> entry : sizes.entrySet())
+        {
+            recordSize(entry.getKey(), entry.getValue());
+        }
+        if (removedId != null)
+        {
+            recordSize(removedId, null);
+        }
+
+        if (needsCompaction())
+        {
+            compact();
+        }
+    }
+
+    private void recordSize(Long id, Integer size)
+    {
+        Integer old = (size == null) ? m_recordSizes.remove(id) : m_recordSizes.put(id, size);
+        if (old != null)
+        {
+            m_liveSize -= old.intValue();
+        }
+        if (size != null)
+        {
+            m_liveSize += size.intValue();
+        }
+    }
+
+    private boolean needsCompaction()
+    {
+        return (m_fileSize > COMPACT_MIN_SIZE) && (m_fileSize > 2 * (m_liveSize + HEADER_SIZE));
+    }
+
+    /**
+     * Reads all records of the journal into memory.
+     * @return <tt>true</tt> if the journal could be read completely,
+     *         <tt>false</tt> if it does not exist, is not a journal, or
+     *         ends with a partially written or unreadable record, in which
+     *         case the records read so far are kept.
+    **/
+    private boolean read() throws IOException
+    {
+        if (!BundleCache.getSecureAction().fileExists(m_file))
+        {
+            return false;
+        }
+
+        // Read the whole journal in a single read.
+        byte[] data;
+        InputStream is = BundleCache.getSecureAction().getFileInputStream(m_file);
+        try
+        {
+            data = new byte[(int) m_file.length()];
+            new DataInputStream(is).readFully(data);
+        }
+        finally
+        {
+            is.close();
+        }
+
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(data));
+        if ((data.length < HEADER_SIZE) || (header.readInt() != MAGIC)
+            || (header.readInt() != VERSION))
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Ignoring invalid bundle cache journal - " + m_file);
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        int pos = HEADER_SIZE;
+        while (pos + 4 <= data.length)
+        {
+            int len = ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+            if ((len < 9) || (len > data.length - pos - 4 - 8))
+            {
+                break;
+            }
+
+            // Check the record before decoding it.
+            crc.reset();
+            crc.update(data, pos + 4, len);
+            if (readLong(data, pos + 4 + len) != crc.getValue())
+            {
+                break;
+            }
+
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data, pos + 4, len));
+            byte type;
+            long id;
+            Info info;
+            try
+            {
+                type = in.readByte();
+                if ((type != RECORD_PUT) && (type != RECORD_REMOVE))
+                {
+                    throw new IOException("Unknown record type " + type);
+                }
+                id = in.readLong();
+                info = (type == RECORD_PUT) ? readInfo(in, id) : null;
+            }
+            catch (Exception ex)
+            {
+                // Treat a record we cannot decode like a torn one.
+                break;
+            }
+
+            if (type == RECORD_PUT)
+            {
+                m_infos.put(id, info);
+                recordSize(id, new Integer(4 + len + 8));
+            }
+            else
+            {
+                m_infos.remove(id);
+                recordSize(id, null);
+            }
+            pos += 4 + len + 8;
+        }
+
+        m_fileSize = pos;
+        if (pos < data.length)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Discarding incomplete or unreadable records at the end of the bundle cache journal - "
+                + m_file);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the journal with a new journal holding only the current
+     * records. Must be called while holding the lock of this journal.
+    **/
+    private void compact() throws IOException
+    {
+        if (m_out != null)
+        {
+            m_out.close();
+            m_out = null;
+        }
+
+        File tmp = new File(m_file.getPath() + TMP_SUFFIX);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        m_recordSizes.clear();
+        m_liveSize = 0;
+        for (Info info : m_infos.values())
+        {
+            recordSize(info.m_id, writeRecord(bytes, RECORD_PUT, info.m_id, info));
+        }
+        m_pending.clear();
+
+        // Force the new journal to disk before it replaces the old one.
+        FileOutputStream os = BundleCache.getSecureAction().getFileOutputStream(tmp);
+        try
+        {
+            bytes.writeTo(os);
+            os.getFD().sync();
+        }
+        finally
+        {
+            os.close();
+        }
+
+        if (BundleCache.getSecureAction().fileExists(m_file)
+            && !BundleCache.getSecureAction().deleteFile(m_file))
+        {
+            throw new IOException("Unable to delete bundle cache journal - " + m_file);
+        }
+        if (!BundleCache.getSecureAction().renameFile(tmp, m_file))
+        {
+            throw new IOException("Unable to rename bundle cache journal - " + tmp);
+        }
+        m_fileSize = bytes.size();
+
+        m_out = BundleCache.getSecureAction().getFileOutputStream(m_file, true);
+    }
+
+    private static Integer writeRecord(
+        ByteArrayOutputStream bytes, byte type, long id, Info info) throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(type);
+        out.writeLong(id);
+        if (info != null)
+        {
+            byte[] location = ((info.m_location == null) ? "" : info.m_location)
+                .getBytes("UTF-8");
+            out.writeInt(location.length);
+            out.write(location);
+            out.writeInt(info.m_persistentState);
+            out.writeInt(info.m_startLevel);
+            out.writeLong(info.m_lastModified);
+            out.writeLong(info.m_refreshCount);
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(record.toByteArray());
+
+        DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeInt(record.size());
+        record.writeTo(dos);
+        dos.writeLong(crc.getValue());
+        dos.flush();
+        return new Integer(4 + record.size() + 8);
+    }
+
+    private static Info readInfo(DataInputStream in, long id) throws IOException
+    {
+        int len = in.readInt();
+        if ((len < 0) || (len > in.available()))
+        {
+            throw new EOFException();
+        }
+        byte[] location = new byte[len];
+        in.readFully(location);
+        return new Info(id, new String(location, "UTF-8"),
+            in.readInt(), in.readInt(), in.readLong(), in.readLong());
+    }
+
+    private static long readLong(byte[] data, int pos)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            value = (value << 8) | (data[pos + i] & 0xff);
+        }
+        return value;
+    }
+}
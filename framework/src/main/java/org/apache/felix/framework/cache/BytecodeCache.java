@@ -0,0 +1,562 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * <p>
+ * This class keeps the byte code of the classes defined from a bundle
+ * revision, after any weaving hooks have been applied, in a file in the
+ * revision directory, so that the classes do not need to be read from the
+ * bundle JAR file and woven again when the framework is restarted. It is
+ * used if the <tt>felix.cache.bytecode</tt> property is set to
+ * <tt>true</tt>.
+ * </p>
+ * <p>
+ * Each class is stored with a key identifying everything other than the
+ * revision itself the byte code depends on, that is the weaving hooks and
+ * attached fragments; a cached class is only returned for the key it was
+ * stored with. The file records the size and modification time of the
+ * bundle JAR file and is discarded if the JAR file has changed. New classes
+ * are collected in memory and appended to the file in batches and when the
+ * revision is closed. Every record is protected by a checksum; a partially
+ * written record at the end of the file is discarded. The file is memory
+ * mapped, so only the records of classes actually loaded are read, except
+ * on Windows, where it is read into memory instead, since a mapped file
+ * could not be replaced or truncated.
+ * </p>
+**/
+public class BytecodeCache
+{
+    static final String BYTECODE_CACHE_FILE = "bytecode.cache";
+
+    /**
+     * The length of the keys of cached classes.
+    **/
+    public static final int KEY_LENGTH = 20;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // "FBCC"
+    private static final int MAGIC = 0x46424343;
+    private static final int VERSION = 1;
+    // magic, version, JAR file size and modification time
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    // record length and checksum
+    private static final int RECORD_OVERHEAD = 4 + 8;
+
+    // size of pending records that triggers writing them
+    private static final int FLUSH_SIZE = 256 * 1024;
+    // don't compact files smaller than this
+    private static final int COMPACT_MIN_SIZE = 1024 * 1024;
+
+    private static final Mapping EMPTY_MAPPING =
+        new Mapping(null, Collections.<String, Integer>emptyMap(), 0, 0);
+
+    private final Logger m_logger;
+    private final File m_file;
+    private final long m_jarSize;
+    private final long m_jarLastModified;
+
+    private volatile Mapping m_mapping;
+    // records not written yet
+    private final Map<String, byte[]> m_pending = new LinkedHashMap<String, byte[]>();
+    private int m_pendingSize;
+    private boolean m_closed;
+
+    /**
+     * A class read from the cache.
+    **/
+    public static final class Entry
+    {
+        private final byte[] m_bytes;
+        private final List<String> m_dynamicImports;
+
+        Entry(byte[] bytes, List<String> dynamicImports)
+        {
+            m_bytes = bytes;
+            m_dynamicImports = dynamicImports;
+        }
+
+        /**
+         * Returns the byte code of the class.
+         * @return the byte code of the class.
+        **/
+        public byte[] getBytes()
+        {
+            return m_bytes;
+        }
+
+        /**
+         * Returns the dynamic imports added by weaving hooks when the class
+         * was woven.
+         * @return the list of dynamic import strings, which may be empty.
+        **/
+        public List<String> getDynamicImports()
+        {
+            return m_dynamicImports;
+        }
+    }
+
+    /**
+     * Immutable view of the records in the file. The buffer is only ever
+     * accessed using absolute gets or duplicates, which makes it safe to
+     * share between threads.
+    **/
+    private static final class Mapping
+    {
+        private final ByteBuffer m_buffer;
+        // offset of the latest record of each class
+        private final Map<String, Integer> m_records;
+        // end of the last complete record, zero if there is no valid header
+        private final int m_end;
+        // size of records replaced by later records
+        private final int m_stale;
+
+        Mapping(ByteBuffer buffer, Map<String, Integer> records, int end, int stale)
+        {
+            m_buffer = buffer;
+            m_records = records;
+            m_end = end;
+            m_stale = stale;
+        }
+    }
+
+    /**
+     * Opens the cache in the given revision directory for the given bundle
+     * JAR file.
+     * @param logger the logger.
+     * @param revisionRootDir the revision directory.
+     * @param jarFile the bundle JAR file of the revision.
+    **/
+    BytecodeCache(Logger logger, File revisionRootDir, File jarFile)
+    {
+        m_logger = logger;
+        m_file = new File(revisionRootDir, BYTECODE_CACHE_FILE);
+        m_jarSize = BundleCache.getSecureAction().getFileLength(jarFile);
+        m_jarLastModified = BundleCache.getSecureAction().getFileLastModified(jarFile);
+        m_mapping = load();
+    }
+
+    /**
+     * Returns the cached byte code of the given class, if it was stored with
+     * the given key.
+     * @param name the name of the class.
+     * @param key the key identifying the weaving hooks and fragments.
+     * @return the cached class or <tt>null</tt> if there is none.
+    **/
+    public Entry get(String name, byte[] key)
+    {
+        Mapping mapping = m_mapping;
+        Integer offset = mapping.m_records.get(name);
+        if (offset != null)
+        {
+            ByteBuffer buffer = mapping.m_buffer.duplicate();
+            int length = buffer.getInt(offset);
+            buffer.position(offset + RECORD_OVERHEAD);
+            // Compare the key before copying the record.
+            boolean matches = true;
+            for (int i = 0; matches && (i < KEY_LENGTH); i++)
+            {
+                matches = (buffer.get(offset + RECORD_OVERHEAD + i) == key[i]);
+            }
+            if (matches)
+            {
+                byte[] record = new byte[length];
+                buffer.get(record);
+                if (checksum(record, 0, length) == buffer.getLong(offset + 4))
+                {
+                    return decode(record, 0, length);
+                }
+                m_logger.log(Logger.LOG_DEBUG,
+                    "Ignoring corrupted cached class " + name + " in " + m_file);
+            }
+            return null;
+        }
+
+        synchronized (this)
+        {
+            byte[] record = m_pending.get(name);
+            if ((record != null) && matches(record, RECORD_OVERHEAD, key))
+            {
+                return decode(record, RECORD_OVERHEAD, record.length - RECORD_OVERHEAD);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the byte code of the given class with the given key, replacing
+     * any previously stored byte code of the class.
+     * @param name the name of the class.
+     * @param key the key identifying the weaving hooks and fragments.
+     * @param bytes the byte code of the class.
+     * @param dynamicImports the dynamic imports added by weaving hooks, or
+     *        <tt>null</tt>.
+    **/
+    public synchronized void put(
+        String name, byte[] key, byte[] bytes, List<String> dynamicImports)
+    {
+        if (m_closed)
+        {
+            return;
+        }
+        byte[] record;
+        try
+        {
+            record = encode(name, key, bytes, dynamicImports);
+        }
+        catch (IOException ex)
+        {
+            // Cannot happen when writing to memory.
+            return;
+        }
+        byte[] previous = m_pending.put(name, record);
+        m_pendingSize += record.length - ((previous != null) ? previous.length : 0);
+        if (m_pendingSize >= FLUSH_SIZE)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Writes pending classes to the file. Errors are logged and the pending
+     * classes dropped, since they can always be read from the bundle again.
+    **/
+    synchronized void flush()
+    {
+        if (m_pending.isEmpty())
+        {
+            return;
+        }
+        Mapping mapping = m_mapping;
+        try
+        {
+            int size = mapping.m_end + m_pendingSize;
+            if ((mapping.m_end == 0)
+                || ((size >= COMPACT_MIN_SIZE) && (mapping.m_stale > size / 2)))
+            {
+                rewrite(mapping);
+            }
+            else
+            {
+                append(mapping);
+            }
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to write cached classes to " + m_file, ex);
+        }
+        m_mapping = load();
+        m_pending.clear();
+        m_pendingSize = 0;
+    }
+
+    /**
+     * Writes pending classes to the file and releases the mapping of the
+     * file. Classes stored afterwards are ignored.
+    **/
+    synchronized void close()
+    {
+        flush();
+        m_closed = true;
+        m_mapping = EMPTY_MAPPING;
+    }
+
+    private Mapping load()
+    {
+        if (!BundleCache.getSecureAction().fileExists(m_file))
+        {
+            return EMPTY_MAPPING;
+        }
+        try
+        {
+            ByteBuffer buffer;
+            FileInputStream fis = BundleCache.getSecureAction().getFileInputStream(m_file);
+            try
+            {
+                FileChannel channel = fis.getChannel();
+                long size = channel.size();
+                if ((size < HEADER_SIZE) || (size > Integer.MAX_VALUE))
+                {
+                    return EMPTY_MAPPING;
+                }
+                if (BundleCache.isMappingSupported())
+                {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                else
+                {
+                    buffer = ByteBuffer.allocate((int) size);
+                    while (buffer.hasRemaining() && (channel.read(buffer) >= 0))
+                    {
+                        // Keep reading.
+                    }
+                    buffer.clear();
+                }
+            }
+            finally
+            {
+                // A mapping stays valid after the channel is closed.
+                fis.close();
+            }
+
+            if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)
+                || (buffer.getLong(8) != m_jarSize)
+                || (buffer.getLong(16) != m_jarLastModified))
+            {
+                m_logger.log(Logger.LOG_DEBUG,
+                    "Discarding cached classes of changed bundle in " + m_file);
+                return EMPTY_MAPPING;
+            }
+
+            Map<String, Integer> records = new HashMap<String, Integer>();
+            int stale = 0;
+            int offset = HEADER_SIZE;
+            int limit = buffer.limit();
+            while (limit - offset >= RECORD_OVERHEAD)
+            {
+                int length = buffer.getInt(offset);
+                if ((length < KEY_LENGTH + 2)
+                    || (length > limit - offset - RECORD_OVERHEAD))
+                {
+                    break;
+                }
+                int nameOffset = offset + RECORD_OVERHEAD + KEY_LENGTH;
+                int nameLength = buffer.getShort(nameOffset) & 0xFFFF;
+                if (nameLength > length - KEY_LENGTH - 2)
+                {
+                    break;
+                }
+                byte[] name = new byte[nameLength];
+                ByteBuffer dup = buffer.duplicate();
+                dup.position(nameOffset + 2);
+                dup.get(name);
+                Integer previous = records.put(new String(name, "UTF-8"), offset);
+                if (previous != null)
+                {
+                    stale += RECORD_OVERHEAD + buffer.getInt(previous);
+                }
+                offset += RECORD_OVERHEAD + length;
+            }
+            return new Mapping(buffer, records, offset, stale);
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_DEBUG,
+                "Unable to read cached classes from " + m_file, ex);
+            return EMPTY_MAPPING;
+        }
+    }
+
+    private void append(Mapping mapping) throws IOException
+    {
+        FileOutputStream os =
+            BundleCache.getSecureAction().getFileOutputStream(m_file, true);
+        try
+        {
+            // Drop a partially written record.
+            if (os.getChannel().size() > mapping.m_end)
+            {
+                os.getChannel().truncate(mapping.m_end);
+            }
+            writePending(os);
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    private void rewrite(Mapping mapping) throws IOException
+    {
+        File tmp = new File(m_file.getPath() + TMP_SUFFIX);
+        OutputStream os = BundleCache.getSecureAction().getFileOutputStream(tmp);
+        try
+        {
+            DataOutputStream dos = new DataOutputStream(os);
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(m_jarSize);
+            dos.writeLong(m_jarLastModified);
+            dos.flush();
+            // Copy the live records not replaced by pending ones.
+            List<Integer> offsets = new ArrayList<Integer>();
+            for (Map.Entry<String, Integer> entry : mapping.m_records.entrySet())
+            {
+                if (!m_pending.containsKey(entry.getKey()))
+                {
+                    offsets.add(entry.getValue());
+                }
+            }
+            Collections.sort(offsets);
+            for (Integer offset : offsets)
+            {
+                byte[] record = new byte[RECORD_OVERHEAD + mapping.m_buffer.getInt(offset)];
+                ByteBuffer dup = mapping.m_buffer.duplicate();
+                dup.position(offset);
+                dup.get(record);
+                os.write(record);
+            }
+            writePending(os);
+        }
+        finally
+        {
+            os.close();
+        }
+        BundleCache.getSecureAction().deleteFile(m_file);
+        if (!BundleCache.getSecureAction().renameFile(tmp, m_file))
+        {
+            BundleCache.getSecureAction().deleteFile(tmp);
+            throw new IOException("Unable to rename " + tmp + " to " + m_file);
+        }
+    }
+
+    private void writePending(OutputStream os) throws IOException
+    {
+        byte[] buffer = new byte[Math.min(m_pendingSize, FLUSH_SIZE)];
+        int length = 0;
+        for (byte[] record : m_pending.values())
+        {
+            if (length + record.length > buffer.length)
+            {
+                os.write(buffer, 0, length);
+                length = 0;
+            }
+            if (record.length > buffer.length)
+            {
+                os.write(record);
+            }
+            else
+            {
+                System.arraycopy(record, 0, buffer, length, record.length);
+                length += record.length;
+            }
+        }
+        os.write(buffer, 0, length);
+    }
+
+    private static byte[] encode(
+        String name, byte[] key, byte[] bytes, List<String> dynamicImports)
+        throws IOException
+    {
+        ByteArrayOutputStream baos =
+            new ByteArrayOutputStream(RECORD_OVERHEAD + KEY_LENGTH + bytes.length + 128);
+        DataOutputStream dos = new DataOutputStream(baos);
+        // Placeholder for length and checksum.
+        dos.writeInt(0);
+        dos.writeLong(0);
+        dos.write(key, 0, KEY_LENGTH);
+        writeString(dos, name);
+        int count = (dynamicImports != null) ? dynamicImports.size() : 0;
+        dos.writeShort(count);
+        for (int i = 0; i < count; i++)
+        {
+            writeString(dos, dynamicImports.get(i));
+        }
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+        dos.flush();
+
+        byte[] record = baos.toByteArray();
+        int length = record.length - RECORD_OVERHEAD;
+        long checksum = checksum(record, RECORD_OVERHEAD, length);
+        ByteBuffer.wrap(record).putInt(length).putLong(checksum);
+        return record;
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        if (bytes.length > 0xFFFF)
+        {
+            throw new IOException("String too long: " + s);
+        }
+        dos.writeShort(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static Entry decode(byte[] record, int offset, int length)
+    {
+        try
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(record, offset, length);
+            buffer.position(offset + KEY_LENGTH);
+            // Skip the name.
+            int nameLength = buffer.getShort() & 0xFFFF;
+            buffer.position(buffer.position() + nameLength);
+            int count = buffer.getShort() & 0xFFFF;
+            List<String> dynamicImports = (count == 0)
+                ? Collections.<String>emptyList() : new ArrayList<String>(count);
+            for (int i = 0; i < count; i++)
+            {
+                int stringLength = buffer.getShort() & 0xFFFF;
+                dynamicImports.add(
+                    new String(record, buffer.position(), stringLength, "UTF-8"));
+                buffer.position(buffer.position() + stringLength);
+            }
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new Entry(bytes, dynamicImports);
+        }
+        catch (Exception ex)
+        {
+            // Malformed record despite a valid checksum; treat as a miss.
+            return null;
+        }
+    }
+
+    private static boolean matches(byte[] record, int offset, byte[] key)
+    {
+        for (int i = 0; i < KEY_LENGTH; i++)
+        {
+            if (record[offset + i] != key[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long checksum(byte[] bytes, int offset, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+}
@@ -52,6 +52,8 @@ class JarRevision extends BundleArchiveRevision
     private final WeakZipFileFactory m_zipFactory;
     private final File m_bundleFile;
     private final WeakZipFile m_zipFile;
+    private final boolean m_isMapped;
+    private BytecodeCache m_bytecodeCache;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -61,6 +63,9 @@ class JarRevision extends BundleArchiveRevision
         super(logger, configMap, revisionRootDir, location);
 
         m_zipFactory = zipFactory;
+        m_isMapped = "true".equalsIgnoreCase(
+            (String) configMap.get(BundleCache.CACHE_MMAP_PROP))
+            && BundleCache.isMappingSupported();
 
         if (byReference)
         {
@@ -107,12 +112,44 @@ class JarRevision extends BundleArchiveRevision
 
     public synchronized Content getContent() throws Exception
     {
+        if (m_isMapped)
+        {
+            try
+            {
+                return new MappedJarContent(getLogger(), getConfig(), m_zipFactory,
+                    this, getRevisionRootDir(), m_bundleFile);
+            }
+            catch (IOException ex)
+            {
+                getLogger().log(
+                    Logger.LOG_DEBUG,
+                    "Unable to map bundle JAR file, using zip file instead.", ex);
+            }
+        }
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
             this, getRevisionRootDir(), m_bundleFile, m_zipFile);
     }
 
+    public synchronized BytecodeCache getBytecodeCache()
+    {
+        if ((m_bytecodeCache == null) && "true".equalsIgnoreCase(
+            (String) getConfig().get(BundleCache.CACHE_BYTECODE_PROP)))
+        {
+            m_bytecodeCache = new BytecodeCache(
+                getLogger(), getRevisionRootDir(), m_bundleFile);
+        }
+        return m_bytecodeCache;
+    }
+
     protected void close() throws Exception
     {
+        synchronized (this)
+        {
+            if (m_bytecodeCache != null)
+            {
+                m_bytecodeCache.close();
+            }
+        }
         m_zipFile.close();
     }
 
@@ -0,0 +1,687 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+/**
+ * <p>
+ * This class implements a content for a JAR file by memory mapping it
+ * instead of opening it as a <tt>ZipFile</tt>. The central directory is
+ * parsed once into an index from entry names to their central directory
+ * records, so lookups do not need a file handle or any locking. Stored
+ * entries are served directly from the mapped buffer, while deflated
+ * entries are inflated from it.
+ * </p>
+ * <p>
+ * The mapping is released when the buffer is garbage collected, not when
+ * the content is closed. Since Windows does not allow deleting a mapped
+ * file, <tt>JarRevision</tt> never uses this class there; see
+ * <tt>BundleCache.isMappingSupported()</tt>. JAR files that cannot be
+ * mapped or use features not supported here (e.g., ZIP64 or encryption)
+ * are rejected with an <tt>IOException</tt>, so callers can fall back to
+ * <tt>JarContent</tt>.
+ * </p>
+**/
+public class MappedJarContent implements Content
+{
+    private static final int BUFSIZE = 4096;
+    private static final transient String EMBEDDED_DIRECTORY = "-embedded";
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final Logger m_logger;
+    private final Map m_configMap;
+    private final WeakZipFileFactory m_zipFactory;
+    private final Object m_revisionLock;
+    private final File m_rootDir;
+    private final File m_file;
+    private final Index m_index;
+    private JarContent m_libContent;
+
+    public MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file) throws IOException
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, file, new Index(file));
+    }
+
+    private MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, Index index)
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_zipFactory = zipFactory;
+        m_revisionLock = revisionLock;
+        m_rootDir = rootDir;
+        m_file = file;
+        m_index = index;
+    }
+
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (m_libContent != null)
+            {
+                m_libContent.close();
+                m_libContent = null;
+            }
+        }
+    }
+
+    public boolean hasEntry(String name) throws IllegalStateException
+    {
+        return m_index.find(name) >= 0;
+    }
+
+    public Enumeration<String> getEntries()
+    {
+        // Spec says to return null if there are no entries.
+        return (m_index.m_names.length > 0)
+            ? Collections.enumeration(Arrays.asList(m_index.m_names)) : null;
+    }
+
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
+    {
+        int entry = m_index.find(name);
+        if (entry < 0)
+        {
+            return null;
+        }
+
+        try
+        {
+            ByteBuffer data = m_index.getData(entry);
+            byte[] bytes = new byte[m_index.getSize(entry)];
+            if (m_index.getMethod(entry) == STORED)
+            {
+                data.get(bytes);
+            }
+            else
+            {
+                inflate(data, bytes);
+            }
+            return bytes;
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "MappedJarContent: Unable to read bytes.", ex);
+            return null;
+        }
+    }
+
+    public InputStream getEntryAsStream(String name)
+        throws IllegalStateException, IOException
+    {
+        int entry = m_index.find(name);
+        if (entry < 0)
+        {
+            return null;
+        }
+
+        InputStream is = new ByteBufferInputStream(m_index.getData(entry));
+        if (m_index.getMethod(entry) == DEFLATED)
+        {
+            is = new EntryInflaterInputStream(is, m_index.getSize(entry));
+        }
+        return is;
+    }
+
+    public URL getEntryAsURL(String name)
+    {
+        try
+        {
+            return new URL("jar:" + m_file.toURI().toURL().toExternalForm() + "!/" + name);
+        }
+        catch (MalformedURLException e)
+        {
+            return null;
+        }
+    }
+
+    public Content getEntryAsContent(String entryName)
+    {
+        // If the entry name refers to the content itself, then
+        // just return it immediately; the index is immutable and
+        // can be shared.
+        if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
+        {
+            return new MappedJarContent(m_logger, m_configMap, m_zipFactory,
+                m_revisionLock, m_rootDir, m_file, m_index);
+        }
+
+        // Remove any leading slash.
+        entryName = (entryName.startsWith("/")) ? entryName.substring(1) : entryName;
+
+        // Any embedded JAR files will be extracted to the embedded directory.
+        // Since embedded JAR file names may clash when extracting from multiple
+        // embedded JAR files, the embedded directory is per embedded JAR file.
+        File embedDir = new File(m_rootDir, m_file.getName() + EMBEDDED_DIRECTORY);
+
+        // Determine if the entry is an emdedded JAR file or
+        // directory in the bundle JAR file. Ignore any entries
+        // that do not exist per the spec.
+        int entry = m_index.find(entryName);
+        if (entry < 0)
+        {
+            return null;
+        }
+        String name = m_index.m_names[entry];
+        if (name.endsWith("/"))
+        {
+            File extractDir = new File(embedDir, entryName);
+
+            // Extracting an embedded directory file impacts all other existing
+            // contents for this revision, so we have to grab the revision
+            // lock first before trying to create a directory for an embedded
+            // directory to avoid a race condition.
+            synchronized (m_revisionLock)
+            {
+                if (!BundleCache.getSecureAction().fileExists(extractDir))
+                {
+                    if (!BundleCache.getSecureAction().mkdirs(extractDir))
+                    {
+                        m_logger.log(
+                            Logger.LOG_ERROR,
+                            "Unable to extract embedded directory.");
+                    }
+                }
+            }
+            return new ContentDirectoryContent(this, entryName);
+        }
+        else if (name.endsWith(".jar"))
+        {
+            File extractJar = new File(embedDir, entryName);
+
+            // Extracting the embedded JAR file impacts all other existing
+            // contents for this revision, so we have to grab the revision
+            // lock first before trying to extract the embedded JAR file
+            // to avoid a race condition.
+            synchronized (m_revisionLock)
+            {
+                try
+                {
+                    extractEmbeddedJar(entryName, extractJar);
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(
+                        Logger.LOG_ERROR,
+                        "Unable to extract embedded JAR file.", ex);
+                }
+            }
+            try
+            {
+                return new MappedJarContent(
+                    m_logger, m_configMap, m_zipFactory, m_revisionLock,
+                    extractJar.getParentFile(), extractJar);
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(
+                    Logger.LOG_DEBUG,
+                    "Unable to map embedded JAR file, using zip file instead.", ex);
+                return new JarContent(
+                    m_logger, m_configMap, m_zipFactory, m_revisionLock,
+                    extractJar.getParentFile(), extractJar, null);
+            }
+        }
+
+        // The entry is neither a directory nor a JAR file.
+        return null;
+    }
+
+    public String getEntryAsNativeLibrary(String entryName)
+    {
+        // Native libraries are rarely requested and have to be extracted
+        // anyway, so leave this to a zip file based content over the same
+        // file, which extracts into the same library directory.
+        JarContent libContent;
+        synchronized (this)
+        {
+            if (m_libContent == null)
+            {
+                m_libContent = new JarContent(m_logger, m_configMap, m_zipFactory,
+                    m_revisionLock, m_rootDir, m_file, null);
+            }
+            libContent = m_libContent;
+        }
+        return libContent.getEntryAsNativeLibrary(entryName);
+    }
+
+    public String toString()
+    {
+        return "JAR " + m_file.getPath();
+    }
+
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * This method extracts an embedded JAR file from the bundle's
+     * JAR file.
+     * @param jarPath the path to the embedded JAR file inside the bundle JAR file.
+     * @param jarFile the file to extract the embedded JAR file to.
+    **/
+    private void extractEmbeddedJar(String jarPath, File jarFile)
+        throws Exception
+    {
+        if (!BundleCache.getSecureAction().fileExists(jarFile))
+        {
+            // Make sure that the embedded JAR's parent directory exists;
+            // it may be in a sub-directory.
+            File jarDir = jarFile.getParentFile();
+            if (!BundleCache.getSecureAction().fileExists(jarDir))
+            {
+                if (!BundleCache.getSecureAction().mkdirs(jarDir))
+                {
+                    throw new IOException("Unable to create embedded JAR directory.");
+                }
+            }
+
+            // Extract embedded JAR into its directory.
+            InputStream is = getEntryAsStream(jarPath);
+            if (is == null)
+            {
+                throw new IOException("No input stream: " + jarPath);
+            }
+            // Copy the file; this closes the stream.
+            BundleCache.copyStreamToFile(
+                new BufferedInputStream(is, BundleCache.BUFSIZE), jarFile);
+        }
+    }
+
+    private static void inflate(ByteBuffer data, byte[] bytes) throws IOException
+    {
+        Inflater inf = new Inflater(true);
+        try
+        {
+            byte[] buf = new byte[Math.min(BUFSIZE, data.remaining() + 1)];
+            boolean padded = false;
+            int off = 0;
+            while (!inf.finished() && (off < bytes.length))
+            {
+                if (inf.needsInput())
+                {
+                    int len = Math.min(buf.length, data.remaining());
+                    if (len > 0)
+                    {
+                        data.get(buf, 0, len);
+                    }
+                    // The inflater needs an extra dummy byte at
+                    // the end of the input when there is no header.
+                    else if (!padded)
+                    {
+                        buf[0] = 0;
+                        len = 1;
+                        padded = true;
+                    }
+                    else
+                    {
+                        throw new EOFException("Unexpected end of ZLIB input stream");
+                    }
+                    inf.setInput(buf, 0, len);
+                }
+                try
+                {
+                    off += inf.inflate(bytes, off, bytes.length - off);
+                }
+                catch (DataFormatException ex)
+                {
+                    throw new ZipException(ex.getMessage());
+                }
+                if (inf.needsDictionary())
+                {
+                    throw new ZipException("Unsupported preset dictionary");
+                }
+            }
+            if (off != bytes.length)
+            {
+                throw new ZipException("Invalid entry size");
+            }
+        }
+        finally
+        {
+            inf.end();
+        }
+    }
+
+    /**
+     * Immutable index over the central directory of a mapped JAR file. Entry
+     * details are read from the mapped central directory records on demand,
+     * only the names and record offsets are kept on the heap. The buffer is
+     * only ever accessed using absolute gets or duplicates, which makes
+     * it safe to share between threads.
+    **/
+    private static final class Index
+    {
+        private final ByteBuffer m_buffer;
+        private final int m_base;
+        private final Map<String, Integer> m_entries;
+        private final String[] m_names;
+        private final int[] m_records;
+
+        Index(File file) throws IOException
+        {
+            FileInputStream fis = BundleCache.getSecureAction().getFileInputStream(file);
+            try
+            {
+                FileChannel channel = fis.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE)
+                {
+                    throw new IOException("JAR file too large to map: " + file);
+                }
+                m_buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            finally
+            {
+                // The mapping stays valid after the channel is closed.
+                fis.close();
+            }
+
+            try
+            {
+                int end = findEnd();
+                int count = getShort(end + 10);
+                long cenSize = getInt(end + 12);
+                long cenOffset = getInt(end + 16);
+                if ((count == 0xFFFF) || (cenSize == 0xFFFFFFFFL)
+                    || (cenOffset == 0xFFFFFFFFL))
+                {
+                    throw new ZipException("ZIP64 is not supported: " + file);
+                }
+                // Account for any data prepended to the archive.
+                m_base = (int) (end - cenSize - cenOffset);
+                if (m_base < 0)
+                {
+                    throw new ZipException("Invalid central directory: " + file);
+                }
+
+                m_entries = new HashMap<String, Integer>(count * 4 / 3 + 1);
+                m_names = new String[count];
+                m_records = new int[count];
+
+                ByteBuffer dup = m_buffer.duplicate();
+                int pos = (int) (m_base + cenOffset);
+                for (int i = 0; i < count; i++)
+                {
+                    if (m_buffer.getInt(pos) != CENSIG)
+                    {
+                        throw new ZipException("Invalid central directory: " + file);
+                    }
+                    int method = getShort(pos + 10);
+                    if (((getShort(pos + 8) & 1) != 0)
+                        || ((method != STORED) && (method != DEFLATED)))
+                    {
+                        throw new ZipException("Unsupported entry format: " + file);
+                    }
+                    int nameLen = getShort(pos + 28);
+                    byte[] name = new byte[nameLen];
+                    dup.position(pos + CENHDR);
+                    dup.get(name);
+                    m_names[i] = new String(name, "UTF-8");
+                    m_records[i] = pos;
+                    if (!m_entries.containsKey(m_names[i]))
+                    {
+                        m_entries.put(m_names[i], new Integer(i));
+                    }
+                    pos += CENHDR + nameLen + getShort(pos + 30) + getShort(pos + 32);
+                }
+            }
+            catch (IndexOutOfBoundsException ex)
+            {
+                throw new ZipException("Invalid central directory: " + file);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                throw new ZipException("Invalid central directory: " + file);
+            }
+        }
+
+        /**
+         * Returns the index of the named entry or -1. Like <tt>ZipFile</tt>,
+         * a name without trailing slash also finds the directory entry.
+        **/
+        int find(String name)
+        {
+            Integer entry = m_entries.get(name);
+            if ((entry == null) && !name.endsWith("/"))
+            {
+                entry = m_entries.get(name + "/");
+            }
+            return (entry == null) ? -1 : entry.intValue();
+        }
+
+        int getMethod(int entry)
+        {
+            return getShort(m_records[entry] + 10);
+        }
+
+        int getSize(int entry) throws ZipException
+        {
+            long size = getInt(m_records[entry] + 24);
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new ZipException("Entry too large: " + m_names[entry]);
+            }
+            return (int) size;
+        }
+
+        /**
+         * Returns a buffer positioned over the raw data of the entry. This
+         * is a view of the mapped file, no data is copied.
+        **/
+        ByteBuffer getData(int entry) throws ZipException
+        {
+            int record = m_records[entry];
+            int loc = m_base + (int) getInt(record + 42);
+            try
+            {
+                if (m_buffer.getInt(loc) != LOCSIG)
+                {
+                    throw new ZipException("Invalid local header: " + m_names[entry]);
+                }
+                int start = loc + LOCHDR + getShort(loc + 26) + getShort(loc + 28);
+                ByteBuffer data = m_buffer.duplicate();
+                data.limit(start + (int) getInt(record + 20));
+                data.position(start);
+                return data.slice();
+            }
+            catch (IndexOutOfBoundsException ex)
+            {
+                throw new ZipException("Invalid local header: " + m_names[entry]);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                throw new ZipException("Invalid local header: " + m_names[entry]);
+            }
+        }
+
+        private int findEnd() throws ZipException
+        {
+            int min = Math.max(0, m_buffer.limit() - ENDHDR - 0xFFFF);
+            for (int pos = m_buffer.limit() - ENDHDR; pos >= min; pos--)
+            {
+                if ((m_buffer.getInt(pos) == ENDSIG)
+                    && (pos + ENDHDR + getShort(pos + 20) <= m_buffer.limit()))
+                {
+                    return pos;
+                }
+            }
+            throw new ZipException("No central directory found.");
+        }
+
+        private int getShort(int pos)
+        {
+            return m_buffer.getShort(pos) & 0xFFFF;
+        }
+
+        private long getInt(int pos)
+        {
+            return m_buffer.getInt(pos) & 0xFFFFFFFFL;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer m_buffer;
+        private int m_mark;
+
+        public ByteBufferInputStream(ByteBuffer buffer)
+        {
+            m_buffer = buffer;
+        }
+
+        public int read()
+        {
+            return m_buffer.hasRemaining() ? (m_buffer.get() & 0xFF) : -1;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!m_buffer.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, m_buffer.remaining());
+            m_buffer.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n)
+        {
+            int len = (int) Math.max(0, Math.min(n, m_buffer.remaining()));
+            m_buffer.position(m_buffer.position() + len);
+            return len;
+        }
+
+        public int available()
+        {
+            return m_buffer.remaining();
+        }
+
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        public void mark(int readlimit)
+        {
+            m_mark = m_buffer.position();
+        }
+
+        public void reset()
+        {
+            m_buffer.position(m_mark);
+        }
+    }
+
+    private static class EntryInflaterInputStream extends InflaterInputStream
+    {
+        private final int m_size;
+        private boolean m_padded = false;
+        private boolean m_closed = false;
+
+        public EntryInflaterInputStream(InputStream in, int size)
+        {
+            super(in, new Inflater(true), BUFSIZE);
+            m_size = size;
+        }
+
+        protected void fill() throws IOException
+        {
+            if (in.available() > 0)
+            {
+                super.fill();
+            }
+            // The inflater needs an extra dummy byte at
+            // the end of the input when there is no header.
+            else if (!m_padded)
+            {
+                m_padded = true;
+                buf[0] = 0;
+                len = 1;
+                inf.setInput(buf, 0, len);
+            }
+            else
+            {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+        }
+
+        public int available() throws IOException
+        {
+            if (m_closed)
+            {
+                throw new IOException("Stream closed");
+            }
+            return inf.finished() ? 0 : Math.max(0, m_size - inf.getTotalOut());
+        }
+
+        public void close() throws IOException
+        {
+            if (!m_closed)
+            {
+                m_closed = true;
+                super.close();
+                inf.end();
+            }
+        }
+    }
+}
@@ -29,27 +29,50 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
 
+/**
+ * A set of capabilities, which can be matched against filters. Matching
+ * does not require any locking and can be done concurrently with changes to
+ * the set; callers only need to serialize adding and removing capabilities.
+ * To make this possible, the index buckets and the maps holding them are
+ * concurrent.
+ * <p>
+ * When matching, the indices of all indexed attributes in a conjunction
+ * are intersected, starting with equality terms, before the remaining terms
+ * of the filter are evaluated against the much smaller set of candidates.
+ * Greater-than and less-than terms, like the ones of version ranges, are
+ * resolved with a sorted view of the index.
+**/
 public class CapabilitySet
 {
-    private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
-    private final Set<BundleCapability> m_capSet = new HashSet<BundleCapability>();
+    // Range terms are only resolved with an index when the equality terms
+    // leave more than this many candidates, since scanning a few candidates
+    // is cheaper than collecting a range of index buckets.
+    private static final int RANGE_INDEX_THRESHOLD = 32;
+
+    private final Map<String, Index> m_indices;
+    private final Map<BundleCapability, Boolean> m_capMap =
+        new ConcurrentHashMap<BundleCapability, Boolean>();
+    private final Set<BundleCapability> m_capSet = m_capMap.keySet();
     private final static SecureAction m_secureAction = new SecureAction();
 
 public void dump()
 {
-    for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+    for (Entry<String, Index> entry : m_indices.entrySet())
     {
         boolean header1 = false;
-        for (Entry<Object, Set<BundleCapability>> entry2 : entry.getValue().entrySet())
+        for (Entry<Object, Map<BundleCapability, Boolean>> entry2 : entry.getValue().entrySet())
         {
             boolean header2 = false;
-            for (BundleCapability cap : entry2.getValue())
+            for (BundleCapability cap : entry2.getValue().keySet())
             {
                 if (cap.getRevision().getBundle().getBundleId() != 0)
                 {
@@ -73,22 +96,20 @@ public void dump()
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
     {
         m_indices = (caseSensitive)
-            ? new TreeMap<String, Map<Object, Set<BundleCapability>>>()
-            : new TreeMap<String, Map<Object, Set<BundleCapability>>>(
-                new StringComparator(false));
+            ? new TreeMap<String, Index>()
+            : new TreeMap<String, Index>(new StringComparator(false));
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
-            m_indices.put(
-                indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
+            m_indices.put(indexProps.get(i), new Index());
         }
     }
 
     public void addCapability(BundleCapability cap)
     {
-        m_capSet.add(cap);
+        m_capMap.put(cap, Boolean.TRUE);
 
         // Index capability.
-        for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+        for (Entry<String, Index> entry : m_indices.entrySet())
         {
             Object value = cap.getAttributes().get(entry.getKey());
             if (value != null)
@@ -98,7 +119,7 @@ public void dump()
                     value = convertArrayToList(value);
                 }
 
-                Map<Object, Set<BundleCapability>> index = entry.getValue();
+                Index index = entry.getValue();
 
                 if (value instanceof Collection)
                 {
@@ -116,23 +137,22 @@ public void dump()
         }
     }
 
-    private void indexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue)
+    private void indexCapability(Index index, BundleCapability cap, Object capValue)
     {
-        Set<BundleCapability> caps = index.get(capValue);
+        Map<BundleCapability, Boolean> caps = index.get(capValue);
         if (caps == null)
         {
-            caps = new HashSet<BundleCapability>();
-            index.put(capValue, caps);
+            caps = new ConcurrentHashMap<BundleCapability, Boolean>();
+            index.addBucket(capValue, caps);
         }
-        caps.add(cap);
+        caps.put(cap, Boolean.TRUE);
     }
 
     public void removeCapability(BundleCapability cap)
     {
-        if (m_capSet.remove(cap))
+        if (m_capMap.remove(cap) != null)
         {
-            for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+            for (Entry<String, Index> entry : m_indices.entrySet())
             {
                 Object value = cap.getAttributes().get(entry.getKey());
                 if (value != null)
@@ -142,7 +162,7 @@ public void dump()
                         value = convertArrayToList(value);
                     }
 
-                    Map<Object, Set<BundleCapability>> index = entry.getValue();
+                    Index index = entry.getValue();
 
                     if (value instanceof Collection)
                     {
@@ -161,16 +181,15 @@ public void dump()
         }
     }
 
-    private void deindexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value)
+    private void deindexCapability(Index index, BundleCapability cap, Object value)
     {
-        Set<BundleCapability> caps = index.get(value);
+        Map<BundleCapability, Boolean> caps = index.get(value);
         if (caps != null)
         {
             caps.remove(cap);
             if (caps.isEmpty())
             {
-                index.remove(value);
+                index.removeBucket(value);
             }
         }
     }
@@ -193,15 +212,67 @@ public void dump()
         }
         else if (sf.getOperation() == SimpleFilter.AND)
         {
-            // Evaluate each subfilter against the remaining capabilities.
-            // For AND we calculate the intersection of each subfilter.
-            // We can short-circuit the AND operation if there are no
-            // remaining capabilities.
+            // For AND we calculate the intersection of the indices of the
+            // indexed subfilters and evaluate the remaining subfilters against
+            // the resulting candidates. Equality terms are intersected first,
+            // since they are the most selective; we can short-circuit the AND
+            // operation if there are no remaining candidates.
             List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
-            for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
+            Set<BundleCapability> candidates = null;
+            List<SimpleFilter> remaining = new ArrayList<SimpleFilter>(sfs.size());
+            for (int i = 0; i < sfs.size(); i++)
+            {
+                SimpleFilter sf2 = sfs.get(i);
+                Set<BundleCapability> indexed = (sf2.getOperation() == SimpleFilter.EQ)
+                    ? matchIndex(sf2) : null;
+                if (indexed == null)
+                {
+                    remaining.add(sf2);
+                }
+                else if ((candidates = intersect(candidates, indexed)).isEmpty())
+                {
+                    return matches;
+                }
+            }
+            for (int i = 0; i < remaining.size(); i++)
+            {
+                SimpleFilter sf2 = remaining.get(i);
+                Set<BundleCapability> indexed =
+                    ((sf2.getOperation() != SimpleFilter.EQ)
+                        && ((candidates == null)
+                            || (candidates.size() > RANGE_INDEX_THRESHOLD)))
+                    ? matchIndex(sf2) : null;
+                if (indexed != null)
+                {
+                    remaining.remove(i--);
+                    if ((candidates = intersect(candidates, indexed)).isEmpty())
+                    {
+                        return matches;
+                    }
+                }
+            }
+
+            if (candidates != null)
             {
-                matches = match(caps, sfs.get(i));
-                caps = matches;
+                candidates.retainAll(caps);
+            }
+            else
+            {
+                candidates = caps;
+            }
+
+            for (Iterator<BundleCapability> it = candidates.iterator(); it.hasNext(); )
+            {
+                BundleCapability cap = it.next();
+                boolean matched = true;
+                for (int i = 0; matched && (i < remaining.size()); i++)
+                {
+                    matched = matchesInternal(cap, remaining.get(i));
+                }
+                if (matched)
+                {
+                    matches.add(cap);
+                }
             }
         }
         else if (sf.getOperation() == SimpleFilter.OR)
@@ -227,15 +298,11 @@ public void dump()
         }
         else
         {
-            Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
-            if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
+            Set<BundleCapability> indexed = matchIndex(sf);
+            if (indexed != null)
             {
-                Set<BundleCapability> existingCaps = index.get(sf.getValue());
-                if (existingCaps != null)
-                {
-                    matches.addAll(existingCaps);
-                    matches.retainAll(caps);
-                }
+                matches = indexed;
+                matches.retainAll(caps);
             }
             else
             {
@@ -245,7 +312,7 @@ public void dump()
                     Object lhs = cap.getAttributes().get(sf.getName());
                     if (lhs != null)
                     {
-                        if (compare(lhs, sf.getValue(), sf.getOperation()))
+                        if (compare(lhs, sf))
                         {
                             matches.add(cap);
                         }
@@ -257,6 +324,117 @@ public void dump()
         return matches;
     }
 
+    /**
+     * Returns the capabilities matching the specified equality, greater-than
+     * or less-than filter using the index of its attribute.
+     * @param sf The filter to match, which must not be a composite filter.
+     * @return A new set of the matching capabilities or <tt>null</tt> if the
+     *         filter cannot be matched by an index.
+    **/
+    private Set<BundleCapability> matchIndex(SimpleFilter sf)
+    {
+        if ((sf.getOperation() != SimpleFilter.EQ)
+            && (sf.getOperation() != SimpleFilter.GTE)
+            && (sf.getOperation() != SimpleFilter.LTE))
+        {
+            return null;
+        }
+
+        Index index = m_indices.get(sf.getName());
+        if (index == null)
+        {
+            return null;
+        }
+
+        Class<?> type = index.getKeyType();
+        if (type == null)
+        {
+            // There are no indexed capabilities with the attribute.
+            return new HashSet<BundleCapability>();
+        }
+        // We can only look up the value if the index keys are all of the
+        // same type and their equals() is consistent with compareTo().
+        if (!isIndexableType(type))
+        {
+            return null;
+        }
+
+        Object value;
+        try
+        {
+            value = coerceType(type, sf);
+        }
+        catch (Exception ex)
+        {
+            // None of the indexed capabilities match.
+            return new HashSet<BundleCapability>();
+        }
+
+        Set<BundleCapability> matches = new HashSet<BundleCapability>();
+        if (sf.getOperation() == SimpleFilter.EQ)
+        {
+            addBucket(matches, index.get(value));
+        }
+        else
+        {
+            SortedMap<Object, Map<BundleCapability, Boolean>> sorted = index.getSorted();
+            if (sorted == null)
+            {
+                return null;
+            }
+            Map<Object, Map<BundleCapability, Boolean>> range =
+                (sf.getOperation() == SimpleFilter.GTE)
+                    ? sorted.tailMap(value) : sorted.headMap(value);
+            for (Map<BundleCapability, Boolean> caps : range.values())
+            {
+                addBucket(matches, caps);
+            }
+            // The head map excludes the value itself.
+            if (sf.getOperation() == SimpleFilter.LTE)
+            {
+                addBucket(matches, index.get(value));
+            }
+        }
+        return matches;
+    }
+
+    private static void addBucket(
+        Set<BundleCapability> matches, Map<BundleCapability, Boolean> caps)
+    {
+        if (caps != null)
+        {
+            matches.addAll(caps.keySet());
+        }
+    }
+
+    private static Set<BundleCapability> intersect(
+        Set<BundleCapability> caps1, Set<BundleCapability> caps2)
+    {
+        if (caps1 == null)
+        {
+            return caps2;
+        }
+        else if (caps1.size() <= caps2.size())
+        {
+            caps1.retainAll(caps2);
+            return caps1;
+        }
+        caps2.retainAll(caps1);
+        return caps2;
+    }
+
+    private static boolean isIndexableType(Class<?> type)
+    {
+        return (type == String.class)
+            || (type == Version.class)
+            || (type == Integer.class)
+            || (type == Long.class)
+            || (type == Short.class)
+            || (type == Byte.class)
+            || (type == Character.class)
+            || (type == Boolean.class);
+    }
+
     public static boolean matches(BundleCapability cap, SimpleFilter sf)
     {
         return matchesInternal(cap, sf) && matchMandatory(cap, sf);
@@ -309,7 +487,7 @@ public void dump()
             Object lhs = cap.getAttributes().get(sf.getName());
             if (lhs != null)
             {
-                matched = compare(lhs, sf.getValue(), sf.getOperation());
+                matched = compare(lhs, sf);
             }
         }
 
@@ -332,11 +510,12 @@ public void dump()
 
     private static boolean matchMandatory(BundleCapability cap, SimpleFilter sf)
     {
-        Map<String, Object> attrs = cap.getAttributes();
-        for (Entry<String, Object> entry : attrs.entrySet())
+        // Iterate the keys only, which does not create an entry per
+        // attribute for the immutable attribute maps.
+        for (String name : cap.getAttributes().keySet())
         {
-            if (((BundleCapabilityImpl) cap).isAttributeMandatory(entry.getKey())
-                && !matchMandatoryAttrbute(entry.getKey(), sf))
+            if (((BundleCapabilityImpl) cap).isAttributeMandatory(name)
+                && !matchMandatoryAttrbute(name, sf))
             {
                 return false;
             }
@@ -368,8 +547,11 @@ public void dump()
 
     private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
 
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    private static boolean compare(Object lhs, SimpleFilter sf)
     {
+        Object rhsUnknown = sf.getValue();
+        int op = sf.getOperation();
+
         if (lhs == null)
         {
             return false;
@@ -401,7 +583,7 @@ public void dump()
             {
                 try
                 {
-                    rhs = coerceType(lhs, (String) rhsUnknown);
+                    rhs = coerceType(lhs.getClass(), sf);
                 }
                 catch (Exception ex)
                 {
@@ -453,7 +635,7 @@ public void dump()
             Object rhs;
             try
             {
-                rhs = coerceType(lhs, (String) rhsUnknown);
+                rhs = coerceType(lhs.getClass(), sf);
             }
             catch (Exception ex)
             {
@@ -487,7 +669,7 @@ public void dump()
         {
             for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
             {
-                if (compare(iter.next(), rhsUnknown, op))
+                if (compare(iter.next(), sf))
                 {
                     return true;
                 }
@@ -506,7 +688,7 @@ public void dump()
         // equality comparison.
         try
         {
-            return lhs.equals(coerceType(lhs, (String) rhsUnknown));
+            return lhs.equals(coerceType(lhs.getClass(), sf));
         }
         catch (Exception ex)
         {
@@ -542,34 +724,43 @@ public void dump()
         return sb.toString();
     }
 
-    private static Object coerceType(Object lhs, String rhsString) throws Exception
+    private static Object coerceType(Class<?> type, SimpleFilter sf) throws Exception
     {
+        String rhsString = (String) sf.getValue();
+
         // If the LHS expects a string, then we can just return
         // the RHS since it is a string.
-        if (lhs.getClass() == rhsString.getClass())
+        if (type == String.class)
         {
             return rhsString;
         }
 
+        // Avoid constructing the RHS again if it was already converted
+        // to the LHS type.
+        Object rhs = sf.getCoercedValue(type);
+        if (rhs != null)
+        {
+            return rhs;
+        }
+
         // Try to convert the RHS type to the LHS type by using
         // the string constructor of the LHS class, if it has one.
-        Object rhs = null;
         try
         {
             // The Character class is a special case, since its constructor
             // does not take a string, so handle it separately.
-            if (lhs instanceof Character)
+            if (type == Character.class)
             {
                 rhs = new Character(rhsString.charAt(0));
             }
             else
             {
                 // Spec says we should trim number types.
-                if ((lhs instanceof Number) || (lhs instanceof Boolean))
+                if (Number.class.isAssignableFrom(type) || (type == Boolean.class))
                 {
                     rhsString = rhsString.trim();
                 }
-                Constructor ctor = m_secureAction.getConstructor(lhs.getClass(), STRING_CLASS);
+                Constructor ctor = m_secureAction.getConstructor(type, STRING_CLASS);
                 m_secureAction.setAccesssible(ctor);
                 rhs = ctor.newInstance(new Object[] { rhsString });
             }
@@ -578,11 +769,12 @@ public void dump()
         {
             throw new Exception(
                 "Could not instantiate class "
-                    + lhs.getClass().getName()
+                    + type.getName()
                     + " from string constructor with argument '"
                     + rhsString + "' because " + ex);
         }
 
+        sf.setCoercedValue(type, rhs);
         return rhs;
     }
 
@@ -604,4 +796,107 @@ public void dump()
         }
         return list;
     }
-}
\ No newline at end of file
+
+    /**
+     * An attribute index, which maps attribute values to the capabilities
+     * having them. It keeps track of the type of the indexed values, so
+     * filter values can be converted to it, and provides a sorted view for
+     * matching ranges of values. The sorted view is created on demand and
+     * is dropped when the index is modified.
+    **/
+    private static class Index
+    {
+        private final Map<Object, Map<BundleCapability, Boolean>> m_buckets =
+            new ConcurrentHashMap<Object, Map<BundleCapability, Boolean>>();
+        // Type of all indexed values, null if empty and Object if mixed.
+        private volatile Class<?> m_keyType;
+        // CONCURRENCY: Guarded by the index itself, so a sorted view
+        // created concurrently with a modification is not cached.
+        private int m_modCount;
+        private SortedMap<Object, Map<BundleCapability, Boolean>> m_sorted;
+
+        public Class<?> getKeyType()
+        {
+            return m_keyType;
+        }
+
+        public Map<BundleCapability, Boolean> get(Object value)
+        {
+            return m_buckets.get(value);
+        }
+
+        public Set<Entry<Object, Map<BundleCapability, Boolean>>> entrySet()
+        {
+            return m_buckets.entrySet();
+        }
+
+        public void addBucket(Object value, Map<BundleCapability, Boolean> caps)
+        {
+            if (m_keyType == null)
+            {
+                m_keyType = value.getClass();
+            }
+            else if (m_keyType != value.getClass())
+            {
+                m_keyType = Object.class;
+            }
+            m_buckets.put(value, caps);
+            modified();
+        }
+
+        public void removeBucket(Object value)
+        {
+            m_buckets.remove(value);
+            if (m_buckets.isEmpty())
+            {
+                m_keyType = null;
+            }
+            modified();
+        }
+
+        private synchronized void modified()
+        {
+            m_modCount++;
+            m_sorted = null;
+        }
+
+        public SortedMap<Object, Map<BundleCapability, Boolean>> getSorted()
+        {
+            int modCount;
+            synchronized (this)
+            {
+                if (m_sorted != null)
+                {
+                    return m_sorted;
+                }
+                modCount = m_modCount;
+            }
+
+            Class<?> type = m_keyType;
+            if ((type == null) || !Comparable.class.isAssignableFrom(type))
+            {
+                return null;
+            }
+
+            SortedMap<Object, Map<BundleCapability, Boolean>> sorted;
+            try
+            {
+                sorted = new TreeMap<Object, Map<BundleCapability, Boolean>>(m_buckets);
+            }
+            catch (ClassCastException ex)
+            {
+                // A value of another type was added concurrently.
+                return null;
+            }
+
+            synchronized (this)
+            {
+                if (m_modCount == modCount)
+                {
+                    m_sorted = sorted;
+                }
+            }
+            return sorted;
+        }
+    }
+}
@@ -40,6 +40,10 @@ public class SimpleFilter
     private final String m_name;
     private final Object m_value;
     private final int m_op;
+    // Holds the type and value of the last coercion of the filter value,
+    // so comparing against many attributes of the same type only has to
+    // construct the value once; see CapabilitySet.
+    private volatile Object[] m_coerced;
 
     public SimpleFilter(String attr, Object value, int op)
     {
@@ -63,6 +67,17 @@ public class SimpleFilter
         return m_op;
     }
 
+    Object getCoercedValue(Class<?> type)
+    {
+        Object[] coerced = m_coerced;
+        return ((coerced != null) && (coerced[0] == type)) ? coerced[1] : null;
+    }
+
+    void setCoercedValue(Class<?> type, Object value)
+    {
+        m_coerced = new Object[] { type, value };
+    }
+
     public String toString()
     {
         String s = null;
@@ -57,6 +57,9 @@ class Candidates
     private final Map<BundleRevision, WrappedRevision> m_allWrappedHosts;
     // Map used when populating candidates to hold intermediate and final results.
     private final Map<BundleRevision, Object> m_populateResultCache;
+    // Maps a requirement to the providers the resolver looked up for it in
+    // advance; requirements without an entry are passed to the resolve context.
+    private final Map<BundleRequirement, List<BundleCapability>> m_prefetchedProviders;
 
     // Flag to signal if fragments are present in the candidate map.
     private boolean m_fragmentsPresent = false;
@@ -67,13 +70,15 @@ class Candidates
      * @param candidateMap the requirement candidate map.
      * @param hostFragments the fragment map.
      * @param wrappedHosts the wrapped hosts map.
+     * @param prefetchedProviders the providers looked up in advance.
     **/
     private Candidates(
         Set<BundleRevision> mandatoryRevisions,
         Map<BundleCapability, Set<BundleRequirement>> dependentMap,
         Map<BundleRequirement, List<BundleCapability>> candidateMap,
         Map<BundleRevision, WrappedRevision> wrappedHosts, Map<BundleRevision, Object> populateResultCache,
-        boolean fragmentsPresent)
+        boolean fragmentsPresent,
+        Map<BundleRequirement, List<BundleCapability>> prefetchedProviders)
     {
         m_mandatoryRevisions = mandatoryRevisions;
         m_dependentMap = dependentMap;
@@ -81,18 +86,32 @@ class Candidates
         m_allWrappedHosts = wrappedHosts;
         m_populateResultCache = populateResultCache;
         m_fragmentsPresent = fragmentsPresent;
+        m_prefetchedProviders = prefetchedProviders;
     }
 
     /**
      * Constructs an empty Candidates object.
     **/
     public Candidates()
+    {
+        this(Collections.EMPTY_MAP);
+    }
+
+    /**
+     * Constructs an empty Candidates object that populates requirements
+     * from the specified providers, which were looked up in advance, rather
+     * than asking the resolve context again.
+     * @param prefetchedProviders the providers of each requirement, as they
+     *        were returned by the resolve context; the lists are not modified.
+    **/
+    public Candidates(Map<BundleRequirement, List<BundleCapability>> prefetchedProviders)
     {
         m_mandatoryRevisions = new HashSet<BundleRevision>();
         m_dependentMap = new HashMap<BundleCapability, Set<BundleRequirement>>();
         m_candidateMap = new HashMap<BundleRequirement, List<BundleCapability>>();
         m_allWrappedHosts = new HashMap<BundleRevision, WrappedRevision>();
         m_populateResultCache = new HashMap<BundleRevision, Object>();
+        m_prefetchedProviders = prefetchedProviders;
     }
 
     /**
@@ -268,7 +287,7 @@ class Candidates
 
             // Process the candidates, removing any candidates that
             // cannot resolve.
-            List<BundleCapability> candidates = rc.findProviders(req, true);
+            List<BundleCapability> candidates = findProviders(rc, req);
             ResolveException rethrow = processCandidates(rc, revision, candidates);
 
             // First, due to cycles, makes sure we haven't already failed in
@@ -319,6 +338,15 @@ class Candidates
         }
     }
 
+    private List<BundleCapability> findProviders(ResolveContext rc, BundleRequirement req)
+    {
+        // Copy prefetched providers, since processing removes candidates.
+        List<BundleCapability> providers = m_prefetchedProviders.get(req);
+        return (providers != null)
+            ? new ArrayList<BundleCapability>(providers)
+            : rc.findProviders(req, true);
+    }
+
     private boolean populateFragmentOndemand(ResolveContext rc, BundleRevision revision)
         throws ResolveException
     {
@@ -1004,7 +1032,8 @@ class Candidates
 
         return new Candidates(
             m_mandatoryRevisions, dependentMap, candidateMap,
-            m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent);
+            m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent,
+            m_prefetchedProviders);
     }
 
     public void dump()
@@ -24,15 +24,24 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.felix.framework.BundleWiringImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ResolveContextImpl;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.util.DaemonThreadFactory;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
@@ -46,6 +55,16 @@ import org.osgi.framework.wiring.BundleWire;
 public class ResolverImpl implements Resolver
 {
     private final Logger m_logger;
+    // Number of threads used to look up providers and to check package
+    // space consistency; one means only the resolving thread is used.
+    private final int m_threads;
+    // Resolves with fewer revisions to resolve than this are done on the
+    // resolving thread only, since handing out work would cost more than
+    // it saves.
+    private static final int CONCURRENT_RESOLVE_THRESHOLD = 16;
+    // The resolver threads, created on first use and shared by all
+    // resolve operations until the resolver is shut down.
+    private ExecutorService m_executor = null;
 
     // Holds candidate permutations based on permutating "uses" chains.
     // These permutations are given higher priority.
@@ -55,11 +74,65 @@ public class ResolverImpl implements Resolver
     private final List<Candidates> m_importPermutations = new ArrayList<Candidates>();
 
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 1);
+    }
+
+    /**
+     * Creates a resolver that uses up to the specified number of threads
+     * per resolve operation. The threads look up the providers of all
+     * reachable requirements in advance and check the package spaces of
+     * the root revisions, while candidate population and the search for a
+     * consistent permutation remain sequential, so the resulting wiring does
+     * not depend on the number of threads. Threads are only used if the
+     * resolve context is a <tt>ResolveContextImpl</tt> that reports itself
+     * as thread safe and there are enough revisions to resolve. The threads
+     * are created on first use and kept until <tt>shutdown()</tt> is called.
+     * @param logger the logger.
+     * @param threads the number of resolver threads.
+    **/
+    public ResolverImpl(Logger logger, int threads)
     {
         m_logger = logger;
+        m_threads = (threads > 0) ? threads : 1;
+    }
+
+    /**
+     * Stops the resolver threads, if any were created. The resolver remains
+     * usable and creates new threads when they are needed again.
+    **/
+    public void shutdown()
+    {
+        ExecutorService executor;
+        synchronized (this)
+        {
+            executor = m_executor;
+            m_executor = null;
+        }
+        if (executor != null)
+        {
+            executor.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor()
+    {
+        if (m_executor == null)
+        {
+            m_executor = Executors.newFixedThreadPool(
+                m_threads, new DaemonThreadFactory("FelixResolver"));
+        }
+        return m_executor;
     }
 
     public Map<BundleRevision, List<ResolverWire>> resolve(ResolveContext rc)
+    {
+        return resolve(rc, (m_threads > 1) && (rc instanceof ResolveContextImpl)
+            && ((ResolveContextImpl) rc).isThreadSafe());
+    }
+
+    private Map<BundleRevision, List<ResolverWire>> resolve(
+        ResolveContext rc, boolean concurrent)
     {
         Map<BundleRevision, List<ResolverWire>> wireMap =
             new HashMap<BundleRevision, List<ResolverWire>>();
@@ -70,6 +143,44 @@ public class ResolverImpl implements Resolver
         Collection<BundleRevision> optionalRevisions = rc.getOptionalRevisions();
         Collection<BundleRevision> ondemandFragments = (rc instanceof ResolveContextImpl)
             ? ((ResolveContextImpl) rc).getOndemandRevisions() : Collections.EMPTY_LIST;
+
+        // Look up the providers of all requirements reachable from the
+        // revisions to resolve on the resolver threads; since populating
+        // the candidates only consumes them, it remains deterministic.
+        Map<BundleRequirement, List<BundleCapability>> providers =
+            Collections.EMPTY_MAP;
+        ExecutorService executor = null;
+        if (concurrent)
+        {
+            Set<BundleRevision> roots = new LinkedHashSet<BundleRevision>();
+            for (BundleRevision br : mandatoryRevisions)
+            {
+                if (Util.isFragment(br) || (br.getWiring() == null))
+                {
+                    roots.add(br);
+                }
+            }
+            for (BundleRevision br : optionalRevisions)
+            {
+                if (Util.isFragment(br) || (br.getWiring() == null))
+                {
+                    roots.add(br);
+                }
+            }
+            for (BundleRevision br : ondemandFragments)
+            {
+                if (Util.isFragment(br))
+                {
+                    roots.add(br);
+                }
+            }
+            if (roots.size() >= CONCURRENT_RESOLVE_THRESHOLD)
+            {
+                executor = getExecutor();
+                providers = prefetchProviders(rc, executor, roots);
+            }
+        }
+
         boolean retry;
         do
         {
@@ -78,7 +189,7 @@ public class ResolverImpl implements Resolver
             try
             {
                 // Create object to hold all candidates.
-                Candidates allCandidates = new Candidates();
+                Candidates allCandidates = new Candidates(providers);
 
                 // Populate mandatory revisions; since these are mandatory
                 // revisions, failure throws a resolve exception.
@@ -167,6 +278,8 @@ public class ResolverImpl implements Resolver
                         : m_importPermutations.remove(0);
 //allCandidates.dump();
 
+                    List<BundleRevision> targets =
+                        new ArrayList<BundleRevision>(allRevisions.size());
                     for (BundleRevision br : allRevisions)
                     {
                         BundleRevision target = br;
@@ -187,6 +300,14 @@ public class ResolverImpl implements Resolver
 //dumpRevisionPkgMap(revisionPkgMap);
 //System.out.println("+++ PACKAGE SPACES END +++");
 
+                        // With resolver threads, the package spaces are
+                        // checked below once all of them are calculated.
+                        if (executor != null)
+                        {
+                            targets.add(allCandidates.getWrappedHost(target));
+                            continue;
+                        }
+
                         try
                         {
                             checkPackageSpaceConsistency(
@@ -198,6 +319,12 @@ public class ResolverImpl implements Resolver
                             rethrow = ex;
                         }
                     }
+
+                    if (executor != null)
+                    {
+                        rethrow = checkPackageSpacesConcurrently(
+                            rc, executor, targets, allCandidates, revisionPkgMap);
+                    }
                 }
                 while ((rethrow != null)
                     && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
@@ -924,6 +1051,208 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * Looks up the providers of the requirements of the specified revisions
+     * and of all unresolved revisions providing capabilities to them, one
+     * level of the dependency graph after the other. Requirements are handed
+     * out to the resolver threads individually, so a single expensive lookup
+     * does not hold up the others. Requirements that could not be looked up
+     * are simply missing from the result.
+     * @param rc the resolve context.
+     * @param executor the executor of the resolver threads.
+     * @param roots the revisions to resolve.
+     * @return the providers of each reachable requirement.
+    **/
+    private Map<BundleRequirement, List<BundleCapability>> prefetchProviders(
+        final ResolveContext rc, ExecutorService executor, Collection<BundleRevision> roots)
+    {
+        final Map<BundleRequirement, List<BundleCapability>> providers =
+            new ConcurrentHashMap<BundleRequirement, List<BundleCapability>>();
+        Set<BundleRevision> visited = new HashSet<BundleRevision>(roots);
+        List<BundleRevision> level = new ArrayList<BundleRevision>(roots);
+        while (!level.isEmpty())
+        {
+            // Collect the requirements candidate population will look up,
+            // ignoring non-effective and dynamic requirements like it does.
+            final List<BundleRequirement> reqs = new ArrayList<BundleRequirement>();
+            for (BundleRevision br : level)
+            {
+                for (BundleRequirement req : br.getDeclaredRequirements(null))
+                {
+                    String resolution = req.getDirectives().get(Constants.RESOLUTION_DIRECTIVE);
+                    if (rc.isEffective(req)
+                        && ((resolution == null)
+                            || !resolution.equals(FelixConstants.RESOLUTION_DYNAMIC)))
+                    {
+                        reqs.add(req);
+                    }
+                }
+            }
+
+            final AtomicInteger next = new AtomicInteger();
+            Runnable task = new Runnable() {
+                public void run()
+                {
+                    for (int idx = next.getAndIncrement(); idx < reqs.size();
+                        idx = next.getAndIncrement())
+                    {
+                        BundleRequirement req = reqs.get(idx);
+                        List<BundleCapability> caps = rc.findProviders(req, true);
+                        if (caps != null)
+                        {
+                            providers.put(req, caps);
+                        }
+                    }
+                }
+            };
+            if (!awaitAll(submitAll(executor, task)))
+            {
+                break;
+            }
+
+            // The next level consists of the unresolved providers, which
+            // candidate population will descend into.
+            List<BundleRevision> nextLevel = new ArrayList<BundleRevision>();
+            for (BundleRequirement req : reqs)
+            {
+                List<BundleCapability> caps = providers.get(req);
+                if (caps != null)
+                {
+                    for (BundleCapability cap : caps)
+                    {
+                        BundleRevision br = cap.getRevision();
+                        if ((br.getWiring() == null) && visited.add(br))
+                        {
+                            nextLevel.add(br);
+                        }
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+        return providers;
+    }
+
+    /**
+     * Checks the package space consistency of the specified target revisions
+     * on the resolver threads, after their package spaces were calculated.
+     * The checks are done on private resolver instances, so the permutations
+     * they create on failure and their debug output are discarded. Since a
+     * check only has side effects if it fails, the targets that failed are
+     * then checked again in order on this instance, which leaves the same
+     * permutations and reports the same exception as checking all targets
+     * sequentially.
+     * @param rc the resolve context.
+     * @param executor the executor of the resolver threads.
+     * @param targets the wrapped target revisions in resolve order.
+     * @param allCandidates the current candidate permutation.
+     * @param revisionPkgMap the calculated package spaces.
+     * @return the exception of the last inconsistent target or <tt>null</tt>.
+    **/
+    private ResolveException checkPackageSpacesConcurrently(
+        final ResolveContext rc, ExecutorService executor,
+        final List<BundleRevision> targets, final Candidates allCandidates,
+        final Map<BundleRevision, Packages> revisionPkgMap)
+    {
+        final boolean[] consistent = new boolean[targets.size()];
+        final AtomicInteger next = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run()
+            {
+                Logger logger = new Logger();
+                logger.setLogLevel(0);
+                ResolverImpl worker = new ResolverImpl(logger);
+                worker.m_packageSourcesCache.putAll(m_packageSourcesCache);
+                for (int idx = next.getAndIncrement(); idx < targets.size();
+                    idx = next.getAndIncrement())
+                {
+                    try
+                    {
+                        worker.checkPackageSpaceConsistency(
+                            rc, false, targets.get(idx),
+                            allCandidates, revisionPkgMap, new HashMap());
+                        consistent[idx] = true;
+                    }
+                    catch (Throwable th)
+                    {
+                        // Leave it to the calling thread.
+                    }
+                    worker.m_usesPermutations.clear();
+                    worker.m_importPermutations.clear();
+                }
+            }
+        };
+        // If we were interrupted, just check all targets ourselves.
+        boolean[] checked = awaitAll(submitAll(executor, task))
+            ? consistent : new boolean[targets.size()];
+
+        ResolveException rethrow = null;
+        for (int i = 0; i < checked.length; i++)
+        {
+            if (!checked[i])
+            {
+                try
+                {
+                    checkPackageSpaceConsistency(
+                        rc, false, targets.get(i),
+                        allCandidates, revisionPkgMap, new HashMap());
+                }
+                catch (ResolveException ex)
+                {
+                    rethrow = ex;
+                }
+            }
+        }
+        return rethrow;
+    }
+
+    /**
+     * Submits the specified task once per resolver thread. If the executor
+     * is shut down concurrently, fewer tasks are submitted, which is fine
+     * since the calling thread redoes any missing work.
+    **/
+    private List<Future<?>> submitAll(ExecutorService executor, Runnable task)
+    {
+        List<Future<?>> futures = new ArrayList<Future<?>>(m_threads);
+        try
+        {
+            for (int i = 0; i < m_threads; i++)
+            {
+                futures.add(executor.submit(task));
+            }
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // The resolver is being shut down.
+        }
+        return futures;
+    }
+
+    private static boolean awaitAll(List<Future<?>> futures)
+    {
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException ex)
+            {
+                // Ignore, the calling thread redoes any missing work.
+            }
+            catch (InterruptedException ex)
+            {
+                for (Future<?> f : futures)
+                {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void checkPackageSpaceConsistency(
         ResolveContext rc,
         boolean isDynamicImporting,
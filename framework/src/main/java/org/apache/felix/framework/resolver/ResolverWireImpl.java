@@ -22,7 +22,7 @@ import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
 import org.osgi.framework.wiring.BundleRevision;
 
-class ResolverWireImpl implements ResolverWire
+public class ResolverWireImpl implements ResolverWire
 {
     private final BundleRevision m_requirer;
     private final BundleRequirement m_req;
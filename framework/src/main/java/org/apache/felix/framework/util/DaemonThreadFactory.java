@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class creates the daemon threads of the thread pools used by the
+ * framework. The threads are named by the given prefix followed by a
+ * sequence number, such as <tt>FelixResolver-1</tt>.
+**/
+public class DaemonThreadFactory implements ThreadFactory
+{
+    private final String m_prefix;
+    private final AtomicInteger m_count = new AtomicInteger();
+
+    public DaemonThreadFactory(String prefix)
+    {
+        m_prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r)
+    {
+        Thread t = new Thread(r, m_prefix + "-" + m_count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -28,18 +28,27 @@ import java.util.EventListener;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
@@ -64,6 +73,13 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
+    // Index of the service listeners by the objectClass values required by
+    // their filters; listeners that do not require a specific objectClass
+    // are indexed under the null key. Unlike the listener maps, the index
+    // is updated in place and must only be accessed while holding the
+    // dispatcher lock.
+    private final Map<String, List<ListenerInfo>>
+        m_svcListenerIndex = new HashMap<String, List<ListenerInfo>>();
 
     // A single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
@@ -78,14 +94,53 @@ public class EventDispatcher
 
     private static final SecureAction m_secureAction = new SecureAction();
 
+    // Alternatively, a pool of threads owned by this dispatcher is used to
+    // deliver events, with one ordered queue per bundle context.
+    private static final int QUEUE_BATCH_SIZE = 64;
+    private final int m_poolSize;
+    private volatile ExecutorService m_executor = null;
+    private final ConcurrentMap<BundleContext, DispatchQueue> m_queues =
+        new ConcurrentHashMap<BundleContext, DispatchQueue>();
+
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, 0);
+    }
+
+    /**
+     * Creates an event dispatcher. If the pool size is greater than zero,
+     * asynchronous events are not delivered by the shared dispatch thread,
+     * but are put into one queue per bundle context, which are drained by a
+     * pool of threads of the specified size. This preserves the delivery
+     * order for each listener, while a slow listener only delays the events
+     * of its own bundle context.
+     * @param logger The framework logger.
+     * @param registry The service registry.
+     * @param poolSize The number of threads delivering asynchronous events,
+     *        or zero to use the shared dispatch thread.
+    **/
+    public EventDispatcher(Logger logger, ServiceRegistry registry, int poolSize)
     {
         m_logger = logger;
         m_registry = registry;
+        m_poolSize = poolSize;
     }
 
     public void startDispatching()
     {
+        if (m_poolSize > 0)
+        {
+            synchronized (m_queues)
+            {
+                if (m_executor == null)
+                {
+                    m_executor = Executors.newFixedThreadPool(
+                        m_poolSize, new DaemonThreadFactory("FelixDispatchQueue"));
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Start event dispatching thread if necessary.
@@ -124,6 +179,36 @@ public class EventDispatcher
 
     public void stopDispatching()
     {
+        if (m_poolSize > 0)
+        {
+            ExecutorService executor;
+            synchronized (m_queues)
+            {
+                executor = m_executor;
+                m_executor = null;
+            }
+            if (executor != null)
+            {
+                // Let the pool deliver the queued events, since queues
+                // drain themselves on the calling thread once the pool
+                // no longer accepts them.
+                executor.shutdown();
+                try
+                {
+                    while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+                    {
+                        // Keep waiting.
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                m_queues.clear();
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
@@ -258,6 +343,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                indexListenerInfo(m_svcListenerIndex, info, true);
             }
         }
         return null;
@@ -267,6 +353,7 @@ public class EventDispatcher
         BundleContext bc, Class clazz, EventListener l)
     {
         ListenerHook.ListenerInfo returnInfo = null;
+        ListenerInfo removed = null;
 
         // Verify listener.
         if (l == null)
@@ -326,6 +413,7 @@ public class EventDispatcher
                         {
                             returnInfo = new ListenerInfo(infos.get(i), true);
                         }
+                        removed = info;
                         idx = i;
                         break;
                     }
@@ -356,6 +444,21 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                if (removed != null)
+                {
+                    indexListenerInfo(m_svcListenerIndex, removed, false);
+                }
+            }
+        }
+
+        // Drop the delivery statistics of the listener, so the queue
+        // does not keep it reachable.
+        if (removed != null)
+        {
+            DispatchQueue queue = m_queues.get(bc);
+            if (queue != null)
+            {
+                queue.removeStatistics(l);
             }
         }
 
@@ -384,8 +487,70 @@ public class EventDispatcher
             m_syncBndlListeners = removeListenerInfos(m_syncBndlListeners, bc);
 
             // Remove all service listeners associated with the specified bundle.
+            List<ListenerInfo> infos = m_svcListeners.get(bc);
+            if (infos != null)
+            {
+                for (ListenerInfo info : infos)
+                {
+                    indexListenerInfo(m_svcListenerIndex, info, false);
+                }
+            }
             m_svcListeners = removeListenerInfos(m_svcListeners, bc);
         }
+
+        // Events already queued for the bundle context are still delivered;
+        // the queue only leaves the map once it is drained, so a dispatcher
+        // that still holds an old listener snapshot keeps adding to it
+        // instead of creating a second queue for the same bundle context.
+        DispatchQueue queue = m_queues.get(bc);
+        if (queue != null)
+        {
+            queue.close();
+        }
+    }
+
+    private synchronized boolean hasListeners(BundleContext bc)
+    {
+        return m_fwkListeners.containsKey(bc)
+            || m_bndlListeners.containsKey(bc)
+            || m_syncBndlListeners.containsKey(bc)
+            || m_svcListeners.containsKey(bc);
+    }
+
+    private synchronized boolean hasListener(BundleContext bc, EventListener l)
+    {
+        return containsListener(m_fwkListeners.get(bc), l)
+            || containsListener(m_bndlListeners.get(bc), l)
+            || containsListener(m_syncBndlListeners.get(bc), l)
+            || containsListener(m_svcListeners.get(bc), l);
+    }
+
+    private static boolean containsListener(List<ListenerInfo> infos, EventListener l)
+    {
+        for (int i = 0; (infos != null) && (i < infos.size()); i++)
+        {
+            if (infos.get(i).getListener() == l)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns statistics about the event queues of the bundle contexts, if
+     * events are delivered by a pool of threads.
+     * @return The statistics of all event queues, which is empty if events
+     *         are delivered by the shared dispatch thread.
+    **/
+    public List<EventQueueStatistics> getQueueStatistics()
+    {
+        List<EventQueueStatistics> stats = new ArrayList<EventQueueStatistics>();
+        for (DispatchQueue queue : m_queues.values())
+        {
+            stats.add(queue.getStatistics());
+        }
+        return stats;
     }
 
     public Filter updateListener(BundleContext bc, Class clazz, EventListener l, Filter filter)
@@ -425,6 +590,8 @@ public class EventDispatcher
                             info.getSecurityContext(),
                             info.isRemoved());
                         m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
+                        indexListenerInfo(m_svcListenerIndex, info, false);
+                        indexListenerInfo(m_svcListenerIndex, newInfo, true);
                         return oldFilter;
                     }
                 }
@@ -529,11 +696,15 @@ public class EventDispatcher
     public void fireServiceEvent(
         final ServiceEvent event, final Dictionary oldProps, final Framework felix)
     {
-        // Take a snapshot of the listener array.
+        // Take a snapshot of the candidate listeners; only the listeners
+        // indexed under one of the service's classes and the listeners that
+        // could not be indexed can match the event.
+        String[] classes =
+            (String[]) event.getServiceReference().getProperty(Constants.OBJECTCLASS);
         Map<BundleContext, List<ListenerInfo>> listeners = null;
         synchronized (this)
         {
-            listeners = m_svcListeners;
+            listeners = getCandidateListeners(m_svcListenerIndex, classes);
         }
 
         // Use service registry hooks to filter target listeners.
@@ -724,6 +895,14 @@ public class EventDispatcher
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event)
     {
+        // If the dispatcher has its own pool, then queue the event
+        // for every bundle context instead.
+        if (dispatcher.m_poolSize > 0)
+        {
+            dispatcher.queueEvent(type, listeners, event);
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -761,6 +940,52 @@ public class EventDispatcher
         }
     }
 
+    private void queueEvent(
+        int type, Map<BundleContext, List<ListenerInfo>> listeners, EventObject event)
+    {
+        // If the pool is stopped, then ignore dispatch request.
+        ExecutorService executor = m_executor;
+        if (executor == null)
+        {
+            return;
+        }
+
+        for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
+        {
+            Request req = new Request();
+            req.m_dispatcher = this;
+            req.m_type = type;
+            req.m_listeners = Collections.singletonMap(entry.getKey(), entry.getValue());
+            req.m_event = event;
+
+            // A closed queue refuses the request once it has drained and
+            // left the map, in which case a new queue can safely be used.
+            while (true)
+            {
+                boolean created = false;
+                DispatchQueue queue = m_queues.get(entry.getKey());
+                if (queue == null)
+                {
+                    queue = new DispatchQueue(entry.getKey(), m_queues);
+                    DispatchQueue existing = m_queues.putIfAbsent(entry.getKey(), queue);
+                    created = (existing == null);
+                    queue = (existing != null) ? existing : queue;
+                }
+                if (queue.add(req, executor))
+                {
+                    // The listener snapshot may predate the removal of the
+                    // bundle context's listeners, in which case nobody else
+                    // will close the new queue; it still delivers the event.
+                    if (created && !hasListeners(entry.getKey()))
+                    {
+                        queue.close();
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
     private static void fireEventImmediately(
         EventDispatcher dispatcher, int type,
         Map<BundleContext, List<ListenerInfo>> listeners,
@@ -773,44 +998,51 @@ public class EventDispatcher
             {
                 for (ListenerInfo info : entry.getValue())
                 {
-                    Bundle bundle = info.getBundle();
-                    EventListener l = info.getListener();
-                    Filter filter = info.getParsedFilter();
-                    Object acc = info.getSecurityContext();
-
-                    try
-                    {
-                        if (type == Request.FRAMEWORK_EVENT)
-                        {
-                            invokeFrameworkListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.BUNDLE_EVENT)
-                        {
-                            invokeBundleListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.SERVICE_EVENT)
-                        {
-                            invokeServiceListenerCallback(
-                                bundle, l, filter, acc, event, oldProps);
-                        }
-                    }
-                    catch (Throwable th)
-                    {
-                        if ((type != Request.FRAMEWORK_EVENT)
-                            || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
-                        {
-                            dispatcher.m_logger.log(bundle,
-                                Logger.LOG_ERROR,
-                                "EventDispatcher: Error during dispatch.", th);
-                            dispatcher.fireFrameworkEvent(
-                                new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
-                        }
-                    }
+                    deliverEvent(dispatcher, type, info, event, oldProps);
                 }
             }
         }
     }
 
+    private static void deliverEvent(
+        EventDispatcher dispatcher, int type, ListenerInfo info,
+        EventObject event, Dictionary oldProps)
+    {
+        Bundle bundle = info.getBundle();
+        EventListener l = info.getListener();
+        Filter filter = info.getParsedFilter();
+        Object acc = info.getSecurityContext();
+
+        try
+        {
+            if (type == Request.FRAMEWORK_EVENT)
+            {
+                invokeFrameworkListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.BUNDLE_EVENT)
+            {
+                invokeBundleListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.SERVICE_EVENT)
+            {
+                invokeServiceListenerCallback(
+                    bundle, l, filter, acc, event, oldProps);
+            }
+        }
+        catch (Throwable th)
+        {
+            if ((type != Request.FRAMEWORK_EVENT)
+                || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
+            {
+                dispatcher.m_logger.log(bundle,
+                    Logger.LOG_ERROR,
+                    "EventDispatcher: Error during dispatch.", th);
+                dispatcher.fireFrameworkEvent(
+                    new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
+            }
+        }
+    }
+
     private static void invokeFrameworkListenerCallback(
         Bundle bundle, final EventListener l, final EventObject event)
     {
@@ -962,6 +1194,133 @@ public class EventDispatcher
         }
     }
 
+    private static Map<BundleContext, List<ListenerInfo>> getCandidateListeners(
+        Map<String, List<ListenerInfo>> index, String[] classes)
+    {
+        if (index.isEmpty())
+        {
+            return Collections.EMPTY_MAP;
+        }
+
+        classes = (classes == null) ? new String[0] : classes;
+        Map<BundleContext, List<ListenerInfo>> listeners =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        // A listener may be indexed under several classes of the service,
+        // in which case it must only be added once.
+        Set<ListenerInfo> added = (classes.length > 1)
+            ? new HashSet<ListenerInfo>() : null;
+        for (int i = 0; i <= classes.length; i++)
+        {
+            List<ListenerInfo> infos = index.get((i < classes.length) ? classes[i] : null);
+            for (int j = 0; (infos != null) && (j < infos.size()); j++)
+            {
+                ListenerInfo info = infos.get(j);
+                if ((added == null) || added.add(info))
+                {
+                    List<ListenerInfo> bcInfos = listeners.get(info.getBundleContext());
+                    if (bcInfos == null)
+                    {
+                        bcInfos = new ArrayList<ListenerInfo>();
+                        listeners.put(info.getBundleContext(), bcInfos);
+                    }
+                    bcInfos.add(info);
+                }
+            }
+        }
+        return listeners;
+    }
+
+    private static void indexListenerInfo(
+        Map<String, List<ListenerInfo>> index, ListenerInfo info, boolean add)
+    {
+        for (String key : getIndexKeys(info.getSimpleFilter()))
+        {
+            List<ListenerInfo> infos = index.get(key);
+            if (add)
+            {
+                if (infos == null)
+                {
+                    infos = new ArrayList<ListenerInfo>();
+                    index.put(key, infos);
+                }
+                infos.add(info);
+            }
+            else if (infos != null)
+            {
+                for (int i = 0; i < infos.size(); i++)
+                {
+                    if (infos.get(i) == info)
+                    {
+                        infos.remove(i);
+                        break;
+                    }
+                }
+                if (infos.isEmpty())
+                {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the objectClass values under which a service listener with
+     * the specified filter is indexed. A service can only match the filter
+     * if it has one of the returned classes; if the filter does not require
+     * specific classes, the returned list only contains <tt>null</tt>.
+    **/
+    private static List<String> getIndexKeys(SimpleFilter sf)
+    {
+        List<String> keys = (sf != null) ? getRequiredClasses(sf) : null;
+        return (keys == null) ? Collections.singletonList((String) null) : keys;
+    }
+
+    private static List<String> getRequiredClasses(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.EQ:
+                if (sf.getName().equalsIgnoreCase(Constants.OBJECTCLASS)
+                    && (sf.getValue() instanceof String))
+                {
+                    return Collections.singletonList((String) sf.getValue());
+                }
+                return null;
+            case SimpleFilter.AND:
+                // Any required class of a sub-filter is required.
+                for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                {
+                    List<String> keys = getRequiredClasses(child);
+                    if (keys != null)
+                    {
+                        return keys;
+                    }
+                }
+                return null;
+            case SimpleFilter.OR:
+                // Every sub-filter must require a class.
+                List<String> keys = new ArrayList<String>();
+                for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                {
+                    List<String> childKeys = getRequiredClasses(child);
+                    if (childKeys == null)
+                    {
+                        return null;
+                    }
+                    for (String key : childKeys)
+                    {
+                        if (!keys.contains(key))
+                        {
+                            keys.add(key);
+                        }
+                    }
+                }
+                return keys.isEmpty() ? null : keys;
+            default:
+                return null;
+        }
+    }
+
     private static Map<BundleContext, List<ListenerInfo>> addListenerInfo(
         Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo info)
     {
@@ -1101,6 +1460,181 @@ public class EventDispatcher
         }
     }
 
+    /**
+     * Ordered queue of asynchronous events for the listeners of one bundle
+     * context. At most one pool thread drains a queue at any time; after a
+     * batch of events the queue reschedules itself to give other queues a
+     * chance to run. Once its bundle context is gone, the queue is closed
+     * and removes itself from the queue map as soon as it is drained.
+    **/
+    private static class DispatchQueue implements Runnable
+    {
+        private final BundleContext m_context;
+        private final ConcurrentMap<BundleContext, DispatchQueue> m_queues;
+        private final LinkedList<Request> m_requests = new LinkedList<Request>();
+        private final Map<EventListener, long[]> m_stats =
+            new HashMap<EventListener, long[]>();
+        private ExecutorService m_executor = null;
+        private boolean m_scheduled = false;
+        private boolean m_closed = false;
+
+        DispatchQueue(
+            BundleContext context, ConcurrentMap<BundleContext, DispatchQueue> queues)
+        {
+            m_context = context;
+            m_queues = queues;
+        }
+
+        /**
+         * Adds a request to this queue.
+         * @return <tt>false</tt> if the queue is closed and drained, which
+         *         means it no longer accepts requests.
+        **/
+        boolean add(Request req, ExecutorService executor)
+        {
+            synchronized (this)
+            {
+                if (m_closed && !m_scheduled)
+                {
+                    return false;
+                }
+                m_requests.add(req);
+                if (m_scheduled)
+                {
+                    return true;
+                }
+                m_scheduled = true;
+                m_executor = executor;
+            }
+            if (!schedule())
+            {
+                // The pool is shutting down, so deliver the
+                // remaining events on the calling thread.
+                run();
+            }
+            return true;
+        }
+
+        synchronized void close()
+        {
+            m_closed = true;
+            synchronized (m_stats)
+            {
+                m_stats.clear();
+            }
+            if (!m_scheduled)
+            {
+                m_queues.remove(m_context, this);
+            }
+        }
+
+        void removeStatistics(EventListener l)
+        {
+            synchronized (m_stats)
+            {
+                m_stats.remove(l);
+            }
+        }
+
+        private boolean schedule()
+        {
+            try
+            {
+                m_executor.execute(this);
+                return true;
+            }
+            catch (RejectedExecutionException ex)
+            {
+                return false;
+            }
+        }
+
+        public void run()
+        {
+            int count = 0;
+            while (true)
+            {
+                Request req;
+                synchronized (this)
+                {
+                    if (m_requests.isEmpty())
+                    {
+                        m_scheduled = false;
+                        if (m_closed)
+                        {
+                            m_queues.remove(m_context, this);
+                        }
+                        return;
+                    }
+                    req = m_requests.removeFirst();
+                }
+
+                for (ListenerInfo info : req.m_listeners.get(m_context))
+                {
+                    long start = System.nanoTime();
+                    deliverEvent(req.m_dispatcher, req.m_type, info, req.m_event, null);
+                    long time = System.nanoTime() - start;
+                    synchronized (m_stats)
+                    {
+                        long[] stats = m_stats.get(info.getListener());
+                        if (stats == null)
+                        {
+                            // Do not track a listener that was removed
+                            // while the event was delivered to it.
+                            if (!req.m_dispatcher.hasListener(
+                                m_context, info.getListener()))
+                            {
+                                continue;
+                            }
+                            stats = new long[3];
+                            m_stats.put(info.getListener(), stats);
+                        }
+                        stats[0]++;
+                        stats[1] += time;
+                        stats[2] = Math.max(stats[2], time);
+                    }
+                }
+
+                // Give other queues a chance after a batch of events; if
+                // the pool is shutting down, just keep draining.
+                if ((++count % QUEUE_BATCH_SIZE == 0) && schedule())
+                {
+                    return;
+                }
+            }
+        }
+
+        EventQueueStatistics getStatistics()
+        {
+            int depth;
+            synchronized (this)
+            {
+                depth = m_requests.size();
+            }
+            List<EventQueueStatistics.ListenerStatistics> listeners =
+                new ArrayList<EventQueueStatistics.ListenerStatistics>();
+            synchronized (m_stats)
+            {
+                for (Entry<EventListener, long[]> entry : m_stats.entrySet())
+                {
+                    listeners.add(new EventQueueStatistics.ListenerStatistics(
+                        entry.getKey(), entry.getValue()[0],
+                        entry.getValue()[1], entry.getValue()[2]));
+                }
+            }
+            Bundle bundle = null;
+            try
+            {
+                bundle = m_context.getBundle();
+            }
+            catch (IllegalStateException ex)
+            {
+                // The bundle context is no longer valid.
+            }
+            return new EventQueueStatistics(bundle, depth, listeners);
+        }
+    }
+
     private static class Request
     {
         public static final int FRAMEWORK_EVENT = 0;
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.EventListener;
+import java.util.List;
+import org.osgi.framework.Bundle;
+
+/**
+ * Snapshot of the state of one asynchronous event queue of the event
+ * dispatcher, which exists per bundle context when events are delivered
+ * by a pool of threads. It reports the number of queued events and the
+ * delivery latency of each listener of the bundle context, so slow
+ * listeners can be identified.
+**/
+public class EventQueueStatistics
+{
+    private final Bundle m_bundle;
+    private final int m_depth;
+    private final List<ListenerStatistics> m_listeners;
+
+    public EventQueueStatistics(
+        Bundle bundle, int depth, List<ListenerStatistics> listeners)
+    {
+        m_bundle = bundle;
+        m_depth = depth;
+        m_listeners = listeners;
+    }
+
+    /**
+     * Returns the bundle whose listeners are served by the queue.
+    **/
+    public Bundle getBundle()
+    {
+        return m_bundle;
+    }
+
+    /**
+     * Returns the number of events waiting to be delivered.
+    **/
+    public int getQueueDepth()
+    {
+        return m_depth;
+    }
+
+    /**
+     * Returns the delivery statistics of the listeners served by the queue.
+    **/
+    public List<ListenerStatistics> getListenerStatistics()
+    {
+        return m_listeners;
+    }
+
+    public String toString()
+    {
+        return m_bundle + " [depth=" + m_depth + ", listeners=" + m_listeners + "]";
+    }
+
+    public static class ListenerStatistics
+    {
+        private final EventListener m_listener;
+        private final long m_count;
+        private final long m_totalTime;
+        private final long m_maxTime;
+
+        public ListenerStatistics(
+            EventListener listener, long count, long totalTime, long maxTime)
+        {
+            m_listener = listener;
+            m_count = count;
+            m_totalTime = totalTime;
+            m_maxTime = maxTime;
+        }
+
+        public EventListener getListener()
+        {
+            return m_listener;
+        }
+
+        /**
+         * Returns the number of events delivered to the listener.
+        **/
+        public long getDeliveryCount()
+        {
+            return m_count;
+        }
+
+        /**
+         * Returns the accumulated delivery time in nanoseconds.
+        **/
+        public long getTotalTime()
+        {
+            return m_totalTime;
+        }
+
+        /**
+         * Returns the longest delivery time in nanoseconds.
+        **/
+        public long getMaxTime()
+        {
+            return m_maxTime;
+        }
+
+        public String toString()
+        {
+            return m_listener + " [count=" + m_count + ", total="
+                + m_totalTime + "ns, max=" + m_maxTime + "ns]";
+        }
+    }
+}
@@ -47,6 +47,12 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String LOG_LOGGER_PROP = "felix.log.logger";
     String SYSTEMBUNDLE_ACTIVATORS_PROP = "felix.systembundle.activators";
     String BUNDLE_STARTLEVEL_PROP = "felix.startlevel.bundle";
+    String STARTLEVEL_THREADS_PROP = "felix.startlevel.threads";
+    String EVENT_DISPATCH_THREADS_PROP = "felix.events.threads";
+    String RESOLVER_THREADS_PROP = "felix.resolver.threads";
+    String CACHE_LOAD_THREADS_PROP = "felix.cache.load.threads";
+    String LOOKUP_CACHE_SIZE_PROP = "felix.wiring.lookupcache.size";
+    int LOOKUP_CACHE_SIZE_DEFAULT = 0;
     String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
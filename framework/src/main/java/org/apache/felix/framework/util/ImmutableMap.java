@@ -18,15 +18,23 @@
  */
 package org.apache.felix.framework.util;
 
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 public class ImmutableMap<K, V> extends AbstractMap<K, V>
 {
-    final Entry<K, V>[] entries;
+    private static final ImmutableMap EMPTY = new ImmutableMap(new Object[0]);
+
+    // Keys and values are stored alternately in a single array, which
+    // takes much less memory than a hash map for the small maps holding
+    // the directives and attributes of capabilities and requirements.
+    final Object[] table;
 
     public static <K, V> ImmutableMap<K, V> newInstance(Entry<K, V>... entries)
     {
@@ -39,6 +47,10 @@ public class ImmutableMap<K, V> extends AbstractMap<K, V>
         {
             return (ImmutableMap<K, V>) entries;
         }
+        else if (entries.isEmpty())
+        {
+            return EMPTY;
+        }
         else
         {
             return new ImmutableMap<K, V>(entries);
@@ -47,12 +59,28 @@ public class ImmutableMap<K, V> extends AbstractMap<K, V>
 
     protected ImmutableMap(Entry<K, V>[] entries)
     {
-        this.entries = entries.clone();
+        this.table = new Object[entries.length * 2];
+        for (int i = 0; i < entries.length; i++)
+        {
+            table[i * 2] = entries[i].getKey();
+            table[i * 2 + 1] = entries[i].getValue();
+        }
     }
 
     protected ImmutableMap(Map<K, V> map)
     {
-        this.entries = map.entrySet().toArray(new Entry[map.size()]);
+        this.table = new Object[map.size() * 2];
+        int i = 0;
+        for (Entry<K, V> entry : map.entrySet())
+        {
+            table[i++] = entry.getKey();
+            table[i++] = entry.getValue();
+        }
+    }
+
+    private ImmutableMap(Object[] table)
+    {
+        this.table = table;
     }
 
     @Override
@@ -60,33 +88,66 @@ public class ImmutableMap<K, V> extends AbstractMap<K, V>
     {
         if (key == null)
         {
-            for (int i = 0; i < entries.length; i++)
+            for (int i = 0; i < table.length; i += 2)
             {
-                if (entries[i].getKey() == null)
+                if (table[i] == null)
                 {
-                    return entries[i].getValue();
+                    return (V) table[i + 1];
                 }
             }
         }
         else
         {
-            for (int i = 0; i < entries.length; i++)
+            for (int i = 0; i < table.length; i += 2)
             {
-                if (key.equals(entries[i].getKey()))
+                if (key.equals(table[i]))
                 {
-                    return entries[i].getValue();
+                    return (V) table[i + 1];
                 }
             }
         }
         return null;
     }
 
+    @Override
+    public boolean containsKey(Object key)
+    {
+        for (int i = 0; i < table.length; i += 2)
+        {
+            if ((key == null) ? (table[i] == null) : key.equals(table[i]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size()
+    {
+        return table.length / 2;
+    }
+
     @Override
     public Set<Entry<K, V>> entrySet()
     {
         return new EntrySet();
     }
 
+    // The key and value views iterate the table directly instead of
+    // creating an entry for each element like the entry set does.
+    @Override
+    public Set<K> keySet()
+    {
+        return new KeySet();
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        return new Values();
+    }
+
     private class EntrySet extends AbstractSet<Entry<K, V>>
     {
         @Override
@@ -98,7 +159,74 @@ public class ImmutableMap<K, V> extends AbstractMap<K, V>
         @Override
         public int size()
         {
-            return entries.length;
+            return table.length / 2;
+        }
+    }
+
+    private class KeySet extends AbstractSet<K>
+    {
+        @Override
+        public Iterator<K> iterator()
+        {
+            return new TableItr<K>(0);
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return containsKey(o);
+        }
+
+        @Override
+        public int size()
+        {
+            return table.length / 2;
+        }
+    }
+
+    private class Values extends AbstractCollection<V>
+    {
+        @Override
+        public Iterator<V> iterator()
+        {
+            return new TableItr<V>(1);
+        }
+
+        @Override
+        public int size()
+        {
+            return table.length / 2;
+        }
+    }
+
+    private class TableItr<T> implements Iterator<T>
+    {
+        int cursor;
+
+        private TableItr(int cursor)
+        {
+            this.cursor = cursor;
+        }
+
+        public boolean hasNext()
+        {
+            return cursor < table.length;
+        }
+
+        public T next()
+        {
+            if (cursor >= table.length)
+            {
+                throw new NoSuchElementException();
+            }
+            T t = (T) table[cursor];
+            cursor += 2;
+            return t;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
         }
     }
 
@@ -113,12 +241,19 @@ public class ImmutableMap<K, V> extends AbstractMap<K, V>
 
         public boolean hasNext()
         {
-            return cursor != size();
+            return cursor < table.length;
         }
 
         public Entry<K, V> next()
         {
-            return entries[cursor++];
+            if (cursor >= table.length)
+            {
+                throw new NoSuchElementException();
+            }
+            Entry<K, V> entry = new ImmutableEntry<K, V>(
+                (K) table[cursor], (V) table[cursor + 1]);
+            cursor += 2;
+            return entry;
         }
 
         public void remove()
@@ -126,4 +261,56 @@ public class ImmutableMap<K, V> extends AbstractMap<K, V>
             throw new UnsupportedOperationException();
         }
     }
-}
\ No newline at end of file
+
+    private static class ImmutableEntry<K, V> implements Entry<K, V>
+    {
+        private final K key;
+        private final V value;
+
+        ImmutableEntry(K key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        public K getKey()
+        {
+            return key;
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Entry))
+            {
+                return false;
+            }
+            Entry e = (Entry) o;
+            return ((key == null) ? (e.getKey() == null) : key.equals(e.getKey()))
+                && ((value == null) ? (e.getValue() == null) : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((key == null) ? 0 : key.hashCode())
+                ^ ((value == null) ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+    }
+}
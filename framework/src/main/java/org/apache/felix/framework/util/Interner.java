@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.osgi.framework.Version;
+
+/**
+ * Interns the strings, versions, version ranges and filters making up the
+ * capabilities and requirements parsed from bundle manifests, so that equal
+ * namespaces, attribute keys, values and requirement filters of all
+ * installed bundles share a single instance. The pools only hold weak
+ * references, so values which are no longer used by any revision can still
+ * be garbage collected. The pools are split into several independently
+ * locked stripes, since manifests may be parsed concurrently.
+**/
+public class Interner
+{
+    private static final int STRIPES = 16;
+
+    private static final Map<Object, WeakReference<Object>>[] m_pools = new Map[STRIPES];
+
+    // Filters have no notion of equality, so they are pooled by their
+    // canonical string instead, which is only referenced by the pool.
+    private static final Map<String, FilterReference>[] m_filterPools = new Map[STRIPES];
+    private static final ReferenceQueue<SimpleFilter>[] m_filterQueues = new ReferenceQueue[STRIPES];
+
+    static
+    {
+        for (int i = 0; i < STRIPES; i++)
+        {
+            m_pools[i] = new WeakHashMap<Object, WeakReference<Object>>();
+            m_filterPools[i] = new HashMap<String, FilterReference>();
+            m_filterQueues[i] = new ReferenceQueue<SimpleFilter>();
+        }
+    }
+
+    /**
+     * Returns the pooled instance equal to the given string.
+     * @param s The string to intern; may be <tt>null</tt>.
+     * @return The pooled instance.
+    **/
+    public static String intern(String s)
+    {
+        return (String) internObject(s);
+    }
+
+    /**
+     * Returns the pooled instance equal to the given version.
+     * @param v The version to intern; may be <tt>null</tt>.
+     * @return The pooled instance.
+    **/
+    public static Version intern(Version v)
+    {
+        return (Version) internObject(v);
+    }
+
+    /**
+     * Interns an attribute or directive value; strings, versions and
+     * version ranges are pooled and lists are copied with their elements
+     * interned, while any other value is returned unchanged.
+     * @param value The value to intern.
+     * @return The interned value.
+    **/
+    public static Object internValue(Object value)
+    {
+        if ((value instanceof String)
+            || (value instanceof Version)
+            || (value instanceof VersionRange))
+        {
+            return internObject(value);
+        }
+        else if (value instanceof List)
+        {
+            List list = (List) value;
+            List<Object> result = new ArrayList<Object>(list.size());
+            for (Object o : list)
+            {
+                result.add(internValue(o));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a compact immutable copy of the given directive or attribute
+     * map with all keys and values interned.
+     * @param map The map to intern.
+     * @return The interned map.
+    **/
+    public static <V> Map<String, V> intern(Map<String, V> map)
+    {
+        if (map.isEmpty() || (map instanceof ImmutableMap))
+        {
+            return ImmutableMap.newInstance(map);
+        }
+        Map<String, V> result = new LinkedHashMap<String, V>(map.size() * 2);
+        for (Entry<String, V> entry : map.entrySet())
+        {
+            result.put(intern(entry.getKey()), (V) internValue(entry.getValue()));
+        }
+        return ImmutableMap.newInstance(result);
+    }
+
+    /**
+     * Returns the pooled filter equal to the given filter. If there is none
+     * yet, a copy of the filter with all attribute names and values interned
+     * is pooled.
+     * @param filter The filter to intern.
+     * @return The pooled filter.
+    **/
+    public static SimpleFilter intern(SimpleFilter filter)
+    {
+        String key = getKey(filter);
+        int stripe = (key.hashCode() & 0x7fffffff) % STRIPES;
+        Map<String, FilterReference> pool = m_filterPools[stripe];
+        ReferenceQueue<SimpleFilter> queue = m_filterQueues[stripe];
+        synchronized (pool)
+        {
+            // Remove the entries of collected filters.
+            for (FilterReference ref = (FilterReference) queue.poll(); ref != null;
+                ref = (FilterReference) queue.poll())
+            {
+                if (pool.get(ref.m_key) == ref)
+                {
+                    pool.remove(ref.m_key);
+                }
+            }
+
+            FilterReference ref = pool.get(key);
+            SimpleFilter pooled = (ref == null) ? null : ref.get();
+            if (pooled == null)
+            {
+                pooled = copy(filter);
+                pool.put(key, new FilterReference(key, pooled, queue));
+            }
+            return pooled;
+        }
+    }
+
+    // The string form of a filter does not tell a version from a string
+    // value, which match differently, so the key adds the value types.
+    private static String getKey(SimpleFilter filter)
+    {
+        StringBuffer sb = new StringBuffer(filter.toString());
+        appendTypes(sb, filter);
+        return sb.toString();
+    }
+
+    private static void appendTypes(StringBuffer sb, SimpleFilter filter)
+    {
+        switch (filter.getOperation())
+        {
+            case SimpleFilter.AND:
+            case SimpleFilter.OR:
+            case SimpleFilter.NOT:
+                for (SimpleFilter child : (List<SimpleFilter>) filter.getValue())
+                {
+                    appendTypes(sb, child);
+                }
+                break;
+            default:
+                Object value = filter.getValue();
+                sb.append(' ').append((value == null) ? null : value.getClass().getName());
+        }
+    }
+
+    private static SimpleFilter copy(SimpleFilter filter)
+    {
+        Object value = filter.getValue();
+        switch (filter.getOperation())
+        {
+            case SimpleFilter.AND:
+            case SimpleFilter.OR:
+            case SimpleFilter.NOT:
+                List<SimpleFilter> children = (List<SimpleFilter>) value;
+                List<SimpleFilter> interned = new ArrayList<SimpleFilter>(children.size());
+                for (SimpleFilter child : children)
+                {
+                    interned.add(copy(child));
+                }
+                value = interned;
+                break;
+            default:
+                value = internValue(value);
+        }
+        return new SimpleFilter(intern(filter.getName()), value, filter.getOperation());
+    }
+
+    private static Object internObject(Object o)
+    {
+        if (o == null)
+        {
+            return null;
+        }
+        Map<Object, WeakReference<Object>> pool =
+            m_pools[(o.hashCode() & 0x7fffffff) % STRIPES];
+        synchronized (pool)
+        {
+            WeakReference<Object> ref = pool.get(o);
+            Object pooled = (ref == null) ? null : ref.get();
+            if (pooled == null)
+            {
+                pool.put(o, new WeakReference<Object>(o));
+                pooled = o;
+            }
+            return pooled;
+        }
+    }
+
+    private static class FilterReference extends WeakReference<SimpleFilter>
+    {
+        private final String m_key;
+
+        FilterReference(String key, SimpleFilter filter, ReferenceQueue<SimpleFilter> queue)
+        {
+            super(filter, queue);
+            m_key = key;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.apache.felix.framework.util;
 
 import java.util.EventListener;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
@@ -32,6 +33,7 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
     private final Class m_listenerClass;
     private final EventListener m_listener;
     private final Filter m_filter;
+    private final SimpleFilter m_simpleFilter;
     private final Object m_acc;
     private final boolean m_removed;
 
@@ -47,6 +49,7 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         m_listenerClass = listenerClass;
         m_listener = listener;
         m_filter = filter;
+        m_simpleFilter = parseSimpleFilter(filter);
         m_acc = acc;
         m_removed = removed;
     }
@@ -58,6 +61,7 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         m_listenerClass = info.m_listenerClass;
         m_listener = info.m_listener;
         m_filter = info.m_filter;
+        m_simpleFilter = info.m_simpleFilter;
         m_acc = info.m_acc;
         m_removed = removed;
     }
@@ -87,6 +91,17 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         return m_filter;
     }
 
+    /**
+     * Returns the filter of this listener parsed as a simple filter, which
+     * is used to index service listeners.
+     * @return The simple filter or <tt>null</tt> if the listener has no
+     *         filter or its filter could not be parsed.
+    **/
+    public SimpleFilter getSimpleFilter()
+    {
+        return m_simpleFilter;
+    }
+
     public String getFilter()
     {
         if (m_filter != null)
@@ -106,6 +121,22 @@ public class ListenerInfo implements ListenerHook.ListenerInfo
         return m_removed;
     }
 
+    private static SimpleFilter parseSimpleFilter(Filter filter)
+    {
+        if (filter != null)
+        {
+            try
+            {
+                return SimpleFilter.parse(filter.toString());
+            }
+            catch (Exception ex)
+            {
+                // Ignore and treat the filter as not parseable.
+            }
+        }
+        return null;
+    }
+
     @Override
     public boolean equals(Object obj)
     {
@@ -341,6 +341,50 @@ public class SecureAction
         }
     }
 
+    public long getFileLength(File file)
+    {
+        if (System.getSecurityManager() != null)
+        {
+            try
+            {
+                Actions actions = (Actions) m_actions.get();
+                actions.set(Actions.FILE_LENGTH_ACTION, file);
+                return ((Long) AccessController.doPrivileged(actions, m_acc))
+                    .longValue();
+            }
+            catch (PrivilegedActionException ex)
+            {
+                throw (RuntimeException) ex.getException();
+            }
+        }
+        else
+        {
+            return file.length();
+        }
+    }
+
+    public long getFileLastModified(File file)
+    {
+        if (System.getSecurityManager() != null)
+        {
+            try
+            {
+                Actions actions = (Actions) m_actions.get();
+                actions.set(Actions.FILE_LAST_MODIFIED_ACTION, file);
+                return ((Long) AccessController.doPrivileged(actions, m_acc))
+                    .longValue();
+            }
+            catch (PrivilegedActionException ex)
+            {
+                throw (RuntimeException) ex.getException();
+            }
+        }
+        else
+        {
+            return file.lastModified();
+        }
+    }
+
     public boolean mkdir(File file)
     {
         if (System.getSecurityManager() != null)
@@ -454,13 +498,20 @@ public class SecureAction
     }
 
     public FileOutputStream getFileOutputStream(File file) throws IOException
+    {
+        return getFileOutputStream(file, false);
+    }
+
+    public FileOutputStream getFileOutputStream(File file, boolean append)
+        throws IOException
     {
         if (System.getSecurityManager() != null)
         {
             try
             {
                 Actions actions = (Actions) m_actions.get();
-                actions.set(Actions.GET_FILE_OUTPUT_ACTION, file);
+                actions.set(Actions.GET_FILE_OUTPUT_ACTION, file,
+                    append ? Boolean.TRUE : Boolean.FALSE);
                 return (FileOutputStream) AccessController.doPrivileged(actions, m_acc);
             }
             catch (PrivilegedActionException ex)
@@ -474,7 +525,7 @@ public class SecureAction
         }
         else
         {
-            return new FileOutputStream(file);
+            return new FileOutputStream(file, append);
         }
     }
 
@@ -1428,6 +1479,8 @@ public class SecureAction
         public static final int INVOKE_RESOLVER_HOOK_SINGLETON = 50;
         public static final int INVOKE_RESOLVER_HOOK_MATCHES = 51;
         public static final int INVOKE_RESOLVER_HOOK_END = 52;
+        public static final int FILE_LENGTH_ACTION = 53;
+        public static final int FILE_LAST_MODIFIED_ACTION = 54;
 
         private int m_action = -1;
         private Object m_arg1 = null;
@@ -1564,7 +1617,7 @@ public class SecureAction
                 case GET_FILE_INPUT_ACTION:
                     return new FileInputStream((File) arg1);
                 case GET_FILE_OUTPUT_ACTION:
-                    return new FileOutputStream((File) arg1);
+                    return new FileOutputStream((File) arg1, Boolean.TRUE.equals(arg2));
                 case TO_URI_ACTION:
                     return ((File) arg1).toURI();
                 case GET_METHOD_ACTION:
@@ -1673,6 +1726,10 @@ public class SecureAction
                 case INVOKE_RESOLVER_HOOK_END:
                     ((org.osgi.framework.hooks.resolver.ResolverHook) arg1).end();
                     return null;
+                case FILE_LENGTH_ACTION:
+                    return Long.valueOf(((File) arg1).length());
+                case FILE_LAST_MODIFIED_ACTION:
+                    return Long.valueOf(((File) arg1).lastModified());
             }
 
             return null;
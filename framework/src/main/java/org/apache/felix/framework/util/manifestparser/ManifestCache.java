@@ -0,0 +1,464 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
+import org.apache.felix.framework.cache.BundleCache;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Stores the capabilities and requirements parsed from the manifest of a
+ * bundle revision in a compact binary form next to the revision in the
+ * bundle cache, so they can be restored instead of being parsed again when
+ * the framework is restarted. Every distinct string, such as an attribute
+ * key or value, is only stored once and shared by all capabilities and
+ * requirements that use it. The stored form is only used if it was created
+ * from the same manifest headers.
+**/
+public class ManifestCache
+{
+    private static final int MAGIC = 0x46424d43;
+    // Must be increased whenever the format or the parsing of the
+    // capabilities and requirements changes.
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_VERSION = 2;
+    private static final byte TYPE_VERSION_RANGE = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_LIST = 6;
+
+    /**
+     * Parses the given manifest headers, restoring the capabilities and
+     * requirements from the cache of the given archive revision if they
+     * were stored for the same headers, and storing them otherwise.
+     * @param logger The logger to log problems with the cache to.
+     * @param configMap The framework configuration.
+     * @param owner The revision owning the capabilities and requirements.
+     * @param headerMap The manifest headers of the revision.
+     * @param archiveRevision The archive revision to cache the parsed headers
+     *        with or <tt>null</tt> if they should not be cached.
+     * @return The parser holding the parsed manifest.
+     * @throws BundleException If the manifest is invalid.
+    **/
+    public static ManifestParser getManifestParser(Logger logger, Map configMap,
+        BundleRevision owner, Map headerMap, BundleArchiveRevision archiveRevision)
+        throws BundleException
+    {
+        if ((archiveRevision == null) || "false".equalsIgnoreCase(
+            (String) configMap.get(BundleCache.CACHE_MANIFEST_PROP)))
+        {
+            return new ManifestParser(logger, configMap, owner, headerMap);
+        }
+
+        byte[] digest = null;
+        try
+        {
+            digest = getDigest(configMap, headerMap);
+            byte[] data = archiveRevision.readManifestCache();
+            if (data != null)
+            {
+                ManifestParser mp = read(data, digest, logger, configMap, owner, headerMap);
+                if (mp != null)
+                {
+                    return mp;
+                }
+            }
+        }
+        catch (BundleException ex)
+        {
+            throw ex;
+        }
+        catch (Exception ex)
+        {
+            logger.log(Logger.LOG_DEBUG,
+                "Unable to read cached manifest of " + archiveRevision.getLocation(), ex);
+        }
+
+        ManifestParser mp = new ManifestParser(logger, configMap, owner, headerMap);
+        if (digest != null)
+        {
+            try
+            {
+                archiveRevision.writeManifestCache(write(digest, mp));
+            }
+            catch (Exception ex)
+            {
+                logger.log(Logger.LOG_DEBUG,
+                    "Unable to cache manifest of " + archiveRevision.getLocation(), ex);
+            }
+        }
+        return mp;
+    }
+
+    /**
+     * Encodes the symbolic name, version, capabilities and requirements of
+     * the given parser.
+     * @param digest The digest of the parsed manifest headers.
+     * @param mp The parser holding the parsed manifest.
+     * @return The encoded form.
+     * @throws IOException If the parsed manifest contains values which
+     *         cannot be encoded.
+    **/
+    static byte[] write(byte[] digest, ManifestParser mp) throws IOException
+    {
+        Writer body = new Writer();
+        body.writeString(mp.getSymbolicName());
+        body.writeString(mp.getBundleVersion().toString());
+
+        List<BundleCapability> caps = mp.getCapabilities();
+        body.m_out.writeInt(caps.size());
+        for (BundleCapability cap : caps)
+        {
+            body.writeString(cap.getNamespace());
+            body.writeMap(cap.getDirectives());
+            body.writeMap(cap.getAttributes());
+        }
+
+        List<BundleRequirement> reqs = mp.getRequirements();
+        body.m_out.writeInt(reqs.size());
+        for (BundleRequirement req : reqs)
+        {
+            body.writeString(req.getNamespace());
+            body.writeMap(req.getDirectives());
+            body.writeMap(req.getAttributes());
+            body.writeFilter(((BundleRequirementImpl) req).getFilter());
+        }
+        body.m_out.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(digest.length);
+        out.write(digest);
+        out.writeInt(body.m_strings.size());
+        for (String s : body.m_strings.keySet())
+        {
+            byte[] b = s.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+        body.m_bytes.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a parser from the given data.
+     * @return The parser or <tt>null</tt> if the data was not created by this
+     *         version of the cache or for different manifest headers.
+    **/
+    static ManifestParser read(byte[] data, byte[] digest, Logger logger,
+        Map configMap, BundleRevision owner, Map headerMap)
+        throws IOException, BundleException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+        {
+            return null;
+        }
+        byte[] stored = new byte[in.readInt()];
+        in.readFully(stored);
+        if (!Arrays.equals(stored, digest))
+        {
+            return null;
+        }
+
+        Reader reader = new Reader(in);
+        String symbolicName = reader.readString();
+        Version bundleVersion = Version.parseVersion(reader.readString());
+
+        int count = in.readInt();
+        List<BundleCapability> caps = new ArrayList<BundleCapability>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String namespace = reader.readString();
+            Map<String, String> dirs = (Map) reader.readMap();
+            Map<String, Object> attrs = reader.readMap();
+            caps.add(ManifestParser.createCapability(owner, namespace, dirs, attrs));
+        }
+
+        count = in.readInt();
+        List<BundleRequirement> reqs = new ArrayList<BundleRequirement>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String namespace = reader.readString();
+            Map<String, String> dirs = (Map) reader.readMap();
+            Map<String, Object> attrs = reader.readMap();
+            SimpleFilter filter = reader.readFilter();
+            reqs.add(ManifestParser.createRequirement(
+                owner, namespace, dirs, attrs, filter));
+        }
+
+        return new ManifestParser(logger, configMap, headerMap,
+            symbolicName, bundleVersion, caps, reqs);
+    }
+
+    /**
+     * Calculates a digest of the given manifest headers, which only
+     * depends on their contents, and of the framework version, since the
+     * parsing might change between versions.
+    **/
+    static byte[] getDigest(Map configMap, Map headerMap) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(String.valueOf(
+            configMap.get(FelixConstants.FELIX_VERSION_PROPERTY)).getBytes("UTF-8"));
+        digest.update((byte) 0);
+        Map<Object, Object> sorted = new TreeMap<Object, Object>();
+        for (Object o : headerMap.entrySet())
+        {
+            Entry entry = (Entry) o;
+            sorted.put(entry.getKey().toString(), entry.getValue());
+        }
+        for (Entry<Object, Object> entry : sorted.entrySet())
+        {
+            digest.update(entry.getKey().toString().getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(entry.getValue()).getBytes("UTF-8"));
+            digest.update((byte) 0);
+        }
+        return digest.digest();
+    }
+
+    private static class Writer
+    {
+        private final Map<String, Integer> m_strings = new LinkedHashMap<String, Integer>();
+        private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+        private final DataOutputStream m_out = new DataOutputStream(m_bytes);
+
+        // Writes the index of the string in the string table.
+        void writeString(String s) throws IOException
+        {
+            if (s == null)
+            {
+                m_out.writeInt(-1);
+                return;
+            }
+            Integer idx = m_strings.get(s);
+            if (idx == null)
+            {
+                idx = new Integer(m_strings.size());
+                m_strings.put(s, idx);
+            }
+            m_out.writeInt(idx.intValue());
+        }
+
+        void writeMap(Map<String, ?> map) throws IOException
+        {
+            m_out.writeInt(map.size());
+            for (Entry<String, ?> entry : map.entrySet())
+            {
+                writeString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        void writeValue(Object value) throws IOException
+        {
+            if (value == null)
+            {
+                m_out.writeByte(TYPE_NULL);
+            }
+            else if (value instanceof String)
+            {
+                m_out.writeByte(TYPE_STRING);
+                writeString((String) value);
+            }
+            else if (value instanceof Version)
+            {
+                m_out.writeByte(TYPE_VERSION);
+                writeString(value.toString());
+            }
+            else if (value instanceof VersionRange)
+            {
+                VersionRange range = (VersionRange) value;
+                m_out.writeByte(TYPE_VERSION_RANGE);
+                writeString(range.getFloor().toString());
+                m_out.writeBoolean(range.isFloorInclusive());
+                writeString((range.getCeiling() == null)
+                    ? null : range.getCeiling().toString());
+                m_out.writeBoolean(range.isCeilingInclusive());
+            }
+            else if (value instanceof Long)
+            {
+                m_out.writeByte(TYPE_LONG);
+                m_out.writeLong(((Long) value).longValue());
+            }
+            else if (value instanceof Double)
+            {
+                m_out.writeByte(TYPE_DOUBLE);
+                m_out.writeDouble(((Double) value).doubleValue());
+            }
+            else if (value instanceof List)
+            {
+                List list = (List) value;
+                m_out.writeByte(TYPE_LIST);
+                m_out.writeInt(list.size());
+                for (Object o : list)
+                {
+                    writeValue(o);
+                }
+            }
+            else
+            {
+                throw new IOException(
+                    "Unsupported attribute type: " + value.getClass().getName());
+            }
+        }
+
+        void writeFilter(SimpleFilter filter) throws IOException
+        {
+            m_out.writeByte(filter.getOperation());
+            writeString(filter.getName());
+            switch (filter.getOperation())
+            {
+                case SimpleFilter.AND:
+                case SimpleFilter.OR:
+                case SimpleFilter.NOT:
+                    List<SimpleFilter> children = (List<SimpleFilter>) filter.getValue();
+                    m_out.writeInt(children.size());
+                    for (SimpleFilter child : children)
+                    {
+                        writeFilter(child);
+                    }
+                    break;
+                default:
+                    writeValue(filter.getValue());
+            }
+        }
+    }
+
+    private static class Reader
+    {
+        private final DataInputStream m_in;
+        private final String[] m_strings;
+
+        Reader(DataInputStream in) throws IOException
+        {
+            m_in = in;
+            m_strings = new String[in.readInt()];
+            for (int i = 0; i < m_strings.length; i++)
+            {
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                m_strings[i] = new String(b, "UTF-8");
+            }
+        }
+
+        String readString() throws IOException
+        {
+            int idx = m_in.readInt();
+            return (idx < 0) ? null : m_strings[idx];
+        }
+
+        Map<String, Object> readMap() throws IOException
+        {
+            int size = m_in.readInt();
+            Map<String, Object> map = new LinkedHashMap<String, Object>(size * 2);
+            for (int i = 0; i < size; i++)
+            {
+                String key = readString();
+                map.put(key, readValue());
+            }
+            return map;
+        }
+
+        Object readValue() throws IOException
+        {
+            byte type = m_in.readByte();
+            switch (type)
+            {
+                case TYPE_NULL:
+                    return null;
+                case TYPE_STRING:
+                    return readString();
+                case TYPE_VERSION:
+                    return Version.parseVersion(readString());
+                case TYPE_VERSION_RANGE:
+                    Version floor = Version.parseVersion(readString());
+                    boolean floorInclusive = m_in.readBoolean();
+                    String ceiling = readString();
+                    return new VersionRange(floor, floorInclusive,
+                        (ceiling == null) ? null : Version.parseVersion(ceiling),
+                        m_in.readBoolean());
+                case TYPE_LONG:
+                    return new Long(m_in.readLong());
+                case TYPE_DOUBLE:
+                    return new Double(m_in.readDouble());
+                case TYPE_LIST:
+                    int size = m_in.readInt();
+                    List<Object> list = new ArrayList<Object>(size);
+                    for (int i = 0; i < size; i++)
+                    {
+                        list.add(readValue());
+                    }
+                    return list;
+                default:
+                    throw new IOException("Unknown value type: " + type);
+            }
+        }
+
+        SimpleFilter readFilter() throws IOException
+        {
+            int op = m_in.readByte();
+            String name = readString();
+            switch (op)
+            {
+                case SimpleFilter.AND:
+                case SimpleFilter.OR:
+                case SimpleFilter.NOT:
+                    int size = m_in.readInt();
+                    List<SimpleFilter> children = new ArrayList<SimpleFilter>(size);
+                    for (int i = 0; i < size; i++)
+                    {
+                        children.add(readFilter());
+                    }
+                    return new SimpleFilter(name, children, op);
+                default:
+                    return new SimpleFilter(name, readValue(), op);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.VersionRange;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
 import org.osgi.framework.BundleException;
@@ -124,7 +125,7 @@ public class ManifestParser
                         new HashMap<String, Object>(bundleCap.getAttributes());
                     Object value = hostAttrs.remove(BundleRevision.BUNDLE_NAMESPACE);
                     hostAttrs.put(BundleRevision.HOST_NAMESPACE, value);
-                    capList.add(new BundleCapabilityImpl(
+                    capList.add(createCapability(
                         owner, BundleRevision.HOST_NAMESPACE,
                         bundleCap.getDirectives(),
                         hostAttrs));
@@ -237,6 +238,34 @@ public class ManifestParser
         m_requirements.addAll(requireReqs);
         m_requirements.addAll(dynamicReqs);
 
+        parseRemainingHeaders();
+    }
+
+    /**
+     * Creates a parser for the given headers from the symbolic name, version,
+     * capabilities and requirements of a previous parse of the same headers,
+     * which must be owned by the given revision; the remaining headers are
+     * parsed as usual. This is used to restore the parsed manifest from
+     * the bundle cache.
+    **/
+    ManifestParser(Logger logger, Map configMap, Map headerMap,
+        String symbolicName, Version bundleVersion,
+        List<BundleCapability> capabilities, List<BundleRequirement> requirements)
+        throws BundleException
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_headerMap = headerMap;
+        m_bundleSymbolicName = symbolicName;
+        m_bundleVersion = bundleVersion;
+        m_capabilities = capabilities;
+        m_requirements = requirements;
+
+        parseRemainingHeaders();
+    }
+
+    private void parseRemainingHeaders() throws BundleException
+    {
         //
         // Parse Bundle-NativeCode.
         //
@@ -262,9 +291,44 @@ public class ManifestParser
 
         // This sets m_activationPolicy, m_includedPolicyClasses, and
         // m_excludedPolicyClasses.
-        parseActivationPolicy(headerMap);
+        parseActivationPolicy(m_headerMap);
+
+        m_isExtension = checkExtensionBundle(m_headerMap);
+    }
+
+    /**
+     * Creates a capability with interned namespace, directives and
+     * attributes, so equal values parsed from the manifests of different
+     * bundles share a single instance.
+    **/
+    static BundleCapabilityImpl createCapability(BundleRevision owner,
+        String namespace, Map<String, String> dirs, Map<String, Object> attrs)
+    {
+        return new BundleCapabilityImpl(owner, Interner.intern(namespace),
+            Interner.intern(dirs), Interner.intern(attrs));
+    }
+
+    /**
+     * Creates a requirement with interned namespace, directives, attributes
+     * and filter.
+    **/
+    static BundleRequirementImpl createRequirement(BundleRevision owner,
+        String namespace, Map<String, String> dirs, Map<String, Object> attrs,
+        SimpleFilter filter)
+    {
+        return new BundleRequirementImpl(owner, Interner.intern(namespace),
+            Interner.intern(dirs), Interner.intern(attrs), Interner.intern(filter));
+    }
 
-        m_isExtension = checkExtensionBundle(headerMap);
+    /**
+     * Creates a requirement matching the given attributes like the
+     * corresponding constructor of <tt>BundleRequirementImpl</tt>.
+    **/
+    private static BundleRequirementImpl createRequirement(BundleRevision owner,
+        String namespace, Map<String, String> dirs, Map<String, Object> attrs)
+    {
+        return createRequirement(owner, namespace, dirs,
+            Collections.EMPTY_MAP, SimpleFilter.convert(attrs));
     }
 
     private static List<ParsedHeaderClause> normalizeImportClauses(
@@ -435,7 +499,7 @@ public class ManifestParser
 
                 // Create package requirement and add to requirement list.
                 reqList.add(
-                    new BundleRequirementImpl(
+                    createRequirement(
                         owner,
                         BundleRevision.PACKAGE_NAMESPACE,
                         newDirs,
@@ -561,7 +625,7 @@ public class ManifestParser
 
                     // Create requirement and add to requirement list.
                     reqList.add(
-                        new BundleRequirementImpl(
+                        createRequirement(
                             owner,
                             path,
                             clause.m_dirs,
@@ -701,7 +765,7 @@ public class ManifestParser
 
                 // Create package capability and add to capability list.
                 capList.add(
-                    new BundleCapabilityImpl(
+                    createCapability(
                         owner,
                         path,
                         clause.m_dirs,
@@ -854,7 +918,7 @@ public class ManifestParser
 
                 // Create package capability and add to capability list.
                 capList.add(
-                    new BundleCapabilityImpl(
+                    createCapability(
                         owner,
                         BundleRevision.PACKAGE_NAMESPACE,
                         clause.m_dirs,
@@ -1207,7 +1271,7 @@ public class ManifestParser
         {
             Map<String, String> dirs = new HashMap<String, String>(1);
             dirs.put(Constants.USES_DIRECTIVE, usesValue);
-            exports.set(i, new BundleCapabilityImpl(
+            exports.set(i, createCapability(
                 exports.get(i).getRevision(),
                 BundleRevision.PACKAGE_NAMESPACE,
                 dirs,
@@ -1289,7 +1353,7 @@ public class ManifestParser
             String symName = (String) clauses.get(0).m_paths.get(0);
             clauses.get(0).m_attrs.put(BundleRevision.BUNDLE_NAMESPACE, symName);
             clauses.get(0).m_attrs.put(Constants.BUNDLE_VERSION_ATTRIBUTE, bundleVersion);
-            return new BundleCapabilityImpl(
+            return createCapability(
                 owner,
                 BundleRevision.BUNDLE_NAMESPACE,
                 clauses.get(0).m_dirs,
@@ -1366,7 +1430,7 @@ public class ManifestParser
                     Constants.FILTER_DIRECTIVE,
                     sf.toString());
 
-                reqs.add(new BundleRequirementImpl(
+                reqs.add(createRequirement(
                     owner, BundleRevision.HOST_NAMESPACE,
                     newDirs,
                     newAttrs));
@@ -1469,7 +1533,7 @@ public class ManifestParser
 
                 // Create package requirement and add to requirement list.
                 reqList.add(
-                    new BundleRequirementImpl(
+                    createRequirement(
                         owner,
                         BundleRevision.BUNDLE_NAMESPACE,
                         newDirs,
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+public class ConcurrentCacheLoadTest extends TestCase
+{
+    private static final int BUNDLES = 60;
+    private File cacheDir;
+
+    protected void setUp() throws Exception
+    {
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(cacheDir);
+    }
+
+    public void testReloadIndependentOfThreads() throws Exception
+    {
+        Framework f = createFramework(1, true);
+        f.start();
+        BundleContext bc = f.getBundleContext();
+        List<String> manifests =
+            ConcurrentResolverTest.createManifests(new Random(42), BUNDLES);
+        for (String manifest : manifests)
+        {
+            ConcurrentResolverTest.install(bc, manifest);
+        }
+        // Uninstall some bundles, so there are gaps in the bundle ids.
+        bc.getBundle(7).uninstall();
+        bc.getBundle(23).uninstall();
+        bc.getBundle(5).start();
+        List<String> expected = getBundles(f);
+        f.stop();
+        f.waitForStop(0);
+
+        assertEquals(expected, reload(1));
+        assertEquals(expected, reload(4));
+        assertEquals(expected, reload(16));
+    }
+
+    public void testDuplicateCachedBundle() throws Exception
+    {
+        Framework f = createFramework(1, true);
+        f.init();
+        BundleContext bc = f.getBundleContext();
+        ConcurrentResolverTest.install(bc, "Bundle-SymbolicName: dup\n");
+        ConcurrentResolverTest.install(bc, "Bundle-SymbolicName: other\n");
+        f.stop();
+        f.waitForStop(0);
+
+        // Allow the duplicate to be installed once, then check that the
+        // cached copy is rejected on a concurrent reload like it is on a
+        // sequential one.
+        Map params = createParams(1, false);
+        params.put(Constants.FRAMEWORK_BSNVERSION, Constants.FRAMEWORK_BSNVERSION_MULTIPLE);
+        f = new Felix(params);
+        f.init();
+        ConcurrentResolverTest.install(f.getBundleContext(), "Bundle-SymbolicName: dup\n");
+        f.stop();
+        f.waitForStop(0);
+
+        List<String> expected = reload(1);
+        assertEquals(3, expected.size());
+        assertEquals(expected, reload(4));
+    }
+
+    private List<String> reload(int threads) throws Exception
+    {
+        Framework f = createFramework(threads, false);
+        f.init();
+        try
+        {
+            return getBundles(f);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(0);
+        }
+    }
+
+    private Framework createFramework(int threads, boolean clean)
+    {
+        return new Felix(createParams(threads, clean));
+    }
+
+    private Map createParams(int threads, boolean clean)
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        params.put(FelixConstants.CACHE_LOAD_THREADS_PROP, Integer.toString(threads));
+        if (clean)
+        {
+            params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+                Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        }
+        return params;
+    }
+
+    // Describes the installed bundles in the order returned by the framework.
+    static List<String> getBundles(Framework f)
+    {
+        List<String> result = new ArrayList<String>();
+        for (Bundle b : f.getBundleContext().getBundles())
+        {
+            result.add(b.getBundleId() + " " + b.getSymbolicName() + " "
+                + b.getLocation() + " "
+                + b.adapt(BundleStartLevel.class).isPersistentlyStarted());
+        }
+        return result;
+    }
+
+    private static void deleteDir(File file) throws IOException
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
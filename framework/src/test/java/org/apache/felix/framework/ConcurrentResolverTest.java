@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ConcurrentResolverTest extends TestCase
+{
+    private static final int BUNDLES = 150;
+    private File cacheDir;
+
+    protected void setUp() throws Exception
+    {
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(cacheDir);
+    }
+
+    public void testWiringIndependentOfThreads() throws Exception
+    {
+        List<String> manifests = createManifests(new Random(42), BUNDLES);
+        Map<String, String> expected = resolve(manifests, 1);
+        assertEquals(expected, resolve(manifests, 4));
+        assertEquals(expected, resolve(manifests, 16));
+    }
+
+    public void testUsesConflictWithThreads() throws Exception
+    {
+        List<String> manifests = new ArrayList<String>();
+        manifests.add("Bundle-SymbolicName: x1\n"
+            + "Export-Package: x; version=1.0\n");
+        manifests.add("Bundle-SymbolicName: x2\n"
+            + "Export-Package: x; version=2.0\n");
+        manifests.add("Bundle-SymbolicName: u\n"
+            + "Export-Package: u; uses:=x\n"
+            + "Import-Package: x; version=\"[1.0,2.0)\"\n");
+        // Prefers x2, which conflicts with the uses constraint of u.
+        manifests.add("Bundle-SymbolicName: c\n"
+            + "Import-Package: u, x\n");
+        // Enough unrelated bundles to resolve on the resolver threads.
+        for (int i = 0; i < 16; i++)
+        {
+            manifests.add("Bundle-SymbolicName: f" + i + "\n"
+                + "Export-Package: f" + i + "\n");
+        }
+        Map<String, String> wiring = resolve(manifests, 4);
+        assertEquals("u=u, x=x1", wiring.get("c"));
+        assertEquals(resolve(manifests, 1), wiring);
+    }
+
+    public void testResolverThreadsStoppedWithFramework() throws Exception
+    {
+        resolve(createManifests(new Random(42), BUNDLES), 4);
+
+        // The resolver threads are shut down when the framework stops.
+        long end = System.currentTimeMillis() + 5000;
+        while (hasResolverThreads() && (System.currentTimeMillis() < end))
+        {
+            Thread.sleep(50);
+        }
+        assertFalse(hasResolverThreads());
+    }
+
+    private static boolean hasResolverThreads()
+    {
+        for (Thread t : Thread.getAllStackTraces().keySet())
+        {
+            if (t.isAlive() && t.getName().startsWith("FelixResolver-"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Creates a layered repository where every bundle exports a package
+    // that uses the packages it imports; every fifth package is also
+    // exported by an alternative provider in a higher version.
+    static List<String> createManifests(Random random, int count)
+    {
+        List<String> manifests = new ArrayList<String>();
+        for (int i = 0; i < count; i++)
+        {
+            StringBuffer imports = new StringBuffer();
+            for (int j = 0; (i > 0) && (j < 4); j++)
+            {
+                int pkg = random.nextInt(i);
+                if (imports.indexOf("p" + pkg + ";") < 0)
+                {
+                    imports.append((imports.length() > 0) ? "," : "")
+                        .append("p").append(pkg).append(";version=1.0");
+                }
+            }
+            String uses = imports.toString().replaceAll(";version=1.0", "");
+            StringBuffer mf = new StringBuffer();
+            mf.append("Bundle-SymbolicName: b").append(i).append("\n");
+            mf.append("Export-Package: p").append(i).append(";version=1.0");
+            if (uses.length() > 0)
+            {
+                mf.append(";uses:=\"").append(uses).append("\"\n");
+                mf.append("Import-Package: ").append(imports).append("\n");
+            }
+            else
+            {
+                mf.append("\n");
+            }
+            manifests.add(mf.toString());
+            if (i % 5 == 0)
+            {
+                manifests.add("Bundle-SymbolicName: alt" + i + "\n"
+                    + "Export-Package: p" + i + ";version=2.0\n");
+            }
+        }
+        return manifests;
+    }
+
+    private Map<String, String> resolve(List<String> manifests, int threads)
+        throws Exception
+    {
+        deleteDir(cacheDir);
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.service.packageadmin; version=1.2.0,"
+            + "org.osgi.service.startlevel; version=1.1.0,"
+            + "org.osgi.util.tracker; version=1.3.3,"
+            + "org.osgi.service.url; version=1.0.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        params.put(FelixConstants.RESOLVER_THREADS_PROP, Integer.toString(threads));
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        try
+        {
+            BundleContext context = f.getBundleContext();
+            List<Bundle> bundles = new ArrayList<Bundle>();
+            for (String manifest : manifests)
+            {
+                bundles.add(install(context, manifest));
+            }
+            f.adapt(FrameworkWiring.class).resolveBundles(bundles);
+            return getWiring(bundles);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(5000);
+        }
+    }
+
+    static Map<String, String> getWiring(List<Bundle> bundles)
+    {
+        Map<String, String> result = new HashMap<String, String>();
+        for (Bundle bundle : bundles)
+        {
+            BundleWiring wiring = bundle.adapt(BundleWiring.class);
+            if (wiring == null)
+            {
+                result.put(bundle.getSymbolicName(), "unresolved");
+                continue;
+            }
+            List<String> wires = new ArrayList<String>();
+            for (BundleWire wire : wiring.getRequiredWires(null))
+            {
+                wires.add(wire.getCapability().getAttributes()
+                    .get(wire.getCapability().getNamespace())
+                    + "=" + wire.getProviderWiring().getBundle().getSymbolicName());
+            }
+            String[] sorted = wires.toArray(new String[wires.size()]);
+            Arrays.sort(sorted);
+            result.put(bundle.getSymbolicName(),
+                Arrays.asList(sorted).toString().replaceAll("[\\[\\]]", ""));
+        }
+        return result;
+    }
+
+    static Bundle install(BundleContext context, String manifest) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(
+            ("Bundle-ManifestVersion: 2\n" + manifest).getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return context.installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File file) throws IOException
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
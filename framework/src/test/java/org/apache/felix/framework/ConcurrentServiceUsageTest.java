@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+public class ConcurrentServiceUsageTest extends TestCase
+{
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 2000;
+
+    public void testConcurrentGetUngetService() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.service.packageadmin; version=1.2.0,"
+            + "org.osgi.service.startlevel; version=1.1.0,"
+            + "org.osgi.util.tracker; version=1.3.3,"
+            + "org.osgi.service.url; version=1.0.0");
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+
+        try
+        {
+            final BundleContext context = f.getBundleContext();
+            final AtomicInteger gets = new AtomicInteger();
+            final AtomicInteger ungets = new AtomicInteger();
+            final AtomicInteger active = new AtomicInteger();
+            final AtomicInteger errors = new AtomicInteger();
+            ServiceRegistration reg = context.registerService(
+                Runnable.class.getName(), new ServiceFactory()
+                {
+                    public Object getService(Bundle bundle, ServiceRegistration reg)
+                    {
+                        gets.incrementAndGet();
+                        if (active.incrementAndGet() != 1)
+                        {
+                            errors.incrementAndGet();
+                        }
+                        return new Runnable()
+                        {
+                            public void run()
+                            {
+                            }
+                        };
+                    }
+
+                    public void ungetService(
+                        Bundle bundle, ServiceRegistration reg, Object svcObj)
+                    {
+                        ungets.incrementAndGet();
+                        if (active.decrementAndGet() != 0)
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }, null);
+            final ServiceReference ref = reg.getReference();
+
+            final CountDownLatch done = new CountDownLatch(THREADS);
+            for (int i = 0; i < THREADS; i++)
+            {
+                new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            for (int j = 0; j < ITERATIONS; j++)
+                            {
+                                if (context.getService(ref) == null)
+                                {
+                                    errors.incrementAndGet();
+                                }
+                                else if (!context.ungetService(ref))
+                                {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        }
+                        catch (Throwable ex)
+                        {
+                            errors.incrementAndGet();
+                        }
+                        finally
+                        {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            done.await();
+
+            assertEquals(0, errors.get());
+            assertTrue(gets.get() > 0);
+            assertEquals(gets.get(), ungets.get());
+            assertNull(ref.getUsingBundles());
+            assertFalse(context.ungetService(ref));
+
+            // A service which is still in use gets released on unregister.
+            assertNotNull(context.getService(ref));
+            assertNotNull(context.getService(ref));
+            assertEquals(1, ref.getUsingBundles().length);
+            reg.unregister();
+            assertEquals(gets.get(), ungets.get());
+            assertNull(context.getService(ref));
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(5000);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+public class ConcurrentStartLevelTest extends TestCase
+{
+    public static final int DELAY = 1000;
+    public static final int BUNDLES = 4;
+    private File cacheDir;
+
+    public void testConcurrentStartLevel() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.service.packageadmin; version=1.2.0,"
+            + "org.osgi.service.startlevel; version=1.1.0,"
+            + "org.osgi.util.tracker; version=1.3.3,"
+            + "org.osgi.service.url; version=1.0.0");
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        String cache = cacheDir.getPath();
+        params.put("felix.cache.profiledir", cache);
+        params.put("felix.cache.dir", cache);
+        params.put(Constants.FRAMEWORK_STORAGE, cache);
+        params.put(FelixConstants.STARTLEVEL_THREADS_PROP, Integer.toString(BUNDLES));
+
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+
+        try
+        {
+            Bundle[] bundles = new Bundle[BUNDLES];
+            for (int i = 0; i < BUNDLES; i++)
+            {
+                String mf = "Bundle-SymbolicName: startlevel.test" + i + "\n"
+                    + "Bundle-Version: 1.0.0\n"
+                    + "Bundle-ManifestVersion: 2\n"
+                    + "Import-Package: org.osgi.framework\n";
+                bundles[i] = f.getBundleContext().installBundle(
+                    createBundle(mf).toURI().toString());
+                bundles[i].adapt(BundleStartLevel.class).setStartLevel(2);
+                bundles[i].start();
+            }
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            long t0 = System.currentTimeMillis();
+            f.adapt(FrameworkStartLevel.class).setStartLevel(2, new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(BUNDLES * DELAY * 2, TimeUnit.MILLISECONDS));
+            long t1 = System.currentTimeMillis();
+
+            // The event must only be fired once every bundle is started.
+            for (int i = 0; i < BUNDLES; i++)
+            {
+                assertEquals(Bundle.ACTIVE, bundles[i].getState());
+            }
+            assertTrue((t1 - t0) < (BUNDLES * DELAY));
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(BUNDLES * DELAY * 2);
+        }
+    }
+
+    private static File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, TestBundleActivator.class.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = TestBundleActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = TestBundleActivator.class.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    public static class TestBundleActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            Thread.sleep(DELAY);
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.EventQueueStatistics;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+public class EventQueueTest extends TestCase
+{
+    private File cacheDir;
+
+    public void testOrderedDeliveryWithPool() throws Exception
+    {
+        Framework f = new Felix(createParams());
+        f.init();
+        f.start();
+
+        try
+        {
+            final List<Integer> events = new ArrayList<Integer>();
+            BundleListener listener = new BundleListener()
+            {
+                public void bundleChanged(BundleEvent event)
+                {
+                    synchronized (events)
+                    {
+                        events.add(event.getType());
+                        events.notifyAll();
+                    }
+                }
+            };
+            f.getBundleContext().addBundleListener(listener);
+
+            Bundle b = f.getBundleContext().installBundle(
+                createBundle("Bundle-SymbolicName: queue.test\n"
+                    + "Bundle-ManifestVersion: 2\n").toURI().toString());
+            b.start();
+            b.stop();
+            b.uninstall();
+
+            synchronized (events)
+            {
+                long end = System.currentTimeMillis() + 5000;
+                while ((events.size() < 6) && (System.currentTimeMillis() < end))
+                {
+                    events.wait(100);
+                }
+            }
+            assertEquals(6, events.size());
+            assertEquals(BundleEvent.INSTALLED, events.get(0).intValue());
+            assertEquals(BundleEvent.RESOLVED, events.get(1).intValue());
+            assertEquals(BundleEvent.STARTED, events.get(2).intValue());
+            assertEquals(BundleEvent.STOPPED, events.get(3).intValue());
+            assertEquals(BundleEvent.UNRESOLVED, events.get(4).intValue());
+            assertEquals(BundleEvent.UNINSTALLED, events.get(5).intValue());
+
+            List<EventQueueStatistics> stats =
+                f.adapt(FrameworkMetrics.class).getEventQueueStatistics();
+            assertEquals(1, stats.size());
+            assertEquals(f, stats.get(0).getBundle());
+            assertEquals(listener,
+                stats.get(0).getListenerStatistics().get(0).getListener());
+            assertEquals(6,
+                stats.get(0).getListenerStatistics().get(0).getDeliveryCount());
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(5000);
+        }
+    }
+
+    public void testRemovedListenerIsDroppedFromStatistics() throws Exception
+    {
+        Framework f = new Felix(createParams());
+        f.init();
+        f.start();
+
+        try
+        {
+            final CountDownLatch delivered = new CountDownLatch(1);
+            BundleListener listener = new BundleListener()
+            {
+                public void bundleChanged(BundleEvent event)
+                {
+                    delivered.countDown();
+                }
+            };
+            f.getBundleContext().addBundleListener(listener);
+            f.getBundleContext().installBundle(
+                createBundle("Bundle-SymbolicName: queue.stats\n"
+                    + "Bundle-ManifestVersion: 2\n").toURI().toString());
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+
+            f.getBundleContext().removeBundleListener(listener);
+
+            List<EventQueueStatistics> stats =
+                f.adapt(FrameworkMetrics.class).getEventQueueStatistics();
+            assertEquals(1, stats.size());
+            assertTrue(stats.get(0).getListenerStatistics().isEmpty());
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(5000);
+        }
+    }
+
+    public void testBlockedListenerDoesNotDelayOtherContexts() throws Exception
+    {
+        Framework f = new Felix(createParams());
+        f.init();
+        f.start();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        try
+        {
+            Bundle slow = f.getBundleContext().installBundle(
+                createBundle("Bundle-SymbolicName: queue.slow\n"
+                    + "Bundle-ManifestVersion: 2\n").toURI().toString());
+            slow.start();
+            Bundle fast = f.getBundleContext().installBundle(
+                createBundle("Bundle-SymbolicName: queue.fast\n"
+                    + "Bundle-ManifestVersion: 2\n").toURI().toString());
+            fast.start();
+
+            final CountDownLatch blocked = new CountDownLatch(1);
+            slow.getBundleContext().addBundleListener(new BundleListener()
+            {
+                public void bundleChanged(BundleEvent event)
+                {
+                    blocked.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            final CountDownLatch delivered = new CountDownLatch(1);
+            fast.getBundleContext().addBundleListener(new BundleListener()
+            {
+                public void bundleChanged(BundleEvent event)
+                {
+                    if (event.getType() == BundleEvent.INSTALLED)
+                    {
+                        delivered.countDown();
+                    }
+                }
+            });
+
+            f.getBundleContext().installBundle(
+                createBundle("Bundle-SymbolicName: queue.other\n"
+                    + "Bundle-ManifestVersion: 2\n").toURI().toString());
+
+            // The listener of the slow bundle context holds its pool thread,
+            // while the other bundle context still gets the event.
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            release.countDown();
+            f.stop();
+            f.waitForStop(5000);
+        }
+    }
+
+    private Map createParams() throws IOException
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.service.packageadmin; version=1.2.0,"
+            + "org.osgi.service.startlevel; version=1.1.0,"
+            + "org.osgi.util.tracker; version=1.3.3,"
+            + "org.osgi.service.url; version=1.0.0");
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        params.put(FelixConstants.EVENT_DISPATCH_THREADS_PROP, "2");
+        return params;
+    }
+
+    private static File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+}
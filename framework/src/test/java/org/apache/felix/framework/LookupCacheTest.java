@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.launch.Framework;
+
+public class LookupCacheTest extends TestCase
+{
+    private static final String WOVEN = Woven.class.getName();
+
+    private File cacheDir;
+    private Framework framework;
+    private FrameworkMetrics metrics;
+
+    protected void setUp() throws Exception
+    {
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.service.packageadmin; version=1.2.0,"
+            + "org.osgi.service.startlevel; version=1.1.0,"
+            + "org.osgi.util.tracker; version=1.3.3,"
+            + "org.osgi.service.url; version=1.0.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        params.put(FelixConstants.LOOKUP_CACHE_SIZE_PROP, "256");
+        framework = new Felix(params);
+        framework.init();
+        framework.start();
+        metrics = framework.adapt(FrameworkMetrics.class);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        framework.stop();
+        framework.waitForStop(5000);
+        deleteDir(cacheDir);
+    }
+
+    public void testImportedLookupsAreCached() throws Exception
+    {
+        BundleContext context = framework.getBundleContext();
+        install(context, "Bundle-SymbolicName: a\n"
+            + "Export-Package: p\n", "p/r.txt");
+        Bundle b = install(context, "Bundle-SymbolicName: b\n"
+            + "Import-Package: p\n", null);
+
+        assertNotNull(b.getResource("p/r.txt"));
+        long hits = metrics.getLookupCacheHits();
+        assertNotNull(b.getResource("p/r.txt"));
+        assertEquals(hits + 1, metrics.getLookupCacheHits());
+
+        // Imported packages are atomic, so misses can be cached too.
+        assertNull(b.getResource("p/missing.txt"));
+        hits = metrics.getLookupCacheHits();
+        assertNull(b.getResource("p/missing.txt"));
+        assertEquals(hits + 1, metrics.getLookupCacheHits());
+
+        assertLoadFails(b, "p.Missing");
+        hits = metrics.getLookupCacheHits();
+        assertLoadFails(b, "p.Missing");
+        assertEquals(hits + 1, metrics.getLookupCacheHits());
+
+        assertSame(String.class, b.loadClass("java.lang.String"));
+        hits = metrics.getLookupCacheHits();
+        assertSame(String.class, b.loadClass("java.lang.String"));
+        assertEquals(hits + 1, metrics.getLookupCacheHits());
+    }
+
+    public void testImplicitBootDelegationMissesAreCached() throws Exception
+    {
+        BundleContext context = framework.getBundleContext();
+        Bundle b = install(context, "Bundle-SymbolicName: b\n", null);
+
+        // The parent class loader cannot see it either, so the lookup
+        // fails for every caller and the miss can be cached.
+        assertNull(b.getResource("b/missing.txt"));
+        long hits = metrics.getLookupCacheHits();
+        assertNull(b.getResource("b/missing.txt"));
+        assertEquals(hits + 1, metrics.getLookupCacheHits());
+
+        // The parent class loader can see it, so whether it is found
+        // depends on the caller and the outcome is not cached.
+        String parentResource = Felix.class.getName().replace('.', '/') + ".class";
+        assertNull(b.getResource(parentResource));
+        long misses = metrics.getLookupCacheMisses();
+        assertNull(b.getResource(parentResource));
+        assertEquals(misses + 1, metrics.getLookupCacheMisses());
+    }
+
+    public void testDynamicImportsAreNotCached() throws Exception
+    {
+        BundleContext context = framework.getBundleContext();
+        Bundle b = install(context, "Bundle-SymbolicName: b\n"
+            + "DynamicImport-Package: *\n", null);
+
+        assertNull(b.getResource("q/r.txt"));
+        long misses = metrics.getLookupCacheMisses();
+        assertNull(b.getResource("q/r.txt"));
+        assertEquals(misses + 1, metrics.getLookupCacheMisses());
+
+        // Providing the package afterwards must be visible right away.
+        Bundle a = install(context, "Bundle-SymbolicName: a\n"
+            + "Export-Package: q\n", "q/r.txt");
+        assertEquals(Bundle.RESOLVED, resolve(a));
+        assertNotNull(b.getResource("q/r.txt"));
+        assertNotNull(b.getResource("q/r.txt"));
+    }
+
+    public void testWovenDynamicImportsClearCachedMisses() throws Exception
+    {
+        BundleContext context = framework.getBundleContext();
+        Bundle b = install(context, "Bundle-SymbolicName: b\n",
+            WOVEN.replace('.', '/') + ".class");
+
+        // Without dynamic imports, the miss is cached.
+        assertNull(b.getResource("q/r.txt"));
+        long hits = metrics.getLookupCacheHits();
+        assertNull(b.getResource("q/r.txt"));
+        assertEquals(hits + 1, metrics.getLookupCacheHits());
+
+        context.registerService(WeavingHook.class.getName(), new WeavingHook()
+        {
+            public void weave(WovenClass wovenClass)
+            {
+                if (wovenClass.getClassName().equals(WOVEN))
+                {
+                    wovenClass.getDynamicImports().add("q");
+                }
+            }
+        }, null);
+        assertNotSame(Woven.class, b.loadClass(WOVEN));
+
+        // The woven dynamic import must be used from now on.
+        Bundle a = install(context, "Bundle-SymbolicName: a\n"
+            + "Export-Package: q\n", "q/r.txt");
+        assertEquals(Bundle.RESOLVED, resolve(a));
+        assertNotNull(b.getResource("q/r.txt"));
+    }
+
+    private int resolve(Bundle bundle)
+    {
+        bundle.getResource("META-INF/MANIFEST.MF");
+        return bundle.getState();
+    }
+
+    private static void assertLoadFails(Bundle bundle, String name)
+    {
+        try
+        {
+            bundle.loadClass(name);
+            fail("Loaded " + name);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private static Bundle install(BundleContext context, String manifest, String entry)
+        throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(
+            ("Bundle-ManifestVersion: 2\n" + manifest).getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        if (entry != null)
+        {
+            os.putNextEntry(new ZipEntry(entry));
+            os.write(entry.endsWith(".class")
+                ? readClass(entry) : "test".getBytes("utf-8"));
+            os.closeEntry();
+        }
+        os.close();
+        return context.installBundle(f.toURI().toString());
+    }
+
+    private static byte[] readClass(String entry) throws IOException
+    {
+        InputStream is = LookupCacheTest.class.getClassLoader().getResourceAsStream(entry);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+        {
+            baos.write(buffer, 0, n);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File file) throws IOException
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    public static class Woven
+    {
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Measures how long it takes to resolve a synthetic repository of bundles
+ * with 1 to 8 resolver threads and verifies that the resulting wiring is the
+ * same for every thread count. This is not run as part of the test suite; run
+ * it with the test class path using
+ * <tt>java org.apache.felix.framework.ResolverBenchmark [bundles] [runs]</tt>.
+**/
+public class ResolverBenchmark
+{
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+    public static void main(String[] args) throws Exception
+    {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        List<String> manifests =
+            ConcurrentResolverTest.createManifests(new Random(42), count);
+        Map<String, String> expected = null;
+        for (int threads : THREAD_COUNTS)
+        {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < runs; run++)
+            {
+                File cacheDir = File.createTempFile("felix-cache", ".dir");
+                cacheDir.delete();
+                cacheDir.mkdirs();
+                Map params = new HashMap();
+                params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+                    "org.osgi.framework; version=1.4.0");
+                params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+                params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+                params.put(FelixConstants.RESOLVER_THREADS_PROP, Integer.toString(threads));
+                params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+                    Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+
+                Framework f = new Felix(params);
+                f.init();
+                f.start();
+                try
+                {
+                    BundleContext bc = f.getBundleContext();
+                    List<Bundle> bundles = new ArrayList<Bundle>();
+                    for (String manifest : manifests)
+                    {
+                        bundles.add(ConcurrentResolverTest.install(bc, manifest));
+                    }
+
+                    long start = System.nanoTime();
+                    f.adapt(FrameworkWiring.class).resolveBundles(bundles);
+                    best = Math.min(best, System.nanoTime() - start);
+
+                    Map<String, String> wiring = ConcurrentResolverTest.getWiring(bundles);
+                    if (expected == null)
+                    {
+                        expected = wiring;
+                    }
+                    else if (!expected.equals(wiring))
+                    {
+                        throw new IllegalStateException(
+                            "Wiring differs with " + threads + " threads.");
+                    }
+                }
+                finally
+                {
+                    f.stop();
+                    f.waitForStop(0);
+                }
+            }
+            System.out.println(threads + " threads: "
+                + (best / 1000000) + " ms to resolve " + manifests.size() + " bundles");
+        }
+    }
+}
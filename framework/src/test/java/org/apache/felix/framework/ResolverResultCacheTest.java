@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ResolverResultCacheTest extends TestCase
+{
+    private File cacheDir;
+
+    protected void setUp() throws Exception
+    {
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(cacheDir);
+    }
+
+    public void testWiringReusedAfterRestart() throws Exception
+    {
+        Framework f = startFramework(null);
+        try
+        {
+            BundleContext context = f.getBundleContext();
+            install(context, "Bundle-SymbolicName: a\n"
+                + "Export-Package: p; version=1.0\n");
+            install(context, "Bundle-SymbolicName: a.fragment\n"
+                + "Fragment-Host: a\n"
+                + "Export-Package: q\n");
+            Bundle b = install(context, "Bundle-SymbolicName: b\n"
+                + "Import-Package: p\n");
+            Bundle c = install(context, "Bundle-SymbolicName: c\n"
+                + "Import-Package: q\n");
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(Arrays.asList(b, c)));
+
+            // The resolver would wire to the higher version after a restart.
+            install(context, "Bundle-SymbolicName: a2\n"
+                + "Export-Package: p; version=2.0\n");
+            assertEquals("a", getProvider(b, "p").getSymbolicName());
+        }
+        finally
+        {
+            stopFramework(f);
+        }
+
+        f = startFramework(null);
+        try
+        {
+            Bundle b = getBundle(f, "b");
+            Bundle c = getBundle(f, "c");
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(Arrays.asList(b)));
+            assertEquals("a", getProvider(b, "p").getSymbolicName());
+            assertEquals(Bundle.RESOLVED, getBundle(f, "a.fragment").getState());
+            assertEquals(Bundle.INSTALLED, getBundle(f, "a2").getState());
+
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(Arrays.asList(c)));
+            assertEquals("a", getProvider(c, "q").getSymbolicName());
+        }
+        finally
+        {
+            stopFramework(f);
+        }
+
+        // A different execution environment invalidates the cache.
+        f = startFramework("OSGi/Minimum-1.2");
+        try
+        {
+            Bundle b = getBundle(f, "b");
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(Arrays.asList(b)));
+            assertEquals("a2", getProvider(b, "p").getSymbolicName());
+        }
+        finally
+        {
+            stopFramework(f);
+        }
+    }
+
+    private Framework startFramework(String execEnv) throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.service.packageadmin; version=1.2.0,"
+            + "org.osgi.service.startlevel; version=1.1.0,"
+            + "org.osgi.util.tracker; version=1.3.3,"
+            + "org.osgi.service.url; version=1.0.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        // Restarting would otherwise fail to install the URL handlers again.
+        params.put("felix.service.urlhandlers", "false");
+        if (execEnv != null)
+        {
+            params.put(Constants.FRAMEWORK_EXECUTIONENVIRONMENT, execEnv);
+        }
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        return f;
+    }
+
+    private static void stopFramework(Framework f) throws Exception
+    {
+        f.stop();
+        f.waitForStop(5000);
+    }
+
+    private static Bundle getBundle(Framework f, String symbolicName)
+    {
+        Bundle[] bundles = f.getBundleContext().getBundles();
+        for (int i = 0; i < bundles.length; i++)
+        {
+            if (symbolicName.equals(bundles[i].getSymbolicName()))
+            {
+                return bundles[i];
+            }
+        }
+        fail("No bundle " + symbolicName);
+        return null;
+    }
+
+    private static Bundle getProvider(Bundle bundle, String pkgName)
+    {
+        BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        List<BundleWire> wires = wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        for (BundleWire wire : wires)
+        {
+            if (pkgName.equals(wire.getCapability().getAttributes()
+                .get(BundleRevision.PACKAGE_NAMESPACE)))
+            {
+                return wire.getProviderWiring().getBundle();
+            }
+        }
+        return null;
+    }
+
+    private static Bundle install(BundleContext context, String manifest)
+        throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(
+            ("Bundle-ManifestVersion: 2\n" + manifest).getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return context.installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File file) throws IOException
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Measures the cost of registering and unregistering a service against the
+ * number of service listeners, which all filter on a distinct objectClass
+ * like service trackers do. This is not run as part of the test suite; run
+ * it with the test class path using
+ * <tt>java org.apache.felix.framework.ServiceEventBenchmark [iterations]</tt>.
+**/
+public class ServiceEventBenchmark
+{
+    private static final int[] LISTENER_COUNTS = { 10, 100, 1000, 10000 };
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+
+        System.out.println("listeners\tns/registration");
+        for (int count : LISTENER_COUNTS)
+        {
+            System.out.println(count + "\t\t" + run(count, iterations));
+        }
+    }
+
+    private static long run(int listeners, int iterations) throws Exception
+    {
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        try
+        {
+            BundleContext bc = f.getBundleContext();
+            for (int i = 0; i < listeners; i++)
+            {
+                // Every listener needs its own instance, since adding the
+                // same listener again only updates its filter.
+                bc.addServiceListener(new ServiceListener()
+                {
+                    public void serviceChanged(ServiceEvent event)
+                    {
+                    }
+                }, "(objectClass=bench.Service" + i + ")");
+            }
+
+            // Use a service factory, since there are no service classes.
+            ServiceFactory factory = new ServiceFactory()
+            {
+                public Object getService(Bundle bundle, ServiceRegistration reg)
+                {
+                    return null;
+                }
+
+                public void ungetService(Bundle bundle, ServiceRegistration reg, Object svc)
+                {
+                }
+            };
+            String[] classes = new String[] { "bench.Service" + (listeners / 2) };
+            Hashtable props = new Hashtable();
+
+            // Warm up before measuring.
+            for (int i = 0; i < iterations; i++)
+            {
+                bc.registerService(classes, factory, props).unregister();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                ServiceRegistration reg = bc.registerService(classes, factory, props);
+                reg.unregister();
+            }
+            return (System.nanoTime() - start) / iterations;
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(0);
+        }
+    }
+}
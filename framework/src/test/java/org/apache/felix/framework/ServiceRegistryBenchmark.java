@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Measures the throughput of contended service lookups through
+ * <tt>BundleContext.getServiceReference()</tt> with 1 to 64 threads. This is
+ * not run as part of the test suite; run it with the test class path using
+ * <tt>java org.apache.felix.framework.ServiceRegistryBenchmark [millis]</tt>.
+**/
+public class ServiceRegistryBenchmark
+{
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final int SERVICES = 1000;
+    private static final int CLASSES = 100;
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) : 2000;
+
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+
+        Framework f = new Felix(params);
+        f.init();
+        f.start();
+        try
+        {
+            final BundleContext bc = f.getBundleContext();
+            // Use a service factory, since there are no service classes.
+            ServiceFactory factory = new ServiceFactory()
+            {
+                public Object getService(Bundle bundle, ServiceRegistration reg)
+                {
+                    return null;
+                }
+
+                public void ungetService(Bundle bundle, ServiceRegistration reg, Object svc)
+                {
+                }
+            };
+            for (int i = 0; i < SERVICES; i++)
+            {
+                Hashtable props = new Hashtable();
+                props.put("index", Integer.valueOf(i));
+                bc.registerService("bench.Service" + (i % CLASSES), factory, props);
+            }
+
+            // Warm up before measuring.
+            run(bc, 4, millis);
+
+            System.out.println("threads\tlookups/s");
+            for (int threads : THREAD_COUNTS)
+            {
+                System.out.println(threads + "\t" + run(bc, threads, millis));
+            }
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(0);
+        }
+    }
+
+    private static long run(final BundleContext bc, int threads, final long millis)
+        throws InterruptedException
+    {
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        long count = 0;
+                        long end = System.currentTimeMillis() + millis;
+                        for (int i = offset; System.currentTimeMillis() < end; i++)
+                        {
+                            for (int j = 0; j < 100; j++)
+                            {
+                                bc.getServiceReference("bench.Service" + ((i + j) % CLASSES));
+                            }
+                            count += 100;
+                        }
+                        lookups.addAndGet(count);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        // Just stop.
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        return lookups.get() * 1000 / millis;
+    }
+}
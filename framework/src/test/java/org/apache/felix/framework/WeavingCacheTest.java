@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.cache.BundleCache;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class WeavingCacheTest extends TestCase
+{
+    private static final String TARGET = Target.class.getName();
+
+    private File cacheDir;
+    private Framework framework;
+    private long bundleId;
+
+    protected void setUp() throws Exception
+    {
+        cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+
+        framework = start();
+        bundleId = install(framework.getBundleContext()).getBundleId();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        stop();
+        deleteDir(cacheDir);
+    }
+
+    public void testWovenClassIsCached() throws Exception
+    {
+        Hook hook = register(0);
+        assertEquals("replaced", load());
+        assertEquals(1, hook.count);
+        assertTrue(hasDynamicImport());
+
+        // The hook is not called on restart, but the woven byte code and
+        // dynamic imports are used.
+        stop();
+        framework = start();
+        hook = register(0);
+        assertEquals("replaced", load());
+        assertEquals(0, hook.count);
+        assertTrue(hasDynamicImport());
+    }
+
+    public void testChangedHooksInvalidate() throws Exception
+    {
+        register(0);
+        assertEquals("replaced", load());
+
+        stop();
+        framework = start();
+        Hook hook = register(10);
+        assertEquals("replaced", load());
+        assertEquals(1, hook.count);
+
+        stop();
+        framework = start();
+        assertEquals("original", load());
+        assertFalse(hasDynamicImport());
+    }
+
+    private Framework start() throws Exception
+    {
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_URLHANDLERS_PROP, "false");
+        params.put(FelixConstants.IMPLICIT_BOOT_DELEGATION_PROP, "false");
+        params.put(BundleCache.CACHE_BYTECODE_PROP, "true");
+        Framework f = new Felix(params);
+        f.start();
+        return f;
+    }
+
+    private void stop() throws Exception
+    {
+        framework.stop();
+        framework.waitForStop(5000);
+    }
+
+    private Hook register(int ranking)
+    {
+        Hook hook = new Hook();
+        Dictionary props = new Hashtable();
+        props.put(Constants.SERVICE_RANKING, Integer.valueOf(ranking));
+        framework.getBundleContext().registerService(
+            WeavingHook.class.getName(), hook, props);
+        return hook;
+    }
+
+    private String load() throws Exception
+    {
+        Bundle b = framework.getBundleContext().getBundle(bundleId);
+        Class clazz = b.loadClass(TARGET);
+        assertNotSame(Target.class, clazz);
+        return clazz.newInstance().toString();
+    }
+
+    private boolean hasDynamicImport()
+    {
+        BundleWiring wiring = framework.getBundleContext().getBundle(bundleId)
+            .adapt(BundleWiring.class);
+        for (BundleRequirement req
+            : wiring.getRequirements(BundleRevision.PACKAGE_NAMESPACE))
+        {
+            if (req.getDirectives().get(Constants.FILTER_DIRECTIVE).contains("woven"))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Bundle install(BundleContext context) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar");
+        f.deleteOnExit();
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(
+            ("Bundle-ManifestVersion: 2\nBundle-SymbolicName: woven\n")
+                .getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        String entry = TARGET.replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(entry));
+        os.write(readClass(entry));
+        os.closeEntry();
+        os.close();
+        return context.installBundle(f.toURI().toString());
+    }
+
+    private static byte[] readClass(String entry) throws IOException
+    {
+        InputStream is = WeavingCacheTest.class.getClassLoader().getResourceAsStream(entry);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+        {
+            baos.write(buffer, 0, n);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File file) throws IOException
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+
+    public static class Target
+    {
+        public String toString()
+        {
+            return "original";
+        }
+    }
+
+    // Replaces the string returned by the target class and adds a dynamic
+    // import.
+    static class Hook implements WeavingHook
+    {
+        volatile int count;
+
+        public void weave(WovenClass wovenClass)
+        {
+            if (!wovenClass.getClassName().equals(TARGET))
+            {
+                return;
+            }
+            count++;
+            byte[] bytes = wovenClass.getBytes();
+            byte[] from = "original".getBytes();
+            byte[] to = "replaced".getBytes();
+            for (int i = 0; i + from.length <= bytes.length; i++)
+            {
+                int j = 0;
+                while ((j < from.length) && (bytes[i + j] == from[j]))
+                {
+                    j++;
+                }
+                if (j == from.length)
+                {
+                    System.arraycopy(to, 0, bytes, i, to.length);
+                }
+            }
+            wovenClass.setBytes(bytes);
+            wovenClass.getDynamicImports().add("org.example.woven");
+        }
+    }
+}
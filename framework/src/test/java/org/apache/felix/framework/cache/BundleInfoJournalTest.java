@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+
+public class BundleInfoJournalTest extends TestCase
+{
+    private File m_dir;
+    private File m_file;
+
+    protected void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-journal", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+        m_file = new File(m_dir, BundleInfoJournal.JOURNAL_FILE);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        BundleCache.deleteDirectoryTree(m_dir);
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        journal.put(info(1, 32, 1), false);
+        journal.put(info(2, 2, 1), false);
+        journal.put(info(1, 8, 3), false);
+        journal.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(2, journal.getIds().size());
+        BundleInfoJournal.Info info = journal.get(1);
+        assertEquals("file:bundle1.jar", info.m_location);
+        assertEquals(8, info.m_persistentState);
+        assertEquals(3, info.m_startLevel);
+        assertEquals(1000, info.m_lastModified);
+        assertEquals(1, info.m_refreshCount);
+        assertEquals(2, journal.get(2).m_persistentState);
+        journal.close();
+    }
+
+    public void testRemove() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        journal.put(info(1, 32, 1), true);
+        journal.put(info(2, 32, 1), true);
+        journal.remove(1);
+        journal.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertNull(journal.get(1));
+        assertNotNull(journal.get(2));
+        journal.close();
+    }
+
+    public void testTornTail() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        journal.put(info(1, 32, 1), true);
+        journal.put(info(1, 2, 1), true);
+        journal.close();
+
+        // Cut the last record in half.
+        long length = m_file.length();
+        RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        raf.setLength(length - 10);
+        raf.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(32, journal.get(1).m_persistentState);
+        journal.put(info(2, 2, 1), true);
+        journal.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(32, journal.get(1).m_persistentState);
+        assertEquals(2, journal.get(2).m_persistentState);
+        journal.close();
+    }
+
+    public void testCorruptRecord() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        journal.put(info(1, 32, 1), true);
+        journal.put(info(1, 2, 1), true);
+        journal.close();
+
+        // Flip a byte in the last record.
+        RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+        raf.seek(m_file.length() - 12);
+        int b = raf.read();
+        raf.seek(m_file.length() - 12);
+        raf.write(b ^ 0xff);
+        raf.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(32, journal.get(1).m_persistentState);
+        journal.close();
+    }
+
+    public void testUndecodableRecord() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        journal.put(info(1, 32, 1), true);
+        journal.close();
+
+        // Append a record with a valid checksum but a negative location
+        // length.
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(record);
+        dos.writeByte(1);
+        dos.writeLong(2);
+        dos.writeInt(-5);
+        dos.writeLong(0);
+        CRC32 crc = new CRC32();
+        crc.update(record.toByteArray());
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(m_file, true));
+        out.writeInt(record.size());
+        record.writeTo(out);
+        out.writeLong(crc.getValue());
+        out.close();
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        journal.put(info(3, 32, 1), true);
+        journal.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(32, journal.get(1).m_persistentState);
+        assertNull(journal.get(2));
+        assertEquals(32, journal.get(3).m_persistentState);
+        journal.close();
+    }
+
+    public void testCompaction() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        for (int i = 0; i < 10000; i++)
+        {
+            journal.put(info(1 + (i % 5), i, 1), false);
+        }
+        assertTrue(m_file.length() < 64 * 1024 * 2);
+        journal.close();
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(5, journal.getIds().size());
+        assertEquals(9999, journal.get(5).m_persistentState);
+        journal.close();
+        assertFalse(new File(m_dir, BundleInfoJournal.JOURNAL_FILE + ".tmp").exists());
+    }
+
+    public void testDeferredWritesAreCoalesced() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 60000);
+        long empty = m_file.length();
+        for (int i = 0; i < 100; i++)
+        {
+            journal.put(info(1, i, 1), false);
+        }
+        // Nothing is written before the flush delay has passed.
+        assertEquals(empty, m_file.length());
+        journal.close();
+        long single = m_file.length() - empty;
+
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(99, journal.get(1).m_persistentState);
+        journal.close();
+
+        // Only the last state was written.
+        journal = new BundleInfoJournal(new Logger(), m_dir, 0);
+        journal.put(info(1, 5, 1), false);
+        journal.close();
+        assertEquals(empty + 2 * single, m_file.length());
+    }
+
+    public void testDeferredWritesAreFlushed() throws Exception
+    {
+        BundleInfoJournal journal = new BundleInfoJournal(new Logger(), m_dir, 10);
+        long empty = m_file.length();
+        journal.put(info(1, 32, 1), false);
+        for (int i = 0; (i < 500) && (m_file.length() == empty); i++)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(m_file.length() > empty);
+
+        BundleInfoJournal other = new BundleInfoJournal(new Logger(), m_dir, 0);
+        assertEquals(32, other.get(1).m_persistentState);
+        other.close();
+        journal.close();
+    }
+
+    public void testBundleCache() throws Exception
+    {
+        File jar = new File(m_dir, "test.jar");
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue("Bundle-SymbolicName", "test");
+        new JarOutputStream(new FileOutputStream(jar), mf).close();
+
+        Map config = new HashMap();
+        config.put(Constants.FRAMEWORK_STORAGE, new File(m_dir, "cache").getPath());
+        config.put(BundleCache.CACHE_LOCKING_PROP, "false");
+        config.put(BundleCache.CACHE_JOURNAL_PROP, "true");
+
+        BundleCache cache = new BundleCache(new Logger(), config);
+        BundleArchive archive = cache.create(5, 1, jar.toURI().toString(), null);
+        archive.setPersistentState(Bundle.ACTIVE);
+        archive.setStartLevel(4);
+        archive.close();
+        cache.release();
+        assertTrue(new File(m_dir, "cache/" + BundleInfoJournal.JOURNAL_FILE).exists());
+
+        cache = new BundleCache(new Logger(), config);
+        BundleArchive[] archives = cache.getArchives();
+        assertEquals(1, archives.length);
+        assertEquals(5, archives[0].getId());
+        assertEquals(Bundle.ACTIVE, archives[0].getPersistentState());
+        assertEquals(4, archives[0].getStartLevel());
+        archives[0].close();
+        cache.release();
+
+        // Disabling the journal moves the state back to the archive.
+        config.put(BundleCache.CACHE_JOURNAL_PROP, "false");
+        cache = new BundleCache(new Logger(), config);
+        archives = cache.getArchives();
+        assertEquals(Bundle.ACTIVE, archives[0].getPersistentState());
+        archives[0].close();
+        cache.release();
+        assertFalse(new File(m_dir, "cache/" + BundleInfoJournal.JOURNAL_FILE).exists());
+
+        cache = new BundleCache(new Logger(), config);
+        archives = cache.getArchives();
+        assertEquals(Bundle.ACTIVE, archives[0].getPersistentState());
+        assertEquals(4, archives[0].getStartLevel());
+        archives[0].close();
+        cache.release();
+    }
+
+    private static BundleInfoJournal.Info info(long id, int state, int startLevel)
+    {
+        return new BundleInfoJournal.Info(
+            id, "file:bundle" + id + ".jar", state, startLevel, 1000, 1);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+
+public class BytecodeCacheTest extends TestCase
+{
+    private static final byte[] KEY1 = key(1);
+    private static final byte[] KEY2 = key(2);
+
+    private File m_dir;
+    private File m_jar;
+
+    protected void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-bytecode", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+        m_jar = new File(m_dir, "bundle.jar");
+        writeJar(4);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        BundleCache.deleteDirectoryTree(m_dir);
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        BytecodeCache cache = open();
+        cache.put("a.A", KEY1, bytes(100, 1), null);
+        cache.put("a.B", KEY1, bytes(5000, 2), Arrays.asList("x.y", "z.*"));
+        // Pending classes are visible before they are written.
+        assertBytes(bytes(100, 1), cache.get("a.A", KEY1));
+        cache.close();
+
+        cache = open();
+        assertBytes(bytes(100, 1), cache.get("a.A", KEY1));
+        BytecodeCache.Entry entry = cache.get("a.B", KEY1);
+        assertBytes(bytes(5000, 2), entry);
+        assertEquals(Arrays.asList("x.y", "z.*"), entry.getDynamicImports());
+        assertEquals(Collections.emptyList(), cache.get("a.A", KEY1).getDynamicImports());
+        assertNull(cache.get("a.C", KEY1));
+        cache.close();
+    }
+
+    public void testKeyMismatch() throws Exception
+    {
+        BytecodeCache cache = open();
+        cache.put("a.A", KEY1, bytes(100, 1), null);
+        cache.close();
+
+        cache = open();
+        assertNull(cache.get("a.A", KEY2));
+        // Storing the class with another key replaces it.
+        cache.put("a.A", KEY2, bytes(100, 3), null);
+        cache.flush();
+        assertNull(cache.get("a.A", KEY1));
+        assertBytes(bytes(100, 3), cache.get("a.A", KEY2));
+        cache.close();
+
+        cache = open();
+        assertNull(cache.get("a.A", KEY1));
+        assertBytes(bytes(100, 3), cache.get("a.A", KEY2));
+        cache.close();
+    }
+
+    public void testChangedJarInvalidates() throws Exception
+    {
+        BytecodeCache cache = open();
+        cache.put("a.A", KEY1, bytes(100, 1), null);
+        cache.close();
+
+        writeJar(8);
+        cache = open();
+        assertNull(cache.get("a.A", KEY1));
+        cache.put("a.B", KEY1, bytes(100, 2), null);
+        cache.close();
+
+        cache = open();
+        assertNull(cache.get("a.A", KEY1));
+        assertBytes(bytes(100, 2), cache.get("a.B", KEY1));
+        cache.close();
+    }
+
+    public void testTornRecordIsDiscarded() throws Exception
+    {
+        BytecodeCache cache = open();
+        cache.put("a.A", KEY1, bytes(100, 1), null);
+        cache.flush();
+        cache.put("a.B", KEY1, bytes(100, 2), null);
+        cache.close();
+
+        File file = new File(m_dir, BytecodeCache.BYTECODE_CACHE_FILE);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        cache = open();
+        assertBytes(bytes(100, 1), cache.get("a.A", KEY1));
+        assertNull(cache.get("a.B", KEY1));
+        cache.put("a.C", KEY1, bytes(100, 3), null);
+        cache.close();
+
+        cache = open();
+        assertBytes(bytes(100, 1), cache.get("a.A", KEY1));
+        assertBytes(bytes(100, 3), cache.get("a.C", KEY1));
+        cache.close();
+    }
+
+    public void testCorruptedRecordIsIgnored() throws Exception
+    {
+        BytecodeCache cache = open();
+        cache.put("a.A", KEY1, bytes(100, 1), null);
+        cache.close();
+
+        File file = new File(m_dir, BytecodeCache.BYTECODE_CACHE_FILE);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 1);
+        raf.write(0);
+        raf.close();
+
+        cache = open();
+        assertNull(cache.get("a.A", KEY1));
+        cache.close();
+    }
+
+    private BytecodeCache open()
+    {
+        return new BytecodeCache(new Logger(), m_dir, m_jar);
+    }
+
+    private void writeJar(int size) throws Exception
+    {
+        FileOutputStream os = new FileOutputStream(m_jar);
+        os.write(new byte[size]);
+        os.close();
+    }
+
+    private static void assertBytes(byte[] expected, BytecodeCache.Entry entry)
+    {
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(expected, entry.getBytes()));
+    }
+
+    private static byte[] bytes(int length, int seed)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+        {
+            bytes[i] = (byte) (i * seed);
+        }
+        return bytes;
+    }
+
+    private static byte[] key(int seed)
+    {
+        byte[] key = new byte[BytecodeCache.KEY_LENGTH];
+        Arrays.fill(key, (byte) seed);
+        return key;
+    }
+}
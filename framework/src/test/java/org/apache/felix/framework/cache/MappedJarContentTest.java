@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+public class MappedJarContentTest extends TestCase
+{
+    private File m_dir;
+    private File m_jar;
+    private WeakZipFileFactory m_factory;
+
+    protected void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-content", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        byte[] text = new byte[20000];
+        for (int i = 0; i < text.length; i++)
+        {
+            text[i] = (byte) ('a' + (i % 23));
+        }
+
+        m_jar = new File(m_dir, "bundle.jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_jar));
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.closeEntry();
+        putEntry(zos, "dir/deflated.txt", text, ZipEntry.DEFLATED);
+        putEntry(zos, "dir/stored.txt", "stored".getBytes("utf-8"), ZipEntry.STORED);
+        putEntry(zos, "empty.txt", new byte[0], ZipEntry.DEFLATED);
+        putEntry(zos, "lib/embedded.jar", createEmbeddedJar(), ZipEntry.STORED);
+        zos.close();
+
+        m_factory = new WeakZipFileFactory(1);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_dir);
+    }
+
+    public void testEntriesMatchJarContent() throws Exception
+    {
+        Content expected = new JarContent(new Logger(), new HashMap(),
+            m_factory, this, m_dir, m_jar, null);
+        Content actual = new MappedJarContent(new Logger(), new HashMap(),
+            m_factory, this, m_dir, m_jar);
+
+        List<String> names = Collections.list(expected.getEntries());
+        assertEquals(names, Collections.list(actual.getEntries()));
+        for (String name : names)
+        {
+            assertTrue(actual.hasEntry(name));
+            assertEquals(new String(expected.getEntryAsBytes(name), "utf-8"),
+                new String(actual.getEntryAsBytes(name), "utf-8"));
+            assertEquals(new String(readFully(expected.getEntryAsStream(name)), "utf-8"),
+                new String(readFully(actual.getEntryAsStream(name)), "utf-8"));
+        }
+
+        assertTrue(actual.hasEntry("dir"));
+        assertFalse(actual.hasEntry("missing.txt"));
+        assertNull(actual.getEntryAsBytes("missing.txt"));
+        assertNull(actual.getEntryAsStream("missing.txt"));
+        assertEquals(expected.getEntryAsURL("dir/stored.txt"),
+            actual.getEntryAsURL("dir/stored.txt"));
+
+        expected.close();
+        actual.close();
+    }
+
+    public void testEntryAsContent() throws Exception
+    {
+        Content content = new MappedJarContent(new Logger(), new HashMap(),
+            m_factory, this, m_dir, m_jar);
+
+        Content self = content.getEntryAsContent(".");
+        assertEquals("stored", new String(self.getEntryAsBytes("dir/stored.txt"), "utf-8"));
+
+        Content dir = content.getEntryAsContent("dir/");
+        assertTrue(dir instanceof ContentDirectoryContent);
+        assertEquals("stored", new String(dir.getEntryAsBytes("stored.txt"), "utf-8"));
+
+        Content embedded = content.getEntryAsContent("lib/embedded.jar");
+        assertTrue(embedded instanceof MappedJarContent);
+        assertEquals("embedded", new String(embedded.getEntryAsBytes("e.txt"), "utf-8"));
+        assertTrue(new File(m_dir, "bundle.jar-embedded/lib/embedded.jar").isFile());
+
+        assertNull(content.getEntryAsContent("missing.jar"));
+        embedded.close();
+        content.close();
+    }
+
+    public void testInvalidJarIsRejected() throws Exception
+    {
+        File file = new File(m_dir, "invalid.jar");
+        FileOutputStream os = new FileOutputStream(file);
+        os.write("not a jar file".getBytes("utf-8"));
+        os.close();
+        try
+        {
+            new MappedJarContent(new Logger(), new HashMap(), m_factory, this, m_dir, file);
+            fail("Mapped an invalid JAR file.");
+        }
+        catch (IOException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private static byte[] createEmbeddedJar() throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(baos);
+        putEntry(zos, "e.txt", "embedded".getBytes("utf-8"), ZipEntry.DEFLATED);
+        zos.close();
+        return baos.toByteArray();
+    }
+
+    private static void putEntry(ZipOutputStream zos, String name, byte[] data, int method)
+        throws IOException
+    {
+        ZipEntry ze = new ZipEntry(name);
+        ze.setMethod(method);
+        if (method == ZipEntry.STORED)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            ze.setCrc(crc.getValue());
+            ze.setSize(data.length);
+            ze.setCompressedSize(data.length);
+        }
+        zos.putNextEntry(ze);
+        zos.write(data);
+        zos.closeEntry();
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        for (int n = is.read(buf); n >= 0; n = is.read(buf))
+        {
+            baos.write(buf, 0, n);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+
+    private static void deleteDir(File file)
+    {
+        File[] files = file.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        file.delete();
+    }
+}
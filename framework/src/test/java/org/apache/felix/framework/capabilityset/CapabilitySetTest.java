@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import junit.framework.TestCase;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class CapabilitySetTest extends TestCase
+{
+    private static final String[] FILTERS = new String[] {
+        "(osgi.wiring.package=p3)",
+        "(osgi.wiring.package=none)",
+        "(version=1.1)",
+        "(version>=2.0.0)",
+        "(version<=1.1.0)",
+        "(&(osgi.wiring.package=p3)(version>=1.0.0)(!(version>=2.0.0)))",
+        "(&(version>=1.1.0)(version<=2.0.0))",
+        "(&(version>=1.1.0)(osgi.wiring.package=p1*))",
+        "(&(osgi.wiring.package=p2)(osgi.wiring.package=p3))",
+        "(&(osgi.wiring.package=p4)(version=1.0.0)(vendor=acme))",
+        "(|(osgi.wiring.package=p1)(version>=2.1.0))",
+        "(!(osgi.wiring.package=p1))",
+        "(&(osgi.wiring.package=p2)(tag=b))",
+        "(tag<=b)"
+    };
+
+    public void testIndexedMatchesScan()
+    {
+        List<String> indices = new ArrayList<String>();
+        indices.add(BundleRevision.PACKAGE_NAMESPACE);
+        indices.add(Constants.VERSION_ATTRIBUTE);
+        indices.add("tag");
+        CapabilitySet indexed = new CapabilitySet(indices, true);
+        CapabilitySet scanned = new CapabilitySet(null, true);
+
+        List<BundleCapability> caps = new ArrayList<BundleCapability>();
+        for (int i = 0; i < 200; i++)
+        {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(BundleRevision.PACKAGE_NAMESPACE, "p" + (i % 20));
+            attrs.put(Constants.VERSION_ATTRIBUTE,
+                new Version(i % 3, i % 2, 0));
+            if ((i % 7) == 0)
+            {
+                attrs.put("vendor", "acme");
+            }
+            if ((i % 5) == 0)
+            {
+                attrs.put("tag", new String[] { "a", "c" });
+            }
+            else if ((i % 5) == 1)
+            {
+                attrs.put("tag", "b");
+            }
+            BundleCapability cap = new BundleCapabilityImpl(
+                null, BundleRevision.PACKAGE_NAMESPACE,
+                Collections.EMPTY_MAP, attrs);
+            caps.add(cap);
+            indexed.addCapability(cap);
+            scanned.addCapability(cap);
+        }
+
+        assertMatches(indexed, scanned, caps);
+
+        // Removing capabilities must update all indices.
+        for (int i = 0; i < caps.size(); i += 2)
+        {
+            indexed.removeCapability(caps.get(i));
+            scanned.removeCapability(caps.remove(i));
+        }
+
+        assertMatches(indexed, scanned, caps);
+    }
+
+    private static void assertMatches(
+        CapabilitySet indexed, CapabilitySet scanned, List<BundleCapability> caps)
+    {
+        for (int i = 0; i < FILTERS.length; i++)
+        {
+            SimpleFilter sf = SimpleFilter.parse(FILTERS[i]);
+            Set<BundleCapability> expected = scanned.match(sf, false);
+            assertEquals(FILTERS[i], expected, indexed.match(sf, false));
+
+            // The result must also agree with matching single capabilities.
+            for (BundleCapability cap : caps)
+            {
+                assertEquals(FILTERS[i], expected.contains(cap),
+                    CapabilitySet.matches(cap, sf));
+            }
+        }
+    }
+}
@@ -32,9 +32,11 @@ import junit.framework.TestCase;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
 import org.easymock.EasyMock;
+import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
@@ -154,6 +156,85 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testFireServiceEventToIndexedListeners() throws Exception
+    {
+        Bundle b1 = getMockBundle();
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry);
+
+        final List fired = Collections.synchronizedList(new ArrayList());
+        AllServiceListener slA = new RecordingListener(fired);
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slA,
+            FrameworkUtil.createFilter("(objectClass=A)"));
+        AllServiceListener slAorB = new RecordingListener(fired);
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slAorB,
+            FrameworkUtil.createFilter("(|(objectClass=A)(objectClass=B))"));
+        AllServiceListener slC = new RecordingListener(fired);
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slC,
+            FrameworkUtil.createFilter("(&(objectClass=C)(x=1))"));
+        AllServiceListener slX = new RecordingListener(fired);
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slX,
+            FrameworkUtil.createFilter("(x=1)"));
+        AllServiceListener slAll = new RecordingListener(fired);
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, slAll, null);
+
+        ServiceReference sr = (ServiceReference) EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(sr.getProperty(Constants.OBJECTCLASS)).andReturn(new String[]
+            {
+                "A", "B"
+            }).anyTimes();
+        EasyMock.expect(sr.getProperty("x")).andReturn("1").anyTimes();
+        EasyMock.expect(sr.getPropertyKeys()).andReturn(new String[]
+            {
+                Constants.OBJECTCLASS, "x"
+            }).anyTimes();
+        EasyMock.replay(new Object[]
+            {
+                sr
+            });
+
+        Framework framework = (Framework) EasyMock.createNiceMock(Framework.class);
+        EasyMock.replay(new Object[]
+            {
+                framework
+            });
+
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, framework);
+        assertEquals(4, fired.size());
+        assertTrue(fired.contains(slA));
+        assertTrue(fired.contains(slAorB));
+        assertTrue(fired.contains(slX));
+        assertTrue(fired.contains(slAll));
+
+        // Changing the filter must move the listener in the index.
+        fired.clear();
+        ed.updateListener(b1.getBundleContext(), ServiceListener.class, slC,
+            FrameworkUtil.createFilter("(objectClass=B)"));
+        ed.removeListener(b1.getBundleContext(), ServiceListener.class, slA);
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, framework);
+        assertEquals(4, fired.size());
+        assertTrue(fired.contains(slAorB));
+        assertTrue(fired.contains(slC));
+        assertTrue(fired.contains(slX));
+        assertTrue(fired.contains(slAll));
+    }
+
+    private static class RecordingListener implements AllServiceListener
+    {
+        private final List m_fired;
+
+        RecordingListener(List fired)
+        {
+            m_fired = fired;
+        }
+
+        public void serviceChanged(ServiceEvent event)
+        {
+            m_fired.add(this);
+        }
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = (BundleContext) EasyMock.createNiceMock(BundleContext.class);
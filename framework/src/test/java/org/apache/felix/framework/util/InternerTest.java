@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.osgi.framework.Version;
+
+public class InternerTest extends TestCase
+{
+    public void testIntern()
+    {
+        String s1 = new String("osgi.wiring.package");
+        String s2 = new String("osgi.wiring.package");
+        assertNotSame(s1, s2);
+        assertSame(Interner.intern(s1), Interner.intern(s2));
+
+        Version v = Interner.intern(new Version(1, 2, 3));
+        assertSame(v, Interner.intern(Version.parseVersion("1.2.3")));
+        assertNull(Interner.intern((String) null));
+
+        VersionRange r = VersionRange.parse("[1.0,2.0)");
+        assertSame(Interner.internValue(r),
+            Interner.internValue(VersionRange.parse("[1.0,2.0)")));
+        assertEquals(new Long(5), Interner.internValue(new Long(5)));
+    }
+
+    public void testInternMap()
+    {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(new String("version"), new Version(1, 0, 0));
+        List<String> list = new ArrayList<String>();
+        list.add(new String("a"));
+        attrs.put("list", list);
+
+        Map<String, Object> interned = Interner.intern(attrs);
+        assertEquals(attrs, interned);
+        assertTrue(interned instanceof ImmutableMap);
+        for (String key : interned.keySet())
+        {
+            assertSame(Interner.intern(key), key);
+        }
+        assertSame(Interner.intern(new Version(1, 0, 0)), interned.get("version"));
+        assertSame(Interner.intern("a"), ((List) interned.get("list")).get(0));
+        assertSame(interned, Interner.intern(interned));
+        assertSame(Interner.intern(new HashMap<String, Object>()),
+            Interner.intern(new HashMap<String, Object>()));
+    }
+
+    public void testInternFilter()
+    {
+        SimpleFilter filter = SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=1.0))");
+        SimpleFilter interned = Interner.intern(filter);
+        assertEquals(filter.toString(), interned.toString());
+        SimpleFilter child = (SimpleFilter) ((List) interned.getValue()).get(0);
+        assertSame(Interner.intern("osgi.wiring.package"), child.getName());
+        assertSame(Interner.intern("org.foo"), child.getValue());
+
+        // Equal filters of other requirements share the pooled instance.
+        assertSame(interned, Interner.intern(
+            SimpleFilter.parse("(&(osgi.wiring.package=org.foo)(version>=1.0))")));
+
+        // A version value is not the same as a string value.
+        SimpleFilter version = Interner.intern(
+            new SimpleFilter("version", new Version(1, 0, 0), SimpleFilter.GTE));
+        SimpleFilter string = Interner.intern(
+            new SimpleFilter("version", "1.0.0", SimpleFilter.GTE));
+        assertNotSame(version, string);
+        assertTrue(version.getValue() instanceof Version);
+        assertTrue(string.getValue() instanceof String);
+    }
+
+    public void testImmutableMap()
+    {
+        Map<String, Object> source = new HashMap<String, Object>();
+        source.put("a", "1");
+        source.put("b", null);
+        source.put(null, "3");
+        Map<String, Object> map = ImmutableMap.newInstance(source);
+        assertEquals(source, map);
+        assertEquals(map, source);
+        assertEquals(source.hashCode(), map.hashCode());
+        assertEquals(3, map.size());
+        assertEquals("1", map.get("a"));
+        assertEquals("3", map.get(null));
+        assertNull(map.get("b"));
+        assertTrue(map.containsKey("b"));
+        assertFalse(map.containsKey("c"));
+        assertEquals(source.keySet(), map.keySet());
+        assertTrue(map.keySet().contains(null));
+        assertEquals(source.values().size(), map.values().size());
+        assertTrue(map.values().containsAll(source.values()));
+
+        Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+        Map.Entry<String, Object> entry = it.next();
+        try
+        {
+            entry.setValue("x");
+            fail();
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // Expected.
+        }
+        try
+        {
+            map.put("c", "4");
+            fail();
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // Expected.
+        }
+    }
+}
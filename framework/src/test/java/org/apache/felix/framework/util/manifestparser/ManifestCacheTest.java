@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.StringMap;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+
+public class ManifestCacheTest extends TestCase
+{
+    private final Map m_config = new HashMap();
+
+    protected void setUp()
+    {
+        m_config.put(FelixConstants.FELIX_VERSION_PROPERTY, "4.0.0");
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        Map headers = createHeaders();
+        ManifestParser mp = new ManifestParser(new Logger(), m_config, null, headers);
+        byte[] digest = ManifestCache.getDigest(m_config, headers);
+
+        ManifestParser cached = ManifestCache.read(ManifestCache.write(digest, mp),
+            digest, new Logger(), m_config, null, headers);
+
+        assertNotNull(cached);
+        assertEquals(mp.getSymbolicName(), cached.getSymbolicName());
+        assertEquals(mp.getBundleVersion(), cached.getBundleVersion());
+        assertEquals(mp.getManifestVersion(), cached.getManifestVersion());
+        assertEquals(mp.getActivationPolicy(), cached.getActivationPolicy());
+        assertEquals(mp.isExtension(), cached.isExtension());
+
+        List<BundleCapability> caps = mp.getCapabilities();
+        List<BundleCapability> cachedCaps = cached.getCapabilities();
+        assertEquals(caps.size(), cachedCaps.size());
+        for (int i = 0; i < caps.size(); i++)
+        {
+            assertEquals(caps.get(i).getNamespace(), cachedCaps.get(i).getNamespace());
+            assertEquals(caps.get(i).getDirectives(), cachedCaps.get(i).getDirectives());
+            assertEquals(caps.get(i).getAttributes(), cachedCaps.get(i).getAttributes());
+        }
+
+        List<BundleRequirement> reqs = mp.getRequirements();
+        List<BundleRequirement> cachedReqs = cached.getRequirements();
+        assertEquals(reqs.size(), cachedReqs.size());
+        for (int i = 0; i < reqs.size(); i++)
+        {
+            assertEquals(reqs.get(i).getNamespace(), cachedReqs.get(i).getNamespace());
+            assertEquals(reqs.get(i).getDirectives(), cachedReqs.get(i).getDirectives());
+            assertEquals(reqs.get(i).getAttributes(), cachedReqs.get(i).getAttributes());
+            assertEquals(((BundleRequirementImpl) reqs.get(i)).getFilter().toString(),
+                ((BundleRequirementImpl) cachedReqs.get(i)).getFilter().toString());
+        }
+    }
+
+    public void testChangedHeaders() throws Exception
+    {
+        Map headers = createHeaders();
+        ManifestParser mp = new ManifestParser(new Logger(), m_config, null, headers);
+        byte[] data = ManifestCache.write(ManifestCache.getDigest(m_config, headers), mp);
+
+        headers.put(Constants.EXPORT_PACKAGE, "org.example.other");
+        assertNull(ManifestCache.read(data, ManifestCache.getDigest(m_config, headers),
+            new Logger(), m_config, null, headers));
+
+        // A different framework version invalidates the cache as well.
+        headers = createHeaders();
+        m_config.put(FelixConstants.FELIX_VERSION_PROPERTY, "4.0.1");
+        assertNull(ManifestCache.read(data, ManifestCache.getDigest(m_config, headers),
+            new Logger(), m_config, null, headers));
+    }
+
+    private static Map createHeaders()
+    {
+        Map headers = new StringMap();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "org.example.test;singleton:=true");
+        headers.put(Constants.BUNDLE_VERSION, "1.2.3.qualifier");
+        headers.put(Constants.EXPORT_PACKAGE,
+            "org.example.a;org.example.b;version=\"1.1\";uses:=\"org.example.c\","
+            + "org.example.c;version=2.0;mandatory:=attr;attr=x");
+        headers.put(Constants.IMPORT_PACKAGE,
+            "org.example.d;version=\"[1.0,2.0)\",org.example.e;resolution:=optional;"
+            + "version=\"(1.0,1.5]\",org.example.f*x;vendor=y");
+        headers.put(Constants.DYNAMICIMPORT_PACKAGE, "org.example.dyn.*");
+        headers.put(Constants.REQUIRE_BUNDLE, "org.example.lib;bundle-version=\"[1,2)\"");
+        headers.put(Constants.REQUIRE_CAPABILITY,
+            "osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version>=1.6))\"");
+        headers.put(Constants.PROVIDE_CAPABILITY,
+            "example.cap;name=one;size:Long=5;ratio:Double=0.5;v:Version=1.2;"
+            + "names:List<String>=\"a,b\";sizes:List<Long>=\"1,2\"");
+        headers.put(Constants.BUNDLE_ACTIVATIONPOLICY, "lazy");
+        return headers;
+    }
+}
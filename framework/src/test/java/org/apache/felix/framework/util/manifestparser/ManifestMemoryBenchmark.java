@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.StringMap;
+import org.osgi.framework.Constants;
+
+/**
+ * Measures the heap retained by the capabilities and requirements parsed
+ * from the manifests of a large synthetic installation, where every bundle
+ * exports and imports packages of a shared set of libraries. This is not run
+ * as part of the test suite; run it with the test class path using
+ * <tt>java org.apache.felix.framework.util.manifestparser.ManifestMemoryBenchmark
+ * [bundles] [exports]</tt>.
+**/
+public class ManifestMemoryBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int bundles = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int exports = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+
+        Map config = new HashMap();
+        List<Map> manifests = new ArrayList<Map>(bundles);
+        for (int i = 0; i < bundles; i++)
+        {
+            manifests.add(createHeaders(i, exports));
+        }
+
+        long before = usedMemory();
+        List<ManifestParser> parsers = new ArrayList<ManifestParser>(bundles);
+        int caps = 0;
+        int reqs = 0;
+        for (Map headers : manifests)
+        {
+            ManifestParser mp = new ManifestParser(new Logger(), config, null, headers);
+            caps += mp.getCapabilities().size();
+            reqs += mp.getRequirements().size();
+            parsers.add(mp);
+        }
+        long after = usedMemory();
+
+        System.out.println(bundles + " bundles, " + caps + " capabilities, "
+            + reqs + " requirements: " + ((after - before) / 1024) + " KB retained ("
+            + ((after - before) / (caps + reqs)) + " bytes each)");
+        // Keep the parsers reachable until after the measurement.
+        System.out.println(parsers.size() + " manifests parsed");
+    }
+
+    // Every bundle exports packages in its own name space, like a
+    // repackaged library, and imports packages of ten other bundles.
+    private static Map createHeaders(int bundle, int exports)
+    {
+        StringBuffer exp = new StringBuffer();
+        for (int i = 0; i < exports; i++)
+        {
+            exp.append((i > 0) ? "," : "").append("org.example.b").append(bundle)
+                .append(".p").append(i).append(";version=\"1.0.0\";uses:=\"org.example.b")
+                .append(bundle).append(".p").append((i + 1) % exports).append("\"");
+        }
+        StringBuffer imp = new StringBuffer();
+        for (int i = 1; i <= 10; i++)
+        {
+            imp.append((i > 1) ? "," : "").append("org.example.b")
+                .append((bundle + i * 7) % 1000).append(".p").append(i % exports)
+                .append(";version=\"[1.0,2.0)\"");
+        }
+        Map headers = new StringMap();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "org.example.b" + bundle);
+        headers.put(Constants.BUNDLE_VERSION, "1.0.0");
+        headers.put(Constants.EXPORT_PACKAGE, exp.toString());
+        headers.put(Constants.IMPORT_PACKAGE, imp.toString());
+        return headers;
+    }
+
+    private static long usedMemory() throws InterruptedException
+    {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+}
@@ -43,6 +43,14 @@ import org.osgi.service.log.LogService;
  *   <dt>org.apache.felix.log.storeDebug</dt>
  *   <dd>Determines whether or not debug messages will be stored as part of
  *       the historic log information. The default value is false.</dd>
+ *
+ *   <dt>org.apache.felix.log.listenerQueueSize</dt>
+ *   <dd>Determines the maximum number of log entries waiting to be delivered
+ *       to log listeners.  If the listeners cannot keep up, the oldest
+ *       waiting entries are dropped; the number of dropped entries is
+ *       returned by the log reader service implementation.  A value of -1
+ *       means the queue has no maximum size, so no entries are dropped.
+ *       The default value is -1.</dd>
  * </dl>
  */
 public final class Activator implements BundleActivator
@@ -55,6 +63,10 @@ public final class Activator implements BundleActivator
     private static final String STORE_DEBUG_PROPERTY = "org.apache.felix.log.storeDebug";
     /** The default value for the store debug property. */
     private static final boolean DEFAULT_STORE_DEBUG = false;
+    /** The name of the property that defines the size of the listener queue. */
+    private static final String LISTENER_QUEUE_SIZE_PROPERTY = "org.apache.felix.log.listenerQueueSize";
+    /** The default value for the listener queue size property. */
+    private static final int DEFAULT_LISTENER_QUEUE_SIZE = -1;
     /** The log. */
     private Log m_log;
 
@@ -83,6 +95,32 @@ public final class Activator implements BundleActivator
         return maxSize;
     }
 
+    /**
+     * Returns the maximum number of entries waiting to be delivered to
+     * log listeners.
+     * @param context the bundle context (used to look up a property)
+     * @return the size of the listener queue
+     */
+    private static int getListenerQueueSize(final BundleContext context)
+    {
+        int queueSize = DEFAULT_LISTENER_QUEUE_SIZE;
+
+        String queueSizePropValue = context.getProperty(LISTENER_QUEUE_SIZE_PROPERTY);
+        if (queueSizePropValue != null)
+        {
+            try
+            {
+                queueSize = Integer.parseInt(queueSizePropValue);
+            }
+            catch (NumberFormatException e)
+            {
+                // the property value is invalid - ignore
+            }
+        }
+
+        return queueSize;
+    }
+
     /**
      * Returns whether or not to store debug messages.
      * @param context the bundle context (used to look up a property)
@@ -110,7 +148,8 @@ public final class Activator implements BundleActivator
     public void start(final BundleContext context) throws Exception
     {
         // create the log instance
-        m_log = new Log(getMaxSize(context), getStoreDebug(context));
+        m_log = new Log(getMaxSize(context), getStoreDebug(context),
+            getListenerQueueSize(context));
 
         // register the listeners
         context.addBundleListener(m_log);
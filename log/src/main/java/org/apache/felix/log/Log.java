@@ -18,7 +18,11 @@
  */
 package org.apache.felix.log;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
@@ -39,16 +43,16 @@ import org.osgi.service.log.LogService;
  */
 final class Log implements BundleListener, FrameworkListener, ServiceListener
 {
-    /** The first log entry. */
-    private LogNode m_head;
-    /** The last log entry. */
-    private LogNode m_tail;
-    /** The log size. */
-    private int m_size;
+    /** The historic log if it has a maximum size. */
+    private final LogBuffer m_buffer;
+    /** The historic log if it has no maximum size. */
+    private final Queue m_unbounded;
     /** The log listener thread. */
-    private LogListenerThread listenerThread;
-    /** The maximum size for the log. */
-    private final int m_maxSize;
+    private volatile LogListenerThread listenerThread;
+    /** The capacity of the listener queue. */
+    private final int m_listenerQueueSize;
+    /** The number of entries dropped by previous listener threads. */
+    private long m_droppedEntries;
     /** Whether or not to store debug messages. */
     private final boolean m_storeDebug;
 
@@ -56,80 +60,61 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
      * Create a new instance.
      * @param maxSize the maximum size for the log
      * @param storeDebug whether or not to store debug messages
+     * @param listenerQueueSize the maximum number of entries waiting to be
+     * delivered to the log listeners, or a value less than one if the number
+     * is unbounded
      */
-    Log(final int maxSize, final boolean storeDebug)
+    Log(final int maxSize, final boolean storeDebug, final int listenerQueueSize)
     {
-        this.m_maxSize = maxSize;
+        this.m_buffer = (maxSize > 0) ? new LogBuffer(maxSize) : null;
+        this.m_unbounded = (maxSize == -1) ? new ConcurrentLinkedQueue() : null;
         this.m_storeDebug = storeDebug;
+        this.m_listenerQueueSize = listenerQueueSize;
     }
 
     /**
      * Close the log.
      */
-    void close()
+    synchronized void close()
     {
         if (listenerThread != null)
         {
+            m_droppedEntries += listenerThread.getDroppedEntries();
             listenerThread.shutdown();
             listenerThread = null;
         }
 
-        m_head = null;
-        m_tail = null;
-        m_size = 0;
+        if (m_unbounded != null)
+        {
+            m_unbounded.clear();
+        }
     }
 
     /**
-     * Adds the entry to the log.
+     * Adds the entry to the log.  This does not block: concurrent callers
+     * append to the historic log and the listener queue without locking.
      * @param entry the entry to add to the log
      */
-    synchronized void addEntry(final LogEntry entry)
+    void addEntry(final LogEntry entry)
     {
-        if (m_maxSize != 0)
+        // add the entry to the historic log
+        if (m_storeDebug || entry.getLevel() != LogService.LOG_DEBUG)
         {
-            // add the entry to the historic log
-            if (m_storeDebug || entry.getLevel() != LogService.LOG_DEBUG)
+            if (m_buffer != null)
             {
-                // create a new node for the entry
-                LogNode node = new LogNode(entry);
-
-                // add to the front of the linked list
-                node.setNextNode(m_head);
-                if (m_head != null)
-                {
-                    m_head.setPreviousNode(node);
-                }
-
-                // and store the node
-                m_head = node;
-
-                // bump the size of the list
-                ++m_size;
-
-                // if no tail node - add the node to the tail
-                if (m_tail == null)
-                {
-                    m_tail = node;
-                }
+                m_buffer.add(entry);
             }
-
-            // ensure the historic log doesn't grow beyond a certain size
-            if (m_maxSize != -1)
+            else if (m_unbounded != null)
             {
-                if (m_size > m_maxSize)
-                {
-                    LogNode last = m_tail.getPreviousNode();
-                    last.setNextNode(null);
-                    m_tail = last;
-                    --m_size;
-                }
+                m_unbounded.add(entry);
             }
         }
 
         // notify any listeners
-        if (listenerThread != null)
+        LogListenerThread thread = listenerThread;
+        if (thread != null)
         {
-            listenerThread.addEntry(entry);
+            thread.addEntry(entry);
         }
     }
 
@@ -143,8 +128,9 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
         {
             // create a new listener thread if necessary:
             // the listener thread only runs if there are any registered listeners
-            listenerThread = new LogListenerThread();
-            listenerThread.start();
+            LogListenerThread thread = new LogListenerThread(m_listenerQueueSize);
+            thread.start();
+            listenerThread = thread;
         }
         listenerThread.addListener(listener);
     }
@@ -162,19 +148,55 @@ final class Log implements BundleListener, FrameworkListener, ServiceListener
             // shutdown the thread if there are no listeners
             if (listenerThread.getListenerCount() == 0)
             {
+                m_droppedEntries += listenerThread.getDroppedEntries();
                 listenerThread.shutdown();
                 listenerThread = null;
             }
         }
     }
 
+    /**
+     * Returns the number of entries which were not delivered to the log
+     * listeners because the bounded listener queue overflowed.
+     * @return the number of dropped entries
+     */
+    synchronized long getDroppedEntries()
+    {
+        long dropped = m_droppedEntries;
+        if (listenerThread != null)
+        {
+            dropped += listenerThread.getDroppedEntries();
+        }
+        return dropped;
+    }
+
     /**
      * Returns an enumeration of all the entries in the log most recent first.
+     * The enumeration is a snapshot taken without blocking concurrent writers.
      * @return an enumeration of all the entries in the log most recent first
      */
-    synchronized Enumeration getEntries()
+    Enumeration getEntries()
     {
-        return new LogNodeEnumeration(m_head, m_tail);
+        Object[] entries;
+        if (m_buffer != null)
+        {
+            entries = m_buffer.snapshot();
+        }
+        else if (m_unbounded != null)
+        {
+            entries = m_unbounded.toArray();
+            for (int i = 0, j = entries.length - 1; i < j; i++, j--)
+            {
+                Object tmp = entries[i];
+                entries[i] = entries[j];
+                entries[j] = tmp;
+            }
+        }
+        else
+        {
+            entries = new Object[0];
+        }
+        return Collections.enumeration(Arrays.asList(entries));
     }
 
     /** The messages returned for the framework events. */
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.osgi.service.log.LogEntry;
+
+/**
+ * Fixed capacity ring of log entries which can be appended to from several
+ * threads without locking.  Every entry is assigned a sequence number; once
+ * the ring is full, new entries overwrite the oldest ones.
+ * <p>
+ * Each slot records the sequence number of the entry it holds, which lets
+ * readers detect entries that are still being written or that have already
+ * been overwritten without ever blocking a writer.
+ */
+final class LogBuffer
+{
+    /** Marks a slot that is currently being written. */
+    private static final long WRITING = Long.MIN_VALUE;
+
+    /** The capacity of the ring. */
+    private final int m_capacity;
+    /** The entries, indexed by sequence number modulo capacity. */
+    private final AtomicReferenceArray m_entries;
+    /** The sequence number of the entry held by each slot. */
+    private final AtomicLongArray m_sequences;
+    /** The sequence number of the next entry to append. */
+    private final AtomicLong m_next = new AtomicLong();
+
+    /**
+     * Create a new instance.
+     * @param capacity the maximum number of entries held by the ring
+     */
+    LogBuffer(final int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.m_capacity = capacity;
+        this.m_entries = new AtomicReferenceArray(capacity);
+        this.m_sequences = new AtomicLongArray(capacity);
+        // each slot starts out as if it held the entry one lap before the first
+        for (int i = 0; i < capacity; i++)
+        {
+            m_sequences.set(i, i - capacity);
+        }
+    }
+
+    /**
+     * Appends an entry, overwriting the oldest one if the ring is full.
+     * @param entry the entry to append
+     * @return the sequence number assigned to the entry
+     */
+    long add(final LogEntry entry)
+    {
+        final long seq = m_next.getAndIncrement();
+        final int idx = index(seq);
+
+        // the slot can only be claimed once the entry one lap earlier has been
+        // written; this only spins if writers lap each other
+        while (!m_sequences.compareAndSet(idx, seq - m_capacity, WRITING))
+        {
+            Thread.yield();
+        }
+        m_entries.set(idx, entry);
+        m_sequences.set(idx, seq);
+
+        return seq;
+    }
+
+    /**
+     * Returns the entry with the given sequence number.
+     * @param seq the sequence number of the entry
+     * @return the entry or <code>null</code> if it has not been completely
+     * written yet or has already been overwritten
+     */
+    LogEntry get(final long seq)
+    {
+        final int idx = index(seq);
+        if (m_sequences.get(idx) != seq)
+        {
+            return null;
+        }
+        final LogEntry entry = (LogEntry) m_entries.get(idx);
+        // the slot may have been overwritten while reading the entry
+        return (m_sequences.get(idx) == seq) ? entry : null;
+    }
+
+    /**
+     * Returns whether the entry with the given sequence number has been
+     * assigned but is not completely written yet.
+     * @param seq the sequence number of the entry
+     * @return <code>true</code> if the entry is still being written
+     */
+    boolean isPending(final long seq)
+    {
+        return m_sequences.get(index(seq)) < seq;
+    }
+
+    /**
+     * Returns the sequence number the next appended entry will get, which is
+     * also the total number of entries appended so far.
+     * @return the sequence number of the next entry
+     */
+    long next()
+    {
+        return m_next.get();
+    }
+
+    /**
+     * Returns the capacity of the ring.
+     * @return the maximum number of entries held by the ring
+     */
+    int capacity()
+    {
+        return m_capacity;
+    }
+
+    /**
+     * Returns the entries currently held by the ring, most recent first.
+     * Entries which are still being written are left out.
+     * @return a snapshot of the entries in the ring
+     */
+    LogEntry[] snapshot()
+    {
+        final long end = m_next.get();
+        final long start = Math.max(0, end - m_capacity);
+        final LogEntry[] entries = new LogEntry[(int) (end - start)];
+        int count = 0;
+        for (long seq = end - 1; seq >= start; seq--)
+        {
+            LogEntry entry = get(seq);
+            if (entry != null)
+            {
+                entries[count++] = entry;
+            }
+        }
+
+        if (count == entries.length)
+        {
+            return entries;
+        }
+        final LogEntry[] result = new LogEntry[count];
+        System.arraycopy(entries, 0, result, 0, count);
+        return result;
+    }
+
+    private int index(final long seq)
+    {
+        return (int) (seq % m_capacity);
+    }
+}
@@ -18,9 +18,12 @@
  */
 package org.apache.felix.log;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.osgi.service.log.LogEntry;
 import org.osgi.service.log.LogListener;
@@ -30,16 +33,36 @@ import org.osgi.service.log.LogListener;
  * any {@link LogListener} subscribers.  A subscriber can be added using the
  * {@link org.osgi.service.log.LogReaderService#addLogListener(LogListener)}
  * method.
+ * <p>
+ * Entries waiting to be delivered are queued without blocking the logging
+ * threads.  By default the queue is unbounded, so every entry is delivered.
+ * If a queue size is given, the entries are kept in a {@link LogBuffer}
+ * instead; when the listeners fall behind by more than its capacity, the
+ * oldest entries are dropped and counted.
  */
 final class LogListenerThread extends Thread
 {
-    // The list of entries waiting to be delivered to the log listeners.
-    private final List m_entriesToDeliver = new ArrayList();
+    // The entries waiting to be delivered to the log listeners if the queue is bounded.
+    private final LogBuffer m_entriesToDeliver;
+    // The entries waiting to be delivered to the log listeners if the queue is unbounded.
+    private final Queue m_unbounded;
     // The list of listeners.
-    private final List m_listeners = new ArrayList();
+    private final List m_listeners = new CopyOnWriteArrayList();
+    // The number of entries which were overwritten before being delivered.
+    private final AtomicLong m_dropped = new AtomicLong();
+    // Whether the thread is parked waiting for new entries.
+    private volatile boolean m_waiting;
 
-    LogListenerThread() {
+    /**
+     * Create a new instance.
+     * @param queueSize the maximum number of entries waiting to be delivered,
+     * or a value less than one if the number is unbounded
+     */
+    LogListenerThread(final int queueSize)
+    {
         super("FelixLogListener");
+        m_entriesToDeliver = (queueSize > 0) ? new LogBuffer(queueSize) : null;
+        m_unbounded = (queueSize > 0) ? null : new ConcurrentLinkedQueue();
     }
 
     /**
@@ -48,10 +71,17 @@ final class LogListenerThread extends Thread
      */
     void addEntry(final LogEntry entry)
     {
-        synchronized (m_entriesToDeliver)
+        if (m_entriesToDeliver != null)
         {
             m_entriesToDeliver.add(entry);
-            m_entriesToDeliver.notifyAll();
+        }
+        else
+        {
+            m_unbounded.add(entry);
+        }
+        if (m_waiting)
+        {
+            LockSupport.unpark(this);
         }
     }
 
@@ -61,10 +91,7 @@ final class LogListenerThread extends Thread
      */
     void addListener(final LogListener listener)
     {
-        synchronized (m_listeners)
-        {
-            m_listeners.add(listener);
-        }
+        m_listeners.add(listener);
     }
 
     /**
@@ -73,10 +100,7 @@ final class LogListenerThread extends Thread
      */
     void removeListener(final LogListener listener)
     {
-        synchronized (m_listeners)
-        {
-            m_listeners.remove(listener);
-        }
+        m_listeners.remove(listener);
     }
 
     /**
@@ -85,10 +109,17 @@ final class LogListenerThread extends Thread
      */
     int getListenerCount()
     {
-        synchronized (m_listeners)
-        {
-            return m_listeners.size();
-        }
+        return m_listeners.size();
+    }
+
+    /**
+     * Returns the number of entries which were dropped because the listeners
+     * could not keep up.  Entries are only dropped if the queue is bounded.
+     * @return the number of dropped entries
+     */
+    long getDroppedEntries()
+    {
+        return m_dropped.get();
     }
 
     /**
@@ -96,10 +127,7 @@ final class LogListenerThread extends Thread
      */
     void shutdown()
     {
-        synchronized (m_entriesToDeliver)
-        {
-            interrupt();
-        }
+        interrupt();
     }
 
     /**
@@ -107,64 +135,108 @@ final class LogListenerThread extends Thread
      * and then delivers them to any registered log listeners.
      */
     public void run()
+    {
+        if (m_entriesToDeliver != null)
+        {
+            runBounded();
+        }
+        else
+        {
+            runUnbounded();
+        }
+    }
+
+    private void runUnbounded()
     {
         while (!isInterrupted())
         {
-            List entriesToDeliver = new ArrayList();
-            synchronized (m_entriesToDeliver)
+            LogEntry entry = (LogEntry) m_unbounded.poll();
+            if (entry == null)
             {
-                if (m_entriesToDeliver.isEmpty())
-                {
-                    try
-                    {
-                        m_entriesToDeliver.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        // the interrupt-flag is cleared; so, let's play nice and 
-                        // interrupt this thread again to stop it...
-                        interrupt();
-                    }
-                }
-                else 
+                // announce that we are about to park and check again, so an
+                // entry added in between is guaranteed to unpark us
+                m_waiting = true;
+                if (m_unbounded.isEmpty())
                 {
-                    // Copy all current entries and deliver them in a single go...
-                    entriesToDeliver.addAll(m_entriesToDeliver);
-                    m_entriesToDeliver.clear();
+                    LockSupport.park(this);
                 }
+                m_waiting = false;
+                continue;
             }
-            
-            if (!entriesToDeliver.isEmpty())
+
+            // deliver the entries queued so far
+            Object[] listeners = m_listeners.toArray();
+            do
             {
-                // Take a snapshot of all current listeners and deliver all
-                // pending messages to them...
-                List listeners = new ArrayList();
-                synchronized (m_listeners) 
+                deliver(listeners, entry);
+            }
+            while (!isInterrupted() && (entry = (LogEntry) m_unbounded.poll()) != null);
+        }
+    }
+
+    private void runBounded()
+    {
+        long cursor = 0;
+        while (!isInterrupted())
+        {
+            long end = m_entriesToDeliver.next();
+            if (cursor == end)
+            {
+                // announce that we are about to park and check again, so an
+                // entry added in between is guaranteed to unpark us
+                m_waiting = true;
+                if (m_entriesToDeliver.next() == cursor)
                 {
-                    listeners.addAll(m_listeners);
+                    LockSupport.park(this);
                 }
+                m_waiting = false;
+                continue;
+            }
 
-                Iterator entriesIt = entriesToDeliver.iterator();
-                while (entriesIt.hasNext()) 
+            // skip whatever has been overwritten already
+            long oldest = end - m_entriesToDeliver.capacity();
+            if (cursor < oldest)
+            {
+                m_dropped.addAndGet(oldest - cursor);
+                cursor = oldest;
+            }
+
+            // deliver the batch of entries up to the end seen above
+            Object[] listeners = m_listeners.toArray();
+            while (cursor < end && !isInterrupted())
+            {
+                LogEntry entry = m_entriesToDeliver.get(cursor);
+                if (entry == null)
                 {
-                    LogEntry entry = (LogEntry) entriesIt.next();
-                    
-                    Iterator listenerIt = listeners.iterator();
-                    while (listenerIt.hasNext())
+                    if (m_entriesToDeliver.isPending(cursor))
                     {
-                        LogListener listener = (LogListener) listenerIt.next();
-                        
-                        try
-                        {
-                            listener.logged(entry);
-                        }
-                        catch (Throwable t)
-                        {
-                            // catch and discard any exceptions thrown by the listener
-                        }
+                        // a writer is still filling in this slot
+                        Thread.yield();
+                        continue;
                     }
+                    m_dropped.incrementAndGet();
                 }
+                else
+                {
+                    deliver(listeners, entry);
+                }
+                cursor++;
+            }
+        }
+    }
+
+    private static void deliver(final Object[] listeners, final LogEntry entry)
+    {
+        for (int i = 0; i < listeners.length; i++)
+        {
+            try
+            {
+                ((LogListener) listeners[i]).logged(entry);
+            }
+            catch (Throwable t)
+            {
+                // catch and discard any exceptions thrown by the listener
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -92,6 +92,18 @@ final class LogReaderServiceImpl implements LogReaderService
         return m_log.getEntries();
     }
 
+    /**
+     * Returns the number of log entries which were not delivered to the log
+     * listeners because they could not keep up.  Entries are only dropped if
+     * the <tt>org.apache.felix.log.listenerQueueSize</tt> property bounds the
+     * number of entries waiting to be delivered.
+     * @return the number of dropped entries
+     */
+    public long getDroppedEntries()
+    {
+        return m_log.getDroppedEntries();
+    }
+
     /**
      * Remove all log listeners registered through this service.
      */
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogService;
+
+public class LogBufferTest extends TestCase
+{
+    public void testWraparound()
+    {
+        final LogBuffer buffer = new LogBuffer(3);
+        final LogEntry[] entries = new LogEntry[7];
+        for (int i = 0; i < entries.length; i++)
+        {
+            entries[i] = createEntry("entry " + i);
+            assertEquals(i, buffer.add(entries[i]));
+        }
+        assertEquals(7, buffer.next());
+
+        // only the last entries up to the capacity are kept
+        final LogEntry[] snapshot = buffer.snapshot();
+        assertEquals(3, snapshot.length);
+        assertSame(entries[6], snapshot[0]);
+        assertSame(entries[5], snapshot[1]);
+        assertSame(entries[4], snapshot[2]);
+
+        assertNull(buffer.get(3));
+        assertSame(entries[4], buffer.get(4));
+        assertFalse(buffer.isPending(4));
+        assertTrue(buffer.isPending(7));
+    }
+
+    public void testSnapshotBeforeFull()
+    {
+        final LogBuffer buffer = new LogBuffer(3);
+        assertEquals(0, buffer.snapshot().length);
+
+        final LogEntry first = createEntry("first");
+        final LogEntry second = createEntry("second");
+        buffer.add(first);
+        buffer.add(second);
+        final LogEntry[] snapshot = buffer.snapshot();
+        assertEquals(2, snapshot.length);
+        assertSame(second, snapshot[0]);
+        assertSame(first, snapshot[1]);
+    }
+
+    public void testGetLogOrderWithConcurrentAppends() throws Exception
+    {
+        final int writers = 4;
+        final int perWriter = 20000;
+        final Log log = new Log(50, false, -1);
+        final LogReaderServiceImpl reader = new LogReaderServiceImpl(log);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[writers];
+        for (int w = 0; w < writers; w++)
+        {
+            final String writer = String.valueOf(w);
+            threads[w] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    for (int i = 0; i < perWriter; i++)
+                    {
+                        log.addEntry(createEntry(writer + ":" + i));
+                    }
+                }
+            };
+            threads[w].start();
+        }
+        start.countDown();
+
+        boolean writing = true;
+        while (writing)
+        {
+            writing = false;
+            for (int w = 0; w < writers; w++)
+            {
+                writing |= threads[w].isAlive();
+            }
+            assertMostRecentFirst(reader.getLog(), 50);
+        }
+
+        // once the writers are done, the log is full
+        assertEquals(50, assertMostRecentFirst(reader.getLog(), 50));
+        log.close();
+    }
+
+    /**
+     * Asserts the entries of each writer are ordered most recent first and
+     * returns the number of entries.
+     */
+    private static int assertMostRecentFirst(final Enumeration entries, final int maxSize)
+    {
+        final Map previous = new HashMap();
+        int size = 0;
+        while (entries.hasMoreElements())
+        {
+            final String message = ((LogEntry) entries.nextElement()).getMessage();
+            final int colon = message.indexOf(':');
+            final String writer = message.substring(0, colon);
+            final Integer i = Integer.valueOf(message.substring(colon + 1));
+            final Integer before = (Integer) previous.put(writer, i);
+            if (before != null)
+            {
+                assertTrue(message, i.intValue() < before.intValue());
+            }
+            size++;
+        }
+        assertTrue(size <= maxSize);
+        return size;
+    }
+
+    static LogEntry createEntry(final String message)
+    {
+        return new LogEntryImpl(null, null, LogService.LOG_INFO, message, null);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.osgi.service.log.LogEntry;
+import org.osgi.service.log.LogListener;
+
+public class LogListenerThreadTest extends TestCase
+{
+    public void testDropCounting() throws Exception
+    {
+        final Log log = new Log(0, false, 4);
+        final LogReaderServiceImpl reader = new LogReaderServiceImpl(log);
+        final BlockingListener listener = new BlockingListener(5);
+        reader.addLogListener(listener);
+        try
+        {
+            // keep the listener busy with the first entry while the others
+            // overflow the queue
+            log.addEntry(LogBufferTest.createEntry("0"));
+            assertTrue(listener.blocked.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i <= 10; i++)
+            {
+                log.addEntry(LogBufferTest.createEntry(String.valueOf(i)));
+            }
+            listener.release.countDown();
+
+            // the oldest waiting entries are dropped, nothing else is delivered
+            assertTrue(listener.delivered.await(5, TimeUnit.SECONDS));
+            assertEquals(6, reader.getDroppedEntries());
+            Thread.sleep(100);
+            assertEquals(new String[] {"0", "7", "8", "9", "10"}, listener.getMessages());
+        }
+        finally
+        {
+            reader.removeAllLogListeners();
+        }
+
+        // the count outlives the listener thread
+        assertEquals(6, reader.getDroppedEntries());
+        log.close();
+    }
+
+    public void testUnboundedDeliversAll() throws Exception
+    {
+        final Log log = new Log(0, false, -1);
+        final LogReaderServiceImpl reader = new LogReaderServiceImpl(log);
+        final BlockingListener listener = new BlockingListener(1001);
+        reader.addLogListener(listener);
+        try
+        {
+            log.addEntry(LogBufferTest.createEntry("0"));
+            assertTrue(listener.blocked.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i <= 1000; i++)
+            {
+                log.addEntry(LogBufferTest.createEntry(String.valueOf(i)));
+            }
+            listener.release.countDown();
+
+            assertTrue(listener.delivered.await(5, TimeUnit.SECONDS));
+            final String[] messages = listener.getMessages();
+            assertEquals(1001, messages.length);
+            for (int i = 0; i < messages.length; i++)
+            {
+                assertEquals(String.valueOf(i), messages[i]);
+            }
+            assertEquals(0, reader.getDroppedEntries());
+        }
+        finally
+        {
+            reader.removeAllLogListeners();
+            log.close();
+        }
+    }
+
+    private static void assertEquals(final String[] expected, final String[] actual)
+    {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+        {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    /**
+     * A listener which blocks on the first entry until it is released.
+     */
+    private static final class BlockingListener implements LogListener
+    {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered;
+        private final List m_messages = new ArrayList();
+
+        BlockingListener(final int expected)
+        {
+            delivered = new CountDownLatch(expected);
+        }
+
+        public void logged(final LogEntry entry)
+        {
+            synchronized (m_messages)
+            {
+                m_messages.add(entry.getMessage());
+            }
+            blocked.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            delivered.countDown();
+        }
+
+        String[] getMessages()
+        {
+            synchronized (m_messages)
+            {
+                return (String[]) m_messages.toArray(new String[m_messages.size()]);
+            }
+        }
+    }
+}
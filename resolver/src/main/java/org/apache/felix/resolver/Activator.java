@@ -25,6 +25,9 @@ import org.osgi.service.resolver.Resolver;
 public class Activator implements BundleActivator
 {
     public static final String LOG_LEVEL = "felix.resolver.log.level";
+    public static final String THREADS = "felix.resolver.threads";
+
+    private ResolverImpl m_resolver;
 
     public void start(BundleContext bc) throws Exception
     {
@@ -40,13 +43,27 @@ public class Activator implements BundleActivator
                 // Use default log level.
             }
         }
-        bc.registerService(
-            Resolver.class,
-            new ResolverImpl(new Logger(logLevel)),
-            null);
+        // Resolving with several threads requires thread safe resolve
+        // contexts, so it is only done if configured.
+        int threads = 1;
+        String s = bc.getProperty(THREADS);
+        if (s != null)
+        {
+            try
+            {
+                threads = Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Use a single thread.
+            }
+        }
+        m_resolver = new ResolverImpl(new Logger(logLevel), threads);
+        bc.registerService(Resolver.class, m_resolver, null);
     }
 
     public void stop(BundleContext bc) throws Exception
     {
+        m_resolver.shutdown();
     }
 }
\ No newline at end of file
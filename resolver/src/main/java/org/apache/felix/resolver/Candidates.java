@@ -56,6 +56,9 @@ class Candidates
     private final Map<Resource, WrappedResource> m_allWrappedHosts;
     // Map used when populating candidates to hold intermediate and final results.
     private final Map<Resource, Object> m_populateResultCache;
+    // Maps a requirement to the providers the resolver looked up for it in
+    // advance; requirements without an entry are passed to the resolve context.
+    private final Map<Requirement, List<Capability>> m_prefetchedProviders;
 
     // Flag to signal if fragments are present in the candidate map.
     private boolean m_fragmentsPresent = false;
@@ -66,13 +69,15 @@ class Candidates
      * @param candidateMap the requirement candidate map.
      * @param hostFragments the fragment map.
      * @param wrappedHosts the wrapped hosts map.
+     * @param prefetchedProviders the providers looked up in advance.
     **/
     private Candidates(
         Set<Resource> mandatoryResources,
         Map<Capability, Set<Requirement>> dependentMap,
         Map<Requirement, List<Capability>> candidateMap,
         Map<Resource, WrappedResource> wrappedHosts, Map<Resource, Object> populateResultCache,
-        boolean fragmentsPresent)
+        boolean fragmentsPresent,
+        Map<Requirement, List<Capability>> prefetchedProviders)
     {
         m_mandatoryResources = mandatoryResources;
         m_dependentMap = dependentMap;
@@ -80,18 +85,32 @@ class Candidates
         m_allWrappedHosts = wrappedHosts;
         m_populateResultCache = populateResultCache;
         m_fragmentsPresent = fragmentsPresent;
+        m_prefetchedProviders = prefetchedProviders;
     }
 
     /**
      * Constructs an empty Candidates object.
     **/
     public Candidates()
+    {
+        this(Collections.EMPTY_MAP);
+    }
+
+    /**
+     * Constructs an empty Candidates object that populates requirements
+     * from the specified providers, which were looked up in advance, rather
+     * than asking the resolve context again.
+     * @param prefetchedProviders the providers of each requirement, as they
+     *        were returned by the resolve context; the lists are not modified.
+    **/
+    public Candidates(Map<Requirement, List<Capability>> prefetchedProviders)
     {
         m_mandatoryResources = new HashSet<Resource>();
         m_dependentMap = new HashMap<Capability, Set<Requirement>>();
         m_candidateMap = new HashMap<Requirement, List<Capability>>();
         m_allWrappedHosts = new HashMap<Resource, WrappedResource>();
         m_populateResultCache = new HashMap<Resource, Object>();
+        m_prefetchedProviders = prefetchedProviders;
     }
 
     /**
@@ -262,7 +281,7 @@ class Candidates
 
             // Process the candidates, removing any candidates that
             // cannot resolve.
-            List<Capability> candidates = rc.findProviders(req);
+            List<Capability> candidates = findProviders(rc, req);
             ResolutionException rethrow = processCandidates(rc, resource, candidates);
 
             // First, due to cycles, makes sure we haven't already failed in
@@ -313,6 +332,15 @@ class Candidates
         }
     }
 
+    private List<Capability> findProviders(ResolveContext rc, Requirement req)
+    {
+        // Copy prefetched providers, since processing removes candidates.
+        List<Capability> providers = m_prefetchedProviders.get(req);
+        return (providers != null)
+            ? new ArrayList<Capability>(providers)
+            : rc.findProviders(req);
+    }
+
     private boolean populateFragmentOndemand(ResolveContext rc, Resource resource)
         throws ResolutionException
     {
@@ -1004,7 +1032,8 @@ class Candidates
 
         return new Candidates(
             m_mandatoryResources, dependentMap, candidateMap,
-            m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent);
+            m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent,
+            m_prefetchedProviders);
     }
 
     public void dump(ResolveContext rc)
@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -49,6 +50,16 @@ import org.osgi.service.resolver.Resolver;
 public class ResolverImpl implements Resolver
 {
     private final Logger m_logger;
+    // Number of threads used to look up providers and to check package
+    // space consistency; one means only the resolving thread is used.
+    private final int m_threads;
+    // Resolves with fewer resources to resolve than this are done on the
+    // resolving thread only, since handing out work would cost more than
+    // it saves.
+    private static final int CONCURRENT_RESOLVE_THRESHOLD = 16;
+    // The resolver threads, only created if more than one thread is used,
+    // so the resolver does not need java.util.concurrent otherwise.
+    private final ResolverThreads m_resolverThreads;
 
     // Note this class is not thread safe.
     // Only use in the context of a single thread.
@@ -107,8 +118,42 @@ public class ResolverImpl implements Resolver
     }
 
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 1);
+    }
+
+    /**
+     * Creates a resolver that uses up to the specified number of threads
+     * per resolve operation. The threads look up the providers of all
+     * reachable requirements in advance and speculatively check the package
+     * spaces of the root resources, while candidate population and the
+     * search for a consistent permutation remain sequential, so the resulting
+     * wiring does not depend on the number of threads. With more than one
+     * thread, the resolve contexts passed to this resolver must allow
+     * concurrent calls to <tt>findProviders()</tt> and <tt>getWirings()</tt>.
+     * The threads are only used if there are enough resources to resolve;
+     * they are created on first use and kept until <tt>shutdown()</tt> is
+     * called.
+     * @param logger the logger.
+     * @param threads the number of resolver threads.
+    **/
+    public ResolverImpl(Logger logger, int threads)
     {
         m_logger = logger;
+        m_threads = (threads > 0) ? threads : 1;
+        m_resolverThreads = (m_threads > 1) ? new ResolverThreads(m_threads) : null;
+    }
+
+    /**
+     * Stops the resolver threads, if any were created. The resolver remains
+     * usable and creates new threads when they are needed again.
+    **/
+    public void shutdown()
+    {
+        if (m_resolverThreads != null)
+        {
+            m_resolverThreads.shutdown();
+        }
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
@@ -127,6 +172,35 @@ public class ResolverImpl implements Resolver
 //            ? ((ResolveContextImpl) rc).getOndemandResources() : Collections.EMPTY_LIST;
         Collection<Resource> ondemandFragments = Collections.EMPTY_LIST;
 
+        // Look up the providers of all requirements reachable from the
+        // resources to resolve on the resolver threads; since populating
+        // the candidates only consumes them, it remains deterministic.
+        Map<Requirement, List<Capability>> providers = Collections.EMPTY_MAP;
+        ResolverThreads resolverThreads = null;
+        if (m_resolverThreads != null)
+        {
+            Set<Resource> roots = new LinkedHashSet<Resource>();
+            for (Resource resource : mandatoryResources)
+            {
+                if (Util.isFragment(resource) || (rc.getWirings().get(resource) == null))
+                {
+                    roots.add(resource);
+                }
+            }
+            for (Resource resource : optionalResources)
+            {
+                if (Util.isFragment(resource) || (rc.getWirings().get(resource) == null))
+                {
+                    roots.add(resource);
+                }
+            }
+            if (roots.size() >= CONCURRENT_RESOLVE_THRESHOLD)
+            {
+                resolverThreads = m_resolverThreads;
+                providers = resolverThreads.prefetchProviders(rc, roots);
+            }
+        }
+
         boolean retry;
         do
         {
@@ -135,7 +209,7 @@ public class ResolverImpl implements Resolver
             try
             {
                 // Create object to hold all candidates.
-                Candidates allCandidates = new Candidates();
+                Candidates allCandidates = new Candidates(providers);
 
                 // Populate mandatory resources; since these are mandatory
                 // resources, failure throws a resolve exception.
@@ -234,6 +308,7 @@ public class ResolverImpl implements Resolver
                     // for all resources.
                     Map<Resource, Object> resultCache =
                         new HashMap<Resource, Object>(allResources.size());
+                    List<Resource> targets = new ArrayList<Resource>(allResources.size());
                     // Check the package space consistency for all 'root' resources.
                     for (Resource resource : allResources)
                     {
@@ -255,6 +330,14 @@ public class ResolverImpl implements Resolver
 //dumpResourcePkgMap(resourcePkgMap);
 //System.out.println("+++ PACKAGE SPACES END +++");
 
+                        // With resolver threads, the package spaces are
+                        // checked below once all of them are calculated.
+                        if (resolverThreads != null)
+                        {
+                            targets.add(allCandidates.getWrappedHost(target));
+                            continue;
+                        }
+
                         try
                         {
                             checkPackageSpaceConsistency(
@@ -266,6 +349,28 @@ public class ResolverImpl implements Resolver
                             rethrow = ex;
                         }
                     }
+
+                    // Unless the speculative checks show that all package
+                    // spaces are consistent, check them in order like above
+                    // to get the same permutations and exception.
+                    if ((resolverThreads != null)
+                        && !checkPackageSpacesConcurrently(
+                            rc, resolverThreads, session, targets,
+                            allCandidates, resourcePkgMap))
+                    {
+                        for (Resource target : targets)
+                        {
+                            try
+                            {
+                                checkPackageSpaceConsistency(
+                                    session, target, allCandidates, resourcePkgMap, resultCache);
+                            }
+                            catch (ResolutionException ex)
+                            {
+                                rethrow = ex;
+                            }
+                        }
+                    }
                 }
                 while ((rethrow != null)
                     && ((usesPermutations.size() > 0) || (importPermutations.size() > 0)));
@@ -1072,6 +1177,48 @@ public class ResolverImpl implements Resolver
         addToBlame.addBlame(newBlame, matchingCap);
     }
 
+    /**
+     * Speculatively checks the package space consistency of the specified
+     * target resources on the resolver threads, after their package spaces
+     * were calculated. The checks are done with private resolver instances
+     * and sessions, so the permutations they create and their debug output
+     * are discarded. If every target is consistent without removing any
+     * candidates of multiple cardinality requirements, checking them in
+     * order would not have had any side effects either.
+     * @param rc the resolve context.
+     * @param resolverThreads the resolver threads.
+     * @param session the current resolve session.
+     * @param targets the wrapped target resources in resolve order.
+     * @param allCandidates the current candidate permutation.
+     * @param resourcePkgMap the calculated package spaces.
+     * @return <tt>true</tt> if all targets are known to be consistent.
+    **/
+    private boolean checkPackageSpacesConcurrently(
+        final ResolveContext rc, ResolverThreads resolverThreads,
+        final ResolveSession session, final List<Resource> targets,
+        final Candidates allCandidates, final Map<Resource, Packages> resourcePkgMap)
+    {
+        return resolverThreads.runAll(targets.size(), new ResolverThreads.TaskFactory() {
+            public ResolverThreads.Task createTask()
+            {
+                final ResolverImpl worker = new ResolverImpl(new Logger(0));
+                final ResolveSession workerSession = worker.new ResolveSession(rc);
+                workerSession.getPackageSourcesCache().putAll(
+                    session.getPackageSourcesCache());
+                final Map<Resource, Object> resultCache = new HashMap<Resource, Object>();
+                return new ResolverThreads.Task() {
+                    public boolean run(int idx) throws Exception
+                    {
+                        worker.checkPackageSpaceConsistency(
+                            workerSession, targets.get(idx),
+                            allCandidates, resourcePkgMap, resultCache);
+                        return (workerSession.getMultipleCardCandidates() == null);
+                    }
+                };
+            }
+        });
+    }
+
     private void checkPackageSpaceConsistency(
         ResolveSession session,
         Resource resource,
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.resource.Resource;
+import org.osgi.service.resolver.ResolveContext;
+
+/**
+ * The threads of a resolver configured to use more than one thread. This is
+ * the only class of the resolver that uses <tt>java.util.concurrent</tt>, so
+ * a resolver with a single thread still runs on a 1.4 runtime, since this
+ * class is never loaded then.
+**/
+class ResolverThreads
+{
+    /**
+     * Work done by one resolver thread, one index at a time.
+    **/
+    interface Task
+    {
+        /**
+         * Processes the specified index.
+         * @param idx the index to process.
+         * @return <tt>false</tt> if this thread should stop processing.
+         * @throws Exception if the index could not be processed, which
+         *         also stops this thread.
+        **/
+        boolean run(int idx) throws Exception;
+    }
+
+    /**
+     * Creates the task of each resolver thread, which may hold state
+     * private to the thread.
+    **/
+    interface TaskFactory
+    {
+        Task createTask();
+    }
+
+    private final int m_threads;
+    // Created on first use and shared by all resolve operations until
+    // the resolver is shut down.
+    private ExecutorService m_executor = null;
+
+    ResolverThreads(int threads)
+    {
+        m_threads = threads;
+    }
+
+    /**
+     * Stops the threads, if any were created. New threads are created when
+     * they are needed again.
+    **/
+    void shutdown()
+    {
+        ExecutorService executor;
+        synchronized (this)
+        {
+            executor = m_executor;
+            m_executor = null;
+        }
+        if (executor != null)
+        {
+            executor.shutdown();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor()
+    {
+        if (m_executor == null)
+        {
+            m_executor = Executors.newFixedThreadPool(
+                m_threads, new ResolverThreadFactory());
+        }
+        return m_executor;
+    }
+
+    /**
+     * Processes the indices from zero to the specified count on all threads.
+     * Indices are handed out individually, so a single expensive index does
+     * not hold up the others.
+     * @param count the number of indices.
+     * @param factory the factory of the task of each thread.
+     * @return <tt>true</tt> if every index was processed without a task
+     *         returning <tt>false</tt> or throwing an exception.
+    **/
+    boolean runAll(final int count, final TaskFactory factory)
+    {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        Runnable runnable = new Runnable() {
+            public void run()
+            {
+                Task task = factory.createTask();
+                for (int idx = next.getAndIncrement(); idx < count;
+                    idx = next.getAndIncrement())
+                {
+                    try
+                    {
+                        if (!task.run(idx))
+                        {
+                            return;
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        // Leave it to the calling thread.
+                        return;
+                    }
+                    done.incrementAndGet();
+                }
+            }
+        };
+        return awaitAll(submitAll(runnable)) && (done.get() == count);
+    }
+
+    /**
+     * Looks up the providers of the requirements of the specified resources
+     * and of all unresolved resources providing capabilities to them, one
+     * level of the dependency graph after the other. Requirements that could
+     * not be looked up are simply missing from the result.
+     * @param rc the resolve context.
+     * @param roots the resources to resolve.
+     * @return the providers of each reachable requirement.
+    **/
+    Map<Requirement, List<Capability>> prefetchProviders(
+        final ResolveContext rc, Collection<Resource> roots)
+    {
+        final Map<Requirement, List<Capability>> providers =
+            new ConcurrentHashMap<Requirement, List<Capability>>();
+        Set<Resource> visited = new HashSet<Resource>(roots);
+        List<Resource> level = new ArrayList<Resource>(roots);
+        while (!level.isEmpty())
+        {
+            // Collect the requirements candidate population will look up,
+            // ignoring non-effective and dynamic requirements like it does.
+            final List<Requirement> reqs = new ArrayList<Requirement>();
+            for (Resource resource : level)
+            {
+                for (Requirement req : resource.getRequirements(null))
+                {
+                    String resolution = req.getDirectives()
+                        .get(PackageNamespace.REQUIREMENT_RESOLUTION_DIRECTIVE);
+                    if (rc.isEffective(req)
+                        && ((resolution == null)
+                            || !resolution.equals(PackageNamespace.RESOLUTION_DYNAMIC)))
+                    {
+                        reqs.add(req);
+                    }
+                }
+            }
+
+            runAll(reqs.size(), new TaskFactory() {
+                public Task createTask()
+                {
+                    return new Task() {
+                        public boolean run(int idx)
+                        {
+                            Requirement req = reqs.get(idx);
+                            List<Capability> caps = rc.findProviders(req);
+                            if (caps != null)
+                            {
+                                providers.put(req, caps);
+                            }
+                            return true;
+                        }
+                    };
+                }
+            });
+            if (Thread.currentThread().isInterrupted())
+            {
+                break;
+            }
+
+            // The next level consists of the unresolved providers, which
+            // candidate population will descend into.
+            List<Resource> nextLevel = new ArrayList<Resource>();
+            for (Requirement req : reqs)
+            {
+                List<Capability> caps = providers.get(req);
+                if (caps != null)
+                {
+                    for (Capability cap : caps)
+                    {
+                        Resource resource = cap.getResource();
+                        if (!rc.getWirings().containsKey(resource) && visited.add(resource))
+                        {
+                            nextLevel.add(resource);
+                        }
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+        return providers;
+    }
+
+    /**
+     * Submits the specified task once per thread. If the threads are shut
+     * down concurrently, fewer tasks are submitted, which is fine since the
+     * calling thread redoes any missing work.
+    **/
+    private List<Future<?>> submitAll(Runnable task)
+    {
+        ExecutorService executor = getExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>(m_threads);
+        try
+        {
+            for (int i = 0; i < m_threads; i++)
+            {
+                futures.add(executor.submit(task));
+            }
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // The resolver is being shut down.
+        }
+        return futures;
+    }
+
+    private static boolean awaitAll(List<Future<?>> futures)
+    {
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException ex)
+            {
+                // Ignore, the calling thread redoes any missing work.
+            }
+            catch (InterruptedException ex)
+            {
+                for (Future<?> f : futures)
+                {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class ResolverThreadFactory implements ThreadFactory
+    {
+        private static final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "FelixResolver-" + m_count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
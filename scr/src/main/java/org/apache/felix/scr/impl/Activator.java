@@ -109,10 +109,8 @@ public class Activator extends AbstractExtender
             new Object[] {m_bundle.getHeaders().get( Constants.BUNDLE_VERSION )}, null );
 
         // create and start the component actor
-        m_componentActor = new ComponentActorThread();
-        Thread t = new Thread(m_componentActor, "SCR Component Actor");
-        t.setDaemon( true );
-        t.start();
+        m_componentActor = new ComponentActorThread( m_configuration.actorThreads() );
+        m_componentActor.start();
 
         super.doStart();
 
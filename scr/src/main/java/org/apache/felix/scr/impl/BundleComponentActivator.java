@@ -20,6 +20,7 @@ package org.apache.felix.scr.impl;
 
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -36,6 +37,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.felix.scr.impl.config.ComponentHolder;
 import org.apache.felix.scr.impl.config.ScrConfiguration;
 import org.apache.felix.scr.impl.helper.Logger;
+import org.apache.felix.scr.impl.helper.MethodCache;
 import org.apache.felix.scr.impl.manager.AbstractComponentManager;
 import org.apache.felix.scr.impl.manager.DependencyManager;
 import org.apache.felix.scr.impl.metadata.ComponentMetadata;
@@ -46,6 +48,7 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentException;
 import org.osgi.service.log.LogService;
+import org.osgi.service.packageadmin.PackageAdmin;
 import org.osgi.util.tracker.ServiceTracker;
 
 
@@ -81,6 +84,15 @@ public class BundleComponentActivator implements Logger
     // the configuration
     private final ScrConfiguration m_configuration;
 
+    // the cache of the component descriptors or null if not caching
+    private ComponentDescriptorCache m_descriptorCache;
+
+    // the validated component metadata to cache or null if not caching
+    private List<ComponentMetadata> m_cachedMetadata;
+
+    // the method lookup results or null if not caching
+    private MethodCache m_methodCache;
+
 
     /**
      * Called upon starting of the bundle. This method invokes initialize() which
@@ -117,6 +129,15 @@ public class BundleComponentActivator implements Logger
             throw new ComponentException( "Service-Component entry not found in the manifest" );
         }
 
+        final File cacheDirectory = m_configuration.getDescriptorCacheDirectory();
+        final PackageAdmin packageAdmin = ( cacheDirectory != null ) ? ( PackageAdmin ) Activator.getPackageAdmin() : null;
+        if ( packageAdmin != null )
+        {
+            // the fragments are only known through PackageAdmin, do not cache without it
+            m_descriptorCache = new ComponentDescriptorCache( cacheDirectory, m_bundle,
+                packageAdmin.getFragments( m_bundle ), descriptorLocations );
+        }
+
         initialize( descriptorLocations );
     }
 
@@ -135,29 +156,29 @@ public class BundleComponentActivator implements Logger
         log( LogService.LOG_DEBUG, "BundleComponentActivator : Bundle [{0}] descriptor locations {1}",
                 new Object[] {m_bundle.getBundleId(), descriptorLocations}, null, null, null );
 
-        // 112.4.1: The value of the the header is a comma separated list of XML entries within the Bundle
-        StringTokenizer st = new StringTokenizer( descriptorLocations, ", " );
-
-        while ( st.hasMoreTokens() )
+        if ( m_descriptorCache != null && m_descriptorCache.load() )
         {
-            String descriptorLocation = st.nextToken();
+            log( LogService.LOG_DEBUG, "BundleComponentActivator : Bundle [{0}] components loaded from cache",
+                    new Object[] {m_bundle.getBundleId()}, null, null, null );
 
-            URL[] descriptorURLs = findDescriptors( m_bundle, descriptorLocation );
-            if ( descriptorURLs.length == 0 )
+            m_cachedMetadata = m_descriptorCache.getMetadata();
+            m_methodCache = new MethodCache( m_descriptorCache.getMethods() );
+            for ( ComponentMetadata metadata : m_cachedMetadata )
             {
-                // 112.4.1 If an XML document specified by the header cannot be located in the bundle and its attached
-                // fragments, SCR must log an error message with the Log Service, if present, and continue.
-                log( LogService.LOG_ERROR, "Component descriptor entry ''{0}'' not found", new Object[]
-                    { descriptorLocation }, null, null, null );
-                continue;
+                loadComponent( metadata );
             }
-
-            // load from the descriptors
-            for ( URL descriptorURL : descriptorURLs )
+        }
+        else
+        {
+            if ( m_descriptorCache != null )
             {
-                loadDescriptor( descriptorURL );
+                m_cachedMetadata = new ArrayList<ComponentMetadata>();
+                m_methodCache = new MethodCache();
             }
+            loadDescriptors( descriptorLocations );
+            storeDescriptorCache();
         }
+
         //enable all the enabled components
         for ( ComponentHolder componentHolder : m_managers )
         {
@@ -180,6 +201,38 @@ public class BundleComponentActivator implements Logger
     }
 
 
+    /**
+     * Parses and validates the component descriptors of the bundle.
+     */
+    private void loadDescriptors( String descriptorLocations )
+    {
+        // 112.4.1: The value of the the header is a comma separated list of XML entries within the Bundle
+        StringTokenizer st = new StringTokenizer( descriptorLocations, ", " );
+
+        while ( st.hasMoreTokens() )
+        {
+            String descriptorLocation = st.nextToken();
+
+            URL[] descriptorURLs = findDescriptors( m_bundle, descriptorLocation );
+            if ( descriptorURLs.length == 0 )
+            {
+                // 112.4.1 If an XML document specified by the header cannot be located in the bundle and its attached
+                // fragments, SCR must log an error message with the Log Service, if present, and continue.
+                log( LogService.LOG_ERROR, "Component descriptor entry ''{0}'' not found", new Object[]
+                    { descriptorLocation }, null, null, null );
+                m_cachedMetadata = null;
+                continue;
+            }
+
+            // load from the descriptors
+            for ( URL descriptorURL : descriptorURLs )
+            {
+                loadDescriptor( descriptorURL );
+            }
+        }
+    }
+
+
     /**
      * Finds component descriptors based on descriptor location.
      *
@@ -249,40 +302,17 @@ public class BundleComponentActivator implements Logger
             for ( Object o : handler.getComponentMetadataList() )
             {
                 ComponentMetadata metadata = ( ComponentMetadata ) o;
-                ComponentRegistryKey key = null;
-                try
+                if ( loadComponent( metadata ) )
                 {
-                    // check and reserve the component name (if not null)
-                    if ( metadata.getName() != null )
+                    if ( m_cachedMetadata != null )
                     {
-                        key = m_componentRegistry.checkComponentName( m_bundle, metadata.getName() );
+                        m_cachedMetadata.add( metadata );
                     }
-
-                    // validate the component metadata
-                    metadata.validate( this );
-
-                    // Request creation of the component manager
-                    ComponentHolder holder = m_componentRegistry.createComponentHolder( this, metadata );
-
-                    // register the component after validation
-                    m_componentRegistry.registerComponentHolder( key, holder );
-                    m_managers.add( holder );
-
-                    log( LogService.LOG_DEBUG, "BundleComponentActivator : Bundle [{0}] ComponentHolder created for {1}",
-                            new Object[] {m_bundle.getBundleId(), metadata.getName()}, null, null, null );
-
                 }
-                catch ( Throwable t )
+                else
                 {
-                    // There is a problem with this particular component, we'll log the error
-                    // and proceed to the next one
-                    log( LogService.LOG_ERROR, "Cannot register Component", metadata, null, t );
-
-                    // make sure the name is not reserved any more
-                    if ( key != null )
-                    {
-                        m_componentRegistry.unregisterComponentHolder( key );
-                    }
+                    // do not cache the descriptors to report the problem again
+                    m_cachedMetadata = null;
                 }
             }
         }
@@ -293,11 +323,13 @@ public class BundleComponentActivator implements Logger
 
             log( LogService.LOG_ERROR, "Problem reading descriptor entry ''{0}''", new Object[]
                 { descriptorLocation }, null, null, ex );
+            m_cachedMetadata = null;
         }
         catch ( Exception ex )
         {
             log( LogService.LOG_ERROR, "General problem with descriptor entry ''{0}''", new Object[]
                 { descriptorLocation }, null, null, ex );
+            m_cachedMetadata = null;
         }
         finally
         {
@@ -315,6 +347,85 @@ public class BundleComponentActivator implements Logger
     }
 
 
+    /**
+     * Validates the component metadata and registers the component.
+     *
+     * @return <code>true</code> if the component has been registered
+     */
+    private boolean loadComponent( final ComponentMetadata metadata )
+    {
+        ComponentRegistryKey key = null;
+        try
+        {
+            // check and reserve the component name (if not null)
+            if ( metadata.getName() != null )
+            {
+                key = m_componentRegistry.checkComponentName( m_bundle, metadata.getName() );
+            }
+
+            // validate the component metadata
+            metadata.validate( this );
+
+            // Request creation of the component manager
+            ComponentHolder holder = m_componentRegistry.createComponentHolder( this, metadata );
+
+            // register the component after validation
+            m_componentRegistry.registerComponentHolder( key, holder );
+            m_managers.add( holder );
+
+            log( LogService.LOG_DEBUG, "BundleComponentActivator : Bundle [{0}] ComponentHolder created for {1}",
+                    new Object[] {m_bundle.getBundleId(), metadata.getName()}, null, null, null );
+
+            return true;
+        }
+        catch ( Throwable t )
+        {
+            // There is a problem with this particular component, we'll log the error
+            // and proceed to the next one
+            log( LogService.LOG_ERROR, "Cannot register Component", metadata, null, t );
+
+            // make sure the name is not reserved any more
+            if ( key != null )
+            {
+                m_componentRegistry.unregisterComponentHolder( key );
+            }
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Writes the component metadata and method lookups to the descriptor
+     * cache if caching is enabled and all descriptors could be loaded.
+     */
+    private void storeDescriptorCache()
+    {
+        if ( m_descriptorCache != null && m_cachedMetadata != null )
+        {
+            try
+            {
+                m_descriptorCache.store( m_cachedMetadata, m_methodCache.getEntries() );
+            }
+            catch ( Exception e )
+            {
+                log( LogService.LOG_WARNING, "Cannot write component descriptor cache for bundle {0}",
+                    new Object[] {m_bundle.getBundleId()}, null, null, e );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the cache of method lookups of the components of this bundle
+     * or <code>null</code> if component descriptors are not cached.
+     */
+    public MethodCache getMethodCache()
+    {
+        return m_methodCache;
+    }
+
+
     /**
     * Dispose of this component activator instance and all the component
     * managers.
@@ -347,6 +458,12 @@ public class BundleComponentActivator implements Logger
 
             }
 
+            // keep the method lookups of this run for the next start
+            if ( m_methodCache != null && m_methodCache.isModified() )
+            {
+                storeDescriptorCache();
+            }
+
             log( LogService.LOG_DEBUG, "BundleComponentActivator : Bundle [{0}] STOPPED", new Object[]
                     {m_bundle.getBundleId()}, null, null, null );
 
@@ -512,6 +629,10 @@ public class BundleComponentActivator implements Logger
      * Schedules the given <code>task</code> for asynchrounous execution or
      * synchronously runs the task if the thread is not running. If this instance
      * is {@link #isActive() not active}, the task is not executed.
+     * <p>
+     * Tasks of the same bundle are run in the order they are scheduled while
+     * tasks of different bundles may run concurrently if the component actor
+     * has more than one thread.
      *
      * @param task The component task to execute
      */
@@ -522,7 +643,7 @@ public class BundleComponentActivator implements Logger
             ComponentActorThread cat = m_componentActor;
             if ( cat != null )
             {
-                cat.schedule( task );
+                cat.schedule( m_bundle.getBundleId(), task );
             }
             else
             {
@@ -630,11 +751,11 @@ public class BundleComponentActivator implements Logger
 
     public void missingServicePresent( ServiceReference serviceReference )
     {
-        m_componentRegistry.missingServicePresent( serviceReference, m_componentActor );
+        m_componentRegistry.missingServicePresent( serviceReference );
     }
 
     public void registerMissingDependency( DependencyManager dependencyManager, ServiceReference serviceReference, int trackingCount )
     {
-        m_componentRegistry.registerMissingDependency(dependencyManager, serviceReference, trackingCount );
+        m_componentRegistry.registerMissingDependency( this, dependencyManager, serviceReference, trackingCount );
     }
 }
@@ -27,8 +27,15 @@ import org.osgi.service.log.LogService;
 /**
  * The <code>ComponentActorThread</code> is the thread used to act upon registered
  * components of the service component runtime.
+ * <p>
+ * The actor may be configured to use more than one thread. Each thread has
+ * its own queue of tasks and tasks {@link #schedule(Object, Runnable) scheduled
+ * with a key}, such as the ID of the bundle declaring the component, are
+ * always run by the same thread. Thus tasks for the same key are run in the
+ * order they are scheduled while tasks of different bundles may run
+ * concurrently.
  */
-class ComponentActorThread implements Runnable
+class ComponentActorThread
 {
 
     // sentinel task to terminate this thread
@@ -45,110 +52,199 @@ class ComponentActorThread implements Runnable
         }
     };
 
-    // the queue of Runnable instances  to be run
-    private LinkedList tasks;
+    // the threads each running the tasks of its own queue
+    private final Lane[] lanes;
 
 
     ComponentActorThread()
     {
-        tasks = new LinkedList();
+        this( 1 );
     }
 
 
-    // waits on Runnable instances coming into the queue. As instances come
-    // in, this method calls the Runnable.run method, logs any exception
-    // happening and keeps on waiting for the next Runnable. If the Runnable
-    // taken from the queue is this thread instance itself, the thread
-    // terminates.
-    public void run()
+    ComponentActorThread( int threads )
     {
-        Activator.log( LogService.LOG_DEBUG, null, "Starting ComponentActorThread", null );
+        lanes = new Lane[Math.max( 1, threads )];
+        for ( int i = 0; i < lanes.length; i++ )
+        {
+            lanes[i] = new Lane( ( lanes.length == 1 ) ? "SCR Component Actor" : "SCR Component Actor #" + i );
+        }
+    }
 
-        for ( ;; )
+
+    // starts the threads of this actor
+    void start()
+    {
+        for ( int i = 0; i < lanes.length; i++ )
         {
-            final Runnable task;
-            synchronized ( tasks )
+            Thread t = new Thread( lanes[i], lanes[i].name );
+            t.setDaemon( true );
+            t.start();
+        }
+    }
+
+
+    // cause the threads to terminate by adding the termination task to the
+    // end of each queue and wait for all queues to be empty
+    void terminate()
+    {
+        for ( int i = 0; i < lanes.length; i++ )
+        {
+            lanes[i].schedule( TERMINATION_TASK );
+        }
+        for ( int i = 0; i < lanes.length; i++ )
+        {
+            lanes[i].awaitEmpty();
+        }
+    }
+
+
+    // queue the given runnable to be run as soon as possible
+    void schedule( Runnable task )
+    {
+        schedule( null, task );
+    }
+
+
+    // queue the given runnable to be run as soon as possible after any
+    // task scheduled before with the same key
+    void schedule( Object key, Runnable task )
+    {
+        final int hash = ( key == null ) ? 0 : key.hashCode();
+        lanes[( hash & 0x7fffffff ) % lanes.length].schedule( task );
+    }
+
+
+    // a task together with the time it has been queued
+    private static class QueuedTask
+    {
+        final Runnable task;
+
+        final long queued;
+
+
+        QueuedTask( Runnable task )
+        {
+            this.task = task;
+            this.queued = System.nanoTime();
+        }
+    }
+
+
+    private static class Lane implements Runnable
+    {
+
+        // the name of the thread
+        private final String name;
+
+        // the queue of QueuedTask instances to be run
+        private final LinkedList tasks;
+
+
+        Lane( String name )
+        {
+            this.name = name;
+            this.tasks = new LinkedList();
+        }
+
+
+        // waits on Runnable instances coming into the queue. As instances come
+        // in, this method calls the Runnable.run method, logs any exception
+        // happening and keeps on waiting for the next Runnable. If the Runnable
+        // taken from the queue is the termination task, the thread
+        // terminates.
+        public void run()
+        {
+            Activator.log( LogService.LOG_DEBUG, null, "Starting " + name, null );
+
+            for ( ;; )
             {
-                while ( tasks.isEmpty() )
+                final QueuedTask queued;
+                synchronized ( tasks )
                 {
-                    try
+                    while ( tasks.isEmpty() )
                     {
-                        tasks.wait();
+                        try
+                        {
+                            tasks.wait();
+                        }
+                        catch ( InterruptedException ie )
+                        {
+                            Thread.currentThread().interrupt();
+                            // don't care
+                        }
                     }
-                    catch ( InterruptedException ie )
+
+                    queued = ( QueuedTask ) tasks.removeFirst();
+                }
+
+                final Runnable task = queued.task;
+                try
+                {
+                    // return if the task is this thread itself
+                    if ( task == TERMINATION_TASK )
                     {
-                        Thread.currentThread().interrupt();
-                        // don't care
+                        Activator.log( LogService.LOG_DEBUG, null, "Shutting down " + name, null );
+                        return;
                     }
-                }
 
-                task = ( Runnable ) tasks.removeFirst();
-            }
+                    // otherwise execute the task, log any issues
+                    Activator.log( LogService.LOG_DEBUG, null, "Running task: " + task, null );
+                    final long start = System.nanoTime();
+                    task.run();
+                    final long end = System.nanoTime();
 
-            try
-            {
-                // return if the task is this thread itself
-                if ( task == TERMINATION_TASK )
+                    Activator.log( LogService.LOG_DEBUG, null, "Task [{0}] waited {1} ms in the queue and ran for {2} ms",
+                        new Object[] { task, ( start - queued.queued ) / 1000000L, ( end - start ) / 1000000L }, null );
+                }
+                catch ( Throwable t )
                 {
-                    Activator.log( LogService.LOG_DEBUG, null, "Shutting down ComponentActorThread", null );
-                    return;
+                    Activator.log( LogService.LOG_ERROR, null, "Unexpected problem executing task " + task, t );
                 }
-
-                // otherwise execute the task, log any issues
-                Activator.log( LogService.LOG_DEBUG, null, "Running task: " + task, null );
-                task.run();
-            }
-            catch ( Throwable t )
-            {
-                Activator.log( LogService.LOG_ERROR, null, "Unexpected problem executing task " + task, t );
-            }
-            finally
-            {
-                synchronized ( tasks )
+                finally
                 {
-                    tasks.notifyAll();
+                    synchronized ( tasks )
+                    {
+                        tasks.notifyAll();
+                    }
                 }
             }
         }
-    }
 
 
-    // cause this thread to terminate by adding this thread to the end
-    // of the queue
-    void terminate()
-    {
-        schedule( TERMINATION_TASK );
-        synchronized ( tasks )
+        void awaitEmpty()
         {
-            while ( !tasks.isEmpty() )
+            synchronized ( tasks )
             {
-                try
-                {
-                    tasks.wait();
-                }
-                catch ( InterruptedException e )
+                while ( !tasks.isEmpty() )
                 {
-                    Thread.currentThread().interrupt();
-                    Activator.log( LogService.LOG_ERROR, null, "Interrupted exception waiting for queue to empty", e );
+                    try
+                    {
+                        tasks.wait();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                        Activator.log( LogService.LOG_ERROR, null, "Interrupted exception waiting for queue to empty", e );
+                    }
                 }
             }
         }
-    }
 
 
-    // queue the given runnable to be run as soon as possible
-    void schedule( Runnable task )
-    {
-        synchronized ( tasks )
+        void schedule( Runnable task )
         {
-            // append to the task queue
-            tasks.add( task );
+            synchronized ( tasks )
+            {
+                // append to the task queue
+                tasks.add( new QueuedTask( task ) );
 
-            Activator.log( LogService.LOG_DEBUG, null, "Adding task [{0}] as #{1} in the queue" 
-                    , new Object[] {task, tasks.size()}, null );
+                Activator.log( LogService.LOG_DEBUG, null, "Adding task [{0}] as #{1} in the queue of {2}"
+                        , new Object[] {task, tasks.size(), name}, null );
 
-            // notify the waiting thread
-            tasks.notifyAll();
+                // notify the waiting thread
+                tasks.notifyAll();
+            }
         }
     }
 }
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+
+/**
+ * The <code>ComponentDescriptorCache</code> stores the validated component
+ * metadata of a bundle together with the results of the method lookups of
+ * its components in a file of the data area of SCR named after the id of the
+ * bundle. When the bundle is started again, the components are set up from
+ * the cache instead of parsing and validating the component descriptors
+ * again.
+ * <p>
+ * The cache is only used if the bundle, its attached fragments, the
+ * <code>Service-Component</code> header and the SCR bundle have not been
+ * modified since the cache has been written. The file only contains plain
+ * values written with <code>DataOutput</code>, no serialized objects. Any
+ * problem reading the cache is treated as if there would be no cache.
+ */
+class ComponentDescriptorCache
+{
+
+    // suffix of the cache files, which are named by the bundle id
+    static final String CACHE_FILE_SUFFIX = ".descriptors";
+
+    // version of the cache file format
+    private static final int VERSION = 2;
+
+    private final File m_file;
+
+    private final long m_bundleId;
+
+    private final long m_lastModified;
+
+    private final long[] m_fragments;
+
+    private final long m_scrLastModified;
+
+    private final String m_descriptorLocations;
+
+    private List<ComponentMetadata> m_metadata;
+
+    private Map<String, String[]> m_methods;
+
+
+    /**
+     * Creates the cache of the given bundle in the given directory.
+     *
+     * @param directory The directory of the cache files in the data area of
+     *      SCR.
+     * @param bundle The bundle whose descriptors are cached.
+     * @param fragments The fragments attached to the bundle or
+     *      <code>null</code> if there are none.
+     * @param descriptorLocations The <code>Service-Component</code> header.
+     */
+    ComponentDescriptorCache( final File directory, final Bundle bundle, final Bundle[] fragments,
+        final String descriptorLocations )
+    {
+        final Bundle scrBundle = FrameworkUtil.getBundle( getClass() );
+
+        m_file = new File( directory, bundle.getBundleId() + CACHE_FILE_SUFFIX );
+        m_bundleId = bundle.getBundleId();
+        m_lastModified = bundle.getLastModified();
+        m_scrLastModified = ( scrBundle != null ) ? scrBundle.getLastModified() : 0;
+        m_descriptorLocations = descriptorLocations;
+
+        // id and last modification time of each fragment
+        final int count = ( fragments != null ) ? fragments.length : 0;
+        m_fragments = new long[count * 2];
+        for ( int i = 0; i < count; i++ )
+        {
+            m_fragments[i * 2] = fragments[i].getBundleId();
+            m_fragments[i * 2 + 1] = fragments[i].getLastModified();
+        }
+    }
+
+
+    /**
+     * Reads the cache file and returns <code>true</code> if the cache is
+     * valid for the current state of the bundle. Otherwise the cache file is
+     * removed.
+     */
+    boolean load()
+    {
+        if ( !m_file.isFile() )
+        {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( m_file ) ) );
+            if ( in.readInt() == VERSION && in.readLong() == m_bundleId && in.readLong() == m_lastModified
+                && in.readLong() == m_scrLastModified && m_descriptorLocations.equals( in.readUTF() )
+                && readFragments( in ) )
+            {
+                final List<ComponentMetadata> metadata = new ArrayList<ComponentMetadata>();
+                for ( int i = in.readInt(); i > 0; i-- )
+                {
+                    metadata.add( ComponentMetadata.load( in ) );
+                }
+
+                final Map<String, String[]> methods = new HashMap<String, String[]>();
+                for ( int i = in.readInt(); i > 0; i-- )
+                {
+                    final String key = in.readUTF();
+                    final String[] entry = new String[in.readInt()];
+                    for ( int j = 0; j < entry.length; j++ )
+                    {
+                        entry[j] = in.readUTF();
+                    }
+                    methods.put( key, entry );
+                }
+
+                m_metadata = metadata;
+                m_methods = methods;
+                return true;
+            }
+        }
+        catch ( Exception e )
+        {
+            // corrupt or outdated cache, ignore
+        }
+        finally
+        {
+            close( in );
+        }
+
+        m_file.delete();
+        return false;
+    }
+
+
+    private boolean readFragments( final DataInputStream in ) throws IOException
+    {
+        if ( in.readInt() != m_fragments.length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < m_fragments.length; i++ )
+        {
+            if ( in.readLong() != m_fragments[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns the component metadata read from the cache.
+     */
+    List<ComponentMetadata> getMetadata()
+    {
+        return m_metadata;
+    }
+
+
+    /**
+     * Returns the method lookup results read from the cache.
+     */
+    Map<String, String[]> getMethods()
+    {
+        return m_methods;
+    }
+
+
+    /**
+     * Writes the component metadata and method lookup results to the cache
+     * file. The file is first written to a temporary file which is then
+     * renamed to not leave a partially written cache.
+     */
+    void store( final List<ComponentMetadata> metadata, final Map<String, String[]> methods ) throws IOException
+    {
+        final File tmp = new File( m_file.getPath() + ".tmp" );
+        m_file.getParentFile().mkdirs();
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+            out.writeInt( VERSION );
+            out.writeLong( m_bundleId );
+            out.writeLong( m_lastModified );
+            out.writeLong( m_scrLastModified );
+            out.writeUTF( m_descriptorLocations );
+            out.writeInt( m_fragments.length );
+            for ( int i = 0; i < m_fragments.length; i++ )
+            {
+                out.writeLong( m_fragments[i] );
+            }
+
+            out.writeInt( metadata.size() );
+            for ( ComponentMetadata component : metadata )
+            {
+                component.store( out );
+            }
+
+            out.writeInt( methods.size() );
+            for ( Map.Entry<String, String[]> method : methods.entrySet() )
+            {
+                out.writeUTF( method.getKey() );
+                out.writeInt( method.getValue().length );
+                for ( String name : method.getValue() )
+                {
+                    out.writeUTF( name );
+                }
+            }
+            out.close();
+            out = null;
+
+            m_file.delete();
+            if ( !tmp.renameTo( m_file ) )
+            {
+                throw new IOException( "Cannot rename " + tmp + " to " + m_file );
+            }
+        }
+        finally
+        {
+            close( out );
+            tmp.delete();
+        }
+    }
+
+
+    private static void close( final Closeable stream )
+    {
+        if ( stream != null )
+        {
+            try
+            {
+                stream.close();
+            }
+            catch ( IOException ignore )
+            {
+            }
+        }
+    }
+}
@@ -660,33 +660,51 @@ public class ComponentRegistry implements ScrService, ServiceListener
         }
     }
 
-    public void missingServicePresent( final ServiceReference serviceReference, ComponentActorThread actor )
+    public void missingServicePresent( final ServiceReference serviceReference )
     {
-        final List<Entry> dependencyManagers = m_missingDependencies.remove( serviceReference );
-        if ( dependencyManagers != null )
+        final List<Entry> entries = m_missingDependencies.remove( serviceReference );
+        if ( entries != null )
         {
-            actor.schedule( new Runnable()
+            // late binding is run on the actor of the bundle declaring the
+            // component to keep the order of the tasks of each component
+            final Map<BundleComponentActivator, List<Entry>> byActivator = new HashMap<BundleComponentActivator, List<Entry>>();
+            for ( Entry entry : entries )
             {
+                List<Entry> dependencyManagers = byActivator.get( entry.getActivator() );
+                if ( dependencyManagers == null )
+                {
+                    dependencyManagers = new ArrayList<Entry>();
+                    byActivator.put( entry.getActivator(), dependencyManagers );
+                }
+                dependencyManagers.add( entry );
+            }
 
-                public void run()
+            for ( Map.Entry<BundleComponentActivator, List<Entry>> activatorEntries : byActivator.entrySet() )
+            {
+                final List<Entry> dependencyManagers = activatorEntries.getValue();
+                activatorEntries.getKey().schedule( new Runnable()
                 {
-                    for ( Entry entry : dependencyManagers )
+
+                    public void run()
                     {
-                        entry.getDm().invokeBindMethodLate( serviceReference, entry.getTrackingCount() );
+                        for ( Entry entry : dependencyManagers )
+                        {
+                            entry.getDm().invokeBindMethodLate( serviceReference, entry.getTrackingCount() );
+                        }
                     }
-                }
 
-                @Override
-                public String toString()
-                {
-                    return "Late binding task of reference " + serviceReference + " for dependencyManagers " + dependencyManagers;
-                }
+                    @Override
+                    public String toString()
+                    {
+                        return "Late binding task of reference " + serviceReference + " for dependencyManagers " + dependencyManagers;
+                    }
 
-            } );
+                } );
+            }
         }
     }
 
-    public synchronized void registerMissingDependency( DependencyManager<?,?> dependencyManager, ServiceReference serviceReference, int trackingCount )
+    public synchronized void registerMissingDependency( BundleComponentActivator activator, DependencyManager<?,?> dependencyManager, ServiceReference serviceReference, int trackingCount )
     {
         //check that the service reference is from scr
         if ( serviceReference.getProperty( ComponentConstants.COMPONENT_NAME ) == null || serviceReference.getProperty( ComponentConstants.COMPONENT_ID ) == null )
@@ -699,20 +717,27 @@ public class ComponentRegistry implements ScrService, ServiceListener
             dependencyManagers = new ArrayList<Entry>();
             m_missingDependencies.put( serviceReference, dependencyManagers );
         }
-        dependencyManagers.add( new Entry( dependencyManager, trackingCount ) );
+        dependencyManagers.add( new Entry( activator, dependencyManager, trackingCount ) );
     }
 
     private static class Entry
     {
+        private final BundleComponentActivator activator;
         private final DependencyManager<?,?> dm;
         private final int trackingCount;
 
-        private Entry( DependencyManager<?,?> dm, int trackingCount )
+        private Entry( BundleComponentActivator activator, DependencyManager<?,?> dm, int trackingCount )
         {
+            this.activator = activator;
             this.dm = dm;
             this.trackingCount = trackingCount;
         }
 
+        public BundleComponentActivator getActivator()
+        {
+            return activator;
+        }
+
         public DependencyManager<?,?> getDm()
         {
             return dm;
@@ -19,6 +19,7 @@
 package org.apache.felix.scr.impl.config;
 
 
+import java.io.File;
 import java.util.Dictionary;
 import java.util.Hashtable;
 
@@ -68,6 +69,10 @@ public class ScrConfiguration
 
     public static final String PROP_STOP_TIMEOUT = "ds.stop.timeout.milliseconds";
 
+    public static final String PROP_ACTOR_THREADS = "ds.actor.threads";
+
+    public static final String PROP_CACHE_DESCRIPTORS = "ds.cache.descriptors";
+
     public static final long DEFAULT_LOCK_TIMEOUT_MILLISECONDS = 5000;
 
     public static final long DEFAULT_STOP_TIMEOUT_MILLISECONDS = 60000;
@@ -98,6 +103,10 @@ public class ScrConfiguration
 
     private long stopTimeout = DEFAULT_STOP_TIMEOUT_MILLISECONDS;
 
+    private int actorThreads = 1;
+
+    private File descriptorCacheDirectory;
+
     private BundleContext bundleContext;
 
     private ServiceRegistration managedService;
@@ -116,6 +125,11 @@ public class ScrConfiguration
         // reconfigure from bundle context properties
         configure( null );
 
+        // the component actor is only set up on startup
+        actorThreads = getDefaultActorThreads();
+        descriptorCacheDirectory = VALUE_TRUE.equalsIgnoreCase( bundleContext.getProperty( PROP_CACHE_DESCRIPTORS ) )
+            ? bundleContext.getDataFile( "descriptors" ) : null;
+
         // listen for Configuration Admin configuration
         Dictionary props = new Hashtable();
         props.put(Constants.SERVICE_PID, PID);
@@ -217,6 +231,26 @@ public class ScrConfiguration
         return stopTimeout;
     }
 
+    /**
+     * Returns the number of threads activating components. This is only
+     * read from the framework properties when SCR is started.
+     */
+    public int actorThreads()
+    {
+        return actorThreads;
+    }
+
+    /**
+     * Returns the directory in the data area of SCR caching the validated
+     * component descriptors and method lookups of the component bundles or
+     * <code>null</code> if descriptors are not cached. This is only read
+     * from the framework properties when SCR is started.
+     */
+    public File getDescriptorCacheDirectory()
+    {
+        return descriptorCacheDirectory;
+    }
+
     private boolean getDefaultFactoryEnabled()
     {
         return VALUE_TRUE.equals( bundleContext.getProperty( PROP_FACTORY_ENABLED ) );
@@ -260,6 +294,24 @@ public class ScrConfiguration
     }
 
 
+    private int getDefaultActorThreads()
+    {
+        String val = bundleContext.getProperty( PROP_ACTOR_THREADS );
+        if ( val != null )
+        {
+            try
+            {
+                return Math.max( 1, Integer.parseInt( val.trim() ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                // ignore and use the default
+            }
+        }
+        return 1;
+    }
+
+
     private int getLogLevel( final Object levelObject )
     {
         if ( levelObject != null )
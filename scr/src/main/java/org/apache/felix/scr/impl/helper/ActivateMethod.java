@@ -34,6 +34,15 @@ public class ActivateMethod extends BaseMethod
     static final Class[] ACTIVATE_TYPES_DS10 =
         { COMPONENT_CONTEXT_CLASS };
 
+    // kinds of parameters of the activate method
+    private static final int PARAM_COMPONENT_CONTEXT = 1;
+    private static final int PARAM_BUNDLE_CONTEXT = 2;
+    private static final int PARAM_MAP = 3;
+    private static final int PARAM_REASON = 4;
+
+    // the kinds of the parameters of the method to invoke
+    private volatile int[] m_parameterKinds;
+
 
     public ActivateMethod( final String methodName,
             final boolean methodRequired, final Class componentClass, final boolean isDS11, final boolean isDS12Felix )
@@ -107,33 +116,75 @@ public class ActivateMethod extends BaseMethod
     }
 
 
+    protected void prepareInvocation( Method method )
+    {
+        m_parameterKinds = getParameterKinds( method );
+    }
+
+
     protected Object[] getParameters( Method method, Object rawParameter )
     {
-        final Class[] parameterTypes = method.getParameterTypes();
+        int[] parameterKinds = m_parameterKinds;
+        if ( parameterKinds == null )
+        {
+            parameterKinds = getParameterKinds( method );
+        }
+
         final ActivatorParameter ap = ( ActivatorParameter ) rawParameter;
-        final Object[] param = new Object[parameterTypes.length];
+        final Object[] param = new Object[parameterKinds.length];
         for ( int i = 0; i < param.length; i++ )
+        {
+            switch ( parameterKinds[i] )
+            {
+                case PARAM_COMPONENT_CONTEXT:
+                    param[i] = ap.getComponentContext();
+                    break;
+                case PARAM_BUNDLE_CONTEXT:
+                    param[i] = ap.getComponentContext().getBundleContext();
+                    break;
+                case PARAM_MAP:
+                    // note: getProperties() returns a ReadOnlyDictionary which is a Map
+                    param[i] = ap.getComponentContext().getProperties();
+                    break;
+                case PARAM_REASON:
+                    param[i] = ap.getReason();
+                    break;
+            }
+        }
+
+        return param;
+    }
+
+
+    /**
+     * Maps the parameter types of the method to the kinds of arguments to
+     * provide. This is done once for the method to invoke instead of
+     * checking the parameter types on each invocation.
+     */
+    private static int[] getParameterKinds( final Method method )
+    {
+        final Class[] parameterTypes = method.getParameterTypes();
+        final int[] kinds = new int[parameterTypes.length];
+        for ( int i = 0; i < kinds.length; i++ )
         {
             if ( parameterTypes[i] == COMPONENT_CONTEXT_CLASS )
             {
-                param[i] = ap.getComponentContext();
+                kinds[i] = PARAM_COMPONENT_CONTEXT;
             }
             else if ( parameterTypes[i] == BUNDLE_CONTEXT_CLASS )
             {
-                param[i] = ap.getComponentContext().getBundleContext();
+                kinds[i] = PARAM_BUNDLE_CONTEXT;
             }
             else if ( parameterTypes[i] == MAP_CLASS )
             {
-                // note: getProperties() returns a ReadOnlyDictionary which is a Map
-                param[i] = ap.getComponentContext().getProperties();
+                kinds[i] = PARAM_MAP;
             }
             else if ( parameterTypes[i] == INTEGER_CLASS || parameterTypes[i] == Integer.TYPE )
             {
-                param[i] = ap.getReason();
+                kinds[i] = PARAM_REASON;
             }
         }
-
-        return param;
+        return kinds;
     }
 
 
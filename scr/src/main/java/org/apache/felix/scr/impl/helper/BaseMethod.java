@@ -54,10 +54,15 @@ abstract class BaseMethod
 
     private volatile Method m_method;
 
+    // whether m_method returns a value, set before m_method
+    private boolean m_returnsValue;
+
     private final boolean m_methodRequired;
 
     private volatile State m_state;
 
+    private volatile MethodCache m_methodCache;
+
     protected BaseMethod( final String methodName,
             final Class componentClass, final boolean ds11, final boolean ds12Felix )
     {
@@ -111,8 +116,119 @@ abstract class BaseMethod
     }
 
 
+    void setMethodCache( MethodCache methodCache )
+    {
+        m_methodCache = methodCache;
+    }
+
+
+    /**
+     * Returns the key of this method in the {@link MethodCache}. The key
+     * consists of everything influencing the method lookup.
+     */
+    protected String getCacheKey()
+    {
+        return getComponentClass().getName() + "#" + getMethodNamePrefix() + ":" + getMethodName() + ":" + isDS11()
+            + ":" + isDS12Felix();
+    }
+
+
+    /**
+     * Called when the method has been taken from the {@link MethodCache}
+     * instead of calling {@link #doFindMethod(Class, boolean, boolean, SimpleLogger)}
+     * to allow for setting up any state otherwise set while finding the method.
+     */
+    protected void methodRestored( Method method )
+    {
+    }
+
+
+    /**
+     * Returns whether the result of looking up this method may be kept in
+     * the {@link MethodCache}. The cache is only invalidated when the bundle
+     * of the component, its fragments or SCR are updated, so the lookup must
+     * not depend on classes of other bundles. This is the case if the
+     * classes searched and the parameter types of the method found are
+     * loaded by the bundle of the component or are the same classes SCR sees.
+     *
+     * @param method The method found or <code>null</code> if the whole class
+     *      hierarchy has been searched without finding a method.
+     */
+    protected boolean isCacheable( Method method )
+    {
+        for ( Class theClass = getComponentClass(); theClass != null; theClass = theClass.getSuperclass() )
+        {
+            if ( !isCacheable( theClass ) )
+            {
+                return false;
+            }
+            if ( method != null && theClass == method.getDeclaringClass() )
+            {
+                break;
+            }
+        }
+
+        if ( method != null )
+        {
+            for ( Class type : method.getParameterTypes() )
+            {
+                if ( !isCacheable( type ) )
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns whether the given class is loaded by the bundle of the component
+     * or is the same class SCR sees, such as the classes of the Java platform
+     * and of the Declarative Services API.
+     */
+    protected boolean isCacheable( Class clazz )
+    {
+        while ( clazz.isArray() )
+        {
+            clazz = clazz.getComponentType();
+        }
+
+        final ClassLoader loader = clazz.getClassLoader();
+        if ( loader == null || loader == getComponentClass().getClassLoader() )
+        {
+            return true;
+        }
+
+        try
+        {
+            return Class.forName( clazz.getName(), false, BaseMethod.class.getClassLoader() ) == clazz;
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     * Called once the method to invoke has been found to set up anything
+     * required to invoke the method such that it has not to be figured out
+     * on each invocation.
+     */
+    protected void prepareInvocation( Method method )
+    {
+    }
+
+
     void setMethod( Method method, SimpleLogger logger )
     {
+        if ( method != null )
+        {
+            m_returnsValue = method.getReturnType() != Void.TYPE;
+            prepareInvocation( method );
+        }
         this.m_method = method;
 
         if ( method != null )
@@ -214,6 +330,69 @@ abstract class BaseMethod
     }
 
 
+    /**
+     * Returns the method described by the given {@link MethodCache} entry or
+     * <code>null</code> if the class hierarchy of the component class does
+     * not declare such a method (any more).
+     */
+    private Method findCachedMethod( final String[] entry )
+    {
+        boolean acceptPrivate = isDS11();
+        boolean acceptPackage = isDS11();
+
+        final Class targetClass = getComponentClass();
+        final ClassLoader targetClasslLoader = targetClass.getClassLoader();
+        final String targetPackage = getPackageName( targetClass );
+
+        for ( Class theClass = targetClass; theClass != null; theClass = theClass.getSuperclass() )
+        {
+            // accept the same methods as findMethod at this class level
+            if ( theClass != targetClass )
+            {
+                acceptPackage &= targetClasslLoader == theClass.getClassLoader()
+                    && targetPackage.equals( getPackageName( theClass ) );
+                acceptPrivate = false;
+            }
+
+            if ( !theClass.getName().equals( entry[0] ) )
+            {
+                continue;
+            }
+
+            final Method[] methods = theClass.getDeclaredMethods();
+            for ( Method method : methods )
+            {
+                if ( method.getName().equals( entry[1] ) && matches( method.getParameterTypes(), entry )
+                    && accept( method, acceptPrivate, acceptPackage, returnValue() ) )
+                {
+                    methodRestored( method );
+                    return method;
+                }
+            }
+            break;
+        }
+
+        return null;
+    }
+
+
+    private static boolean matches( final Class[] types, final String[] entry )
+    {
+        if ( types.length != entry.length - 2 )
+        {
+            return false;
+        }
+        for ( int i = 0; i < types.length; i++ )
+        {
+            if ( !types[i].getName().equals( entry[i + 2] ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     protected abstract Method doFindMethod( final Class targetClass, final boolean acceptPrivate,
             final boolean acceptPackage, SimpleLogger logger ) throws SuitableMethodNotAccessibleException, InvocationTargetException;
 
@@ -221,17 +400,26 @@ abstract class BaseMethod
     private MethodResult invokeMethod( final Object componentInstance, final Object rawParameter, SimpleLogger logger )
         throws InvocationTargetException
     {
-        logger.log( LogService.LOG_DEBUG, "invoking {0}: {1}", new Object[]
-            { getMethodNamePrefix(), getMethodName() }, null );
+        // this is called for each (re)binding, so only build log messages if needed
+        final boolean debug = logger.isLogEnabled( LogService.LOG_DEBUG );
+        if ( debug )
+        {
+            logger.log( LogService.LOG_DEBUG, "invoking {0}: {1}", new Object[]
+                { getMethodNamePrefix(), getMethodName() }, null );
+        }
         try
         {
             if ( componentInstance != null )
             {
-                final Object[] params = getParameters(m_method, rawParameter);
-                Object result = m_method.invoke(componentInstance, params);
-                logger.log( LogService.LOG_DEBUG, "invoked {0}: {1}: parameters {2}", new Object[]
-                    { getMethodNamePrefix(), getMethodName(), Arrays.asList( params ) }, null );
-                return new MethodResult((m_method.getReturnType() != Void.TYPE), (Map) result);
+                final Method method = m_method;
+                final Object[] params = getParameters(method, rawParameter);
+                Object result = method.invoke(componentInstance, params);
+                if ( debug )
+                {
+                    logger.log( LogService.LOG_DEBUG, "invoked {0}: {1}: parameters {2}", new Object[]
+                        { getMethodNamePrefix(), getMethodName(), Arrays.asList( params ) }, null );
+                }
+                return m_returnsValue ? new MethodResult( true, ( Map ) result ) : MethodResult.VOID;
             }
             else
             {
@@ -560,11 +748,29 @@ abstract class BaseMethod
             logger.log( LogService.LOG_DEBUG, "getting {0}: {1}", new Object[]
                     {baseMethod.getMethodNamePrefix(), baseMethod.getMethodName()}, null );
 
+            // use the result of an earlier lookup if still valid
+            final MethodCache cache = baseMethod.m_methodCache;
+            final String key = ( cache != null ) ? baseMethod.getCacheKey() : null;
+            final String[] entry = ( cache != null ) ? cache.get( key ) : null;
+            if ( entry != null )
+            {
+                final Method method = ( entry.length == 0 ) ? null : baseMethod.findCachedMethod( entry );
+                if ( method != null || entry.length == 0 )
+                {
+                    baseMethod.setMethod( method, logger );
+                    return;
+                }
+            }
+
             // resolve the method
             Method method = null;
             try
             {
                 method = baseMethod.findMethod( logger );
+                if ( cache != null && baseMethod.isCacheable( method ) )
+                {
+                    cache.put( key, method );
+                }
             }
             catch ( InvocationTargetException ex )
             {
@@ -56,6 +56,53 @@ public class BindMethod extends BaseMethod
     }
 
 
+    protected String getCacheKey()
+    {
+        return super.getCacheKey() + ":" + m_referenceClassName;
+    }
+
+
+    /**
+     * The lookup of bind methods also depends on the class of the reference,
+     * which must be visible through the class loader of the component.
+     */
+    protected boolean isCacheable( Method method )
+    {
+        ClassLoader loader = getComponentClass().getClassLoader();
+        if ( loader == null )
+        {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+
+        try
+        {
+            return isCacheable( loader.loadClass( m_referenceClassName ) ) && super.isCacheable( method );
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            return false;
+        }
+    }
+
+
+    protected void methodRestored( Method method )
+    {
+        final Class[] types = method.getParameterTypes();
+        if ( types.length == 2 )
+        {
+            m_paramStyle = SERVICE_OBJECT_AND_MAP;
+        }
+        else if ( types[0] == SERVICE_REFERENCE_CLASS )
+        {
+            m_paramStyle = SERVICE_REFERENCE;
+        }
+        else
+        {
+            m_paramStyle = SERVICE_OBJECT;
+        }
+    }
+
+
     /**
      * Finds the method named in the {@link #m_methodName} field in the given
      * <code>targetClass</code>. If the target class has no acceptable method
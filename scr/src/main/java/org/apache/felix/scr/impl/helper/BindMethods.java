@@ -55,6 +55,13 @@ public class BindMethods
         );
     }
 
+    void setMethodCache( MethodCache methodCache )
+    {
+        m_bind.setMethodCache( methodCache );
+        m_updated.setMethodCache( methodCache );
+        m_unbind.setMethodCache( methodCache );
+    }
+
     public BindMethod getBind()
     {
         return m_bind;
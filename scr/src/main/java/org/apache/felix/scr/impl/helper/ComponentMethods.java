@@ -39,7 +39,13 @@ public class ComponentMethods
 
     private final Map bindMethodMap = new HashMap();//<String, BindMethods>
 
-    public synchronized void initComponentMethods( ComponentMetadata componentMetadata, Class implementationObjectClass )
+    public void initComponentMethods( ComponentMetadata componentMetadata, Class implementationObjectClass )
+    {
+        initComponentMethods( componentMetadata, implementationObjectClass, null );
+    }
+
+    public synchronized void initComponentMethods( ComponentMetadata componentMetadata, Class implementationObjectClass,
+            MethodCache methodCache )
     {
         if (m_activateMethod != null)
         {
@@ -54,10 +60,15 @@ public class ComponentMethods
 
         m_modifiedMethod = new ModifiedMethod( componentMetadata.getModified(), implementationObjectClass, isDS11, isDS12Felix );
 
+        m_activateMethod.setMethodCache( methodCache );
+        m_deactivateMethod.setMethodCache( methodCache );
+        m_modifiedMethod.setMethodCache( methodCache );
+
         for ( ReferenceMetadata referenceMetadata: componentMetadata.getDependencies() )
         {
             String refName = referenceMetadata.getName();
             BindMethods bindMethods = new BindMethods( referenceMetadata, implementationObjectClass, isDS11, isDS12Felix);
+            bindMethods.setMethodCache( methodCache );
             bindMethodMap.put( refName, bindMethods );
         }
     }
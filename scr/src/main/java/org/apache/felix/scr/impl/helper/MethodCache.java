@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The <code>MethodCache</code> keeps the results of looking up the activate,
+ * deactivate, modified and bind methods of the components of a bundle. The
+ * cache maps a key describing the method lookup to the name of the class
+ * declaring the method found, the method name and the names of the parameter
+ * types. An empty entry records that no method has been found.
+ * <p>
+ * The entries only consist of strings such that they can be persisted and
+ * used again when the bundle is started again without having to search for
+ * the methods reflectively. Lookups depending on classes of other bundles
+ * are not kept, see {@link BaseMethod#isCacheable(Method)}.
+ */
+public class MethodCache
+{
+
+    private static final String[] NOT_FOUND = new String[0];
+
+    private final Map<String, String[]> m_entries;
+
+    private volatile boolean m_modified;
+
+
+    public MethodCache()
+    {
+        this( null );
+    }
+
+
+    public MethodCache( Map<String, String[]> entries )
+    {
+        m_entries = new ConcurrentHashMap<String, String[]>();
+        if ( entries != null )
+        {
+            m_entries.putAll( entries );
+        }
+    }
+
+
+    /**
+     * Returns a copy of the entries of this cache.
+     */
+    public Map<String, String[]> getEntries()
+    {
+        return new HashMap<String, String[]>( m_entries );
+    }
+
+
+    /**
+     * Returns <code>true</code> if entries have been added to this cache
+     * since it has been created.
+     */
+    public boolean isModified()
+    {
+        return m_modified;
+    }
+
+
+    String[] get( String key )
+    {
+        return m_entries.get( key );
+    }
+
+
+    void put( String key, Method method )
+    {
+        final String[] entry;
+        if ( method == null )
+        {
+            entry = NOT_FOUND;
+        }
+        else
+        {
+            final Class<?>[] types = method.getParameterTypes();
+            entry = new String[types.length + 2];
+            entry[0] = method.getDeclaringClass().getName();
+            entry[1] = method.getName();
+            for ( int i = 0; i < types.length; i++ )
+            {
+                entry[i + 2] = types[i].getName();
+            }
+        }
+
+        m_entries.put( key, entry );
+        m_modified = true;
+    }
+}
@@ -1086,7 +1086,9 @@ public abstract class AbstractComponentManager<S> implements Component, SimpleLo
             throw new IllegalStateException("Could not load implementation object class "
                     + getComponentMetadata().getImplementationClassName());
         }
-        m_componentMethods.initComponentMethods( m_componentMetadata, implementationObjectClass );
+        final BundleComponentActivator activator = getActivator();
+        m_componentMethods.initComponentMethods( m_componentMetadata, implementationObjectClass,
+            ( activator != null ) ? activator.getMethodCache() : null );
 
         for ( DependencyManager dependencyManager : m_dependencyManagers )
         {
@@ -19,8 +19,13 @@
 package org.apache.felix.scr.impl.metadata;
 
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -55,6 +60,19 @@ public class ComponentMetadata
     // marker value indicating duplicate service setting
     private static final ServiceMetadata SERVICE_DUPLICATE = new ServiceMetadata();
 
+    // property value types supported by the descriptor cache, the index is
+    // the tag of a value in the cache, arrays are tagged with ARRAY_TAG added
+    private static final Class<?>[] VALUE_TYPES =
+        { String.class, Long.class, Double.class, Float.class, Integer.class, Byte.class, Character.class,
+            Boolean.class, Short.class };
+
+    // element types of the array property values in the order of VALUE_TYPES
+    private static final Class<?>[] ARRAY_TYPES =
+        { String.class, Long.TYPE, Double.TYPE, Float.TYPE, Integer.TYPE, Byte.TYPE, Character.TYPE,
+            Boolean.TYPE, Short.TYPE };
+
+    private static final int ARRAY_TAG = 0x10;
+
     // the namespace code of the namespace declaring this component, this is
     // one of the XmlHandler.DS_VERSION_* constants
     private final int m_namespaceCode;
@@ -844,4 +862,224 @@ public class ComponentMetadata
     {
         return new ComponentException( "Component " + getName() + " validation failed: " + reason );
     }
+
+
+    /////////////////////////////////////////// CACHE ////////////////////////////////////////
+
+    /**
+     * Writes this validated metadata to the descriptor cache. An
+     * <code>IOException</code> is thrown for property values of types not
+     * supported in component descriptors.
+     *
+     * @throws IllegalStateException if this metadata has not been validated
+     */
+    public void store( DataOutput out ) throws IOException
+    {
+        if ( !m_validated )
+        {
+            throw new IllegalStateException( "Component " + getName() + " has not been validated" );
+        }
+
+        out.writeInt( m_namespaceCode );
+        writeString( out, m_name );
+        out.writeBoolean( m_enabled );
+        writeString( out, m_factory );
+        out.writeByte( ( m_immediate == null ) ? -1 : ( m_immediate.booleanValue() ? 1 : 0 ) );
+        writeString( out, m_implementationClassName );
+        writeString( out, m_activate );
+        out.writeBoolean( m_activateDeclared );
+        writeString( out, m_deactivate );
+        out.writeBoolean( m_deactivateDeclared );
+        writeString( out, m_modified );
+        writeString( out, m_configurationPolicy );
+        writeString( out, m_configurationPid );
+
+        out.writeInt( m_properties.size() );
+        for ( Enumeration<String> keys = m_properties.keys(); keys.hasMoreElements(); )
+        {
+            String key = keys.nextElement();
+            out.writeUTF( key );
+            writeValue( out, m_properties.get( key ) );
+        }
+
+        out.writeBoolean( m_service != null );
+        if ( m_service != null )
+        {
+            m_service.store( out );
+        }
+
+        out.writeInt( m_references.size() );
+        for ( ReferenceMetadata reference : m_references )
+        {
+            reference.store( out );
+        }
+    }
+
+
+    /**
+     * Reads validated metadata written by {@link #store(DataOutput)}.
+     */
+    public static ComponentMetadata load( DataInput in ) throws IOException
+    {
+        ComponentMetadata metadata = new ComponentMetadata( in.readInt() );
+        metadata.m_name = readString( in );
+        metadata.m_enabled = in.readBoolean();
+        metadata.m_factory = readString( in );
+        byte immediate = in.readByte();
+        metadata.m_immediate = ( immediate < 0 ) ? null : Boolean.valueOf( immediate > 0 );
+        metadata.m_implementationClassName = readString( in );
+        metadata.m_activate = readString( in );
+        metadata.m_activateDeclared = in.readBoolean();
+        metadata.m_deactivate = readString( in );
+        metadata.m_deactivateDeclared = in.readBoolean();
+        metadata.m_modified = readString( in );
+        metadata.m_configurationPolicy = readString( in );
+        metadata.m_configurationPid = readString( in );
+
+        for ( int i = in.readInt(); i > 0; i-- )
+        {
+            String key = in.readUTF();
+            metadata.m_properties.put( key, readValue( in ) );
+        }
+
+        if ( in.readBoolean() )
+        {
+            metadata.m_service = ServiceMetadata.load( in );
+        }
+
+        for ( int i = in.readInt(); i > 0; i-- )
+        {
+            metadata.m_references.add( ReferenceMetadata.load( in ) );
+        }
+
+        metadata.m_validated = true;
+        return metadata;
+    }
+
+
+    static void writeString( DataOutput out, String value ) throws IOException
+    {
+        out.writeBoolean( value != null );
+        if ( value != null )
+        {
+            out.writeUTF( value );
+        }
+    }
+
+
+    static String readString( DataInput in ) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+
+    private static void writeValue( DataOutput out, Object value ) throws IOException
+    {
+        for ( int tag = 0; tag < VALUE_TYPES.length; tag++ )
+        {
+            if ( VALUE_TYPES[tag].isInstance( value ) )
+            {
+                out.writeByte( tag );
+                writeScalar( out, tag, value );
+                return;
+            }
+            else if ( value != null && value.getClass().getComponentType() == ARRAY_TYPES[tag] )
+            {
+                out.writeByte( tag | ARRAY_TAG );
+                int length = Array.getLength( value );
+                out.writeInt( length );
+                for ( int i = 0; i < length; i++ )
+                {
+                    writeScalar( out, tag, Array.get( value, i ) );
+                }
+                return;
+            }
+        }
+        throw new IOException( "Unsupported property value type " + ( value == null ? null : value.getClass() ) );
+    }
+
+
+    private static Object readValue( DataInput in ) throws IOException
+    {
+        int tag = in.readByte();
+        if ( ( tag & ARRAY_TAG ) == 0 )
+        {
+            return readScalar( in, tag );
+        }
+
+        tag &= ~ARRAY_TAG;
+        if ( tag >= ARRAY_TYPES.length )
+        {
+            throw new IOException( "Unsupported property value tag " + tag );
+        }
+        Object value = Array.newInstance( ARRAY_TYPES[tag], in.readInt() );
+        for ( int i = 0; i < Array.getLength( value ); i++ )
+        {
+            Array.set( value, i, readScalar( in, tag ) );
+        }
+        return value;
+    }
+
+
+    private static void writeScalar( DataOutput out, int tag, Object value ) throws IOException
+    {
+        switch ( tag )
+        {
+            case 0:
+                out.writeUTF( ( String ) value );
+                break;
+            case 1:
+                out.writeLong( ( ( Long ) value ).longValue() );
+                break;
+            case 2:
+                out.writeDouble( ( ( Double ) value ).doubleValue() );
+                break;
+            case 3:
+                out.writeFloat( ( ( Float ) value ).floatValue() );
+                break;
+            case 4:
+                out.writeInt( ( ( Integer ) value ).intValue() );
+                break;
+            case 5:
+                out.writeByte( ( ( Byte ) value ).byteValue() );
+                break;
+            case 6:
+                out.writeChar( ( ( Character ) value ).charValue() );
+                break;
+            case 7:
+                out.writeBoolean( ( ( Boolean ) value ).booleanValue() );
+                break;
+            default:
+                out.writeShort( ( ( Short ) value ).shortValue() );
+                break;
+        }
+    }
+
+
+    private static Object readScalar( DataInput in, int tag ) throws IOException
+    {
+        switch ( tag )
+        {
+            case 0:
+                return in.readUTF();
+            case 1:
+                return Long.valueOf( in.readLong() );
+            case 2:
+                return Double.valueOf( in.readDouble() );
+            case 3:
+                return Float.valueOf( in.readFloat() );
+            case 4:
+                return Integer.valueOf( in.readInt() );
+            case 5:
+                return Byte.valueOf( in.readByte() );
+            case 6:
+                return Character.valueOf( in.readChar() );
+            case 7:
+                return Boolean.valueOf( in.readBoolean() );
+            case 8:
+                return Short.valueOf( in.readShort() );
+            default:
+                throw new IOException( "Unsupported property value tag " + tag );
+        }
+    }
 }
@@ -18,6 +18,9 @@
  */
 package org.apache.felix.scr.impl.metadata;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -500,4 +503,49 @@ public class ReferenceMetadata
         m_validated = true;
     }
 
+
+    /**
+     * Writes this validated metadata to the descriptor cache.
+     */
+    void store( DataOutput out ) throws IOException
+    {
+        ComponentMetadata.writeString( out, m_name );
+        ComponentMetadata.writeString( out, m_interface );
+        ComponentMetadata.writeString( out, m_cardinality );
+        ComponentMetadata.writeString( out, m_target );
+        ComponentMetadata.writeString( out, m_bind );
+        ComponentMetadata.writeString( out, m_updated );
+        ComponentMetadata.writeString( out, m_unbind );
+        ComponentMetadata.writeString( out, m_policy );
+        ComponentMetadata.writeString( out, m_policy_option );
+        out.writeBoolean( m_isStatic );
+        out.writeBoolean( m_isOptional );
+        out.writeBoolean( m_isMultiple );
+        out.writeBoolean( m_isReluctant );
+    }
+
+
+    /**
+     * Reads validated metadata written by {@link #store(DataOutput)}.
+     */
+    static ReferenceMetadata load( DataInput in ) throws IOException
+    {
+        ReferenceMetadata reference = new ReferenceMetadata();
+        reference.m_name = ComponentMetadata.readString( in );
+        reference.m_interface = ComponentMetadata.readString( in );
+        reference.m_cardinality = ComponentMetadata.readString( in );
+        reference.m_target = ComponentMetadata.readString( in );
+        reference.m_bind = ComponentMetadata.readString( in );
+        reference.m_updated = ComponentMetadata.readString( in );
+        reference.m_unbind = ComponentMetadata.readString( in );
+        reference.m_policy = ComponentMetadata.readString( in );
+        reference.m_policy_option = ComponentMetadata.readString( in );
+        reference.m_isStatic = in.readBoolean();
+        reference.m_isOptional = in.readBoolean();
+        reference.m_isMultiple = in.readBoolean();
+        reference.m_isReluctant = in.readBoolean();
+        reference.m_validated = true;
+        return reference;
+    }
+
 }
\ No newline at end of file
@@ -18,6 +18,9 @@
  */
 package org.apache.felix.scr.impl.metadata;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -95,4 +98,32 @@ public class ServiceMetadata {
         }
         m_validated = true;
     }
+
+    /**
+     * Writes this validated metadata to the descriptor cache.
+     */
+    void store( DataOutput out ) throws IOException
+    {
+        out.writeBoolean( m_serviceFactory );
+        out.writeInt( m_provides.size() );
+        for ( String provide : m_provides )
+        {
+            out.writeUTF( provide );
+        }
+    }
+
+    /**
+     * Reads validated metadata written by {@link #store(DataOutput)}.
+     */
+    static ServiceMetadata load( DataInput in ) throws IOException
+    {
+        ServiceMetadata service = new ServiceMetadata();
+        service.m_serviceFactory = in.readBoolean();
+        for ( int i = in.readInt(); i > 0; i-- )
+        {
+            service.m_provides.add( in.readUTF() );
+        }
+        service.m_validated = true;
+        return service;
+    }
 }
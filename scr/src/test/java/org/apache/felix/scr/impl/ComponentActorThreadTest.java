@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+
+public class ComponentActorThreadTest extends TestCase
+{
+
+    public void test_same_key_keeps_order() throws Exception
+    {
+        final ComponentActorThread actor = new ComponentActorThread( 4 );
+        actor.start();
+
+        final List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+        for ( int i = 0; i < 100; i++ )
+        {
+            final int index = i;
+            actor.schedule( 17L, new Runnable()
+            {
+                public void run()
+                {
+                    order.add( index );
+                }
+            } );
+        }
+
+        actor.terminate();
+
+        assertEquals( 100, order.size() );
+        for ( int i = 0; i < 100; i++ )
+        {
+            assertEquals( i, order.get( i ).intValue() );
+        }
+    }
+
+
+    public void test_different_keys_run_concurrently() throws Exception
+    {
+        final ComponentActorThread actor = new ComponentActorThread( 2 );
+        actor.start();
+
+        // the first task blocks until the second task has run
+        final CountDownLatch latch = new CountDownLatch( 1 );
+        final boolean[] released = new boolean[1];
+        actor.schedule( 0L, new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    released[0] = latch.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } );
+        actor.schedule( 1L, new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        } );
+
+        actor.terminate();
+
+        assertTrue( released[0] );
+    }
+
+
+    public void test_single_thread() throws Exception
+    {
+        final ComponentActorThread actor = new ComponentActorThread();
+        actor.start();
+
+        final List<Integer> order = Collections.synchronizedList( new ArrayList<Integer>() );
+        for ( int i = 0; i < 10; i++ )
+        {
+            final int index = i;
+            actor.schedule( ( long ) i, new Runnable()
+            {
+                public void run()
+                {
+                    order.add( index );
+                }
+            } );
+        }
+
+        actor.terminate();
+
+        assertEquals( 10, order.size() );
+        for ( int i = 0; i < 10; i++ )
+        {
+            assertEquals( i, order.get( i ).intValue() );
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.PropertyMetadata;
+import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
+import org.apache.felix.scr.impl.metadata.ServiceMetadata;
+import org.apache.felix.scr.impl.metadata.XmlHandler;
+import org.osgi.framework.Bundle;
+
+
+public class ComponentDescriptorCacheTest extends TestCase
+{
+
+    private File directory;
+
+    private File file;
+
+
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile( "scr", ".cache" );
+        directory.delete();
+        file = new File( directory, "3" + ComponentDescriptorCache.CACHE_FILE_SUFFIX );
+    }
+
+
+    protected void tearDown()
+    {
+        file.delete();
+        directory.delete();
+    }
+
+
+    public void test_store_and_load() throws IOException
+    {
+        final ComponentMetadata metadata = new ComponentMetadata( XmlHandler.DS_VERSION_1_1 );
+        metadata.setImplementationClassName( "org.example.Component" );
+        metadata.setImmediate( true );
+        metadata.addProperty( property( "string", "String", "value" ) );
+        metadata.addProperty( property( "integer", "Integer", "5" ) );
+        metadata.addProperty( properties( "longs", "Long", "1\n2" ) );
+        metadata.addProperty( properties( "strings", "String", "a\nb" ) );
+        final ServiceMetadata service = new ServiceMetadata();
+        service.addProvide( "org.example.Service" );
+        metadata.setService( service );
+        final ReferenceMetadata reference = new ReferenceMetadata();
+        reference.setName( "ref" );
+        reference.setInterface( "org.example.Service" );
+        reference.setTarget( "(a=b)" );
+        metadata.addDependency( reference );
+        metadata.validate( new MockLogger() );
+
+        final List<ComponentMetadata> list = new ArrayList<ComponentMetadata>();
+        list.add( metadata );
+        final Map<String, String[]> methods = new HashMap<String, String[]>();
+        methods.put( "key", new String[]
+            { "org.example.Component", "activate" } );
+        methods.put( "missing", new String[0] );
+
+        cache( bundle( 3, 10 ), null, "OSGI-INF/*.xml" ).store( list, methods );
+        assertTrue( file.isFile() );
+
+        final ComponentDescriptorCache cache = cache( bundle( 3, 10 ), null, "OSGI-INF/*.xml" );
+        assertTrue( cache.load() );
+        assertEquals( 1, cache.getMetadata().size() );
+
+        final ComponentMetadata loaded = cache.getMetadata().get( 0 );
+        assertEquals( "org.example.Component", loaded.getName() );
+        assertEquals( "org.example.Component", loaded.getImplementationClassName() );
+        assertEquals( "activate", loaded.getActivate() );
+        assertTrue( loaded.isImmediate() );
+        assertEquals( "value", loaded.getProperties().get( "string" ) );
+        assertEquals( new Integer( 5 ), loaded.getProperties().get( "integer" ) );
+        assertTrue( Arrays.equals( new long[]
+            { 1, 2 }, ( long[] ) loaded.getProperties().get( "longs" ) ) );
+        assertTrue( Arrays.equals( new String[]
+            { "a", "b" }, ( String[] ) loaded.getProperties().get( "strings" ) ) );
+        assertEquals( "org.example.Service", loaded.getServiceMetadata().getProvides()[0] );
+        assertEquals( 1, loaded.getDependencies().size() );
+        assertEquals( "org.example.Service", loaded.getDependencies().get( 0 ).getInterface() );
+        assertEquals( "(a=b)", loaded.getDependencies().get( 0 ).getTarget() );
+        assertTrue( loaded.getDependencies().get( 0 ).isStatic() );
+        assertEquals( "activate", cache.getMethods().get( "key" )[1] );
+        assertEquals( 0, cache.getMethods().get( "missing" ).length );
+    }
+
+
+    public void test_modified_bundle_invalidates() throws IOException
+    {
+        cache( bundle( 3, 10 ), null, "OSGI-INF/*.xml" ).store( new ArrayList<ComponentMetadata>(),
+            new HashMap<String, String[]>() );
+
+        assertFalse( cache( bundle( 3, 11 ), null, "OSGI-INF/*.xml" ).load() );
+        assertFalse( file.exists() );
+    }
+
+
+    public void test_modified_header_invalidates() throws IOException
+    {
+        cache( bundle( 3, 10 ), null, "OSGI-INF/*.xml" ).store( new ArrayList<ComponentMetadata>(),
+            new HashMap<String, String[]>() );
+
+        assertFalse( cache( bundle( 3, 10 ), null, "OSGI-INF/a.xml" ).load() );
+    }
+
+
+    public void test_modified_fragments_invalidate() throws IOException
+    {
+        final Bundle[] fragments = new Bundle[]
+            { bundle( 4, 20 ) };
+        cache( bundle( 3, 10 ), fragments, "OSGI-INF/*.xml" ).store( new ArrayList<ComponentMetadata>(),
+            new HashMap<String, String[]>() );
+        assertTrue( cache( bundle( 3, 10 ), fragments, "OSGI-INF/*.xml" ).load() );
+
+        // fragment updated
+        assertFalse( cache( bundle( 3, 10 ), new Bundle[]
+            { bundle( 4, 21 ) }, "OSGI-INF/*.xml" ).load() );
+
+        // fragment attached
+        cache( bundle( 3, 10 ), null, "OSGI-INF/*.xml" ).store( new ArrayList<ComponentMetadata>(),
+            new HashMap<String, String[]>() );
+        assertFalse( cache( bundle( 3, 10 ), fragments, "OSGI-INF/*.xml" ).load() );
+    }
+
+
+    public void test_corrupt_cache_ignored() throws IOException
+    {
+        directory.mkdirs();
+        final FileOutputStream out = new FileOutputStream( file );
+        out.write( new byte[]
+            { 0, 0, 0, 2, 3 } );
+        out.close();
+
+        assertFalse( cache( bundle( 3, 10 ), null, "OSGI-INF/*.xml" ).load() );
+        assertFalse( file.exists() );
+    }
+
+
+    private ComponentDescriptorCache cache( final Bundle bundle, final Bundle[] fragments, final String locations )
+    {
+        return new ComponentDescriptorCache( directory, bundle, fragments, locations );
+    }
+
+
+    private static PropertyMetadata property( final String name, final String type, final String value )
+    {
+        final PropertyMetadata property = new PropertyMetadata();
+        property.setName( name );
+        property.setType( type );
+        property.setValue( value );
+        return property;
+    }
+
+
+    private static PropertyMetadata properties( final String name, final String type, final String values )
+    {
+        final PropertyMetadata property = new PropertyMetadata();
+        property.setName( name );
+        property.setType( type );
+        property.setValues( values );
+        return property;
+    }
+
+
+    private static Bundle bundle( final long bundleId, final long lastModified )
+    {
+        return new MockBundle()
+        {
+            public long getBundleId()
+            {
+                return bundleId;
+            }
+
+
+            public long getLastModified()
+            {
+                return lastModified;
+            }
+        };
+    }
+}
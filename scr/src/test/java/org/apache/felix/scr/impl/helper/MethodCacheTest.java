@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.scr.impl.metadata.instances.Level1Object;
+import org.apache.felix.scr.impl.metadata.instances.Level3Object;
+import org.apache.felix.scr.impl.metadata.instances2.Level2Object;
+
+
+public class MethodCacheTest extends TestCase
+{
+
+    private final SimpleLogger logger = new SimpleLogger()
+    {
+        public void log( int level, String message, Throwable ex )
+        {
+        }
+
+
+        public void log( int level, String message, Object[] arguments, Throwable ex )
+        {
+        }
+
+
+        public boolean isLogEnabled( int level )
+        {
+            return false;
+        }
+    };
+
+
+    public void test_lookup_is_cached()
+    {
+        final MethodCache cache = new MethodCache();
+        final ActivateMethod am = activateMethod( Level2Object.class, "activate_comp_map", cache );
+        assertTrue( am.methodExists( logger ) );
+        assertTrue( cache.isModified() );
+
+        final String[] entry = cache.get( am.getCacheKey() );
+        assertNotNull( entry );
+        assertEquals( Level2Object.class.getName(), entry[0] );
+        assertEquals( "activate_comp_map", entry[1] );
+        assertEquals( 4, entry.length );
+    }
+
+
+    public void test_method_restored_from_cache()
+    {
+        // persisted entries only carry strings
+        final MethodCache first = new MethodCache();
+        final ActivateMethod am1 = activateMethod( Level2Object.class, "activate_comp_map", first );
+        assertTrue( am1.methodExists( logger ) );
+
+        final MethodCache second = new MethodCache( first.getEntries() );
+        final ActivateMethod am2 = activateMethod( Level2Object.class, "activate_comp_map", second );
+        assertTrue( am2.methodExists( logger ) );
+        assertFalse( second.isModified() );
+
+        final Method method = am2.getMethod();
+        assertEquals( am1.getMethod(), method );
+        assertTrue( method.isAccessible() );
+    }
+
+
+    public void test_not_found_restored_from_cache()
+    {
+        final MethodCache first = new MethodCache();
+        final ActivateMethod am1 = activateMethod( Level1Object.class, "activate_comp_map", first );
+        assertFalse( am1.methodExists( logger ) );
+        assertEquals( 0, first.get( am1.getCacheKey() ).length );
+
+        final MethodCache second = new MethodCache( first.getEntries() );
+        final ActivateMethod am2 = activateMethod( Level1Object.class, "activate_comp_map", second );
+        assertFalse( am2.methodExists( logger ) );
+        assertFalse( second.isModified() );
+    }
+
+
+    public void test_stale_entry_searches_again()
+    {
+        final ActivateMethod probe = activateMethod( Level2Object.class, "activate_comp_map", null );
+        final Map<String, String[]> entries = new HashMap<String, String[]>();
+        entries.put( probe.getCacheKey(), new String[]
+            { Level2Object.class.getName(), "activate_comp_map", "java.lang.String" } );
+
+        final MethodCache cache = new MethodCache( entries );
+        final ActivateMethod am = activateMethod( Level2Object.class, "activate_comp_map", cache );
+        assertTrue( am.methodExists( logger ) );
+        assertTrue( cache.isModified() );
+        assertEquals( 4, cache.get( am.getCacheKey() ).length );
+    }
+
+
+    public void test_cached_method_must_be_accessible()
+    {
+        // a private method of a super class is not acceptable
+        final ActivateMethod probe = activateMethod( Level3Object.class, "activate_suitable", null );
+        final Map<String, String[]> entries = new HashMap<String, String[]>();
+        entries.put( probe.getCacheKey(), new String[]
+            { Level2Object.class.getName(), "activate_suitable", Map.class.getName() } );
+
+        final MethodCache cache = new MethodCache( entries );
+        final ActivateMethod am = activateMethod( Level3Object.class, "activate_suitable", cache );
+        assertFalse( am.methodExists( logger ) );
+        assertTrue( cache.isModified() );
+    }
+
+
+    public void test_lookup_depending_on_other_loader_not_cached() throws Exception
+    {
+        // Level1Object is loaded by another "bundle" than Level2Object
+        final ClassLoader other = new IsolatingClassLoader( getClass().getClassLoader(),
+            Level1Object.class.getPackage().getName() + "." );
+        final ClassLoader component = new IsolatingClassLoader( other, Level2Object.class.getPackage().getName()
+            + "." );
+        final Class<?> clazz = component.loadClass( Level2Object.class.getName() );
+
+        final MethodCache cache = new MethodCache();
+        final ActivateMethod inherited = activateMethod( clazz, "activate_level1_map", cache );
+        assertTrue( inherited.methodExists( logger ) );
+        assertNull( cache.get( inherited.getCacheKey() ) );
+
+        final ActivateMethod missing = activateMethod( clazz, "activate_missing", cache );
+        assertFalse( missing.methodExists( logger ) );
+        assertNull( cache.get( missing.getCacheKey() ) );
+
+        // declared by the component class with parameters SCR sees too
+        final ActivateMethod declared = activateMethod( clazz, "activate_comp_map", cache );
+        assertTrue( declared.methodExists( logger ) );
+        assertNotNull( cache.get( declared.getCacheKey() ) );
+    }
+
+
+    private static ActivateMethod activateMethod( Class<?> clazz, String methodName, MethodCache cache )
+    {
+        final ActivateMethod am = new ActivateMethod( methodName, true, clazz, true, false );
+        am.setMethodCache( cache );
+        return am;
+    }
+
+
+    /**
+     * Defines the classes of a package itself instead of delegating to the
+     * parent class loader like a bundle class loader does.
+     */
+    private static class IsolatingClassLoader extends ClassLoader
+    {
+        private final String m_package;
+
+
+        IsolatingClassLoader( final ClassLoader parent, final String pkg )
+        {
+            super( parent );
+            m_package = pkg;
+        }
+
+
+        protected synchronized Class<?> loadClass( final String name, final boolean resolve )
+            throws ClassNotFoundException
+        {
+            if ( !name.startsWith( m_package ) || name.substring( m_package.length() ).indexOf( '.' ) >= 0 )
+            {
+                return super.loadClass( name, resolve );
+            }
+
+            Class<?> clazz = findLoadedClass( name );
+            if ( clazz == null )
+            {
+                try
+                {
+                    final InputStream in = getResourceAsStream( name.replace( '.', '/' ) + ".class" );
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    final byte[] buf = new byte[4096];
+                    for ( int count = in.read( buf ); count >= 0; count = in.read( buf ) )
+                    {
+                        out.write( buf, 0, count );
+                    }
+                    in.close();
+                    clazz = defineClass( name, out.toByteArray(), 0, out.size() );
+                }
+                catch ( IOException ioe )
+                {
+                    throw new ClassNotFoundException( name, ioe );
+                }
+            }
+            return clazz;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * Measures the cost of calling an activate method through {@link ActivateMethod}
+ * against the reflective invocation which checks the parameter types and
+ * builds the log message arguments on each call. This is not run as part of the build; run it with the
+ * test class path using
+ * <tt>java org.apache.felix.scr.impl.helper.MethodInvocationBenchmark [iterations]</tt>.
+ */
+public class MethodInvocationBenchmark
+{
+
+    public static void main( String[] args ) throws Exception
+    {
+        final int iterations = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : 5000000;
+
+        final SimpleLogger logger = new SimpleLogger()
+        {
+            public void log( int level, String message, Throwable ex )
+            {
+            }
+
+
+            public void log( int level, String message, Object[] arguments, Throwable ex )
+            {
+            }
+
+
+            public boolean isLogEnabled( int level )
+            {
+                return false;
+            }
+        };
+
+        final ComponentContext context = ( ComponentContext ) Proxy.newProxyInstance(
+            MethodInvocationBenchmark.class.getClassLoader(), new Class[]
+                { ComponentContext.class }, new InvocationHandler()
+            {
+                final Hashtable properties = new Hashtable();
+
+
+                public Object invoke( Object proxy, Method method, Object[] args )
+                {
+                    return method.getName().equals( "getProperties" ) ? properties : null;
+                }
+            } );
+
+        final Component component = new Component();
+        final ActivateMethod.ActivatorParameter parameter = new ActivateMethod.ActivatorParameter( context, 1 );
+        final ActivateMethod am = new ActivateMethod( "activate", true, Component.class, true, false );
+        if ( !am.methodExists( logger ) )
+        {
+            throw new IllegalStateException( "activate method not found" );
+        }
+        final Method method = am.getMethod();
+
+        long start = 0;
+        long reflectiveTime = 0;
+        long preparedTime = 0;
+        // the first round is a warm up
+        for ( int round = 0; round < 2; round++ )
+        {
+            start = System.nanoTime();
+            for ( int n = 0; n < iterations; n++ )
+            {
+                invokeReflective( method, component, parameter, logger );
+            }
+            reflectiveTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for ( int n = 0; n < iterations; n++ )
+            {
+                am.invoke( component, parameter, null, logger );
+            }
+            preparedTime = System.nanoTime() - start;
+        }
+
+        System.out.println( "ns/reflective\tns/prepared\tcalls" );
+        System.out.println( ( reflectiveTime / ( double ) iterations ) + "\t\t" + ( preparedTime / ( double ) iterations )
+            + "\t\t" + component.calls );
+    }
+
+
+    /**
+     * Invokes the method checking the parameter types and creating the
+     * log arguments on each call.
+     */
+    private static MethodResult invokeReflective( final Method method, final Object component,
+        final ActivateMethod.ActivatorParameter ap, final SimpleLogger logger ) throws Exception
+    {
+        logger.log( LogService.LOG_DEBUG, "invoking {0}: {1}", new Object[]
+            { "activate", method.getName() }, null );
+        final Class[] parameterTypes = method.getParameterTypes();
+        final Object[] params = new Object[parameterTypes.length];
+        for ( int i = 0; i < params.length; i++ )
+        {
+            if ( parameterTypes[i] == ComponentContext.class )
+            {
+                params[i] = ap.getComponentContext();
+            }
+            else if ( parameterTypes[i] == BundleContext.class )
+            {
+                params[i] = ap.getComponentContext().getBundleContext();
+            }
+            else if ( parameterTypes[i] == Map.class )
+            {
+                params[i] = ap.getComponentContext().getProperties();
+            }
+            else if ( parameterTypes[i] == Integer.class || parameterTypes[i] == Integer.TYPE )
+            {
+                params[i] = ap.getReason();
+            }
+        }
+        final Object result = method.invoke( component, params );
+        logger.log( LogService.LOG_DEBUG, "invoked {0}: {1}: parameters {2}", new Object[]
+            { "activate", method.getName(), Arrays.asList( params ) }, null );
+        return new MethodResult( method.getReturnType() != Void.TYPE, ( Map ) result );
+    }
+
+    public static class Component
+    {
+        long calls;
+
+
+        protected void activate( ComponentContext context, BundleContext bundleContext, Map properties )
+        {
+            calls++;
+        }
+    }
+}